@@ -0,0 +1,358 @@
+package org.mitre.dsmiley.httpproxy.benchmarks;
+
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.localserver.LocalTestServer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.util.EntityUtils;
+import org.mitre.dsmiley.httpproxy.LatencyHistogram;
+import org.mitre.dsmiley.httpproxy.ProxyServlet;
+import org.mitre.dsmiley.httpproxy.TrafficCapture;
+
+import javax.servlet.Servlet;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays a capture made with the {@code captureFile} init parameter ({@link TrafficCapture})
+ * through a proxy servlet in this JVM, to a stub target that answers each request with the captured
+ * response: its status, headers, and body (or as many zero bytes, if it wasn't captured). Requests
+ * are sent on the captured schedule, sped up N times, or as fast as the threads allow; then
+ * throughput and latency percentiles are reported. Unlike the JMH benchmarks, this measures the
+ * real traffic's mix of URIs, headers and body sizes.
+ * <p>
+ * Response times are measured from when each request was due, so a proxy that falls behind
+ * is charged for the wait; service times from when a thread got to it.
+ * </p>
+ */
+public class CaptureReplay {
+
+  /** The request header telling the stub target which captured response to send. */
+  static final String REPLAY_ID = "X-Replay-Id";
+
+  private static final List<String> NOT_REPLAYED_REQUEST_HEADERS = Arrays.asList(
+      "content-length", "transfer-encoding", "host");
+  private static final List<String> NOT_REPLAYED_RESPONSE_HEADERS = Arrays.asList(
+      "content-length", "transfer-encoding", "connection", "keep-alive");
+
+  private static void usage() {
+    System.err.println("Usage: java -cp target/benchmarks.jar " + CaptureReplay.class.getName()
+        + " [options] captureFile\n"
+        + "  -speed N        replay N times as fast as captured; 0 is as fast as possible (default 1)\n"
+        + "  -threads N      requests in flight at most (default 64)\n"
+        + "  -limit N        replay the first N exchanges only\n"
+        + "  -warmup N       first replay N exchanges as fast as possible, unmeasured (default 0)\n"
+        + "  -latency        the stub target takes as long to respond as the captured target did\n"
+        + "  -servlet class  the servlet to replay through (default " + ProxyServlet.class.getName() + ")\n"
+        + "  -P name=value   a servlet init parameter; repeatable");
+    System.exit(2);
+  }
+
+  public static void main(String[] args) throws Exception {
+    double speed = 1;
+    int threads = 64;
+    int limit = Integer.MAX_VALUE;
+    int warmup = 0;
+    boolean latency = false;
+    String servletClass = ProxyServlet.class.getName();
+    Properties initParams = new Properties();
+    File captureFile = null;
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (i + 1 < args.length && arg.equals("-speed"))
+        speed = Double.parseDouble(args[++i]);
+      else if (i + 1 < args.length && arg.equals("-threads"))
+        threads = Integer.parseInt(args[++i]);
+      else if (i + 1 < args.length && arg.equals("-limit"))
+        limit = Integer.parseInt(args[++i]);
+      else if (i + 1 < args.length && arg.equals("-warmup"))
+        warmup = Integer.parseInt(args[++i]);
+      else if (arg.equals("-latency"))
+        latency = true;
+      else if (i + 1 < args.length && arg.equals("-servlet"))
+        servletClass = args[++i];
+      else if (i + 1 < args.length && arg.equals("-P") && args[i + 1].indexOf('=') > 0) {
+        String param = args[++i];
+        initParams.setProperty(param.substring(0, param.indexOf('=')), param.substring(param.indexOf('=') + 1));
+      } else if (!arg.startsWith("-") && captureFile == null)
+        captureFile = new File(arg);
+      else
+        usage();
+    }
+    if (captureFile == null)
+      usage();
+
+    List<TrafficCapture.Exchange> exchanges = read(captureFile, limit);
+    if (exchanges.isEmpty()) {
+      System.err.println("No exchanges captured to " + captureFile);
+      System.exit(1);
+    }
+    if (System.getProperty("http.maxConnections") == null)//the proxy's pool, 5 by default
+      System.setProperty("http.maxConnections", Integer.toString(threads));
+
+    CaptureReplay replay = new CaptureReplay(exchanges, latency);
+    try {
+      replay.start(servletClass, initParams);
+      if (warmup > 0)
+        replay.run(Math.min(warmup, exchanges.size()), 0, threads);
+      replay.reset();
+      long elapsedNanos = replay.run(exchanges.size(), speed, threads);
+      replay.report(System.out, speed, threads, elapsedNanos);
+    } finally {
+      replay.stop();
+    }
+  }
+
+  /** The capture's exchanges, up to {@code limit}, in the order they started. */
+  static List<TrafficCapture.Exchange> read(File captureFile, int limit) throws IOException {
+    List<TrafficCapture.Exchange> exchanges = new ArrayList<TrafficCapture.Exchange>();
+    TrafficCapture.Reader reader = new TrafficCapture.Reader(captureFile);
+    TrafficCapture.Exchange exchange;
+    while (exchanges.size() < limit && (exchange = reader.next()) != null)
+      exchanges.add(exchange);
+    Collections.sort(exchanges, new Comparator<TrafficCapture.Exchange>() {
+      @Override
+      public int compare(TrafficCapture.Exchange a, TrafficCapture.Exchange b) {
+        return a.timeMicros < b.timeMicros ? -1 : a.timeMicros > b.timeMicros ? 1 : 0;
+      }
+    });
+    return exchanges;
+  }
+
+  private final List<TrafficCapture.Exchange> exchanges;
+  private final boolean latency;
+  private LocalTestServer server;
+  private Servlet servlet;
+
+  private LatencyHistogram responseTimes = new LatencyHistogram();
+  private LatencyHistogram serviceTimes = new LatencyHistogram();
+  private LatencyHistogram capturedTimes = new LatencyHistogram();
+  private final AtomicLong completed = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+  private final AtomicLong statusMismatches = new AtomicLong();
+  private final AtomicLong responseBytes = new AtomicLong();
+
+  CaptureReplay(List<TrafficCapture.Exchange> exchanges, boolean latency) {
+    this.exchanges = exchanges;
+    this.latency = latency;
+  }
+
+  /** Starts the stub target, and the servlet proxying to it. */
+  void start(String servletClass, Properties initParams) throws Exception {
+    server = new LocalTestServer(null, null);
+    server.register("*", new HttpRequestHandler() {
+      @Override
+      public void handle(HttpRequest req, HttpResponse rsp, HttpContext context) throws HttpException, IOException {
+        if (req instanceof HttpEntityEnclosingRequest)
+          EntityUtils.consume(((HttpEntityEnclosingRequest) req).getEntity());
+        respond(exchanges.get(Integer.parseInt(req.getFirstHeader(REPLAY_ID).getValue())), rsp);
+      }
+    });
+    server.start();
+
+    Properties params = new Properties();
+    params.putAll(initParams);
+    params.setProperty("targetUri", "http://localhost:" + server.getServiceAddress().getPort());
+    servlet = (Servlet) Class.forName(servletClass).newInstance();
+    servlet.init(ServletStubs.config("replay", params));
+  }
+
+  private void respond(TrafficCapture.Exchange exchange, HttpResponse rsp) {
+    if (latency && exchange.upstreamMicros > 0)
+      LockSupport.parkNanos(exchange.upstreamMicros * 1000);
+    rsp.setStatusCode(exchange.status > 0 ? exchange.status : 502);//0: it never got to the target
+    List<String> headers = exchange.responseHeaders;
+    for (int i = 0; i < headers.size(); i += 2) {
+      String name = headers.get(i).toLowerCase(Locale.ENGLISH);
+      if (NOT_REPLAYED_RESPONSE_HEADERS.contains(name)
+          || (name.equals("content-encoding") && exchange.responseBody == null))//zeros aren't gzip
+        continue;
+      rsp.addHeader(headers.get(i), headers.get(i + 1));
+    }
+    if (exchange.status >= 200 && exchange.status != 204 && exchange.status != 304) {
+      byte[] body = exchange.responseBody != null ? exchange.responseBody
+          : new byte[(int) Math.max(0, exchange.responseLength)];
+      rsp.setEntity(new ByteArrayEntity(body));
+    }
+  }
+
+  void reset() {
+    responseTimes = new LatencyHistogram();
+    serviceTimes = new LatencyHistogram();
+    capturedTimes = new LatencyHistogram();
+    completed.set(0);
+    errors.set(0);
+    statusMismatches.set(0);
+    responseBytes.set(0);
+  }
+
+  /**
+   * Replays the first {@code count} exchanges, at {@code speed} times the captured pace, or as
+   * fast as possible if it's 0, with at most {@code threads} in flight. Returns the nanoseconds it
+   * took.
+   */
+  long run(int count, double speed, int threads) throws InterruptedException {
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    final Semaphore inFlight = new Semaphore(threads);
+    long firstMicros = exchanges.get(0).timeMicros;
+    long start = System.nanoTime();
+    for (int i = 0; i < count; i++) {
+      final int id = i;
+      final TrafficCapture.Exchange exchange = exchanges.get(i);
+      long due = System.nanoTime();
+      if (speed > 0) {
+        due = start + (long) ((exchange.timeMicros - firstMicros) * 1000 / speed);
+        long wait;
+        while ((wait = due - System.nanoTime()) > 0)
+          LockSupport.parkNanos(wait);
+      }
+      inFlight.acquire();//a request that waits here is late, and charged for it
+      final long dueNanos = due;
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            replay(id, exchange, dueNanos);
+          } finally {
+            inFlight.release();
+          }
+        }
+      });
+    }
+    executor.shutdown();
+    executor.awaitTermination(1, TimeUnit.HOURS);
+    return System.nanoTime() - start;
+  }
+
+  private void replay(int id, TrafficCapture.Exchange exchange, long dueNanos) {
+    long start = System.nanoTime();
+    try {
+      ServletStubs.Response response = new ServletStubs.Response();
+      servlet.service(request(id, exchange), response);
+      long end = System.nanoTime();
+      responseTimes.record((end - dueNanos) / 1000);
+      serviceTimes.record((end - start) / 1000);
+      capturedTimes.record(exchange.totalMicros);
+      responseBytes.addAndGet(response.getBodyBytes());
+      if (exchange.status != 0 && response.getStatusCode() != exchange.status)
+        statusMismatches.incrementAndGet();
+      completed.incrementAndGet();
+    } catch (Exception e) {
+      if (errors.incrementAndGet() <= 5)
+        System.err.println("Replaying " + exchange.method + " " + exchange.uri + " failed: " + e);
+    }
+  }
+
+  /** The captured request, as the client sent it, plus {@link #REPLAY_ID}. */
+  private static ServletStubs.Request request(int id, TrafficCapture.Exchange exchange) {
+    String uri = exchange.uri;
+    int query = uri.indexOf('?');
+    ReplayRequest request = new ReplayRequest(exchange.method,
+        query >= 0 ? uri.substring(0, query) : uri, query >= 0 ? uri.substring(query + 1) : null,
+        exchange.requestLength < 0 ? null : exchange.requestBody != null ? exchange.requestBody
+            : new byte[(int) exchange.requestLength]);
+    List<String> headers = exchange.requestHeaders;
+    for (int i = 0; i < headers.size(); i += 2) {
+      if (!NOT_REPLAYED_REQUEST_HEADERS.contains(headers.get(i).toLowerCase(Locale.ENGLISH)))
+        request.addHeader(headers.get(i), headers.get(i + 1));
+    }
+    if (request.body != null)
+      request.addHeader("Content-Length", Integer.toString(request.body.length));
+    request.addHeader(REPLAY_ID, Integer.toString(id));
+    return request;
+  }
+
+  void report(java.io.PrintStream out, double speed, int threads, long elapsedNanos) {
+    double seconds = elapsedNanos / 1e9;
+    out.printf("Replayed %d exchanges (%s, %d threads) in %.1f s: %.1f requests/s, %.1f MB/s of response bodies%n",
+        completed.get(), speed > 0 ? speed + "x" : "as fast as possible", threads, seconds,
+        completed.get() / seconds, responseBytes.get() / seconds / 1e6);
+    out.printf("Errors: %d; statuses differing from the capture: %d%n", errors.get(), statusMismatches.get());
+    out.printf("%-26s %10s %10s %10s %10s %10s %10s%n", "(microseconds)", "mean", "p50", "p90", "p99", "p99.9", "max");
+    print(out, "response time (from due)", responseTimes.snapshot());
+    print(out, "service time", serviceTimes.snapshot());
+    print(out, "captured time", capturedTimes.snapshot());
+  }
+
+  private static void print(java.io.PrintStream out, String name, LatencyHistogram.Snapshot snapshot) {
+    out.printf("%-26s %10.0f %10d %10d %10d %10d %10d%n", name, snapshot.getMean(),
+        snapshot.getValueAtPercentile(50), snapshot.getValueAtPercentile(90), snapshot.getValueAtPercentile(99),
+        snapshot.getValueAtPercentile(99.9), snapshot.getMax());
+  }
+
+  void stop() throws Exception {
+    if (servlet != null)
+      servlet.destroy();
+    if (server != null)
+      server.stop();
+  }
+
+  /** A captured request, with its method and body. */
+  static class ReplayRequest extends ServletStubs.Request {
+    private final String method;
+    final byte[] body;
+
+    ReplayRequest(String method, String pathInfo, String queryString, byte[] body) {
+      super("/app", "/proxy", pathInfo, queryString);
+      this.method = method;
+      this.body = body;
+    }
+
+    @Override
+    public String getMethod() { return method; }
+
+    @Override
+    public int getContentLength() { return body != null ? body.length : -1; }
+
+    @Override
+    public ServletInputStream getInputStream() {
+      final ByteArrayInputStream in = new ByteArrayInputStream(body != null ? body : new byte[0]);
+      return new ServletInputStream() {
+        @Override
+        public int read() {
+          return in.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+          return in.read(b, off, len);
+        }
+
+        @Override
+        public boolean isFinished() {
+          return in.available() == 0;
+        }
+
+        @Override
+        public boolean isReady() {
+          return true;
+        }
+
+        @Override
+        public void setReadListener(ReadListener readListener) {
+          throw new UnsupportedOperationException();
+        }
+      };
+    }
+  }
+}
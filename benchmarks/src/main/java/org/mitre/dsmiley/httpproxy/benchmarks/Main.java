@@ -0,0 +1,20 @@
+package org.mitre.dsmiley.httpproxy.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * JMH's command line, with the allocation profiler ({@code -prof gc}) on unless another profiler
+ * is chosen, since allocation per request matters as much as time here.
+ */
+public class Main {
+  public static void main(String[] args) throws Exception {
+    List<String> argList = new ArrayList<String>(Arrays.asList(args));
+    if (!argList.contains("-prof") && !argList.contains("-h") && !argList.contains("-l")) {
+      argList.add(0, "-prof");
+      argList.add(1, "gc");
+    }
+    org.openjdk.jmh.Main.main(argList.toArray(new String[argList.size()]));
+  }
+}
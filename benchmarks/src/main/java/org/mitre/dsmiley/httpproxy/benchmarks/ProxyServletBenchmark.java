@@ -0,0 +1,148 @@
+package org.mitre.dsmiley.httpproxy.benchmarks;
+
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.message.BasicHttpResponse;
+import org.mitre.dsmiley.httpproxy.ProxyServlet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per-request helpers of {@link ProxyServlet}, each on its own: URI encoding and rewriting,
+ * and copying headers in both directions. The request looks like a browser's: about ten headers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProxyServletBenchmark {
+
+  static final String TARGET_URI = "http://backend.example.com:8983/solr";
+
+  /** Exposes the protected methods under test. */
+  public static class ExposedProxyServlet extends ProxyServlet {
+    /** Sets the request attributes {@code service()} would. */
+    public void prepare(HttpServletRequest servletRequest) {
+      servletRequest.setAttribute(ATTR_TARGET_URI, targetUri);
+      servletRequest.setAttribute(ATTR_TARGET_HOST, targetHost);
+      servletRequest.setAttribute(ATTR_TARGET_PATH, servletRequest.getPathInfo());
+    }
+
+    public static CharSequence encode(CharSequence in) {
+      return encodeUriQuery(in);
+    }
+
+    public String rewriteRequestUrl(HttpServletRequest servletRequest) {
+      return rewriteUrlFromRequest(servletRequest);
+    }
+
+    public void copyRequest(HttpServletRequest servletRequest, HttpRequest proxyRequest) {
+      copyRequestHeaders(servletRequest, proxyRequest);
+    }
+
+    public void copyResponse(HttpResponse proxyResponse, HttpServletRequest servletRequest,
+                             HttpServletResponse servletResponse) {
+      copyResponseHeaders(proxyResponse, servletRequest, servletResponse);
+    }
+
+    public String rewriteResponseUrl(HttpServletRequest servletRequest, String url) {
+      return rewriteUrlFromResponse(servletRequest, url);
+    }
+  }
+
+  private ExposedProxyServlet servlet;
+  private ServletStubs.Request request;
+  private ServletStubs.Response response;
+  private HttpResponse proxyResponse;
+
+  @Setup
+  public void setup() throws ServletException {
+    Properties initParams = new Properties();
+    initParams.setProperty("targetUri", TARGET_URI);
+    servlet = new ExposedProxyServlet();
+    servlet.init(ServletStubs.config("benchmark", initParams));
+
+    request = browserRequest("/app", "/proxy", "/select/docs", "q=title:java&rows=10&start=0&wt=json");
+    servlet.prepare(request);
+    response = new ServletStubs.Response();
+
+    proxyResponse = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+    StubHttpClient.addCannedHeaders(proxyResponse);
+    proxyResponse.addHeader("Content-Length", "1024");
+    proxyResponse.addHeader("Connection", "keep-alive");//hop-by-hop
+    proxyResponse.addHeader("Content-Location", TARGET_URI + "/select/docs");
+    proxyResponse.addHeader("Set-Cookie", "JSESSIONID=0123456789ABCDEF; Path=/solr; HttpOnly");
+  }
+
+  static ServletStubs.Request browserRequest(String contextPath, String servletPath, String pathInfo, String query) {
+    return new ServletStubs.Request(contextPath, servletPath, pathInfo, query)
+        .addHeader("Host", "www.example.com")
+        .addHeader("User-Agent", "Mozilla/5.0 (X11; Linux x86_64; rv:128.0) Gecko/20100101 Firefox/128.0")
+        .addHeader("Accept", "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8")
+        .addHeader("Accept-Language", "en-US,en;q=0.5")
+        .addHeader("Accept-Encoding", "gzip, deflate, br")
+        .addHeader("Referer", "https://www.example.com/app/search")
+        .addHeader("Cookie", "JSESSIONID=0123456789ABCDEF; theme=dark")
+        .addHeader("Connection", "keep-alive")
+        .addHeader("Upgrade-Insecure-Requests", "1")
+        .addHeader("X-Requested-With", "XMLHttpRequest");
+  }
+
+  @TearDown
+  public void tearDown() {
+    servlet.destroy();
+  }
+
+  @Benchmark
+  public CharSequence encodeUriQueryClean() {
+    return ExposedProxyServlet.encode("q=title:java&rows=10&start=0&wt=json&fl=id,name,score");
+  }
+
+  @Benchmark
+  public CharSequence encodeUriQueryEscaping() {
+    return ExposedProxyServlet.encode("q={!lucene q.op=AND}title:\"java servlets\"&fq=type:[* TO *]");
+  }
+
+  @Benchmark
+  public String rewriteUrlFromRequest() {
+    return servlet.rewriteRequestUrl(request);
+  }
+
+  @Benchmark
+  public HttpRequest copyRequestHeaders() {
+    HttpRequest proxyRequest = new BasicHttpRequest("GET", TARGET_URI);
+    servlet.copyRequest(request, proxyRequest);
+    return proxyRequest;
+  }
+
+  @Benchmark
+  public ServletStubs.Response copyResponseHeaders() {
+    response.reset();
+    servlet.copyResponse(proxyResponse, request, response);
+    return response;
+  }
+
+  @Benchmark
+  public String rewriteUrlFromResponse() {
+    return servlet.rewriteResponseUrl(request, TARGET_URI + "/select/docs?page=2");
+  }
+}
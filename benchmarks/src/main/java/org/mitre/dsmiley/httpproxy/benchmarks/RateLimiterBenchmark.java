@@ -0,0 +1,56 @@
+package org.mitre.dsmiley.httpproxy.benchmarks;
+
+import org.mitre.dsmiley.httpproxy.RateLimiter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link RateLimiter} checks from several threads, over many clients (the usual case)
+ * or all for one client (every check contending on the same bucket).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class RateLimiterBenchmark {
+
+  @Param({"10000", "1"})
+  public int clients;
+
+  private RateLimiter limiter;
+  private String[] keys;
+
+  @Setup
+  public void setup() {
+    limiter = new RateLimiter(1000000, 1000000, 65536);
+    keys = new String[clients];
+    for (int i = 0; i < clients; i++)
+      keys[i] = "10.0." + (i / 256) + "." + (i % 256);
+  }
+
+  @State(Scope.Thread)
+  public static class Client {
+    int next;
+  }
+
+  @Benchmark
+  public long acquire(Client client) {
+    int i = client.next++;
+    return limiter.acquire(keys[(i & Integer.MAX_VALUE) % keys.length]);
+  }
+}
@@ -0,0 +1,133 @@
+package org.mitre.dsmiley.httpproxy.benchmarks;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.localserver.LocalTestServer;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.mitre.dsmiley.httpproxy.ProxyServlet;
+import org.mitre.dsmiley.httpproxy.URITemplateProxyServlet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.servlet.Servlet;
+import javax.servlet.ServletException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A whole GET through {@code service()}: building the proxy request, executing it, and copying the
+ * response back. The "stub" backend answers in-process without I/O, isolating the proxy's own
+ * cost; "localTestServer" is HttpClient's test server over loopback, so it includes HttpClient,
+ * sockets and the pool.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServiceBenchmark {
+
+  static final String P_BACKEND = "benchmarkBackend";
+  static final byte[] BODY = new byte[1024];
+  static {
+    Arrays.fill(BODY, (byte) 'x');
+  }
+
+  @Param({"ProxyServlet", "URITemplateProxyServlet"})
+  public String servletClass;
+
+  @Param({"stub", "localTestServer"})
+  public String backend;
+
+  /** Whether {@link ProxyServlet#P_METRICS} is on, to see what {@code RequestTiming} costs. */
+  @Param({"false", "true"})
+  public boolean metrics;
+
+  public static class BenchProxyServlet extends ProxyServlet {
+    @Override
+    protected HttpClient createHttpClient(HttpParams hcParams) {
+      return "stub".equals(getConfigParam(P_BACKEND)) ? new StubHttpClient(BODY) : super.createHttpClient(hcParams);
+    }
+  }
+
+  public static class BenchURITemplateProxyServlet extends URITemplateProxyServlet {
+    @Override
+    protected HttpClient createHttpClient(HttpParams hcParams) {
+      return "stub".equals(getConfigParam(P_BACKEND)) ? new StubHttpClient(BODY) : super.createHttpClient(hcParams);
+    }
+  }
+
+  private LocalTestServer server;
+  private Servlet servlet;
+  private ServletStubs.Request request;
+  private ServletStubs.Response response;
+
+  @Setup
+  public void setup() throws Exception {
+    int port = 8983;
+    if (backend.equals("localTestServer")) {
+      server = new LocalTestServer(null, null);
+      server.register("*", new HttpRequestHandler() {
+        @Override
+        public void handle(HttpRequest req, HttpResponse rsp, HttpContext context) throws HttpException, IOException {
+          StubHttpClient.addCannedHeaders(rsp);
+          rsp.setEntity(new ByteArrayEntity(BODY));
+        }
+      });
+      server.start();
+      port = server.getServiceAddress().getPort();
+    }
+
+    Properties initParams = new Properties();
+    initParams.setProperty(P_BACKEND, backend);
+    initParams.setProperty(ProxyServlet.P_METRICS, Boolean.toString(metrics));
+    String query = "q=title:java&rows=10&start=0&wt=json";
+    if (servletClass.equals("ProxyServlet")) {
+      servlet = new BenchProxyServlet();
+      initParams.setProperty("targetUri", "http://localhost:" + port + "/solr");
+    } else {
+      servlet = new BenchURITemplateProxyServlet();
+      initParams.setProperty("targetUri", "http://{_host}:{_port}/solr/{_core}");
+      query = "_host=localhost&_port=" + port + "&_core=docs&" + query;
+    }
+    servlet.init(ServletStubs.config("benchmark", initParams));
+
+    request = ProxyServletBenchmark.browserRequest("/app", "/proxy", "/select", query);
+    response = new ServletStubs.Response();
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    servlet.destroy();
+    if (server != null)
+      server.stop();
+  }
+
+  @Benchmark
+  public long service() throws ServletException, IOException {
+    request.reset();
+    response.reset();
+    servlet.service(request, response);
+    if (response.getStatusCode() != 200)
+      throw new IllegalStateException("Status " + response.getStatusCode());
+    return response.getBodyBytes();
+  }
+}
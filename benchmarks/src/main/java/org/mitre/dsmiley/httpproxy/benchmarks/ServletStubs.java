@@ -0,0 +1,277 @@
+package org.mitre.dsmiley.httpproxy.benchmarks;
+
+import javax.servlet.ServletConfig;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Just enough of a servlet container to call a servlet's {@code service()} in a benchmark without
+ * measuring the container. The request and response are reusable via {@code reset()}; anything
+ * the proxy calls that isn't stubbed here fails loudly.
+ */
+public class ServletStubs {
+
+  private ServletStubs() {
+  }
+
+  /** A proxy for {@code type} that throws on every call, for the wrappers to delegate to. */
+  @SuppressWarnings("unchecked")
+  static <T> T unsupported(final Class<T> type) {
+    return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class[]{type}, new InvocationHandler() {
+      @Override
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        throw new UnsupportedOperationException(type.getSimpleName() + "." + method.getName() + " isn't stubbed");
+      }
+    });
+  }
+
+  /** A ServletConfig with the given init parameters and a context that ignores logging. */
+  public static ServletConfig config(final String servletName, final Properties initParams) {
+    final ServletContext context = (ServletContext) Proxy.newProxyInstance(ServletContext.class.getClassLoader(),
+        new Class[]{ServletContext.class}, new InvocationHandler() {
+          @Override
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            return null;//log() and friends
+          }
+        });
+    return new ServletConfig() {
+      @Override
+      public String getServletName() {
+        return servletName;
+      }
+
+      @Override
+      public ServletContext getServletContext() {
+        return context;
+      }
+
+      @Override
+      public String getInitParameter(String name) {
+        return initParams.getProperty(name);
+      }
+
+      @Override
+      public Enumeration getInitParameterNames() {
+        return initParams.propertyNames();
+      }
+    };
+  }
+
+  /** A GET request to http://localhost:8080{contextPath}{servletPath}{pathInfo}?{query}. */
+  public static class Request extends HttpServletRequestWrapper {
+    private final String contextPath;
+    private final String servletPath;
+    private final String pathInfo;
+    private final String queryString;
+    private final Map<String, List<String>> headers = new TreeMap<String, List<String>>(String.CASE_INSENSITIVE_ORDER);
+    private final List<String> headerNames = new ArrayList<String>();
+    private final Map<String, Object> attributes = new HashMap<String, Object>();
+
+    public Request(String contextPath, String servletPath, String pathInfo, String queryString) {
+      super(unsupported(HttpServletRequest.class));
+      this.contextPath = contextPath;
+      this.servletPath = servletPath;
+      this.pathInfo = pathInfo;
+      this.queryString = queryString;
+    }
+
+    public Request addHeader(String name, String value) {
+      List<String> values = headers.get(name);
+      if (values == null) {
+        values = new ArrayList<String>(1);
+        headers.put(name, values);
+        headerNames.add(name);
+      }
+      values.add(value);
+      return this;
+    }
+
+    /** Clears what the servlet set, for the next iteration. */
+    public void reset() {
+      attributes.clear();
+    }
+
+    @Override
+    public String getMethod() { return "GET"; }
+
+    @Override
+    public String getScheme() { return "http"; }
+
+    @Override
+    public String getServerName() { return "localhost"; }
+
+    @Override
+    public int getServerPort() { return 8080; }
+
+    @Override
+    public String getRemoteAddr() { return "127.0.0.1"; }
+
+    @Override
+    public String getContextPath() { return contextPath; }
+
+    @Override
+    public String getServletPath() { return servletPath; }
+
+    @Override
+    public String getPathInfo() { return pathInfo; }
+
+    @Override
+    public String getQueryString() { return queryString; }
+
+    @Override
+    public String getRequestURI() {
+      return contextPath + servletPath + (pathInfo != null ? pathInfo : "");
+    }
+
+    @Override
+    public StringBuffer getRequestURL() {
+      return new StringBuffer("http://localhost:8080").append(getRequestURI());
+    }
+
+    @Override
+    public String getHeader(String name) {
+      List<String> values = headers.get(name);
+      return values == null ? null : values.get(0);
+    }
+
+    @Override
+    public Enumeration getHeaders(String name) {
+      List<String> values = headers.get(name);
+      return Collections.enumeration(values != null ? values : Collections.<String>emptyList());
+    }
+
+    @Override
+    public Enumeration getHeaderNames() {
+      return Collections.enumeration(headerNames);
+    }
+
+    @Override
+    public int getContentLength() { return -1; }
+
+    @Override
+    public ServletInputStream getInputStream() {
+      throw new UnsupportedOperationException("GET has no body");
+    }
+
+    @Override
+    public Object getAttribute(String name) { return attributes.get(name); }
+
+    @Override
+    public void setAttribute(String name, Object o) { attributes.put(name, o); }
+
+    @Override
+    public void removeAttribute(String name) { attributes.remove(name); }
+  }
+
+  /** A response that keeps the status and headers and discards the body. */
+  public static class Response extends HttpServletResponseWrapper {
+    private int status;
+    private final List<String> headers = new ArrayList<String>();//name, value, name, value...
+    private long bodyBytes;
+    private final ServletOutputStream out = new ServletOutputStream() {
+      @Override
+      public void write(int b) {
+        bodyBytes++;
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) {
+        bodyBytes += len;
+      }
+
+      @Override
+      public boolean isReady() {
+        return true;
+      }
+
+      @Override
+      public void setWriteListener(WriteListener writeListener) {
+        throw new UnsupportedOperationException();
+      }
+    };
+
+    public Response() {
+      super(unsupported(HttpServletResponse.class));
+    }
+
+    public void reset() {
+      status = 0;
+      headers.clear();
+      bodyBytes = 0;
+    }
+
+    public int getStatusCode() { return status; }
+
+    public long getBodyBytes() { return bodyBytes; }
+
+    @Override
+    public void setStatus(int sc) { status = sc; }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public void setStatus(int sc, String sm) { status = sc; }
+
+    @Override
+    public void sendError(int sc, String msg) { status = sc; }
+
+    @Override
+    public void sendError(int sc) { status = sc; }
+
+    @Override
+    public void sendRedirect(String location) {
+      status = 302;
+      setHeader("Location", location);
+    }
+
+    @Override
+    public boolean containsHeader(String name) {
+      for (int i = 0; i < headers.size(); i += 2) {
+        if (headers.get(i).equalsIgnoreCase(name))
+          return true;
+      }
+      return false;
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+      headers.add(name);
+      headers.add(value);
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+      for (int i = 0; i < headers.size(); i += 2) {
+        if (headers.get(i).equalsIgnoreCase(name)) {
+          headers.remove(i);
+          headers.remove(i);
+          i -= 2;
+        }
+      }
+      addHeader(name, value);
+    }
+
+    @Override
+    public void setIntHeader(String name, int value) { setHeader(name, Integer.toString(value)); }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException { return out; }
+  }
+}
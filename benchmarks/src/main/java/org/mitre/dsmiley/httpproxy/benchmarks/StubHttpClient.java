@@ -0,0 +1,73 @@
+package org.mitre.dsmiley.httpproxy.benchmarks;
+
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * An HttpClient that answers every request at once with the same canned 200 response, so that a
+ * benchmark of {@code service()} measures the proxy and not the network or a backend.
+ */
+public class StubHttpClient extends CloseableHttpClient {
+
+  private final byte[] body;
+
+  public StubHttpClient(byte[] body) {
+    this.body = body;
+  }
+
+  @Override
+  protected CloseableHttpResponse doExecute(HttpHost target, HttpRequest request, HttpContext context) {
+    CannedResponse response = new CannedResponse();
+    addCannedHeaders(response);
+    ByteArrayEntity entity = new ByteArrayEntity(body);
+    entity.setContentType("application/json");
+    response.setEntity(entity);
+    return response;
+  }
+
+  /** The headers both the stub and the benchmarks' real backend send. */
+  static void addCannedHeaders(org.apache.http.HttpResponse response) {
+    response.addHeader("Date", "Sat, 17 Oct 2026 12:00:00 GMT");
+    response.addHeader("Server", "stub");
+    response.addHeader("Content-Type", "application/json");
+    response.addHeader("Cache-Control", "private, max-age=0");
+    response.addHeader("ETag", "\"abc123\"");
+    response.addHeader("Vary", "Accept-Encoding");
+  }
+
+  @Override
+  public void close() {
+  }
+
+  @Override
+  @Deprecated
+  public HttpParams getParams() {
+    return new BasicHttpParams();
+  }
+
+  @Override
+  @Deprecated
+  public ClientConnectionManager getConnectionManager() {
+    throw new UnsupportedOperationException();
+  }
+
+  private static class CannedResponse extends BasicHttpResponse implements CloseableHttpResponse {
+    CannedResponse() {
+      super(new BasicStatusLine(HttpVersion.HTTP_1_1, 200, "OK"));
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
@@ -0,0 +1,192 @@
+package org.mitre.dsmiley.httpproxy.benchmarks;
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.DefaultBHttpServerConnection;
+import org.apache.http.impl.DefaultConnectionReuseStrategy;
+import org.apache.http.impl.DefaultHttpResponseFactory;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpProcessorBuilder;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.protocol.HttpService;
+import org.apache.http.protocol.ResponseConnControl;
+import org.apache.http.protocol.ResponseContent;
+import org.apache.http.protocol.UriHttpRequestHandlerMapper;
+import org.mitre.dsmiley.httpproxy.ProxyServlet;
+import org.mitre.dsmiley.httpproxy.UnixSocket;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.servlet.ServletException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A whole GET through {@code service()} to a target on the same host, over loopback TCP vs. a Unix
+ * domain socket. Both targets are the same minimal httpcore server, a thread per connection, so
+ * the difference is the transport. The "unix" case needs Java 16 or later.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UnixSocketBenchmark {
+
+  @Param({"tcp", "unix"})
+  public String transport;
+
+  /** The response body size, in bytes. */
+  @Param({"1024", "65536"})
+  public int bodySize;
+
+  private Server server;
+  private File socketFile;
+  private ProxyServlet servlet;
+  private ServletStubs.Request request;
+  private ServletStubs.Response response;
+
+  @Setup
+  public void setup() throws Exception {
+    final byte[] body = new byte[bodySize];
+    UriHttpRequestHandlerMapper handlers = new UriHttpRequestHandlerMapper();
+    handlers.register("*", new HttpRequestHandler() {
+      @Override
+      public void handle(HttpRequest req, HttpResponse rsp, HttpContext context) throws HttpException, IOException {
+        StubHttpClient.addCannedHeaders(rsp);
+        rsp.setEntity(new ByteArrayEntity(body));
+      }
+    });
+
+    Properties initParams = new Properties();
+    if (transport.equals("unix")) {
+      if (!UnixSocket.isSupported())
+        throw new IllegalStateException("Unix domain sockets need Java 16 or later");
+      socketFile = File.createTempFile("benchmark", ".sock");
+      socketFile.delete();
+      final ServerSocketChannel channel = UnixSocket.bind(socketFile.getPath());
+      server = new Server(handlers) {
+        @Override
+        Socket accept() throws IOException {
+          return new UnixSocket(channel.accept());
+        }
+
+        @Override
+        void close() throws IOException {
+          channel.close();
+        }
+      };
+      initParams.setProperty("targetUri", "unix:" + socketFile.getPath() + ":/solr");
+    } else {
+      final ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+      server = new Server(handlers) {
+        @Override
+        Socket accept() throws IOException {
+          Socket socket = serverSocket.accept();
+          socket.setTcpNoDelay(true);
+          return socket;
+        }
+
+        @Override
+        void close() throws IOException {
+          serverSocket.close();
+        }
+      };
+      initParams.setProperty("targetUri", "http://localhost:" + serverSocket.getLocalPort() + "/solr");
+    }
+    server.start();
+
+    servlet = new ProxyServlet();
+    servlet.init(ServletStubs.config("benchmark", initParams));
+    request = ProxyServletBenchmark.browserRequest("/app", "/proxy", "/select", "q=title:java&rows=10");
+    response = new ServletStubs.Response();
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    servlet.destroy();
+    server.close();
+    if (socketFile != null)
+      socketFile.delete();
+  }
+
+  @Benchmark
+  public long service() throws ServletException, IOException {
+    request.reset();
+    response.reset();
+    servlet.service(request, response);
+    if (response.getStatusCode() != 200)
+      throw new IllegalStateException("Status " + response.getStatusCode());
+    return response.getBodyBytes();
+  }
+
+  /** Serves HTTP/1.1 on whatever {@link #accept()} returns, a thread per connection. */
+  abstract static class Server extends Thread {
+    private final HttpService httpService;
+
+    Server(UriHttpRequestHandlerMapper handlers) {
+      super("UnixSocketBenchmark server");
+      setDaemon(true);
+      httpService = new HttpService(HttpProcessorBuilder.create()
+          .add(new ResponseContent()).add(new ResponseConnControl()).build(),
+          DefaultConnectionReuseStrategy.INSTANCE, DefaultHttpResponseFactory.INSTANCE, handlers);
+    }
+
+    abstract Socket accept() throws IOException;
+
+    abstract void close() throws IOException;
+
+    @Override
+    public void run() {
+      for (;;) {
+        final Socket socket;
+        try {
+          socket = accept();
+        } catch (IOException e) {
+          return;//closed
+        }
+        Thread connectionThread = new Thread("UnixSocketBenchmark connection") {
+          @Override
+          public void run() {
+            DefaultBHttpServerConnection connection = new DefaultBHttpServerConnection(8192);
+            try {
+              connection.bind(socket);
+              while (connection.isOpen())
+                httpService.handleRequest(connection, new BasicHttpContext());
+            } catch (Exception e) {
+              //the client closed it
+            } finally {
+              try {
+                connection.shutdown();
+              } catch (IOException e) {
+                //ignore
+              }
+            }
+          }
+        };
+        connectionThread.setDaemon(true);
+        connectionThread.start();
+      }
+    }
+  }
+}
@@ -0,0 +1,94 @@
+package org.mitre.dsmiley.httpproxy.benchmarks;
+
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.URLEncodedUtils;
+import org.mitre.dsmiley.httpproxy.UriTemplate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Per-request cost of expanding the URITemplateProxyServlet target URI: the compiled
+ * {@link UriTemplate} versus the regex-per-request approach it replaced (reproduced here as
+ * {@link #legacyRegex()}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UriTemplateBenchmark {
+
+  private static final Pattern TEMPLATE_PATTERN = Pattern.compile("(\\{([a-zA-Z0-9-_%.]+)\\})");
+
+  private static final String TEMPLATE = "http://{_host}:{_port}/{_path}/{_user}/{_tenant}";
+
+  private static final String QUERY =
+      "q=solr&rows=10&start=0&_host=localhost&_port=8983&_path=solr&_user=user2&_tenant=tenant1&wt=json";
+
+  private List<NameValuePair> pairs;
+  private UriTemplate compiled;
+  private UriTemplate.Variables variables;
+
+  @Setup
+  public void setup() throws Exception {
+    pairs = URLEncodedUtils.parse(new URI("?" + QUERY), null);
+    compiled = UriTemplate.compile(TEMPLATE);
+    final Map<String, String> index = new HashMap<String, String>();
+    for (NameValuePair pair : pairs)
+      index.put(pair.getName(), pair.getValue());
+    variables = new UriTemplate.Variables() {
+      @Override
+      public Object get(String name) {
+        return index.get(name);
+      }
+    };
+  }
+
+  @Benchmark
+  public String compiledTemplate() {
+    return compiled.expand(variables);
+  }
+
+  @Benchmark
+  public String legacyRegex() {
+    StringBuffer urlBuf = new StringBuffer();
+    Matcher matcher = TEMPLATE_PATTERN.matcher(TEMPLATE);
+    while (matcher.find()) {
+      String arg = matcher.group(2);
+      String replacement = null;
+      for (NameValuePair pair : pairs) {
+        if (pair.getName().equals(arg)) {
+          replacement = pair.getValue();
+          break;
+        }
+      }
+      if (replacement == null)
+        replacement = matcher.group(1);
+      matcher.appendReplacement(urlBuf, replacement);
+    }
+    matcher.appendTail(urlBuf);
+    return urlBuf.toString();
+  }
+
+  @Benchmark
+  public UriTemplate compileOnly() {
+    return UriTemplate.compile(TEMPLATE);
+  }
+}
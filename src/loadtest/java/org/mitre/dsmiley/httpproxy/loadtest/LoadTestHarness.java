@@ -0,0 +1,287 @@
+package org.mitre.dsmiley.httpproxy.loadtest;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.catalina.util.ServerInfo;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+import org.mitre.dsmiley.httpproxy.LatencyHistogram;
+import org.mitre.dsmiley.httpproxy.ProxyServlet;
+import org.mitre.dsmiley.httpproxy.URITemplateProxyServlet;
+
+import javax.servlet.Servlet;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives {@link ProxyServlet} and {@link URITemplateProxyServlet}, hosted in embedded Tomcat, at a
+ * fixed request rate against a {@link StubBackendServlet}, and reports latency percentiles and
+ * throughput. Run it with {@code mvn -Ploadtest verify}.
+ * <p>
+ *   The load is open-loop: requests are scheduled at fixed intervals whether or not earlier ones
+ *   finished, and latency is measured from when a request was <em>scheduled</em>, not when a client
+ *   thread got around to sending it. So when the proxy stalls, the requests that should have been
+ *   sent meanwhile count as slow ("coordinated omission" corrected), as they would for real users.
+ * </p>
+ * <p>
+ *   Results are compared to a baseline file; if p50, p99 or p99.9 got slower, or throughput lower,
+ *   by more than the threshold, it fails. Since the numbers depend on the machine, record a baseline
+ *   on the machine that runs the comparison with {@code -Dloadtest.updateBaseline=true}.
+ * </p>
+ * System properties, with defaults:
+ * <ul>
+ *   <li>loadtest.rate=500 - requests per second</li>
+ *   <li>loadtest.warmupSeconds=15, loadtest.durationSeconds=15 - per scenario; with less warmup, a
+ *   cold JVM on a small machine still stalls for seconds compiling the first scenario</li>
+ *   <li>loadtest.connections=200 - client threads and connections</li>
+ *   <li>loadtest.latencyMs=5, loadtest.payloadBytes=4096, loadtest.chunkBytes=0 - the backend</li>
+ *   <li>loadtest.baseline=src/loadtest/baseline.properties</li>
+ *   <li>loadtest.threshold=0.25 - allowed regression, as a fraction</li>
+ *   <li>loadtest.slackMs=2 - also allowed on latencies, so near-zero ones aren't flaky</li>
+ *   <li>loadtest.updateBaseline=false - write the results as the new baseline</li>
+ * </ul>
+ */
+public class LoadTestHarness {
+
+  private final int rate = Integer.getInteger("loadtest.rate", 500);
+  private final int warmupSeconds = Integer.getInteger("loadtest.warmupSeconds", 15);
+  private final int durationSeconds = Integer.getInteger("loadtest.durationSeconds", 15);
+  private final int connections = Integer.getInteger("loadtest.connections", 200);
+  private final int latencyMs = Integer.getInteger("loadtest.latencyMs", 5);
+  private final int payloadBytes = Integer.getInteger("loadtest.payloadBytes", 4096);
+  private final int chunkBytes = Integer.getInteger("loadtest.chunkBytes", 0);
+  private final File baselineFile = new File(System.getProperty("loadtest.baseline", "src/loadtest/baseline.properties"));
+  private final double threshold = Double.parseDouble(System.getProperty("loadtest.threshold", "0.25"));
+  private final long slackMicros = 1000L * Integer.getInteger("loadtest.slackMs", 2);
+  private final boolean updateBaseline = Boolean.getBoolean("loadtest.updateBaseline");
+
+  public static void main(String[] args) throws Exception {
+    new LoadTestHarness().run();
+  }
+
+  /** Results of one scenario, in microseconds and requests per second. */
+  static class Result {
+    long p50, p99, p999, max;
+    double throughput;
+    long errors;
+
+    void store(Properties props, String scenario) {
+      props.setProperty(scenario + ".p50", Long.toString(p50));
+      props.setProperty(scenario + ".p99", Long.toString(p99));
+      props.setProperty(scenario + ".p999", Long.toString(p999));
+      props.setProperty(scenario + ".throughput", Long.toString(Math.round(throughput)));
+    }
+
+    @Override
+    public String toString() {
+      return String.format("p50=%.2fms p99=%.2fms p99.9=%.2fms max=%.2fms throughput=%.0f/s errors=%d",
+          p50 / 1000.0, p99 / 1000.0, p999 / 1000.0, max / 1000.0, throughput, errors);
+    }
+  }
+
+  public void run() throws Exception {
+    //the proxy's HttpClient pool is sized by this; its default of 5 would be the bottleneck
+    if (System.getProperty("http.maxConnections") == null)
+      System.setProperty("http.maxConnections", Integer.toString(connections));
+
+    Tomcat backend = startServer(new StubBackendServlet(), "/backend/*", backendParams());
+    int backendPort = backend.getConnector().getLocalPort();
+    String backendUri = "http://localhost:" + backendPort + "/backend";
+
+    Map<String, String> proxyParams = new LinkedHashMap<String, String>();
+    proxyParams.put("targetUri", backendUri);
+    Tomcat proxy = startServer(new ProxyServlet(), "/proxy/*", proxyParams);
+    Map<String, String> templateParams = new LinkedHashMap<String, String>();
+    templateParams.put("targetUri", "http://{_host}:{_port}/backend");
+    Tomcat templateProxy = startServer(new URITemplateProxyServlet(), "/template/*", templateParams);
+
+    System.out.println(String.format("Load test: %d req/s for %ds after %ds warmup; backend latency %dms, %d bytes%s",
+        rate, durationSeconds, warmupSeconds, latencyMs, payloadBytes, chunkBytes > 0 ? " chunked by " + chunkBytes : ""));
+    Map<String, Result> results = new LinkedHashMap<String, Result>();
+    try {
+      results.put("ProxyServlet", drive("http://localhost:" + proxy.getConnector().getLocalPort()
+          + "/proxy/data?q=1"));
+      results.put("URITemplateProxyServlet", drive("http://localhost:" + templateProxy.getConnector().getLocalPort()
+          + "/template/data?_host=localhost&_port=" + backendPort + "&q=1"));
+    } finally {
+      stopServer(templateProxy);
+      stopServer(proxy);
+      stopServer(backend);
+    }
+    for (Map.Entry<String, Result> entry : results.entrySet())
+      System.out.println(entry.getKey() + ": " + entry.getValue());
+
+    compareToBaseline(results);
+  }
+
+  private Map<String, String> backendParams() {
+    Map<String, String> params = new LinkedHashMap<String, String>();
+    params.put("latencyMs", Integer.toString(latencyMs));
+    params.put("payloadBytes", Integer.toString(payloadBytes));
+    params.put("chunkBytes", Integer.toString(chunkBytes));
+    return params;
+  }
+
+  private Tomcat startServer(Servlet servlet, String pathSpec, Map<String, String> initParams) throws Exception {
+    File baseDir = File.createTempFile("loadtest", "");
+    baseDir.delete();
+    baseDir.mkdir();
+    Tomcat tomcat = new Tomcat();
+    tomcat.setBaseDir(baseDir.getPath());
+    tomcat.setPort(0);
+    tomcat.getEngine().setName(baseDir.getName());//its JMX domain; one per server
+    tomcat.getConnector().setProperty("maxThreads", Integer.toString(connections + 50));
+    Context context = tomcat.addContext("", baseDir.getPath());
+    Wrapper wrapper = Tomcat.addServlet(context, "servlet", servlet);
+    for (Map.Entry<String, String> param : initParams.entrySet())
+      wrapper.addInitParameter(param.getKey(), param.getValue());
+    wrapper.setLoadOnStartup(1);
+    context.addServletMappingDecoded(pathSpec, "servlet");
+    tomcat.start();
+    return tomcat;
+  }
+
+  private static void stopServer(Tomcat tomcat) throws Exception {
+    tomcat.stop();
+    tomcat.destroy();
+  }
+
+  /** Sends GETs to {@code url} at {@link #rate} per second; returns the measured period's results. */
+  private Result drive(final String url) throws InterruptedException, IOException {
+    PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+    connectionManager.setMaxTotal(connections);
+    connectionManager.setDefaultMaxPerRoute(connections);
+    final CloseableHttpClient client = HttpClients.custom().setConnectionManager(connectionManager).build();
+    ExecutorService workers = Executors.newFixedThreadPool(connections);
+    final LatencyHistogram histogram = new LatencyHistogram();
+    final AtomicLong errors = new AtomicLong();
+    final AtomicLong lastCompletion = new AtomicLong();
+
+    long periodNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+    long warmupCount = (long) rate * warmupSeconds;
+    long totalCount = warmupCount + (long) rate * durationSeconds;
+    long start = System.nanoTime();
+    final long measureStart = start + warmupCount * periodNanos;
+    for (long i = 0; i < totalCount; i++) {
+      final long intendedStart = start + i * periodNanos;
+      long wait;
+      while ((wait = intendedStart - System.nanoTime()) > 0)
+        LockSupport.parkNanos(wait);
+      workers.execute(new Runnable() {
+        public void run() {
+          boolean ok = false;
+          try {
+            HttpResponse response = client.execute(new HttpGet(url));
+            EntityUtils.consume(response.getEntity());
+            ok = response.getStatusLine().getStatusCode() == 200;
+          } catch (IOException e) {
+            //counted below
+          }
+          long now = System.nanoTime();
+          if (intendedStart >= measureStart) {
+            if (ok)
+              histogram.record((now - intendedStart) / 1000);
+            else
+              errors.incrementAndGet();
+            long last;
+            while (now > (last = lastCompletion.get()) && !lastCompletion.compareAndSet(last, now)) {
+              //retry
+            }
+          }
+        }
+      });
+    }
+    workers.shutdown();
+    if (!workers.awaitTermination(60, TimeUnit.SECONDS)) {
+      //the histogram would be partial, and closing the client fail the live requests
+      workers.shutdownNow();
+      client.close();
+      throw new AssertionError("Requests to " + url + " still running 60s after the last was sent");
+    }
+    client.close();
+
+    LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+    Result result = new Result();
+    result.p50 = snapshot.getValueAtPercentile(50);
+    result.p99 = snapshot.getValueAtPercentile(99);
+    result.p999 = snapshot.getValueAtPercentile(99.9);
+    result.max = snapshot.getMax();
+    result.errors = errors.get();
+    result.throughput = snapshot.getCount() / ((lastCompletion.get() - measureStart) / 1e9);
+    return result;
+  }
+
+  private void compareToBaseline(Map<String, Result> results) throws IOException {
+    if (updateBaseline) {
+      Properties props = new Properties();
+      for (Map.Entry<String, Result> entry : results.entrySet())
+        entry.getValue().store(props, entry.getKey());
+      OutputStream out = new FileOutputStream(baselineFile);
+      try {
+        props.store(out, "Load test baseline (microseconds, requests/second) at " + rate + " req/s, backend latency "
+            + latencyMs + "ms, " + payloadBytes + " bytes; Tomcat " + ServerInfo.getServerNumber() + ", "
+            + System.getProperty("os.name") + ", "
+            + Runtime.getRuntime().availableProcessors() + " CPUs, Java " + System.getProperty("java.version"));
+      } finally {
+        out.close();
+      }
+      System.out.println("Wrote baseline " + baselineFile);
+      return;
+    }
+    if (!baselineFile.exists()) {
+      System.out.println("No baseline at " + baselineFile + "; record one with -Dloadtest.updateBaseline=true");
+      return;
+    }
+    Properties baseline = new Properties();
+    InputStream in = new FileInputStream(baselineFile);
+    try {
+      baseline.load(in);
+    } finally {
+      in.close();
+    }
+    List<String> regressions = new ArrayList<String>();
+    for (Map.Entry<String, Result> entry : results.entrySet()) {
+      String scenario = entry.getKey();
+      Result result = entry.getValue();
+      if (result.errors > 0)
+        regressions.add(scenario + " had " + result.errors + " errors");
+      checkLatency(regressions, baseline, scenario + ".p50", result.p50);
+      checkLatency(regressions, baseline, scenario + ".p99", result.p99);
+      checkLatency(regressions, baseline, scenario + ".p999", result.p999);
+      String expected = baseline.getProperty(scenario + ".throughput");
+      if (expected != null && result.throughput < Double.parseDouble(expected) * (1 - threshold))
+        regressions.add(String.format("%s.throughput %.0f/s < baseline %s/s", scenario, result.throughput, expected));
+    }
+    if (!regressions.isEmpty())
+      throw new AssertionError("Load test regressed beyond " + Math.round(threshold * 100) + "%: " + regressions);
+    System.out.println("Within " + Math.round(threshold * 100) + "% of baseline " + baselineFile);
+  }
+
+  private void checkLatency(List<String> regressions, Properties baseline, String key, long actual) {
+    String expected = baseline.getProperty(key);
+    if (expected == null)
+      return;
+    long limit = (long) (Long.parseLong(expected) * (1 + threshold)) + slackMicros;
+    if (actual > limit)
+      regressions.add(String.format("%s %.2fms > baseline %.2fms", key, actual / 1000.0, Long.parseLong(expected) / 1000.0));
+  }
+}
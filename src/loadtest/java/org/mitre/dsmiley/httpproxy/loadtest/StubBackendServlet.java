@@ -0,0 +1,59 @@
+package org.mitre.dsmiley.httpproxy.loadtest;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * The backend the load test proxies to. Init parameters: "latencyMs" to wait before responding,
+ * "payloadBytes" of response body, and "chunkBytes" to send it chunked in pieces of that size
+ * (flushing each), or 0 to send it with a Content-Length.
+ */
+public class StubBackendServlet extends HttpServlet {
+
+  private long latencyMs;
+  private byte[] payload;
+  private int chunkBytes;
+
+  @Override
+  public void init() throws ServletException {
+    latencyMs = Long.parseLong(getInitParameter("latencyMs"));
+    payload = new byte[Integer.parseInt(getInitParameter("payloadBytes"))];
+    Arrays.fill(payload, (byte) 'x');
+    chunkBytes = Integer.parseInt(getInitParameter("chunkBytes"));
+  }
+
+  @Override
+  protected void service(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+    InputStream in = req.getInputStream();
+    byte[] buf = new byte[4096];
+    while (in.read(buf) != -1) {
+      //drain the request body
+    }
+    if (latencyMs > 0) {
+      try {
+        Thread.sleep(latencyMs);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+    resp.setStatus(HttpServletResponse.SC_OK);
+    resp.setContentType("application/octet-stream");
+    OutputStream out = resp.getOutputStream();
+    if (chunkBytes <= 0) {
+      resp.setContentLength(payload.length);
+      out.write(payload);
+    } else {
+      for (int off = 0; off < payload.length; off += chunkBytes) {
+        out.write(payload, off, Math.min(chunkBytes, payload.length - off));
+        out.flush();
+      }
+    }
+  }
+}
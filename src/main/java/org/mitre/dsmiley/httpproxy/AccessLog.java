@@ -0,0 +1,325 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.TimeZone;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An access log that never blocks the request thread. Request threads {@link #claim} one of a
+ * fixed ring of pre-allocated {@link Record}s, fill it in and {@link #publish} it; a background
+ * thread formats published records as JSON lines and writes them in batches to a file, which is
+ * rolled when it gets too big ({@code file.1}, {@code file.2}, ...). If the ring is full because
+ * the writer can't keep up, the record is dropped and counted instead.  A sample rate can reduce
+ * the volume; "important" records (e.g. errors) are always kept.
+ */
+public class AccessLog {
+
+  /** One request's log entry. Fields not known are left null, or 0 or -1 for numbers. */
+  public static class Record {
+    long sequence;
+    boolean abandoned;
+    public long timeMillis;
+    public String method;
+    public String uri;
+    public String target;
+    public String upstream;
+    public String client;
+    public int status;
+    public long requestBytes;
+    public long responseBytes;
+    public long totalMicros;
+    public long leaseMicros;
+    public long connectMicros;
+    public long sendMicros;
+    public long waitMicros;
+    public long bodyMicros;
+    public String error;
+
+    void clear() {
+      method = uri = target = upstream = client = error = null;
+      abandoned = false;
+    }
+  }
+
+  private final File file;
+  private final long maxFileBytes;
+  private final int maxFiles;
+  private final Sampler sampler;
+
+  private final Record[] ring;
+  private final int mask;
+  private final AtomicLongArray published;//sequence published per slot
+  private final AtomicLong claimed = new AtomicLong();//next sequence to claim
+  private volatile long consumed;//next sequence to write; written only by the writer thread
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong written = new AtomicLong();
+  private volatile IOException lastError;
+
+  private final Thread writerThread;
+  private volatile boolean closed;
+  private Writer writer;
+  private long fileBytes;
+
+  /**
+   * @param capacity     records the ring holds; rounded up to a power of two
+   * @param sampleRate   fraction of (unimportant) records to keep, from 0 (only important ones) to 1
+   * @param maxFileBytes roll the file at about this size
+   * @param maxFiles     rolled files to keep
+   */
+  public AccessLog(File file, int capacity, double sampleRate, long maxFileBytes, int maxFiles) {
+    this.sampler = new Sampler(sampleRate);
+    this.file = file;
+    this.maxFileBytes = maxFileBytes;
+    this.maxFiles = maxFiles;
+    int size = 1;
+    while (size < capacity)
+      size <<= 1;
+    ring = new Record[size];
+    mask = size - 1;
+    published = new AtomicLongArray(size);
+    for (int i = 0; i < size; i++) {
+      ring[i] = new Record();
+      published.set(i, -1);
+    }
+    writerThread = new Thread(new Runnable() {
+      public void run() {
+        writeLoop();
+      }
+    }, "AccessLog " + file.getName());
+    writerThread.setDaemon(true);
+  }
+
+  /** Starts the background writer. */
+  public void start() {
+    writerThread.start();
+  }
+
+  /**
+   * Claims a record to fill in and {@link #publish}, or returns null if this one isn't sampled or
+   * the ring is full. Never blocks.
+   */
+  public Record claim(boolean important) {
+    if (closed)
+      return null;
+    if (!important && !sampler.sample())
+      return null;
+    long sequence;
+    do {
+      sequence = claimed.get();
+      if (sequence - consumed >= ring.length) {
+        dropped.incrementAndGet();
+        return null;
+      }
+    } while (!claimed.compareAndSet(sequence, sequence + 1));
+    Record record = ring[(int) sequence & mask];
+    record.sequence = sequence;
+    record.clear();
+    return record;
+  }
+
+  /** Hands a claimed record to the writer. Every claimed record must be published or
+   * {@link #abandon abandoned}, since the writer waits for each in turn. */
+  public void publish(Record record) {
+    published.lazySet((int) record.sequence & mask, record.sequence);
+  }
+
+  /** Gives back a claimed record that couldn't be filled in; the writer skips it. */
+  public void abandon(Record record) {
+    record.abandoned = true;
+    publish(record);
+  }
+
+  /** Records dropped because the ring was full. */
+  public long getDroppedCount() { return dropped.get(); }
+
+  /** Records written to the file. */
+  public long getWrittenCount() { return written.get(); }
+
+  /** The last error writing the file, if any. */
+  public IOException getLastError() { return lastError; }
+
+  /** Writes what's been published, then stops the writer and closes the file. */
+  public void close() {
+    closed = true;
+    LockSupport.unpark(writerThread);
+    try {
+      writerThread.join(10000);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /* WRITER THREAD */
+
+  private final SimpleDateFormat dateFormat = newDateFormat();
+  private final StringBuilder line = new StringBuilder(512);
+
+  private static SimpleDateFormat newDateFormat() {
+    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    return format;
+  }
+
+  private void writeLoop() {
+    try {
+      boolean dirty = false;
+      while (true) {
+        boolean wasClosed = closed;//check before draining so nothing published before close is lost
+        int count = drain();
+        if (count > 0) {
+          dirty = true;
+          continue;
+        }
+        if (dirty) {
+          flush();
+          dirty = false;
+        }
+        if (wasClosed)
+          break;
+        LockSupport.parkNanos(1000000L);//1ms
+      }
+    } finally {
+      closeWriter();
+    }
+  }
+
+  /** Writes published records, in order, until reaching one that isn't. */
+  private int drain() {
+    int count = 0;
+    long sequence = consumed;
+    while (published.get((int) sequence & mask) == sequence) {
+      Record record = ring[(int) sequence & mask];
+      if (record.abandoned) {
+        consumed = ++sequence;
+        continue;
+      }
+      format(record);
+      sequence++;
+      consumed = sequence;//frees the slot
+      write();
+      count++;
+    }
+    return count;
+  }
+
+  private void format(Record r) {
+    StringBuilder b = line;
+    b.setLength(0);
+    b.append("{\"time\":\"").append(dateFormat.format(new Date(r.timeMillis))).append('"');
+    appendString(b, "method", r.method);
+    appendString(b, "uri", r.uri);
+    appendString(b, "target", r.target);
+    appendString(b, "upstream", r.upstream);
+    appendString(b, "client", r.client);
+    b.append(",\"status\":").append(r.status);
+    appendNumber(b, "requestBytes", r.requestBytes);
+    appendNumber(b, "responseBytes", r.responseBytes);
+    appendNumber(b, "totalMicros", r.totalMicros);
+    appendNumber(b, "leaseMicros", r.leaseMicros);
+    appendNumber(b, "connectMicros", r.connectMicros);
+    appendNumber(b, "sendMicros", r.sendMicros);
+    appendNumber(b, "waitMicros", r.waitMicros);
+    appendNumber(b, "bodyMicros", r.bodyMicros);
+    appendString(b, "error", r.error);
+    b.append("}\n");
+  }
+
+  private static void appendNumber(StringBuilder b, String name, long value) {
+    if (value >= 0)
+      b.append(",\"").append(name).append("\":").append(value);
+  }
+
+  private static void appendString(StringBuilder b, String name, String value) {
+    if (value == null)
+      return;
+    b.append(",\"").append(name).append("\":\"");
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        b.append('\\').append(c);
+      } else if (c < 0x20) {
+        b.append(String.format("\\u%04x", (int) c));
+      } else {
+        b.append(c);
+      }
+    }
+    b.append('"');
+  }
+
+  private void write() {
+    try {
+      if (writer == null) {
+        writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"), 65536);
+        fileBytes = file.length();
+      }
+      writer.append(line);
+      fileBytes += line.length();
+      written.incrementAndGet();
+      if (fileBytes >= maxFileBytes)
+        roll();
+    } catch (IOException e) {
+      lastError = e;
+      closeWriter();//try again with the next record
+    }
+  }
+
+  private void flush() {
+    try {
+      if (writer != null)
+        writer.flush();
+    } catch (IOException e) {
+      lastError = e;
+      closeWriter();
+    }
+  }
+
+  private void roll() throws IOException {
+    writer.close();
+    writer = null;
+    String path = file.getPath();
+    new File(path + "." + maxFiles).delete();
+    for (int i = maxFiles - 1; i >= 1; i--) {
+      File rolled = new File(path + "." + i);
+      if (rolled.exists())
+        rolled.renameTo(new File(path + "." + (i + 1)));
+    }
+    if (maxFiles > 0 ? !file.renameTo(new File(path + ".1")) : !file.delete())
+      throw new IOException("Couldn't roll " + file);
+  }
+
+  private void closeWriter() {
+    if (writer == null)
+      return;
+    try {
+      writer.close();
+    } catch (IOException e) {
+      lastError = e;
+    }
+    writer = null;
+  }
+}
@@ -0,0 +1,398 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Admission control: at most {@code maxConcurrent} requests are proxied at once, and the rest wait
+ * in a queue per priority class ({@link #HIGH}, {@link #NORMAL}, {@link #LOW}). When a request
+ * finishes, the next is taken from the most important class that has one waiting.
+ * <p>
+ *   Normally each class is first-in first-out, and a request waits at most {@code intervalMillis}.
+ *   But once the queue hasn't been empty for that long, the proxy is overloaded, and the oldest
+ *   waiters are the ones most likely to have been given up on by their clients (CoDel's insight).
+ *   So then the newest are served first (adaptive LIFO), and new arrivals wait at most
+ *   {@code targetMillis}. Either way, a request that waits too long is shed, as is the oldest
+ *   least-important waiter when the queue is full and something more important arrives.
+ * </p>
+ * <p>
+ *   A request can wait without a thread, given a {@link Callback} that's told when it's admitted
+ *   or shed ({@link #acquire(int, Callback)}); the servlet uses this for requests it can suspend
+ *   with {@link javax.servlet.AsyncContext}. Then the queue bounds suspended requests rather than
+ *   container threads. Otherwise {@link #acquire(int)} parks the calling thread while it waits.
+ * </p>
+ */
+public class AdmissionQueue {
+
+  public static final int HIGH = 0;
+  public static final int NORMAL = 1;
+  public static final int LOW = 2;
+  public static final int PRIORITIES = 3;
+
+  /** Results of {@link #acquire(int, Callback)}. */
+  public static final int ADMITTED = 0;
+  public static final int QUEUED = 1;
+  public static final int SHED = 2;
+
+  private final int maxConcurrent;
+  private final int maxQueued;
+  private final long targetNanos;
+  private final long intervalNanos;
+
+  private final ReentrantLock lock = new ReentrantLock();
+  //all guarded by lock
+  private final List<LinkedList<Waiter>> queues = new ArrayList<LinkedList<Waiter>>(PRIORITIES);
+  private int inFlight;
+  private int queued;
+  private long nonEmptySince;
+  private ScheduledThreadPoolExecutor timer;//times out callbacks; created on first use
+  private boolean closed;
+
+  private final AtomicLong shed = new AtomicLong();
+
+  public AdmissionQueue(int maxConcurrent, int maxQueued, long targetMillis, long intervalMillis) {
+    if (maxConcurrent < 1)
+      throw new IllegalArgumentException("maxConcurrent must be positive");
+    this.maxConcurrent = maxConcurrent;
+    this.maxQueued = maxQueued;
+    this.targetNanos = TimeUnit.MILLISECONDS.toNanos(targetMillis);
+    this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+    for (int i = 0; i < PRIORITIES; i++)
+      queues.add(new LinkedList<Waiter>());
+  }
+
+  /** A request waiting for admission without a thread; see {@link #acquire(int, Callback)}. Each
+   * is called at most once, and not while the queue is locked. */
+  public interface Callback {
+    /** The request is admitted; it must {@link #release()} when it's done. */
+    void admitted();
+
+    /** The request is shed: it waited too long, something more important took its place, or the
+     * queue was closed. */
+    void shed();
+  }
+
+  private static class Waiter {
+    final int priority;
+    final Condition condition;//a parked thread's, or
+    final Callback callback;
+    ScheduledFuture<?> timeout;//a callback's
+    boolean granted;
+    boolean evicted;
+
+    Waiter(int priority, Condition condition, Callback callback) {
+      this.priority = priority;
+      this.condition = condition;
+      this.callback = callback;
+    }
+
+    /** Tells the waiter it's been evicted; a callback's, once the queue is unlocked. */
+    void evict() {
+      evicted = true;
+      if (condition != null)
+        condition.signal();
+      else if (timeout != null)
+        timeout.cancel(false);
+    }
+  }
+
+  /** Admits a request of {@code priority}, waiting in the queue if need be. Returns false if it's
+   * shed; also if the thread is interrupted while waiting. The calling thread is parked while it
+   * waits, so this is for requests that can't be suspended, e.g. on a thread of the proxy's own. */
+  public boolean acquire(int priority) {
+    priority = Math.max(HIGH, Math.min(LOW, priority));
+    Waiter evicted = null;
+    lock.lock();
+    try {
+      if (closed) {
+        shed.incrementAndGet();
+        return false;
+      }
+      if (inFlight < maxConcurrent && queued == 0) {
+        inFlight++;
+        return true;
+      }
+      long now = System.nanoTime();
+      if (queued >= maxQueued && (evicted = evictLessImportantThan(priority)) == null) {
+        shed.incrementAndGet();
+        return false;
+      }
+      long remaining = isOverloaded(now) ? targetNanos : intervalNanos;
+      Waiter waiter = new Waiter(priority, lock.newCondition(), null);
+      if (queued++ == 0)
+        nonEmptySince = now;
+      queues.get(priority).addLast(waiter);
+      try {
+        while (!waiter.granted) {
+          if (waiter.evicted)
+            return false;
+          if (remaining <= 0) {
+            remove(waiter);
+            shed.incrementAndGet();
+            return false;
+          }
+          remaining = waiter.condition.awaitNanos(remaining);
+        }
+        return true;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        if (waiter.granted)
+          return true;
+        if (!waiter.evicted) {
+          remove(waiter);
+          shed.incrementAndGet();
+        }
+        return false;
+      }
+    } finally {
+      lock.unlock();
+      if (evicted != null && evicted.callback != null)
+        evicted.callback.shed();
+    }
+  }
+
+  /** Admits a request if it needn't wait: there's room and no one's waiting. */
+  public boolean tryAcquire() {
+    lock.lock();
+    try {
+      if (closed || inFlight >= maxConcurrent || queued > 0)
+        return false;
+      inFlight++;
+      return true;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Admits a request of {@code priority} at once if it can ({@link #ADMITTED}), else queues it
+   * ({@link #QUEUED}) until {@code callback} is told it's admitted or shed, unless it's shed at once
+   * ({@link #SHED}). The callback isn't called in the first and last case. */
+  public int acquire(int priority, final Callback callback) {
+    priority = Math.max(HIGH, Math.min(LOW, priority));
+    Waiter evicted = null;
+    lock.lock();
+    try {
+      if (closed) {
+        shed.incrementAndGet();
+        return SHED;
+      }
+      if (inFlight < maxConcurrent && queued == 0) {
+        inFlight++;
+        return ADMITTED;
+      }
+      long now = System.nanoTime();
+      if (queued >= maxQueued && (evicted = evictLessImportantThan(priority)) == null) {
+        shed.incrementAndGet();
+        return SHED;
+      }
+      long remaining = isOverloaded(now) ? targetNanos : intervalNanos;
+      final Waiter waiter = new Waiter(priority, null, callback);
+      if (queued++ == 0)
+        nonEmptySince = now;
+      queues.get(priority).addLast(waiter);
+      if (timer == null) {
+        timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "AdmissionQueue timeouts");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+        timer.setRemoveOnCancelPolicy(true);
+      }
+      waiter.timeout = timer.schedule(new Runnable() {
+        public void run() {
+          timeOut(waiter);
+        }
+      }, remaining, TimeUnit.NANOSECONDS);
+      return QUEUED;
+    } finally {
+      lock.unlock();
+      if (evicted != null && evicted.callback != null)
+        evicted.callback.shed();
+    }
+  }
+
+  private void timeOut(Waiter waiter) {
+    lock.lock();
+    try {
+      if (waiter.granted || waiter.evicted)
+        return;
+      remove(waiter);
+      waiter.evicted = true;
+      shed.incrementAndGet();
+    } finally {
+      lock.unlock();
+    }
+    waiter.callback.shed();
+  }
+
+  /** Takes {@code callback}'s request out of the queue, e.g. because its client has gone, unless
+   * it's already been admitted or shed; returns whether it was waiting. It's not counted as shed,
+   * and the callback isn't called. */
+  public boolean cancel(Callback callback) {
+    lock.lock();
+    try {
+      for (LinkedList<Waiter> queue : queues) {
+        for (Waiter waiter : queue) {
+          if (waiter.callback == callback) {
+            remove(waiter);
+            waiter.evicted = true;
+            waiter.timeout.cancel(false);
+            return true;
+          }
+        }
+      }
+      return false;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Ends an admitted request, admitting the next waiter if any. */
+  public void release() {
+    Waiter next;
+    lock.lock();
+    try {
+      next = poll();
+      if (next != null) {
+        next.granted = true;//it takes over our place
+        if (next.condition != null)
+          next.condition.signal();
+        else
+          next.timeout.cancel(false);
+      } else {
+        inFlight--;
+      }
+    } finally {
+      lock.unlock();
+    }
+    if (next != null && next.callback != null)
+      next.callback.admitted();
+  }
+
+  /** Sheds the waiting requests, and those that try to wait from now on, and stops timing them
+   * out; e.g. when the servlet is destroyed. */
+  public void close() {
+    List<Waiter> toShed = new ArrayList<Waiter>();
+    lock.lock();
+    try {
+      closed = true;
+      for (LinkedList<Waiter> queue : queues) {
+        for (Waiter waiter : new ArrayList<Waiter>(queue)) {
+          remove(waiter);
+          waiter.evict();//a parked thread wakes up to find it's shed
+          shed.incrementAndGet();
+          if (waiter.callback != null)
+            toShed.add(waiter);
+        }
+      }
+      if (timer != null)
+        timer.shutdownNow();
+    } finally {
+      lock.unlock();
+    }
+    for (Waiter waiter : toShed)
+      waiter.callback.shed();
+    if (timer != null) {//e.g. so that a container doesn't see it left running
+      try {
+        timer.awaitTermination(1, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private boolean isOverloaded(long now) {
+    return queued > 0 && now - nonEmptySince > intervalNanos;
+  }
+
+  private Waiter poll() {
+    boolean lifo = isOverloaded(System.nanoTime());
+    for (LinkedList<Waiter> queue : queues) {
+      if (!queue.isEmpty()) {
+        queued--;
+        return lifo ? queue.removeLast() : queue.removeFirst();
+      }
+    }
+    return null;
+  }
+
+  private void remove(Waiter waiter) {
+    queues.get(waiter.priority).remove(waiter);
+    queued--;
+  }
+
+  /** Sheds the oldest waiter of the least important class below {@code priority}, if any, and
+   * returns it; a callback's is to be told once the queue is unlocked. */
+  private Waiter evictLessImportantThan(int priority) {
+    for (int p = LOW; p > priority; p--) {
+      LinkedList<Waiter> queue = queues.get(p);
+      if (!queue.isEmpty()) {
+        Waiter waiter = queue.removeFirst();
+        queued--;
+        waiter.evict();
+        shed.incrementAndGet();
+        return waiter;
+      }
+    }
+    return null;
+  }
+
+  public int getInFlight() {
+    lock.lock();
+    try {
+      return inFlight;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public int getQueued() {
+    lock.lock();
+    try {
+      return queued;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Whether the queue has been non-empty for longer than the interval, so it's LIFO. */
+  public boolean isOverloaded() {
+    lock.lock();
+    try {
+      return isOverloaded(System.nanoTime());
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Requests shed: timed out, evicted, or turned away from a full queue. */
+  public long getShedCount() {
+    return shed.get();
+  }
+}
@@ -0,0 +1,910 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.impl.EnglishReasonPhraseCatalog;
+import org.apache.http.impl.io.DefaultHttpRequestParser;
+import org.apache.http.impl.io.HttpTransportMetricsImpl;
+import org.apache.http.impl.io.SessionInputBufferImpl;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHeaderValueParser;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A proxy servlet that takes a batch of requests in one POST, proxies them to the target in
+ * parallel, and streams back their responses as each completes, saving the client a round trip
+ * per request. The batch is {@code multipart/mixed}, with one {@code application/http} part per
+ * request, as in:
+ * <pre>
+ * --batch
+ * Content-Type: application/http
+ * Content-ID: 1
+ *
+ * GET /users/42?fields=name HTTP/1.1
+ * Accept: application/json
+ *
+ * --batch--
+ * </pre>
+ * The request targets are relative to the target URI, like the path info of a request to a
+ * {@link ProxyServlet}: decoded and normalized as a container would, and a target that's absolute
+ * or would climb out of the target URI's path with ".." gets a 400 part. They go through the same
+ * rewriting and header copying; each request also
+ * gets the batch's own headers that it doesn't set itself, such as cookies, except its
+ * Content-* ones. The response is {@code multipart/mixed} too, with an {@code application/http}
+ * part per response, in the order they complete, each with the Content-ID of its request (or its
+ * position, from 1) prefixed by "response-". A request that fails gets a 502 part.
+ * <p>
+ *   Each request is proxied like a request to a {@link ProxyServlet}: past the rate limit,
+ *   admission, bulkhead and concurrency limit, within its deadline, and into the metrics and the
+ *   access log. They're proxied at most {@link #P_BATCH_CONCURRENCY} at a time per batch, on the
+ *   servlet's {@link #P_BATCH_THREADS} threads; when those are all busy, the batch's own thread
+ *   proxies its requests. Responses are buffered, so this is meant for many small requests; one
+ *   over {@link #P_BATCH_MAX_RESPONSE_SIZE} gets a 502 part. See {@link #P_BATCH_MAX_REQUESTS} and
+ *   {@link #P_BATCH_MAX_SIZE} for the batch's limits; a batch over them gets a 413.
+ * </p>
+ */
+public class BatchProxyServlet extends ProxyServlet {
+
+  private static final long serialVersionUID = 1L;
+
+  /** An integer parameter name for the most requests of a batch proxied at once. Default 8. */
+  public static final String P_BATCH_CONCURRENCY = "batchConcurrency";
+
+  /** An integer parameter name for the most requests in a batch. Default 50. */
+  public static final String P_BATCH_MAX_REQUESTS = "batchMaxRequests";
+
+  /** An integer parameter name for the most bytes in a batch. Default 1MB. */
+  public static final String P_BATCH_MAX_SIZE = "batchMaxSize";
+
+  /** An integer parameter name for the most bytes of the body of a response in a batch. Default
+   * 1MB. */
+  public static final String P_BATCH_MAX_RESPONSE_SIZE = "batchMaxResponseSize";
+
+  /** An integer parameter name for the threads proxying the requests of all batches. Default 32. */
+  public static final String P_BATCH_THREADS = "batchThreads";
+
+  protected static final String MULTIPART_MIXED = "multipart/mixed";
+  protected static final String APPLICATION_HTTP = "application/http";
+  private static final String CRLF = "\r\n";
+
+  protected int batchConcurrency = 8;
+  protected int batchMaxRequests = 50;
+  protected int batchMaxSize = 1024 * 1024;
+  protected int batchMaxResponseSize = 1024 * 1024;
+  protected int batchThreads = 32;
+
+  private ExecutorService batchExecutor;
+  private final AtomicLong batches = new AtomicLong();
+  private final AtomicLong batchRequests = new AtomicLong();
+  private final AtomicLong batchRejected = new AtomicLong();
+  private final AtomicLong batchResponsesTooLarge = new AtomicLong();
+
+  @Override
+  public void init() throws ServletException {
+    super.init();
+    String concurrencyStr = getConfigParam(P_BATCH_CONCURRENCY);
+    if (concurrencyStr != null) {
+      this.batchConcurrency = Math.max(1, Integer.parseInt(concurrencyStr));
+    }
+    String maxRequestsStr = getConfigParam(P_BATCH_MAX_REQUESTS);
+    if (maxRequestsStr != null) {
+      this.batchMaxRequests = Integer.parseInt(maxRequestsStr);
+    }
+    String maxSizeStr = getConfigParam(P_BATCH_MAX_SIZE);
+    if (maxSizeStr != null) {
+      this.batchMaxSize = Integer.parseInt(maxSizeStr);
+    }
+    String maxResponseSizeStr = getConfigParam(P_BATCH_MAX_RESPONSE_SIZE);
+    if (maxResponseSizeStr != null) {
+      this.batchMaxResponseSize = Integer.parseInt(maxResponseSizeStr);
+    }
+    String threadsStr = getConfigParam(P_BATCH_THREADS);
+    if (threadsStr != null) {
+      this.batchThreads = Math.max(1, Integer.parseInt(threadsStr));
+    }
+    final String threadName = "BatchProxyServlet " + getServletName();
+    //no queue: when all the threads are busy, the batch's own thread does the work
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(batchThreads, batchThreads, 60, TimeUnit.SECONDS,
+        new SynchronousQueue<Runnable>(), new ThreadFactory() {
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, threadName);
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    executor.allowCoreThreadTimeOut(true);
+    batchExecutor = executor;
+  }
+
+  @Override
+  public void destroy() {
+    if (batchExecutor != null)
+      batchExecutor.shutdownNow();
+    super.destroy();
+  }
+
+  @Override
+  protected void collectMetrics(Map<String, Object> servletMetrics) {
+    super.collectMetrics(servletMetrics);
+    servletMetrics.put("batches", batches.get());
+    servletMetrics.put("batchRequests", batchRequests.get());
+    servletMetrics.put("batchRejected", batchRejected.get());
+    servletMetrics.put("batchResponsesTooLarge", batchResponsesTooLarge.get());
+  }
+
+  @Override
+  protected void service(HttpServletRequest servletRequest, HttpServletResponse servletResponse)
+      throws ServletException, IOException {
+    if (!servletRequest.getMethod().equals("POST")) {
+      servletResponse.setHeader("Allow", "POST");
+      servletResponse.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+      return;
+    }
+    String boundary = getBoundary(servletRequest.getContentType());
+    if (boundary == null) {
+      servletResponse.sendError(HttpServletResponse.SC_UNSUPPORTED_MEDIA_TYPE,
+          "Expected " + MULTIPART_MIXED + " with a boundary");
+      return;
+    }
+    if (servletRequest.getContentLength() > batchMaxSize) {
+      rejectBatch(servletResponse, "The batch is over " + batchMaxSize + " bytes");
+      return;
+    }
+    byte[] body = readBody(servletRequest.getInputStream(), batchMaxSize);
+    if (body == null) {
+      rejectBatch(servletResponse, "The batch is over " + batchMaxSize + " bytes");
+      return;
+    }
+    List<byte[]> parts = splitParts(body, boundary);
+    if (parts.size() > batchMaxRequests) {
+      rejectBatch(servletResponse, "The batch has over " + batchMaxRequests + " requests");
+      return;
+    }
+    List<SubRequest> subRequests = new ArrayList<SubRequest>(parts.size());
+    try {
+      for (int i = 0; i < parts.size(); i++)
+        subRequests.add(parseSubRequest(servletRequest, parts.get(i), i + 1));
+    } catch (HttpException e) {
+      servletResponse.sendError(HttpServletResponse.SC_BAD_REQUEST, "Bad request in the batch: " + e.getMessage());
+      return;
+    }
+    batches.incrementAndGet();
+    batchRequests.addAndGet(subRequests.size());
+    if (doLog) {
+      log("proxy batch of " + subRequests.size() + " uri: " + servletRequest.getRequestURI());
+    }
+    executeBatch(subRequests, servletResponse);
+  }
+
+  private void rejectBatch(HttpServletResponse servletResponse, String message) throws IOException {
+    batchRejected.incrementAndGet();
+    servletResponse.sendError(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE, message);
+  }
+
+  /** The boundary parameter of a multipart/mixed content type, else null. */
+  static String getBoundary(String contentType) {
+    if (contentType == null)
+      return null;
+    HeaderElement[] elements = BasicHeaderValueParser.parseElements(contentType, null);
+    if (elements.length == 0 || !elements[0].getName().equalsIgnoreCase(MULTIPART_MIXED))
+      return null;
+    NameValuePair boundary = elements[0].getParameterByName("boundary");
+    return boundary == null || boundary.getValue() == null || boundary.getValue().length() == 0
+        ? null : boundary.getValue();
+  }
+
+  /** Reads all of {@code in}, or returns null if it's over {@code maxSize} bytes. */
+  private static byte[] readBody(InputStream in, int maxSize) throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream(Math.min(maxSize, 8192));
+    byte[] buffer = new byte[8192];
+    int read;
+    while ((read = in.read(buffer)) >= 0) {
+      if (body.size() + read > maxSize)
+        return null;
+      body.write(buffer, 0, read);
+    }
+    return body.toByteArray();
+  }
+
+  /** The bodies of the parts of a multipart body (their headers and content), without the
+   * preamble and epilogue. */
+  static List<byte[]> splitParts(byte[] body, String boundary) throws IOException {
+    byte[] delimiter = ("--" + boundary).getBytes("ISO-8859-1");
+    List<byte[]> parts = new ArrayList<byte[]>();
+    int start = -1;//of the current part
+    int pos = 0;
+    while ((pos = indexOf(body, delimiter, pos)) >= 0) {
+      //a delimiter starts a line
+      if (pos > 0 && body[pos - 1] != '\n') {
+        pos += delimiter.length;
+        continue;
+      }
+      if (start >= 0) {
+        int end = pos;
+        if (end > start && body[end - 1] == '\n')
+          end--;
+        if (end > start && body[end - 1] == '\r')
+          end--;
+        byte[] part = new byte[end - start];
+        System.arraycopy(body, start, part, 0, part.length);
+        parts.add(part);
+      }
+      pos += delimiter.length;
+      if (pos + 1 < body.length && body[pos] == '-' && body[pos + 1] == '-')
+        break;//the close delimiter
+      //the rest of the delimiter's line is padding
+      while (pos < body.length && body[pos] != '\n')
+        pos++;
+      start = ++pos;
+    }
+    return parts;
+  }
+
+  private static int indexOf(byte[] bytes, byte[] pattern, int from) {
+    outer:
+    for (int i = from; i <= bytes.length - pattern.length; i++) {
+      for (int j = 0; j < pattern.length; j++) {
+        if (bytes[i + j] != pattern[j])
+          continue outer;
+      }
+      return i;
+    }
+    return -1;
+  }
+
+  /** Parses a part of the batch: its headers, then a request. */
+  private SubRequest parseSubRequest(HttpServletRequest batchRequest, byte[] part, int position)
+      throws HttpException, IOException {
+    SessionInputBufferImpl inBuffer = new SessionInputBufferImpl(new HttpTransportMetricsImpl(), 2048);
+    inBuffer.bind(new ByteArrayInputStream(part));
+    //the part's headers, which a request's parser happens to read like a request's
+    String contentId = null;
+    String line;
+    while ((line = inBuffer.readLine()) != null && line.length() > 0) {
+      int colon = line.indexOf(':');
+      if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Content-ID"))
+        contentId = line.substring(colon + 1).trim();
+    }
+    HttpRequest request = new DefaultHttpRequestParser(inBuffer).parse();
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    byte[] buffer = new byte[2048];
+    int read;
+    while ((read = inBuffer.read(buffer, 0, buffer.length)) >= 0)
+      body.write(buffer, 0, read);
+    if (contentId != null && contentId.startsWith("<") && contentId.endsWith(">"))
+      contentId = contentId.substring(1, contentId.length() - 1);
+    SubRequest subRequest = new SubRequest(batchRequest, request, body.toByteArray(),
+        contentId != null ? contentId : Integer.toString(position));
+    //as ProxyServlet.service would, unless a subclass did
+    if (subRequest.getAttribute(ATTR_TARGET_URI) == null)
+      subRequest.setAttribute(ATTR_TARGET_URI, targetUri);
+    if (subRequest.getAttribute(ATTR_TARGET_HOST) == null)
+      subRequest.setAttribute(ATTR_TARGET_HOST, targetHost);
+    return subRequest;
+  }
+
+  /** Proxies the batch's requests, at most {@link #batchConcurrency} at a time, and writes each
+   * response as it completes. */
+  private void executeBatch(final List<SubRequest> subRequests, final HttpServletResponse servletResponse)
+      throws IOException {
+    String boundary = "batch_" + Long.toHexString(System.nanoTime()) + Integer.toHexString(System.identityHashCode(subRequests));
+    servletResponse.setStatus(HttpServletResponse.SC_OK);
+    servletResponse.setContentType(MULTIPART_MIXED + "; boundary=" + boundary);
+    OutputStream out = servletResponse.getOutputStream();
+    if (subRequests.isEmpty()) {
+      out.write(("--" + boundary + "--" + CRLF).getBytes("ISO-8859-1"));
+      return;
+    }
+
+    final BlockingQueue<SubResponse> completed = new LinkedBlockingQueue<SubResponse>();
+    final AtomicInteger next = new AtomicInteger();
+    final AtomicBoolean cancelled = new AtomicBoolean();
+    Runnable worker = new Runnable() {
+      public void run() {
+        int index;
+        while (!cancelled.get() && (index = next.getAndIncrement()) < subRequests.size())
+          completed.add(executeSubRequest(subRequests.get(index), servletResponse));
+      }
+    };
+    int workers = Math.min(batchConcurrency, subRequests.size());
+    for (int i = 0; i < workers; i++) {
+      try {
+        batchExecutor.execute(worker);
+      } catch (RejectedExecutionException e) {
+        //the threads are all busy; proxy the rest here, then write them
+        worker.run();
+        break;
+      }
+    }
+    try {
+      for (int i = 0; i < subRequests.size(); i++) {
+        SubResponse subResponse = completed.take();
+        writePart(out, boundary, subResponse);
+        out.flush();//the client can start on it
+      }
+      out.write(("--" + boundary + "--" + CRLF).getBytes("ISO-8859-1"));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted waiting for the batch");
+    } finally {
+      cancelled.set(true);//e.g. the client went away; don't start more
+    }
+  }
+
+  /** Proxies one request of the batch like any request to this servlet, and buffers the response.
+   * Never throws. */
+  private SubResponse executeSubRequest(SubRequest subRequest, HttpServletResponse batchResponse) {
+    SubResponse subResponse = new SubResponse(batchResponse, subRequest, batchMaxResponseSize);
+    if (subRequest.badTarget) {
+      if (doLog)
+        log("proxy batch request " + subRequest.getMethod() + " " + subRequest.request.getRequestLine().getUri()
+            + " rejected: not a path under the target");
+      subResponse.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+      return subResponse;
+    }
+    try {
+      proxy(subRequest, subResponse, startTiming(subRequest));
+      subResponse.flushBuffer();
+    } catch (Exception e) {
+      if (subResponse.tooLarge)
+        batchResponsesTooLarge.incrementAndGet();
+      if (doLog)
+        log("proxy batch request " + subRequest.getMethod() + " " + subRequest.getRequestURI() + " failed: " + e, e);
+      subResponse.reset();
+      subResponse.setStatus(HttpServletResponse.SC_BAD_GATEWAY);
+    }
+    return subResponse;
+  }
+
+  private static void writePart(OutputStream out, String boundary, SubResponse response) throws IOException {
+    StringBuilder head = new StringBuilder(256);
+    head.append("--").append(boundary).append(CRLF);
+    head.append("Content-Type: ").append(APPLICATION_HTTP).append(CRLF);
+    head.append("Content-ID: response-").append(response.request.contentId).append(CRLF);
+    head.append(CRLF);
+    String reasonPhrase = response.reasonPhrase != null ? response.reasonPhrase
+        : EnglishReasonPhraseCatalog.INSTANCE.getReason(response.statusCode, null);
+    head.append("HTTP/1.1 ").append(response.statusCode).append(' ');//the space even without a phrase
+    if (reasonPhrase != null)
+      head.append(reasonPhrase);
+    head.append(CRLF);
+    for (Header header : response.headers)
+      head.append(header.getName()).append(": ").append(header.getValue()).append(CRLF);
+    head.append(HttpHeaders.CONTENT_LENGTH).append(": ").append(response.body.size()).append(CRLF);
+    head.append(CRLF);
+    out.write(head.toString().getBytes("ISO-8859-1"));
+    response.body.writeTo(out);
+    out.write(CRLF.getBytes("ISO-8859-1"));
+  }
+
+  /**
+   * A request of a batch, seen as a request to this servlet, so that it can be rewritten and its
+   * headers copied like any other. Its headers are its own, plus those of the batch it doesn't set,
+   * except Content-*, Expect and the hop-by-hop headers, which are about the batch's own body and
+   * connection. Attributes set on it are its own.
+   */
+  private static class SubRequest extends HttpServletRequestWrapper {
+    final HttpRequest request;
+    final byte[] body;
+    final String contentId;
+    final boolean badTarget;//not proxied; see normalizePath
+    private final String pathInfo;
+    private final String queryString;
+    private final Map<String, List<String>> headers = new HashMap<String, List<String>>();
+    private final Set<String> headerNames = new LinkedHashSet<String>();
+    private final Map<String, Object> attributes = new HashMap<String, Object>();
+
+    SubRequest(HttpServletRequest batchRequest, HttpRequest request, byte[] body, String contentId) {
+      super(batchRequest);
+      this.request = request;
+      this.body = body;
+      this.contentId = contentId;
+      String uri = request.getRequestLine().getUri();
+      int query = uri.indexOf('?');
+      String path = normalizePath(query < 0 ? uri : uri.substring(0, query));
+      this.badTarget = path == null;
+      this.pathInfo = path == null || path.length() == 0 ? null : path;
+      this.queryString = query < 0 ? null : uri.substring(query + 1);
+      for (Header header : request.getAllHeaders())
+        addHeader(header.getName(), header.getValue());
+      Set<String> ownNames = new LinkedHashSet<String>(headers.keySet());
+      for (Enumeration<String> names = batchRequest.getHeaderNames(); names.hasMoreElements(); ) {
+        String name = names.nextElement();
+        String key = name.toLowerCase();
+        if (ownNames.contains(key) || key.startsWith("content-") || key.equals("expect")
+            || hopByHopHeaders.containsHeader(name))
+          continue;
+        for (Enumeration<String> values = batchRequest.getHeaders(name); values.hasMoreElements(); )
+          addHeader(name, values.nextElement());
+      }
+      if (body.length > 0 && !headers.containsKey("content-length"))
+        addHeader(HttpHeaders.CONTENT_LENGTH, Integer.toString(body.length));
+      //set by ProxyServlet.service for the batch; this request's path is its own
+      attributes.put(ATTR_TARGET_PATH, pathInfo);
+    }
+
+    /** The path of a request target as a container would give it for path info: decoded,
+     * normalized, and starting with '/' unless empty. Null for an absolute target, or one that's
+     * malformed or still has "." or ".." segments, which would reach outside the target URI. */
+    static String normalizePath(String path) {
+      if (path.length() == 0)
+        return path;
+      URI uri;
+      try {
+        uri = new URI(path);
+      } catch (URISyntaxException e) {
+        return null;
+      }
+      if (uri.isAbsolute() || uri.getRawAuthority() != null)//e.g. http://other/ or //other/
+        return null;
+      String normalized = uri.normalize().getPath();//decoded only now, so "%2e%2e" isn't resolved
+      if (normalized == null)
+        return null;
+      for (String segment : normalized.split("/", -1)) {
+        if (segment.equals(".") || segment.equals(".."))
+          return null;
+      }
+      return normalized.startsWith("/") ? normalized : "/" + normalized;
+    }
+
+    private void addHeader(String name, String value) {
+      String key = name.toLowerCase();
+      List<String> values = headers.get(key);
+      if (values == null) {
+        values = new ArrayList<String>(1);
+        headers.put(key, values);
+        headerNames.add(name);
+      }
+      values.add(value);
+    }
+
+    @Override
+    public String getMethod() {
+      return request.getRequestLine().getMethod();
+    }
+
+    @Override
+    public String getPathInfo() {
+      return pathInfo;
+    }
+
+    @Override
+    public String getQueryString() {
+      return queryString;
+    }
+
+    @Override
+    public String getRequestURI() {
+      return getContextPath() + getServletPath() + (pathInfo != null ? pathInfo : "");
+    }
+
+    @Override
+    public StringBuffer getRequestURL() {
+      StringBuffer url = new StringBuffer();
+      String scheme = getScheme();
+      int port = getServerPort();
+      url.append(scheme).append("://").append(getServerName());
+      if (port > 0 && !(scheme.equals("http") && port == 80) && !(scheme.equals("https") && port == 443))
+        url.append(':').append(port);
+      return url.append(getRequestURI());
+    }
+
+    @Override
+    public String getHeader(String name) {
+      List<String> values = headers.get(name.toLowerCase());
+      return values == null ? null : values.get(0);
+    }
+
+    @Override
+    public Enumeration<String> getHeaders(String name) {
+      List<String> values = headers.get(name.toLowerCase());
+      return Collections.enumeration(values == null ? Collections.<String>emptyList() : values);
+    }
+
+    @Override
+    public Enumeration<String> getHeaderNames() {
+      return Collections.enumeration(headerNames);
+    }
+
+    @Override
+    public String getContentType() {
+      return getHeader(HttpHeaders.CONTENT_TYPE);
+    }
+
+    @Override
+    public int getContentLength() {
+      return body.length;
+    }
+
+    @Override
+    public ServletInputStream getInputStream() {
+      final ByteArrayInputStream in = new ByteArrayInputStream(body);
+      return new ServletInputStream() {
+        public int read() {
+          return in.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+          return in.read(b, off, len);
+        }
+
+        public boolean isFinished() {
+          return in.available() == 0;
+        }
+
+        public boolean isReady() {
+          return true;
+        }
+
+        public void setReadListener(ReadListener readListener) {
+          throw new IllegalStateException("Not async");//see isAsyncSupported
+        }
+      };
+    }
+
+    /** Not async: it's proxied on a thread of the batch's, and its response is buffered. */
+    @Override
+    public boolean isAsyncSupported() {
+      return false;
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+      if (attributes.containsKey(name))
+        return attributes.get(name);
+      return super.getAttribute(name);
+    }
+
+    @Override
+    public void setAttribute(String name, Object o) {
+      attributes.put(name, o);
+    }
+
+    @Override
+    public void removeAttribute(String name) {
+      attributes.put(name, null);
+    }
+  }
+
+  /**
+   * The response to a request of a batch, buffered for its part of the batch's response. Its body
+   * may be at most {@code maxBodySize} bytes; writing more fails. It doesn't change the batch's
+   * own response: its character encoding, locale and cookies are its own headers.
+   */
+  private static class SubResponse extends HttpServletResponseWrapper {
+    final SubRequest request;
+    final List<Header> headers = new ArrayList<Header>();
+    final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    int statusCode = SC_OK;
+    String reasonPhrase;
+    boolean tooLarge;
+    private final int maxBodySize;
+    private String characterEncoding;//as set, else from the content type
+    private Locale locale;
+    private PrintWriter writer;
+    private final ServletOutputStream out = new ServletOutputStream() {
+      public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        if (body.size() + len > maxBodySize) {
+          tooLarge = true;
+          throw new IOException("The response is over " + maxBodySize + " bytes");
+        }
+        body.write(b, off, len);
+      }
+
+      public boolean isReady() {
+        return true;
+      }
+
+      public void setWriteListener(WriteListener writeListener) {
+        throw new IllegalStateException("Not async");
+      }
+    };
+
+    SubResponse(HttpServletResponse batchResponse, SubRequest request, int maxBodySize) {
+      super(batchResponse);
+      this.request = request;
+      this.maxBodySize = maxBodySize;
+    }
+
+    @Override
+    public void setStatus(int sc) {
+      statusCode = sc;
+      reasonPhrase = null;
+    }
+
+    @Override
+    @Deprecated
+    public void setStatus(int sc, String sm) {
+      statusCode = sc;
+      reasonPhrase = sm;
+    }
+
+    @Override
+    public int getStatus() {
+      return statusCode;
+    }
+
+    @Override
+    public void sendError(int sc) {
+      sendError(sc, null);
+    }
+
+    @Override
+    public void sendError(int sc, String msg) {
+      reset();
+      statusCode = sc;
+    }
+
+    @Override
+    public void sendRedirect(String location) {
+      reset();
+      statusCode = SC_FOUND;
+      setHeader(HttpHeaders.LOCATION, location);
+    }
+
+    @Override
+    public boolean containsHeader(String name) {
+      return getHeader(name) != null;
+    }
+
+    @Override
+    public String getHeader(String name) {
+      for (Header header : headers) {
+        if (header.getName().equalsIgnoreCase(name))
+          return header.getValue();
+      }
+      return null;
+    }
+
+    @Override
+    public Collection<String> getHeaders(String name) {
+      List<String> values = new ArrayList<String>();
+      for (Header header : headers) {
+        if (header.getName().equalsIgnoreCase(name))
+          values.add(header.getValue());
+      }
+      return values;
+    }
+
+    @Override
+    public Collection<String> getHeaderNames() {
+      Set<String> names = new LinkedHashSet<String>();
+      for (Header header : headers)
+        names.add(header.getName());
+      return names;
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+      removeHeader(name);
+      addHeader(name, value);
+    }
+
+    private void removeHeader(String name) {
+      for (Iterator<Header> it = headers.iterator(); it.hasNext(); ) {
+        if (it.next().getName().equalsIgnoreCase(name))
+          it.remove();
+      }
+    }
+
+    /** Content-Length is left out; the part says how long it is. */
+    @Override
+    public void addHeader(String name, String value) {
+      if (!name.equalsIgnoreCase(HttpHeaders.CONTENT_LENGTH))
+        headers.add(new BasicHeader(name, value));
+    }
+
+    @Override
+    public void setIntHeader(String name, int value) {
+      setHeader(name, Integer.toString(value));
+    }
+
+    @Override
+    public void addIntHeader(String name, int value) {
+      addHeader(name, Integer.toString(value));
+    }
+
+    @Override
+    public void setDateHeader(String name, long date) {
+      setHeader(name, DateUtils.formatDate(new Date(date)));
+    }
+
+    @Override
+    public void addDateHeader(String name, long date) {
+      addHeader(name, DateUtils.formatDate(new Date(date)));
+    }
+
+    /** A charset in {@code type} sets the character encoding; otherwise one set before is added to
+     * it, as a container would. */
+    @Override
+    public void setContentType(String type) {
+      if (type == null) {
+        removeHeader(HttpHeaders.CONTENT_TYPE);
+        return;
+      }
+      HeaderElement[] elements = BasicHeaderValueParser.parseElements(type, null);
+      NameValuePair charset = elements.length == 0 ? null : elements[0].getParameterByName("charset");
+      if (charset != null && writer == null)
+        characterEncoding = charset.getValue();
+      else if (charset == null && characterEncoding != null)
+        type = type + ";charset=" + characterEncoding;
+      setHeader(HttpHeaders.CONTENT_TYPE, type);
+    }
+
+    @Override
+    public String getContentType() {
+      return getHeader(HttpHeaders.CONTENT_TYPE);
+    }
+
+    @Override
+    public void setContentLength(int len) {
+    }
+
+    @Override
+    public void setContentLengthLong(long len) {
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() {
+      return out;
+    }
+
+    /** A writer in the character encoding; what's written is in the body after
+     * {@link #flushBuffer()}. */
+    @Override
+    public PrintWriter getWriter() throws IOException {
+      if (writer == null)
+        writer = new PrintWriter(new OutputStreamWriter(out, getCharacterEncoding()));
+      return writer;
+    }
+
+    @Override
+    public String getCharacterEncoding() {
+      return characterEncoding != null ? characterEncoding : "ISO-8859-1";
+    }
+
+    /** Sets the charset of the content type, if there is one; ignored once there's a writer. */
+    @Override
+    public void setCharacterEncoding(String charset) {
+      if (writer != null)
+        return;
+      characterEncoding = charset;
+      String type = getContentType();
+      if (type != null) {
+        int semicolon = type.indexOf(';');
+        setContentType(semicolon < 0 ? type : type.substring(0, semicolon));
+      }
+    }
+
+    @Override
+    public Locale getLocale() {
+      return locale != null ? locale : Locale.getDefault();
+    }
+
+    /** Sets the Content-Language; the character encoding is left as it is. */
+    @Override
+    public void setLocale(Locale locale) {
+      this.locale = locale;
+      setHeader(HttpHeaders.CONTENT_LANGUAGE, locale.toLanguageTag());
+    }
+
+    @Override
+    public void addCookie(Cookie cookie) {
+      StringBuilder value = new StringBuilder(cookie.getName()).append('=');
+      if (cookie.getValue() != null)
+        value.append(cookie.getValue());
+      if (cookie.getMaxAge() >= 0)
+        value.append("; Max-Age=").append(cookie.getMaxAge());
+      if (cookie.getDomain() != null)
+        value.append("; Domain=").append(cookie.getDomain());
+      if (cookie.getPath() != null)
+        value.append("; Path=").append(cookie.getPath());
+      if (cookie.getSecure())
+        value.append("; Secure");
+      if (cookie.isHttpOnly())
+        value.append("; HttpOnly");
+      addHeader("Set-Cookie", value.toString());
+    }
+
+    @Override
+    public void setBufferSize(int size) {
+    }
+
+    /** Flushes the writer, if any, failing if writing it did; e.g. the body got too large. */
+    @Override
+    public void flushBuffer() throws IOException {
+      if (writer != null && writer.checkError())//flushes
+        throw new IOException("Writing the response failed");
+    }
+
+    @Override
+    public boolean isCommitted() {
+      return false;
+    }
+
+    @Override
+    public void resetBuffer() {
+      body.reset();
+    }
+
+    @Override
+    public void reset() {
+      statusCode = SC_OK;
+      reasonPhrase = null;
+      headers.clear();
+      body.reset();
+      characterEncoding = null;
+      locale = null;
+      writer = null;
+    }
+  }
+}
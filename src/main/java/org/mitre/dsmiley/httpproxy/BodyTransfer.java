@@ -0,0 +1,485 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves a proxied request's bodies with Servlet 3.1 non-blocking I/O, so that no thread waits on a
+ * slow client: see {@link ProxyServlet#P_NON_BLOCKING_IO}.
+ * <p>
+ *   The request body is read from a {@link ReadListener} as it arrives, into at most
+ *   {@code maxBuffered} buffers from a {@link BufferPool}. The proxy starts on a container thread
+ *   once it's all read or the buffers are full, and sends the body to the target from
+ *   {@link #getRequestBody()}; while the buffers are full, i.e. the target isn't taking it, the
+ *   client isn't read. So a body that fits is read before a thread is spent on the request.
+ * </p>
+ * <p>
+ *   The response body is read from the target only when a {@link WriteListener} says the client
+ *   can take more, one buffer at a time, and each is handed to the client in one write. When the
+ *   client can't take more, the thread returns, and the container calls back once it can.
+ * </p>
+ * <p>
+ *   The transfer completes, and with it the request, when both the exchange with the target is
+ *   done ({@link #exchangeDone()}) and the response body is sent, or as soon as either side fails.
+ * </p>
+ */
+public class BodyTransfer {
+
+  /** Counters across the transfers of a servlet. */
+  public static class Stats {
+    final AtomicLong transfers = new AtomicLong();
+    final AtomicLong requestPauses = new AtomicLong();
+    final AtomicLong responsePauses = new AtomicLong();
+
+    public long getTransferCount() { return transfers.get(); }
+
+    /** Times reading a client stopped because its buffered request body was full. */
+    public long getRequestPauseCount() { return requestPauses.get(); }
+
+    /** Times reading a target stopped because the client couldn't take more. */
+    public long getResponsePauseCount() { return responsePauses.get(); }
+  }
+
+  private static class Chunk {
+    final byte[] buffer;
+    final int length;
+    int offset;
+
+    Chunk(byte[] buffer, int length) {
+      this.buffer = buffer;
+      this.length = length;
+    }
+  }
+
+  private final AsyncContext async;
+  private final BufferPool buffers;
+  private final int maxBuffered;
+
+  private final Object requestLock = new Object();
+  //guarded by requestLock
+  private ServletInputStream clientIn;
+  private final LinkedList<Chunk> chunks = new LinkedList<Chunk>();
+  private boolean requestEof;
+  private boolean readPaused;
+
+  private final Object responseLock = new Object();
+  //guarded by responseLock
+  private ServletOutputStream clientOut;
+  private InputStream responseContent;
+  private OutputStream responseOut;
+  private byte[] responseBuffer;
+  private boolean responseEof;
+  private final Sink sink = new Sink();
+
+  //guarded by this
+  private Runnable proxy;
+  private boolean dispatched;
+  private boolean exchangeDone;
+  private boolean responding;
+  private boolean responseDone;
+  private boolean completed;
+  private Runnable onComplete;
+  private volatile Throwable failure;
+
+  private final Stats stats;
+
+  /** Takes over the request of {@code async}, which shouldn't time out before the target would. */
+  public BodyTransfer(AsyncContext async, BufferPool buffers, int maxBuffered, Stats stats) {
+    this.async = async;
+    this.buffers = buffers;
+    this.maxBuffered = Math.max(1, maxBuffered);
+    this.stats = stats;
+    stats.transfers.incrementAndGet();
+    async.addListener(new AsyncListener() {
+      public void onComplete(AsyncEvent event) {
+      }
+
+      public void onTimeout(AsyncEvent event) {
+        fail(new InterruptedIOException("Timed out transferring the body"));
+      }
+
+      public void onError(AsyncEvent event) {
+        fail(event.getThrowable());
+      }
+
+      public void onStartAsync(AsyncEvent event) {
+      }
+    });
+  }
+
+  /* REQUEST BODY */
+
+  /** Starts reading the request body, and runs {@code proxy} on a container thread once it's all
+   * read or the buffers are full. {@code proxy} reads the rest from {@link #getRequestBody()}, and
+   * must be followed by {@link #exchangeDone()}. */
+  public void readRequestBody(Runnable proxy) {
+    synchronized (this) {
+      this.proxy = proxy;
+    }
+    try {
+      synchronized (requestLock) {
+        clientIn = async.getRequest().getInputStream();
+        clientIn.setReadListener(new RequestReader());
+      }
+    } catch (Exception e) {
+      fail(e);
+    }
+  }
+
+  private class RequestReader implements ReadListener {
+    public void onDataAvailable() throws IOException {
+      fillRequestBuffers();
+    }
+
+    public void onAllDataRead() {
+      synchronized (requestLock) {
+        requestEof = true;
+        requestLock.notifyAll();
+      }
+      dispatch();
+    }
+
+    public void onError(Throwable t) {
+      fail(t);
+    }
+  }
+
+  /** Reads what the client has sent, until the buffers are full. The container calls it when
+   * there's more; and so does reading the body, once it frees a buffer after reading paused. */
+  private void fillRequestBuffers() throws IOException {
+    boolean ready;
+    synchronized (requestLock) {
+      readPaused = false;
+      while (!requestEof && failure == null) {
+        if (chunks.size() >= maxBuffered) {
+          readPaused = true;//the container won't call back until we read again
+          stats.requestPauses.incrementAndGet();
+          break;
+        }
+        if (!clientIn.isReady())
+          break;//the container calls back when there's more
+        byte[] buffer = buffers.acquire();
+        int read = clientIn.read(buffer);
+        if (read > 0) {
+          chunks.add(new Chunk(buffer, read));
+          requestLock.notifyAll();
+        } else {
+          buffers.release(buffer);
+        }
+        if (read < 0 || clientIn.isFinished()) {
+          requestEof = true;
+          requestLock.notifyAll();
+        }
+      }
+      ready = requestEof || readPaused;
+    }
+    if (ready)
+      dispatch();
+  }
+
+  private void dispatch() {
+    Runnable toRun;
+    synchronized (this) {
+      if (dispatched || completed)
+        return;
+      dispatched = true;
+      toRun = proxy;
+    }
+    async.start(toRun);
+  }
+
+  /** The request body, for the target; reading it blocks while none is buffered. */
+  public InputStream getRequestBody() {
+    return new RequestBody();
+  }
+
+  private class RequestBody extends InputStream {
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0)
+        return 0;
+      synchronized (requestLock) {
+        while (chunks.isEmpty()) {
+          if (failure != null)
+            throw new IOException("Couldn't read the request body: " + failure, failure);
+          if (requestEof)
+            return -1;
+          try {
+            requestLock.wait();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+          }
+        }
+        Chunk chunk = chunks.getFirst();
+        int n = Math.min(len, chunk.length - chunk.offset);
+        System.arraycopy(chunk.buffer, chunk.offset, b, off, n);
+        chunk.offset += n;
+        if (chunk.offset == chunk.length) {
+          chunks.removeFirst();
+          buffers.release(chunk.buffer);
+          if (readPaused)
+            fillRequestBuffers();
+        }
+        return n;
+      }
+    }
+
+    @Override
+    public int available() {
+      synchronized (requestLock) {
+        return chunks.isEmpty() ? 0 : chunks.getFirst().length - chunks.getFirst().offset;
+      }
+    }
+  }
+
+  /* RESPONSE BODY */
+
+  /** Where to write the response body for {@link #sendResponseBody}, possibly through filters:
+   * it collects what's written in between reads from the target, for one write to the client. */
+  public OutputStream getResponseSink() {
+    return sink;
+  }
+
+  /** Sends {@code content} to the client, writing it to {@code out}, which ends in the
+   * {@link #getResponseSink()}, and closing {@code out} at the end. It returns at once; the
+   * container calls back as the client can take more. The response's headers must be set. */
+  public void sendResponseBody(InputStream content, OutputStream out) throws IOException {
+    synchronized (this) {
+      responding = true;
+    }
+    synchronized (responseLock) {
+      responseContent = content;
+      responseOut = out;
+      responseBuffer = buffers.acquire();
+      sink.readBuffer = responseBuffer;
+      clientOut = async.getResponse().getOutputStream();
+      clientOut.setWriteListener(new ResponseWriter());
+    }
+  }
+
+  private class ResponseWriter implements WriteListener {
+    public void onWritePossible() {
+      pumpResponse();
+    }
+
+    public void onError(Throwable t) {
+      fail(t);
+    }
+  }
+
+  /** Copies the target's response body to the client while it can take it. */
+  private void pumpResponse() {
+    synchronized (responseLock) {
+      if (responseBuffer == null)
+        return;//done
+      try {
+        while (clientOut.isReady()) {
+          if (responseEof) {
+            endResponse(null);
+            return;
+          }
+          int read = responseContent.read(responseBuffer);
+          if (read < 0) {
+            responseOut.close();
+            responseEof = true;
+          } else {
+            responseOut.write(responseBuffer, 0, read);
+          }
+          sink.writeTo(clientOut);
+        }
+        stats.responsePauses.incrementAndGet();
+      } catch (IOException e) {
+        endResponse(e);
+      }
+    }
+  }
+
+  //called with responseLock
+  private void endResponse(Throwable cause) {
+    buffers.release(responseBuffer);
+    responseBuffer = null;
+    sink.reset();
+    if (cause != null) {
+      fail(cause);
+      return;
+    }
+    synchronized (this) {
+      responseDone = true;
+    }
+    completeIfDone();
+  }
+
+  /** Collects writes between reads from the target. A single write straight from the read buffer,
+   * which isn't reused until it's sent, is passed on as is, so the usual case doesn't copy. */
+  private static class Sink extends OutputStream {
+    private byte[] readBuffer;
+    private byte[] single;
+    private int singleOffset;
+    private int singleLength;
+    private byte[] collected = new byte[0];
+    private int count;
+
+    @Override
+    public void write(int b) {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      if (len == 0)
+        return;
+      if (b == readBuffer && single == null && count == 0) {
+        single = b;
+        singleOffset = off;
+        singleLength = len;
+        return;
+      }
+      if (single != null) {
+        append(single, singleOffset, singleLength);
+        single = null;
+      }
+      append(b, off, len);
+    }
+
+    private void append(byte[] b, int off, int len) {
+      if (count + len > collected.length) {
+        byte[] grown = new byte[Math.max(count + len, collected.length * 2)];
+        System.arraycopy(collected, 0, grown, 0, count);
+        collected = grown;
+      }
+      System.arraycopy(b, off, collected, count, len);
+      count += len;
+    }
+
+    /** Writes what was collected in one write, and forgets it. */
+    void writeTo(OutputStream out) throws IOException {
+      if (single != null)
+        out.write(single, singleOffset, singleLength);
+      else if (count > 0)
+        out.write(collected, 0, count);
+      reset();
+    }
+
+    void reset() {
+      single = null;
+      count = 0;
+    }
+
+    @Override
+    public void close() {
+      //the client's stream is closed when the request completes
+    }
+  }
+
+  /* COMPLETION */
+
+  /** Says the exchange with the target is done: whatever response body it's sending is left to the
+   * transfer, and the rest of the request is sent. Completes the request if no body is left. */
+  public void exchangeDone() {
+    synchronized (this) {
+      exchangeDone = true;
+    }
+    completeIfDone();
+  }
+
+  /** Whether {@link #sendResponseBody} was called. */
+  public synchronized boolean isResponding() {
+    return responding;
+  }
+
+  /** Runs {@code runnable} when the transfer completes, e.g. to release the target's connection; it
+   * may check {@link #getFailure()}. It runs on whichever thread completes the transfer, after that
+   * thread takes this transfer's monitor, so it sees what the exchange and the response writes did
+   * before they last released it. */
+  public synchronized void setOnComplete(Runnable runnable) {
+    this.onComplete = runnable;
+  }
+
+  /** Ends the transfer because the client or the target failed. Unless the exchange with the target
+   * is under way, which the failure then ends, the request completes at once. */
+  private void fail(Throwable cause) {
+    if (cause == null)
+      cause = new IOException("Transfer failed");
+    synchronized (this) {
+      if (failure == null)
+        failure = cause;
+      if (!dispatched) {//the exchange won't start
+        dispatched = true;
+        exchangeDone = true;
+      }
+    }
+    synchronized (requestLock) {
+      requestLock.notifyAll();
+    }
+    completeIfDone();
+  }
+
+  private void completeIfDone() {
+    Runnable toRun;
+    synchronized (this) {
+      if (completed || !exchangeDone || (responding && !responseDone && failure == null))
+        return;
+      completed = true;
+      toRun = onComplete;
+    }
+    synchronized (requestLock) {
+      for (Chunk chunk : chunks)
+        buffers.release(chunk.buffer);
+      chunks.clear();
+      requestEof = true;
+    }
+    try {
+      if (toRun != null)
+        toRun.run();
+    } finally {
+      try {
+        async.complete();
+      } catch (IllegalStateException e) {
+        //the container already completed it, e.g. on an error
+      }
+    }
+  }
+
+  public synchronized boolean isCompleted() {
+    return completed;
+  }
+
+  /** Why the transfer failed, if it did. */
+  public Throwable getFailure() {
+    return failure;
+  }
+}
@@ -0,0 +1,64 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of byte arrays of one size, so that long-lived transfers don't each allocate their own.
+ * At most {@code maxPooled} are kept; beyond that, released buffers are left to the GC, and an
+ * empty pool allocates.
+ */
+public class BufferPool {
+
+  private final int bufferSize;
+  private final int maxPooled;
+  private final ConcurrentLinkedQueue<byte[]> pool = new ConcurrentLinkedQueue<byte[]>();
+  private final AtomicInteger pooled = new AtomicInteger();
+
+  public BufferPool(int bufferSize, int maxPooled) {
+    this.bufferSize = bufferSize;
+    this.maxPooled = maxPooled;
+  }
+
+  public byte[] acquire() {
+    byte[] buffer = pool.poll();
+    if (buffer == null)
+      return new byte[bufferSize];
+    pooled.decrementAndGet();
+    return buffer;
+  }
+
+  public void release(byte[] buffer) {
+    if (buffer.length != bufferSize)
+      return;
+    if (pooled.incrementAndGet() <= maxPooled)
+      pool.offer(buffer);
+    else
+      pooled.decrementAndGet();
+  }
+
+  public int getBufferSize() {
+    return bufferSize;
+  }
+
+  /** Buffers in the pool, not in use. */
+  public int getPooledCount() {
+    return pooled.get();
+  }
+}
@@ -0,0 +1,125 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed maximum of requests in flight, for a whole servlet or for each of its routes, so that a
+ * target that hangs can hold at most that many of the container's threads, leaving the rest for
+ * other servlets and routes. A request beyond it waits up to {@code maxWaitMillis} for one to
+ * finish, and is otherwise rejected. Unlike {@link ConcurrencyLimiter}, the maximum doesn't adapt.
+ */
+public class Bulkhead implements ProxyMetrics.RouteSource {
+
+  private final int maxConcurrent;
+  private final long maxWaitNanos;
+  private final Compartment servletCompartment;//if not per route
+  private final RouteMap<Compartment> routeCompartments;//if per route
+
+  public Bulkhead(int maxConcurrent, long maxWaitMillis, boolean perRoute, int maxRoutes) {
+    if (maxConcurrent < 1)
+      throw new IllegalArgumentException("maxConcurrent must be positive");
+    this.maxConcurrent = maxConcurrent;
+    this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+    if (perRoute) {
+      servletCompartment = null;
+      routeCompartments = new RouteMap<Compartment>(maxRoutes) {
+        @Override
+        protected Compartment create(String route) {
+          return new Compartment();
+        }
+      };
+    } else {
+      servletCompartment = new Compartment();
+      routeCompartments = null;
+    }
+  }
+
+  public boolean isPerRoute() {
+    return routeCompartments != null;
+  }
+
+  /** The compartment for requests to {@code routeKey}. */
+  public Compartment getCompartment(String routeKey) {
+    return routeCompartments != null ? routeCompartments.get(routeKey) : servletCompartment;
+  }
+
+  /** Requests in flight across compartments. */
+  public int getInFlight() {
+    if (servletCompartment != null)
+      return servletCompartment.getInFlight();
+    int inFlight = 0;
+    for (Compartment compartment : routeCompartments.values())
+      inFlight += compartment.getInFlight();
+    return inFlight;
+  }
+
+  /** Requests rejected across compartments. */
+  public long getRejectedCount() {
+    if (servletCompartment != null)
+      return servletCompartment.getRejectedCount();
+    long rejected = 0;
+    for (Compartment compartment : routeCompartments.values())
+      rejected += compartment.getRejectedCount();
+    return rejected;
+  }
+
+  /** Reports each route's compartment, if per route. */
+  public void collectMetrics(String route, Map<String, Object> metrics) {
+    Compartment compartment = routeCompartments.peek(route);
+    metrics.put("bulkheadInFlight", compartment != null ? compartment.getInFlight() : 0);
+    metrics.put("bulkheadRejected", compartment != null ? compartment.getRejectedCount() : 0L);
+  }
+
+  public class Compartment {
+    private final Semaphore permits = new Semaphore(maxConcurrent);
+    private final AtomicLong rejected = new AtomicLong();
+
+    /** Takes a permit, waiting up to the maximum wait. Returns false if the request should be
+     * rejected; also if the thread is interrupted while waiting. */
+    public boolean acquire() {
+      if (permits.tryAcquire())
+        return true;
+      if (maxWaitNanos > 0) {
+        try {
+          if (permits.tryAcquire(maxWaitNanos, TimeUnit.NANOSECONDS))
+            return true;
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      rejected.incrementAndGet();
+      return false;
+    }
+
+    public void release() {
+      permits.release();
+    }
+
+    public int getInFlight() {
+      return maxConcurrent - permits.availablePermits();
+    }
+
+    public long getRejectedCount() {
+      return rejected.get();
+    }
+  }
+}
@@ -0,0 +1,163 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+
+import javax.servlet.ServletContext;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The HttpClients shared by a webapp's proxy servlets, by name, so that servlets proxying to the
+ * same few targets share one connection pool (idle connections, and a bound on all of them) rather
+ * than each having its own. The bound is per name: servlets using other names, or none, have pools
+ * of their own besides. There's one registry per {@link ServletContext}, in an attribute; see
+ * {@link #get}. Clients are reference counted: the first servlet to {@link #acquire} a name creates
+ * its client, and the last to {@link #release} it closes it. See {@link ProxyServlet#P_SHARED_CLIENT}.
+ */
+public class ClientRegistry {
+
+  /** The name of the {@link ServletContext} attribute holding the registry. */
+  public static final String ATTRIBUTE = ClientRegistry.class.getName();
+
+  /** Creates a shared client, the first time its name is acquired. */
+  public interface Factory {
+    SharedClient create();
+  }
+
+  /** A client and the connection manager it uses, with the number of servlets using it. Its
+   * settings, if not null, describe how the client was built; servlets that would build it
+   * differently may not share it. */
+  public static class SharedClient {
+    private final String name;
+    private final HttpClient client;
+    private final HttpClientConnectionManager connectionManager;
+    private final String settings;
+    private int users;//guarded by the registry
+
+    public SharedClient(String name, HttpClient client, HttpClientConnectionManager connectionManager) {
+      this(name, client, connectionManager, null);
+    }
+
+    public SharedClient(String name, HttpClient client, HttpClientConnectionManager connectionManager,
+                        String settings) {
+      this.name = name;
+      this.client = client;
+      this.connectionManager = connectionManager;
+      this.settings = settings;
+    }
+
+    public String getName() { return name; }
+
+    public String getSettings() { return settings; }
+
+    public HttpClient getClient() { return client; }
+
+    public HttpClientConnectionManager getConnectionManager() { return connectionManager; }
+
+    /** The connection pool's leased, available and pending connections, and its maximum; or null
+     * if it isn't pooling. */
+    public PoolStats getPoolStats() {
+      return connectionManager instanceof PoolingHttpClientConnectionManager
+          ? ((PoolingHttpClientConnectionManager) connectionManager).getTotalStats() : null;
+    }
+
+    private void close() throws IOException {
+      if (client instanceof Closeable)
+        ((Closeable) client).close();
+      else if (connectionManager != null)
+        connectionManager.shutdown();
+    }
+  }
+
+  /** The registry of {@code context}, created the first time it's asked for. */
+  public static ClientRegistry get(ServletContext context) {
+    synchronized (ClientRegistry.class) {//the context isn't ours to lock
+      ClientRegistry registry = (ClientRegistry) context.getAttribute(ATTRIBUTE);
+      if (registry == null) {
+        registry = new ClientRegistry();
+        context.setAttribute(ATTRIBUTE, registry);
+      }
+      return registry;
+    }
+  }
+
+  private final Map<String, SharedClient> clients = new HashMap<String, SharedClient>();
+
+  /** The client named {@code name}, created by {@code factory} if no servlet is using it. Each call
+   * must be paired with a {@link #release}. */
+  public SharedClient acquire(String name, Factory factory) {
+    return acquire(name, null, factory);
+  }
+
+  /** Like {@link #acquire(String, Factory)}, but a client already created with {@link
+   * SharedClient#getSettings() settings} other than {@code settings} isn't shared.
+   * @throws IllegalArgumentException if the settings differ; the client isn't acquired */
+  public synchronized SharedClient acquire(String name, String settings, Factory factory) {
+    SharedClient shared = clients.get(name);
+    if (shared == null) {
+      shared = factory.create();
+      clients.put(name, shared);
+    } else if (settings != null && shared.settings != null && !settings.equals(shared.settings)) {
+      throw new IllegalArgumentException("Shared client " + name + " was created with other settings");
+    }
+    shared.users++;
+    return shared;
+  }
+
+  /** Releases a client {@link #acquire acquired} before, closing it if no servlet uses it anymore. */
+  public void release(SharedClient shared) throws IOException {
+    synchronized (this) {
+      if (clients.get(shared.name) != shared || --shared.users > 0)
+        return;
+      clients.remove(shared.name);
+    }
+    shared.close();
+  }
+
+  /** How many servlets use {@code shared}. */
+  public synchronized int getUsers(SharedClient shared) {
+    return shared.users;
+  }
+
+  /** The clients in use, by name. */
+  public synchronized Map<String, SharedClient> getClients() {
+    return new HashMap<String, SharedClient>(clients);
+  }
+
+  /** The connections of all the shared clients' pools: leased, available, pending and the maximum,
+   * summed. */
+  public PoolStats getTotalStats() {
+    int leased = 0, pending = 0, available = 0, max = 0;
+    for (SharedClient shared : getClients().values()) {
+      PoolStats stats = shared.getPoolStats();
+      if (stats != null) {
+        leased += stats.getLeased();
+        pending += stats.getPending();
+        available += stats.getAvailable();
+        max += stats.getMax();
+      }
+    }
+    return new PoolStats(leased, pending, available, max);
+  }
+}
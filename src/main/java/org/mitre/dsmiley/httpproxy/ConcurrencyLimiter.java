@@ -0,0 +1,188 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the requests in flight to each target route, adapting the limit to the round trip time
+ * (RTT, until the response headers arrive) the way TCP adapts its congestion window: AIMD. While
+ * the limit is being used and the RTT stays within {@code rttTolerance} times the minimum RTT
+ * recently seen, the limit grows by about one per round trip; when a request fails, the target
+ * answers 503 or 504, or the RTT exceeds that, the limit is cut by {@link #BACKOFF_RATIO} (at most
+ * once per round trip). So when a target slows down, fewer requests queue up in it, and it gets
+ * the chance to recover.
+ * <p>
+ *   A request over the limit waits up to {@code queueTimeoutMillis} in a queue of at most
+ *   {@code queueSize} for a request to finish, and is otherwise rejected. The number of routes is
+ *   bounded (see {@link RouteMap}).
+ * </p>
+ */
+public class ConcurrencyLimiter implements ProxyMetrics.RouteSource {
+
+  public static final double BACKOFF_RATIO = 0.9;
+  /** The minimum RTT is that of the last this many samples, so it can rise if the target's
+   * unloaded RTT does. */
+  public static final int MIN_RTT_WINDOW = 500;
+
+  private final int initialLimit;
+  private final int maxLimit;
+  private final double rttTolerance;
+  private final int queueSize;
+  private final long queueTimeoutNanos;
+  private final RouteMap<Limit> limits;
+
+  public ConcurrencyLimiter(int initialLimit, int maxLimit, double rttTolerance,
+                            int queueSize, long queueTimeoutMillis, int maxRoutes) {
+    if (initialLimit < 1 || maxLimit < initialLimit)
+      throw new IllegalArgumentException("Need 1 <= initialLimit <= maxLimit");
+    this.initialLimit = initialLimit;
+    this.maxLimit = maxLimit;
+    this.rttTolerance = rttTolerance;
+    this.queueSize = queueSize;
+    this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMillis);
+    this.limits = new RouteMap<Limit>(maxRoutes) {
+      @Override
+      protected Limit create(String route) {
+        return new Limit();
+      }
+    };
+  }
+
+  public Limit getLimit(String routeKey) {
+    return limits.get(routeKey);
+  }
+
+  /** Requests rejected across routes. */
+  public long getRejectedCount() {
+    long rejected = 0;
+    for (Limit limit : limits.values())
+      rejected += limit.getRejectedCount();
+    return rejected;
+  }
+
+  public void collectMetrics(String route, Map<String, Object> metrics) {
+    Limit limit = limits.peek(route);
+    if (limit == null)
+      limit = new Limit();//not seen yet
+    synchronized (limit) {
+      metrics.put("concurrencyLimit", limit.getLimit());
+      metrics.put("inFlight", limit.inFlight);
+      metrics.put("queued", limit.queued);
+      metrics.put("rejected", limit.rejected);
+      metrics.put("minRttMicros", limit.minRttNanos / 1000);
+    }
+  }
+
+  /** The limit of one route. Each {@link #acquire} that succeeds must be followed by one
+   * {@link #release}, and should be by one {@link #onSample}. */
+  public class Limit {
+    //all guarded by this
+    private double limit = initialLimit;
+    private int inFlight;
+    private int queued;
+    private long rejected;
+    private long minRttNanos;
+    private long windowMinRttNanos = Long.MAX_VALUE;
+    private int windowSamples;
+    private boolean decreased;
+    private long lastDecrease;
+
+    /** Takes a place among the requests in flight, waiting in the queue if need be. Returns false
+     * if the request should be rejected; also if the thread is interrupted while waiting. */
+    public synchronized boolean acquire() {
+      if (inFlight < getLimit()) {
+        inFlight++;
+        return true;
+      }
+      if (queued >= queueSize || queueTimeoutNanos <= 0) {
+        rejected++;
+        return false;
+      }
+      queued++;
+      try {
+        long deadline = System.nanoTime() + queueTimeoutNanos;
+        long remaining = queueTimeoutNanos;
+        while (inFlight >= getLimit()) {
+          if (remaining <= 0) {
+            rejected++;
+            return false;
+          }
+          TimeUnit.NANOSECONDS.timedWait(this, remaining);
+          remaining = deadline - System.nanoTime();
+        }
+        inFlight++;
+        return true;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        rejected++;
+        return false;
+      } finally {
+        queued--;
+      }
+    }
+
+    public synchronized void release() {
+      inFlight--;
+      if (queued > 0)
+        notify();
+    }
+
+    /** Adjusts the limit given a request's RTT, and whether it failed or found the target
+     * overloaded. Call before {@link #release}. */
+    public synchronized void onSample(long rttNanos, boolean dropped) {
+      long now = System.nanoTime();
+      if (rttNanos < windowMinRttNanos)
+        windowMinRttNanos = rttNanos;
+      if (minRttNanos == 0 || rttNanos < minRttNanos)
+        minRttNanos = rttNanos;
+      if (++windowSamples >= MIN_RTT_WINDOW) {
+        minRttNanos = windowMinRttNanos;
+        windowMinRttNanos = Long.MAX_VALUE;
+        windowSamples = 0;
+      }
+
+      if (dropped || rttNanos > rttTolerance * minRttNanos) {
+        //requests sent before the last decrease don't reflect it yet
+        if (!decreased || now - rttNanos - lastDecrease > 0) {
+          limit = Math.max(1, limit * BACKOFF_RATIO);
+          decreased = true;
+          lastDecrease = now;
+        }
+      } else if (inFlight * 2 >= limit) {
+        int before = getLimit();
+        limit = Math.min(maxLimit, limit + 1 / limit);
+        if (getLimit() > before && queued > 0)
+          notify();
+      }
+    }
+
+    /** The current limit, rounded down. */
+    public synchronized int getLimit() {
+      return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+      return inFlight;
+    }
+
+    public synchronized long getRejectedCount() {
+      return rejected;
+    }
+  }
+}
@@ -0,0 +1,147 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.http.concurrent.Cancellable;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * When a proxied request must be done by: its time budget. It can be {@link Watchdog watched}, so
+ * that the request to the target is aborted if it's still going when the deadline passes.
+ */
+public class Deadline {
+
+  private final long deadlineNanos;
+  private volatile Cancellable request;//while watched
+  private volatile boolean aborted;
+
+  /** A deadline {@code timeoutMillis} from {@code startNanos} ({@link System#nanoTime()}). */
+  public Deadline(long startNanos, long timeoutMillis) {
+    this.deadlineNanos = startNanos + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+  }
+
+  public long getRemainingMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+  }
+
+  public boolean isExpired() {
+    return deadlineNanos - System.nanoTime() <= 0;
+  }
+
+  /** Whether the {@link Watchdog} aborted the request. */
+  public boolean isAborted() {
+    return aborted;
+  }
+
+  /** Stops watching this deadline. */
+  public void done() {
+    request = null;
+  }
+
+  /** A {@code grpc-timeout} header value, e.g. "150m", in milliseconds; or -1 if malformed. */
+  public static long parseGrpcTimeout(String value) {
+    int length = value.length();
+    if (length < 2 || length > 9)
+      return -1;
+    long amount = 0;
+    for (int i = 0; i < length - 1; i++) {
+      char c = value.charAt(i);
+      if (c < '0' || c > '9')
+        return -1;
+      amount = amount * 10 + (c - '0');
+    }
+    switch (value.charAt(length - 1)) {
+      case 'H': return TimeUnit.HOURS.toMillis(amount);
+      case 'M': return TimeUnit.MINUTES.toMillis(amount);
+      case 'S': return TimeUnit.SECONDS.toMillis(amount);
+      case 'm': return amount;
+      case 'u': return TimeUnit.MICROSECONDS.toMillis(amount);
+      case 'n': return TimeUnit.NANOSECONDS.toMillis(amount);
+      default: return -1;
+    }
+  }
+
+  /** Milliseconds as a {@code grpc-timeout} header value, e.g. "150m". */
+  public static String formatGrpcTimeout(long millis) {
+    millis = Math.max(0, millis);
+    return millis < 100000000L ? millis + "m" : TimeUnit.MILLISECONDS.toSeconds(millis) + "S";
+  }
+
+  /**
+   * A daemon thread that aborts the requests of watched deadlines once they pass, checking every
+   * {@link #TICK_MILLIS}. Watching and {@link Deadline#done()} don't block; the thread drops
+   * deadlines that are done as it goes.
+   */
+  public static class Watchdog {
+
+    public static final long TICK_MILLIS = 10;
+
+    private final ConcurrentLinkedQueue<Deadline> watched = new ConcurrentLinkedQueue<Deadline>();
+    private final Thread thread;
+    private volatile boolean closed;
+
+    public Watchdog(String name) {
+      thread = new Thread(name) {
+        @Override
+        public void run() {
+          while (!closed) {
+            try {
+              Thread.sleep(TICK_MILLIS);
+            } catch (InterruptedException e) {
+              return;
+            }
+            check();
+          }
+        }
+      };
+      thread.setDaemon(true);
+    }
+
+    public void start() {
+      thread.start();
+    }
+
+    /** Cancels {@code request} if it's still going when {@code deadline} passes, unless
+     * {@link Deadline#done()} is called first. */
+    public void watch(Deadline deadline, Cancellable request) {
+      deadline.request = request;
+      watched.add(deadline);
+    }
+
+    void check() {
+      for (Iterator<Deadline> it = watched.iterator(); it.hasNext(); ) {
+        Deadline deadline = it.next();
+        Cancellable request = deadline.request;
+        if (request == null) {
+          it.remove();
+        } else if (deadline.isExpired()) {
+          deadline.aborted = true;
+          request.cancel();
+          it.remove();
+        }
+      }
+    }
+
+    public void close() {
+      closed = true;
+      thread.interrupt();
+    }
+  }
+}
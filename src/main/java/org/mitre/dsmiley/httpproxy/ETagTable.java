@@ -0,0 +1,165 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+
+/**
+ * Strong ETags made up by the proxy for responses that have no validator of their own (no ETag or
+ * Last-Modified), from a {@link Hasher hash} of the body, and a bounded, thread-safe table of the
+ * latest one for each key (the target URI), so that clients can revalidate with If-None-Match. Like
+ * {@link TargetCache}, an arbitrary entry is evicted when it's full. See
+ * {@link ProxyServlet#P_ETAGS}.
+ */
+public class ETagTable {
+
+  /** Hashes a body as it's read, into an ETag: CRC-32 and Adler-32 (64 bits together), and the
+   * length. Not cryptographic; the targets are trusted, only changes need noticing. */
+  public static class Hasher {
+    private final CRC32 crc = new CRC32();
+    private final Adler32 adler = new Adler32();
+    private long length;
+
+    public void update(byte[] b, int off, int len) {
+      crc.update(b, off, len);
+      adler.update(b, off, len);
+      length += len;
+    }
+
+    public long getLength() { return length; }
+
+    /** The quoted strong ETag, e.g. {@code "px-1c291ca3a0f1b2c4-400"}. */
+    public String toETag() {
+      StringBuilder etag = new StringBuilder(40).append("\"px-");
+      appendHex(etag, crc.getValue());
+      appendHex(etag, adler.getValue());
+      return etag.append('-').append(Long.toHexString(length)).append('"').toString();
+    }
+
+    private static void appendHex(StringBuilder sb, long value32) {
+      String hex = Long.toHexString(value32);
+      for (int i = hex.length(); i < 8; i++)
+        sb.append('0');
+      sb.append(hex);
+    }
+  }
+
+  /** Whether an If-None-Match header value matches {@code etag}: {@code *}, or one of its entity
+   * tags, compared weakly (a W/ prefix is ignored), as RFC 7232 says for If-None-Match. */
+  public static boolean matches(String ifNoneMatch, String etag) {
+    if (ifNoneMatch == null || etag == null)
+      return false;
+    for (String tag : ifNoneMatch.split(",")) {
+      tag = tag.trim();
+      if (tag.startsWith("W/"))
+        tag = tag.substring(2);
+      if (tag.equals("*") || tag.equals(etag))
+        return true;
+    }
+    return false;
+  }
+
+  private static class Entry {
+    final String etag;
+    final long storedNanos;
+
+    Entry(String etag, long storedNanos) {
+      this.etag = etag;
+      this.storedNanos = storedNanos;
+    }
+  }
+
+  private final int maxSize;
+  private final long maxAgeNanos;
+  private final ConcurrentMap<String, Entry> map;
+  private final AtomicInteger size = new AtomicInteger();
+
+  private final AtomicLong generated = new AtomicLong();
+  private final AtomicLong tooLarge = new AtomicLong();
+  private final AtomicLong notModified = new AtomicLong();
+  private final AtomicLong localNotModified = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * @param maxSize        the most keys remembered
+   * @param maxAgeMillis   how long an ETag is trusted to still be current without asking the
+   *                       target; see {@link #getCurrent}
+   */
+  public ETagTable(int maxSize, long maxAgeMillis) {
+    if (maxSize < 1)
+      throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+    this.maxSize = maxSize;
+    this.maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAgeMillis);
+    this.map = new ConcurrentHashMap<String, Entry>(Math.max(16, Math.min(maxSize, 1024) * 4 / 3));
+  }
+
+  /** Remembers the ETag of the body just hashed for {@code key}. */
+  public void put(String key, String etag) {
+    generated.incrementAndGet();
+    if (map.put(key, new Entry(etag, System.nanoTime())) == null) {
+      if (size.incrementAndGet() > maxSize)
+        evictOne();
+    }
+  }
+
+  /** The ETag of the body last seen for {@code key}, if that was within the max age; else null. */
+  public String getCurrent(String key) {
+    Entry entry = map.get(key);
+    if (entry == null || System.nanoTime() - entry.storedNanos > maxAgeNanos)
+      return null;
+    return entry.etag;
+  }
+
+  private void evictOne() {
+    Iterator<String> iterator = map.keySet().iterator();
+    if (iterator.hasNext() && map.remove(iterator.next()) != null) {
+      size.decrementAndGet();
+      evictions.incrementAndGet();
+    }
+  }
+
+  /** Counts a body that was over the size limit, so it got no ETag. */
+  public void countTooLarge() { tooLarge.incrementAndGet(); }
+
+  /** Counts a 304 sent after getting the body from the target, which matched. */
+  public void countNotModified() { notModified.incrementAndGet(); }
+
+  /** Counts a 304 sent from the table alone, without asking the target. */
+  public void countLocalNotModified() { localNotModified.incrementAndGet(); }
+
+  public int getMaxSize() { return maxSize; }
+
+  public int getSize() { return size.get(); }
+
+  /** Bodies hashed into an ETag. */
+  public long getGeneratedCount() { return generated.get(); }
+
+  public long getTooLargeCount() { return tooLarge.get(); }
+
+  public long getNotModifiedCount() { return notModified.get(); }
+
+  public long getLocalNotModifiedCount() { return localNotModified.get(); }
+
+  public long getEvictionCount() { return evictions.get(); }
+}
@@ -0,0 +1,158 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A lock-free histogram of non-negative values (e.g. microseconds), in the style of HdrHistogram:
+ * buckets are linear within each power of two, giving about 6% precision from 1 up to 2^36.
+ * Recording is a couple of atomic increments on one of several stripes, chosen by thread, so
+ * concurrent recorders rarely contend; stripes are allocated on first use.  Reading merges the
+ * stripes into a {@link Snapshot}.  Each stripe takes about 4KB, so a histogram that many are kept
+ * of, or that isn't recorded to often, can be given fewer.
+ */
+public class LatencyHistogram {
+
+  private static final int SUB_BITS = 4;
+  private static final int SUB_COUNT = 1 << SUB_BITS;
+  private static final int MAX_BITS = 36;
+  private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+  static final int BUCKETS = (MAX_BITS - SUB_BITS + 1) * SUB_COUNT;
+  private static final int SUM = BUCKETS;//index in a stripe
+  private static final int MAX = BUCKETS + 1;//index in a stripe
+
+  private static final int MAX_STRIPES;
+  static {
+    int stripes = 1;
+    while (stripes < Runtime.getRuntime().availableProcessors() && stripes < 8)
+      stripes <<= 1;
+    MAX_STRIPES = stripes;
+  }
+
+  private final AtomicReferenceArray<AtomicLongArray> stripes;
+
+  /** A histogram with a stripe per CPU, up to 8. */
+  public LatencyHistogram() {
+    this(MAX_STRIPES);
+  }
+
+  /** A histogram with at most {@code maxStripes} stripes (rounded down to a power of two), and no
+   * more than the default. */
+  public LatencyHistogram(int maxStripes) {
+    int count = 1;
+    while (count * 2 <= Math.min(maxStripes, MAX_STRIPES))
+      count <<= 1;
+    stripes = new AtomicReferenceArray<AtomicLongArray>(count);
+  }
+
+  /** Records {@code value}; negative values are ignored and huge ones clamped. */
+  public void record(long value) {
+    if (value < 0)
+      return;
+    if (value > MAX_VALUE)
+      value = MAX_VALUE;
+    AtomicLongArray stripe = stripe((int) Thread.currentThread().getId() & (stripes.length() - 1));
+    stripe.incrementAndGet(bucketIndex(value));
+    stripe.addAndGet(SUM, value);
+    long max;
+    while (value > (max = stripe.get(MAX)) && !stripe.compareAndSet(MAX, max, value)) {
+      //retry
+    }
+  }
+
+  private AtomicLongArray stripe(int i) {
+    AtomicLongArray stripe = stripes.get(i);
+    if (stripe == null) {
+      stripes.compareAndSet(i, null, new AtomicLongArray(BUCKETS + 2));
+      stripe = stripes.get(i);
+    }
+    return stripe;
+  }
+
+  static int bucketIndex(long value) {
+    if (value < SUB_COUNT)
+      return (int) value;
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    return (exponent - SUB_BITS + 1) * SUB_COUNT + (int) ((value >>> (exponent - SUB_BITS)) - SUB_COUNT);
+  }
+
+  /** The highest value that falls in bucket {@code index}. */
+  static long bucketHighValue(int index) {
+    if (index < SUB_COUNT)
+      return index;
+    int exponent = index / SUB_COUNT + SUB_BITS - 1;
+    long sub = index % SUB_COUNT + SUB_COUNT;
+    return ((sub + 1) << (exponent - SUB_BITS)) - 1;
+  }
+
+  public Snapshot snapshot() {
+    long[] counts = new long[BUCKETS];
+    long count = 0, sum = 0, max = 0;
+    for (int s = 0; s < stripes.length(); s++) {
+      AtomicLongArray stripe = stripes.get(s);
+      if (stripe == null)
+        continue;
+      for (int i = 0; i < BUCKETS; i++) {
+        long c = stripe.get(i);
+        counts[i] += c;
+        count += c;
+      }
+      sum += stripe.get(SUM);
+      max = Math.max(max, stripe.get(MAX));
+    }
+    return new Snapshot(counts, count, sum, max);
+  }
+
+  /** A point-in-time copy of a histogram. Since recording isn't stopped, it may be very slightly
+   * inconsistent (e.g. the sum including a value that the counts don't). */
+  public static class Snapshot {
+    private final long[] counts;
+    private final long count;
+    private final long sum;
+    private final long max;
+
+    Snapshot(long[] counts, long count, long sum, long max) {
+      this.counts = counts;
+      this.count = count;
+      this.sum = sum;
+      this.max = max;
+    }
+
+    public long getCount() { return count; }
+
+    public long getMax() { return max; }
+
+    public double getMean() { return count == 0 ? 0.0 : (double) sum / count; }
+
+    /** The value at or below which {@code percentile} (0 to 100) of recorded values fall, to within
+     * the histogram's precision; 0 if empty. */
+    public long getValueAtPercentile(double percentile) {
+      if (count == 0)
+        return 0;
+      long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= rank)
+          return Math.min(bucketHighValue(i), max);
+      }
+      return max;
+    }
+  }
+}
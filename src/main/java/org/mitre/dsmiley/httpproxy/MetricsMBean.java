@@ -0,0 +1,103 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ReflectionException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A read-only JMX MBean whose attributes are whatever a {@link Source} reports: names to numbers
+ * or strings.  The set of attribute names is taken from the first report; later reports may have
+ * different values but should have the same names.
+ */
+public class MetricsMBean implements DynamicMBean {
+
+  /** Reports metrics when the MBean is read. */
+  public interface Source {
+    /** Puts metric names and values (Number or String) into {@code metrics}, in display order. */
+    void collectMetrics(Map<String, Object> metrics);
+  }
+
+  private final String description;
+  private final Source source;
+  private volatile MBeanInfo info;
+
+  public MetricsMBean(String description, Source source) {
+    this.description = description;
+    this.source = source;
+  }
+
+  public Map<String, Object> getMetrics() {
+    Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+    source.collectMetrics(metrics);
+    return metrics;
+  }
+
+  public Object getAttribute(String attribute) throws AttributeNotFoundException, MBeanException, ReflectionException {
+    Map<String, Object> metrics = getMetrics();
+    if (!metrics.containsKey(attribute))
+      throw new AttributeNotFoundException(attribute);
+    return metrics.get(attribute);
+  }
+
+  public AttributeList getAttributes(String[] attributes) {
+    Map<String, Object> metrics = getMetrics();
+    AttributeList list = new AttributeList();
+    for (String name : attributes) {
+      if (metrics.containsKey(name))
+        list.add(new Attribute(name, metrics.get(name)));
+    }
+    return list;
+  }
+
+  public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+    throw new AttributeNotFoundException("Read-only: " + attribute.getName());
+  }
+
+  public AttributeList setAttributes(AttributeList attributes) {
+    return new AttributeList();
+  }
+
+  public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+    throw new ReflectionException(new NoSuchMethodException(actionName));
+  }
+
+  public MBeanInfo getMBeanInfo() {
+    if (info == null) {
+      Map<String, Object> metrics = getMetrics();
+      MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[metrics.size()];
+      int i = 0;
+      for (Map.Entry<String, Object> entry : metrics.entrySet()) {
+        Object value = entry.getValue();
+        String type = value != null ? value.getClass().getName() : String.class.getName();
+        attributes[i++] = new MBeanAttributeInfo(entry.getKey(), type, entry.getKey(), true, false, false);
+      }
+      info = new MBeanInfo(getClass().getName(), description, attributes, null,
+          new MBeanOperationInfo[0], null);
+    }
+    return info;
+  }
+}
@@ -0,0 +1,244 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency histograms and counters for a proxy servlet, per target route (see
+ * {@link ProxyServlet#getTargetRoute}), published as JMX MBeans.  The number of routes is bounded
+ * (see {@link RouteMap}).
+ * <p>
+ *   Each route's MBean has counters (requests, per status class, errors, aborts, bytes) and, for
+ *   the total latency per status class ("1xx".."5xx", and "none" for no response) and for each
+ *   phase of {@link RequestTiming} ("lease", "connect", "send", "wait", "body"), attributes like
+ *   "2xx_p99" and "wait_p99" in microseconds.  The servlet's own MBean has whatever it reports via
+ *   {@link #register}, e.g. connection pool gauges.
+ * </p>
+ */
+public class ProxyMetrics {
+
+  public static final String DOMAIN = "org.mitre.dsmiley.httpproxy";
+  public static final String OTHER_ROUTE = RouteMap.OTHER_ROUTE;
+
+  private static final String[] STATUS_CLASSES = {"none", "1xx", "2xx", "3xx", "4xx", "5xx"};
+  private static final String[] PHASES = {"lease", "connect", "send", "wait", "body"};
+  /** Stripes per histogram (see {@link LatencyHistogram}) other than the 2xx latency, which most
+   * requests record to; they'd otherwise take up to 8 stripes of about 4KB each, per route. */
+  private static final int MINOR_STRIPES = 2;
+  private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+  private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+  private final RouteMap<RouteMetrics> routes;
+
+  private final List<RouteSource> routeSources = new CopyOnWriteArrayList<RouteSource>();
+
+  private final List<ObjectName> registered = new CopyOnWriteArrayList<ObjectName>();
+  private volatile MBeanServer mBeanServer;
+  private volatile String baseName;//null until registered
+
+  public ProxyMetrics(int maxRoutes) {
+    this.routes = new RouteMap<RouteMetrics>(maxRoutes) {
+      @Override
+      protected RouteMetrics create(String route) {
+        return new RouteMetrics(route, routeSources);
+      }
+
+      @Override
+      protected void added(String route, RouteMetrics value) {
+        if (baseName != null)
+          registerRoute(value);
+      }
+    };
+  }
+
+  /** Reports more metrics for a route, from some other per-route component. */
+  public interface RouteSource {
+    /** Like {@link MetricsMBean.Source#collectMetrics}; the same names should be reported for
+     * every route, even one the source hasn't seen. */
+    void collectMetrics(String route, Map<String, Object> metrics);
+  }
+
+  /** Adds {@code source}'s metrics to each route's MBean. Call before {@link #register}. */
+  public void addRouteSource(RouteSource source) {
+    routeSources.add(source);
+  }
+
+  /** Records a finished request to {@code routeKey}. */
+  public void record(String routeKey, RequestTiming timing) {
+    RouteMetrics route = getRoute(routeKey);
+    int statusClass = timing.getStatusCode() / 100;
+    if (statusClass < 1 || statusClass > 5)
+      statusClass = 0;
+    route.requests.incrementAndGet();
+    route.latency[statusClass].record(timing.getTotalMicros());
+    route.phases[0].record(timing.getLeaseMicros());
+    route.phases[1].record(timing.getConnectMicros());
+    route.phases[2].record(timing.getSendMicros());
+    route.phases[3].record(timing.getWaitMicros());
+    route.phases[4].record(timing.getBodyMicros());
+    if (timing.getRequestBytes() > 0)
+      route.requestBytes.addAndGet(timing.getRequestBytes());
+    if (timing.getResponseBytes() > 0)
+      route.responseBytes.addAndGet(timing.getResponseBytes());
+    if (timing.isAborted())
+      route.aborts.incrementAndGet();
+    else if (timing.getFailure() != null)
+      route.errors.incrementAndGet();
+  }
+
+  public RouteMetrics getRoute(String routeKey) {
+    return routes.get(routeKey);
+  }
+
+  public Collection<RouteMetrics> getRoutes() {
+    return routes.values();
+  }
+
+  /** Totals of the counters across routes, e.g. "requests" and "responseBytes". */
+  public void collectTotals(Map<String, Object> metrics) {
+    long[] totals = new long[6];
+    for (RouteMetrics route : routes.values()) {
+      totals[0] += route.requests.get();
+      totals[1] += route.errors.get();
+      totals[2] += route.aborts.get();
+      totals[3] += route.requestBytes.get();
+      totals[4] += route.responseBytes.get();
+    }
+    metrics.put("requests", totals[0]);
+    metrics.put("errors", totals[1]);
+    metrics.put("aborts", totals[2]);
+    metrics.put("requestBytes", totals[3]);
+    metrics.put("responseBytes", totals[4]);
+    metrics.put("routes", routes.size());
+  }
+
+  /* JMX */
+
+  /**
+   * Registers an MBean named after {@code servletName} reporting {@code servletMetrics}, and one
+   * per route (now and as they appear), with the platform MBean server.
+   */
+  public void register(String servletName, MetricsMBean.Source servletMetrics) throws JMException {
+    mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    String name = DOMAIN + ":type=ProxyServlet,name=" + ObjectName.quote(servletName);
+    MetricsMBean mBean = new MetricsMBean("Proxy servlet " + servletName, servletMetrics);
+    //another webapp might have a servlet of the same name
+    for (int instance = 1; ; instance++) {
+      String candidate = instance == 1 ? name : name + ",instance=" + instance;
+      try {
+        ObjectName objectName = new ObjectName(candidate);
+        mBeanServer.registerMBean(mBean, objectName);
+        registered.add(objectName);
+        baseName = candidate;
+        break;
+      } catch (InstanceAlreadyExistsException e) {
+        //try the next
+      }
+    }
+    for (RouteMetrics route : routes.values())
+      registerRoute(route);
+  }
+
+  private void registerRoute(RouteMetrics route) {
+    try {
+      ObjectName objectName = new ObjectName(baseName + ",route=" + ObjectName.quote(route.route));
+      mBeanServer.registerMBean(new MetricsMBean("Proxied route " + route.route, route), objectName);
+      registered.add(objectName);
+    } catch (InstanceAlreadyExistsException e) {
+      //registered concurrently; fine
+    } catch (JMException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /** Unregisters all MBeans registered by {@link #register}. */
+  public void unregister() {
+    baseName = null;
+    for (ObjectName objectName : new ArrayList<ObjectName>(registered)) {
+      try {
+        mBeanServer.unregisterMBean(objectName);
+      } catch (JMException e) {
+        //already gone
+      }
+    }
+    registered.clear();
+  }
+
+  /** Metrics for one route. */
+  public static class RouteMetrics implements MetricsMBean.Source {
+    final String route;
+    final List<RouteSource> sources;
+    final AtomicLong requests = new AtomicLong();
+    final AtomicLong errors = new AtomicLong();
+    final AtomicLong aborts = new AtomicLong();
+    final AtomicLong requestBytes = new AtomicLong();
+    final AtomicLong responseBytes = new AtomicLong();
+    final LatencyHistogram[] latency = new LatencyHistogram[STATUS_CLASSES.length];
+    final LatencyHistogram[] phases = new LatencyHistogram[PHASES.length];
+
+    RouteMetrics(String route, List<RouteSource> sources) {
+      this.route = route;
+      this.sources = sources;
+      for (int i = 0; i < latency.length; i++)
+        latency[i] = i == 2 ? new LatencyHistogram() : new LatencyHistogram(MINOR_STRIPES);
+      for (int j = 0; j < phases.length; j++)
+        phases[j] = new LatencyHistogram(MINOR_STRIPES);
+    }
+
+    public String getRoute() { return route; }
+
+    public long getRequestCount() { return requests.get(); }
+
+    /** The total latency of requests with a response of status class {@code statusClass} (1-5),
+     * or without a response (0). */
+    public LatencyHistogram getLatency(int statusClass) { return latency[statusClass]; }
+
+    public void collectMetrics(Map<String, Object> metrics) {
+      metrics.put("route", route);
+      metrics.put("requests", requests.get());
+      metrics.put("errors", errors.get());
+      metrics.put("aborts", aborts.get());
+      metrics.put("requestBytes", requestBytes.get());
+      metrics.put("responseBytes", responseBytes.get());
+      for (int i = 0; i < latency.length; i++)
+        putHistogram(metrics, STATUS_CLASSES[i], latency[i].snapshot());
+      for (int j = 0; j < PHASES.length; j++)
+        putHistogram(metrics, PHASES[j], phases[j].snapshot());
+      for (RouteSource source : sources)
+        source.collectMetrics(route, metrics);
+    }
+
+    static void putHistogram(Map<String, Object> metrics, String name, LatencyHistogram.Snapshot snapshot) {
+      metrics.put(name + "_count", snapshot.getCount());
+      metrics.put(name + "_mean", snapshot.getMean());
+      for (int i = 0; i < PERCENTILES.length; i++)
+        metrics.put(name + "_" + PERCENTILE_NAMES[i], snapshot.getValueAtPercentile(PERCENTILES[i]));
+      metrics.put(name + "_max", snapshot.getMax());
+    }
+  }
+}
@@ -0,0 +1,80 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpVersion;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.RequestLine;
+import org.apache.http.client.methods.AbstractExecutionAwareRequest;
+import org.apache.http.concurrent.Cancellable;
+import org.apache.http.message.BasicRequestLine;
+import org.apache.http.protocol.HTTP;
+
+/**
+ * The request sent to the target. Like {@link org.apache.http.message.BasicHttpRequest}, it takes
+ * the URI as a string, as is; unlike it, HttpClient lets it be {@link #abort() aborted} from
+ * another thread, while connecting or transferring. As a {@link Cancellable}, cancelling it
+ * aborts it.
+ */
+public class ProxyRequest extends AbstractExecutionAwareRequest implements Cancellable {
+
+  private final RequestLine requestLine;
+
+  public ProxyRequest(String method, String uri) {
+    this.requestLine = new BasicRequestLine(method, uri, HttpVersion.HTTP_1_1);
+  }
+
+  public RequestLine getRequestLine() {
+    return requestLine;
+  }
+
+  public ProtocolVersion getProtocolVersion() {
+    return requestLine.getProtocolVersion();
+  }
+
+  public boolean cancel() {
+    abort();
+    return true;
+  }
+
+  /** A {@link ProxyRequest} with a body, like
+   * {@link org.apache.http.message.BasicHttpEntityEnclosingRequest}. */
+  public static class EntityEnclosing extends ProxyRequest implements HttpEntityEnclosingRequest {
+
+    private HttpEntity entity;
+
+    public EntityEnclosing(String method, String uri) {
+      super(method, uri);
+    }
+
+    public HttpEntity getEntity() {
+      return entity;
+    }
+
+    public void setEntity(HttpEntity entity) {
+      this.entity = entity;
+    }
+
+    public boolean expectContinue() {
+      Header expect = getFirstHeader(HTTP.EXPECT_DIRECTIVE);
+      return expect != null && HTTP.EXPECT_CONTINUE.equalsIgnoreCase(expect.getValue());
+    }
+  }
+}
@@ -17,39 +17,80 @@ package org.mitre.dsmiley.httpproxy;
  */
 
 import org.apache.http.Header;
+import org.apache.http.HeaderElement;
 import org.apache.http.HttpEntity;
-import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
 import org.apache.http.HttpHeaders;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpRequest;
 import org.apache.http.HttpResponse;
+import org.apache.http.NameValuePair;
 import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.AbortableHttpRequest;
 import org.apache.http.client.params.ClientPNames;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.params.HttpClientParamConfig;
+import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.client.utils.URIUtils;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.entity.ContentLengthStrategy;
+import org.apache.http.entity.HttpEntityWrapper;
 import org.apache.http.entity.InputStreamEntity;
-import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.conn.SystemDefaultRoutePlanner;
+import org.apache.http.impl.entity.LaxContentLengthStrategy;
+import org.apache.http.impl.io.ChunkedInputStream;
+import org.apache.http.impl.io.ContentLengthInputStream;
+import org.apache.http.impl.io.DefaultHttpRequestWriter;
+import org.apache.http.impl.io.DefaultHttpResponseParser;
+import org.apache.http.impl.io.HttpTransportMetricsImpl;
+import org.apache.http.impl.io.IdentityInputStream;
+import org.apache.http.impl.io.SessionInputBufferImpl;
+import org.apache.http.impl.io.SessionOutputBufferImpl;
 import org.apache.http.message.BasicHeader;
-import org.apache.http.message.BasicHttpEntityEnclosingRequest;
-import org.apache.http.message.BasicHttpRequest;
 import org.apache.http.message.HeaderGroup;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.CoreConnectionPNames;
 import org.apache.http.params.HttpParams;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
 import org.apache.http.util.EntityUtils;
 
+import javax.management.JMException;
+import javax.net.ssl.SSLContext;
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.lang.reflect.Constructor;
+import java.io.SequenceInputStream;
+import java.net.InetSocketAddress;
+import java.net.ProxySelector;
+import java.net.Socket;
 import java.net.URI;
+import java.security.GeneralSecurityException;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static java.lang.String.format;
 import static java.util.Collections.list;
@@ -73,12 +114,311 @@ public class ProxyServlet extends HttpServlet {
 
   /* INIT PARAMETER NAME CONSTANTS */
 
-  /** A boolean parameter name to enable logging of input and target URLs to the servlet log. */
+  /** A boolean parameter name to enable logging of input and target URLs to the servlet log.
+   * This is synchronous and unstructured; prefer {@link #P_ACCESS_LOG} in production. */
   public static final String P_LOG = "log";
 
+  /** A parameter name for the file to write a JSON-lines access log to, asynchronously.
+   * See {@link AccessLog}. */
+  public static final String P_ACCESS_LOG = "accessLog";
+
+  /** A parameter name for the fraction of requests to write to the access log; errors are always
+   * written, so 0 logs only errors. Default 1. */
+  public static final String P_ACCESS_LOG_SAMPLE_RATE = "accessLogSampleRate";
+
+  /** An integer parameter name for how many access log records may be waiting to be written
+   * before more are dropped. Default 8192. */
+  public static final String P_ACCESS_LOG_BUFFER_SIZE = "accessLogBufferSize";
+
+  /** An integer parameter name for the size in bytes at which the access log is rolled. Default
+   * 100MB. */
+  public static final String P_ACCESS_LOG_MAX_FILE_SIZE = "accessLogMaxFileSize";
+
+  /** An integer parameter name for how many rolled access log files to keep. Default 10. */
+  public static final String P_ACCESS_LOG_MAX_FILES = "accessLogMaxFiles";
+
   /** A boolean parameter name to enable forwarding of the client IP  */
   public static final String P_FORWARDEDFOR = "forwardip";
 
+  /** A boolean parameter name to rewrite links to the target in HTML and CSS response bodies.
+   * See {@link UrlRewritingOutputStream}. */
+  public static final String P_REWRITE_BODY = "rewriteBody";
+
+  /** A boolean parameter name to rewrite the Domain and Path of cookies set by the target. */
+  public static final String P_REWRITE_COOKIES = "rewriteCookies";
+
+  /** A boolean parameter name to record per-route latency histograms and counters, and publish
+   * them and the connection pool's gauges over JMX. See {@link ProxyMetrics}. */
+  public static final String P_METRICS = "metrics";
+
+  /** An integer parameter name for the most routes (target hosts) to keep metrics for separately;
+   * the rest are lumped together. Default 100. */
+  public static final String P_METRICS_MAX_ROUTES = "metricsMaxRoutes";
+
+  /** A boolean parameter name to add the proxy's phase timings (pool lease, connect, send, time to
+   * first byte, overhead) to the response's Server-Timing header. */
+  public static final String P_SERVER_TIMING = "serverTiming";
+
+  /** A boolean parameter name to tunnel connection upgrades, e.g. WebSockets: the handshake is
+   * proxied on a connection of its own, and if the target agrees, the client's connection is
+   * tunneled to it with an {@link UpgradeTunnel}. Needs a Servlet 3.1 container. */
+  public static final String P_TUNNEL_UPGRADE = "tunnelUpgrade";
+
+  /** An integer parameter name for how long, in milliseconds, an upgraded connection may be idle
+   * before it's closed; 0 for no limit. Default 300000 (5 minutes). */
+  public static final String P_TUNNEL_IDLE_TIMEOUT = "tunnelIdleTimeout";
+
+  /** An integer parameter name for the most tunnels open at once, each with a thread reading the
+   * target and, while there's something to write, one writing to it; further upgrade requests get
+   * a 503. Default 1000. */
+  public static final String P_TUNNEL_MAX_OPEN = "tunnelMaxOpen";
+
+  /** A boolean parameter name to move request and response bodies with non-blocking I/O, so no
+   * thread waits on a slow client; see {@link BodyTransfer}. Needs a Servlet 3.1 container, and
+   * the servlet to be async-supported; otherwise bodies are copied as usual. */
+  public static final String P_NON_BLOCKING_IO = "nonBlockingIO";
+
+  /** An integer parameter name for how many 8KB buffers of a request's body may be read ahead of
+   * the target with {@link #P_NON_BLOCKING_IO}. Default 8. */
+  public static final String P_NON_BLOCKING_BUFFERS = "nonBlockingBuffers";
+
+  /** A parameter name for a key store file with the key and certificate to present to https
+   * targets that ask for a client certificate. See {@link UpstreamTls}. */
+  public static final String P_TLS_KEY_STORE = "tlsKeyStore";
+
+  /** A parameter name for the password of {@link #P_TLS_KEY_STORE}, and of its key. */
+  public static final String P_TLS_KEY_STORE_PASSWORD = "tlsKeyStorePassword";
+
+  /** A parameter name for the type of {@link #P_TLS_KEY_STORE}, e.g. JKS or PKCS12. Default: PKCS12
+   * for .p12 and .pfx files, else the JVM's default. */
+  public static final String P_TLS_KEY_STORE_TYPE = "tlsKeyStoreType";
+
+  /** A parameter name for a key store file with the certificates of trusted https targets, or of
+   * their CAs, instead of the JVM's. */
+  public static final String P_TLS_TRUST_STORE = "tlsTrustStore";
+
+  /** A parameter name for the password of {@link #P_TLS_TRUST_STORE}, if it has one. */
+  public static final String P_TLS_TRUST_STORE_PASSWORD = "tlsTrustStorePassword";
+
+  /** A parameter name for the type of {@link #P_TLS_TRUST_STORE}; defaults like
+   * {@link #P_TLS_KEY_STORE_TYPE}. */
+  public static final String P_TLS_TRUST_STORE_TYPE = "tlsTrustStoreType";
+
+  /** A parameter name for the TLS protocols to enable with https targets, comma separated (e.g.
+   * "TLSv1.2,TLSv1.3"). Default: the JVM's. */
+  public static final String P_TLS_PROTOCOLS = "tlsProtocols";
+
+  /** A parameter name for the cipher suites to enable with https targets, comma separated.
+   * Default: the JVM's. */
+  public static final String P_TLS_CIPHER_SUITES = "tlsCipherSuites";
+
+  /** An integer parameter name for the most TLS sessions cached for resumption; 0 for no limit.
+   * Default: the JVM's. */
+  public static final String P_TLS_SESSION_CACHE_SIZE = "tlsSessionCacheSize";
+
+  /** An integer parameter name for how many seconds a cached TLS session may be resumed for; 0 for
+   * no limit. Default: the JVM's. */
+  public static final String P_TLS_SESSION_TIMEOUT = "tlsSessionTimeout";
+
+  /** A parameter name for how an https target's certificate is checked against its host name:
+   * "browser" (the default), "strict" or "none". */
+  public static final String P_TLS_HOSTNAME_VERIFICATION = "tlsHostnameVerification";
+
+  /** A boolean parameter name for an HttpClient that keeps no state between requests: no cookie
+   * store (cookies only pass through, as headers, between the client and the target), no
+   * authentication cache, and connections not tied to a user. Otherwise cookies the target sets are
+   * kept, for all users together, and sent with later requests. */
+  public static final String P_STATELESS_CLIENT = "statelessClient";
+
+  /** A parameter name for the name of an HttpClient, and connection pool, to share with the other
+   * servlets of the webapp that name it, rather than have one of its own. The first of them to
+   * initialize creates it, with its settings, and the last to be destroyed closes it; each keeps its
+   * own timeouts. Servlets whose {@link #P_STATELESS_CLIENT} or TLS parameters differ from the
+   * first's fail to initialize. See {@link ClientRegistry}. */
+  public static final String P_SHARED_CLIENT = "sharedClient";
+
+  /** An integer parameter name for the most connections the {@link #P_SHARED_CLIENT} pool may
+   * have open, to all routes. Default: as unshared pools, twice {@code http.maxConnections}. It
+   * bounds only the servlets sharing that name; others have pools of their own. */
+  public static final String P_SHARED_CLIENT_MAX_CONNECTIONS = "sharedClientMaxConnections";
+
+  /** An integer parameter name for the most connections the {@link #P_SHARED_CLIENT} pool may
+   * have open to each route. Default: as unshared pools, {@code http.maxConnections}. */
+  public static final String P_SHARED_CLIENT_MAX_PER_ROUTE = "sharedClientMaxPerRoute";
+
+  /** A parameter name for a shadow target URI to copy a sample of proxied requests to, e.g. to try
+   * out a new version of the target with real traffic. Its responses are discarded, and it never
+   * delays the client; see {@link TrafficMirror}. */
+  public static final String P_MIRROR_URI = "mirrorUri";
+
+  /** A parameter name for the fraction of requests to copy to {@link #P_MIRROR_URI}, from 0 to 1.
+   * Default 1. */
+  public static final String P_MIRROR_SAMPLE_RATE = "mirrorSampleRate";
+
+  /** An integer parameter name for the biggest request body copied to {@link #P_MIRROR_URI}, in
+   * bytes; requests with bigger ones aren't. Default 65536. */
+  public static final String P_MIRROR_MAX_BODY = "mirrorMaxBody";
+
+  /** An integer parameter name for how many requests to {@link #P_MIRROR_URI} may be in flight at
+   * once. Default 4. */
+  public static final String P_MIRROR_THREADS = "mirrorThreads";
+
+  /** An integer parameter name for how many requests to {@link #P_MIRROR_URI} may wait to be sent
+   * before more are dropped. Default 100. */
+  public static final String P_MIRROR_QUEUE_SIZE = "mirrorQueueSize";
+
+  /** An integer parameter name for the connect and socket timeout of requests to
+   * {@link #P_MIRROR_URI}, in milliseconds. Default 10000. */
+  public static final String P_MIRROR_TIMEOUT = "mirrorTimeout";
+
+  /** A parameter name for a file to capture a sample of proxied exchanges to, asynchronously, in a
+   * compact binary log of memory-mapped segments, for replaying as a benchmark. Requests the proxy
+   * rejects or answers itself aren't captured. See {@link TrafficCapture}. */
+  public static final String P_CAPTURE_FILE = "captureFile";
+
+  /** A parameter name for the fraction of requests to capture. Default 1. */
+  public static final String P_CAPTURE_SAMPLE_RATE = "captureSampleRate";
+
+  /** An integer parameter name for the biggest request or response body captured, in bytes; bigger
+   * ones are captured by length only. Default 0 (none). */
+  public static final String P_CAPTURE_MAX_BODY = "captureMaxBody";
+
+  /** An integer parameter name for how many captured exchanges may be waiting to be written before
+   * more are dropped. Default 1024. */
+  public static final String P_CAPTURE_BUFFER_SIZE = "captureBufferSize";
+
+  /** An integer parameter name for the size in bytes of each capture segment file. Default 64MB. */
+  public static final String P_CAPTURE_SEGMENT_SIZE = "captureSegmentSize";
+
+  /** An integer parameter name for how many capture segment files to keep. Default 16. */
+  public static final String P_CAPTURE_MAX_SEGMENTS = "captureMaxSegments";
+
+  /** A parameter name for the comma separated headers whose values aren't captured. Default
+   * Authorization, Proxy-Authorization, Cookie and Set-Cookie. */
+  public static final String P_CAPTURE_REDACT_HEADERS = "captureRedactHeaders";
+
+  /** A parameter name to make up strong ETags for GET responses the target sends without a
+   * validator (ETag or Last-Modified), from a hash of the body, so that clients can revalidate
+   * them with If-None-Match and get a 304 without the body. "revalidate" still gets the body from
+   * the target each time and compares it; "local" answers a matching If-None-Match from the
+   * remembered ETag without asking the target, for up to {@link #P_ETAG_MAX_AGE}, so it's only for
+   * content that may be that stale; requests with credentials (Authorization or Cookie) still go to
+   * the target. Responses that vary or are private get no ETag. See {@link ETagTable}. */
+  public static final String P_ETAGS = "etags";
+
+  /** An integer parameter name for the biggest body, in bytes, given an ETag with {@link #P_ETAGS};
+   * bodies up to it are held in memory to hash them. Default 1048576 (1MB). */
+  public static final String P_ETAG_MAX_BODY = "etagMaxBody";
+
+  /** An integer parameter name for how many URIs' ETags to remember. Default 10000. */
+  public static final String P_ETAG_MAX_ENTRIES = "etagMaxEntries";
+
+  /** An integer parameter name for how many seconds an ETag may answer If-None-Match without asking
+   * the target, with {@link #P_ETAGS} "local". Default 60. */
+  public static final String P_ETAG_MAX_AGE = "etagMaxAge";
+
+  /** An integer parameter name for the most requests this servlet proxies at once; the rest
+   * wait, by priority, and are shed under overload. See {@link AdmissionQueue}. Waiting requests
+   * are suspended (async), so they don't hold the container's threads; but connection upgrades,
+   * and requests the container can't suspend, wait on their threads. */
+  public static final String P_ADMISSION_LIMIT = "admissionLimit";
+
+  /** An integer parameter name for how many requests may wait for admission, suspended. Default
+   * 1000. */
+  public static final String P_ADMISSION_MAX_QUEUED = "admissionMaxQueued";
+
+  /** An integer parameter name for how long, in milliseconds, requests may wait for admission
+   * while the proxy is overloaded. Default 5. */
+  public static final String P_ADMISSION_TARGET = "admissionTarget";
+
+  /** An integer parameter name for how long, in milliseconds, requests may wait for admission
+   * otherwise, and how long the queue must stay non-empty for the proxy to be overloaded. Default
+   * 100. */
+  public static final String P_ADMISSION_INTERVAL = "admissionInterval";
+
+  /** A parameter name for the request header whose value, 0 (high) to 2 (low), is the request's
+   * admission priority. */
+  public static final String P_ADMISSION_PRIORITY_HEADER = "admissionPriorityHeader";
+
+  /** A parameter name for admission priorities by path: comma separated "pathPrefix=priority"
+   * pairs, matched against the path info in order, e.g. "/ui=0,/export=2". Otherwise it's 1. */
+  public static final String P_ADMISSION_PRIORITY_PATHS = "admissionPriorityPaths";
+
+  /** An integer parameter name for the most requests this servlet may have in flight, so that a
+   * hanging target can't take all of the container's threads. See {@link Bulkhead}. */
+  public static final String P_BULKHEAD = "bulkhead";
+
+  /** A boolean parameter name to apply {@link #P_BULKHEAD} to each route rather than the servlet.
+   * Routes beyond {@link #P_METRICS_MAX_ROUTES} share one. */
+  public static final String P_BULKHEAD_PER_ROUTE = "bulkheadPerRoute";
+
+  /** An integer parameter name for how long, in milliseconds, a request over {@link #P_BULKHEAD}
+   * may wait for another to finish before it's rejected. Default 0. */
+  public static final String P_BULKHEAD_MAX_WAIT = "bulkheadMaxWait";
+
+  /** An integer parameter name to limit the requests in flight to each route, adaptively, starting
+   * at this limit. See {@link ConcurrencyLimiter}. Routes beyond {@link #P_METRICS_MAX_ROUTES} share
+   * a limit. */
+  public static final String P_CONCURRENCY_LIMIT = "concurrencyLimit";
+
+  /** An integer parameter name for the most the concurrency limit may grow to. Default 200. */
+  public static final String P_CONCURRENCY_LIMIT_MAX = "concurrencyLimitMax";
+
+  /** A parameter name for how many times the minimum round trip time a request may take before
+   * the concurrency limit is lowered. Default 2. */
+  public static final String P_CONCURRENCY_RTT_TOLERANCE = "concurrencyRttTolerance";
+
+  /** An integer parameter name for how many requests over the concurrency limit may wait for one
+   * in flight to finish, rather than be rejected at once. Default 0. */
+  public static final String P_CONCURRENCY_QUEUE_SIZE = "concurrencyQueueSize";
+
+  /** An integer parameter name for how long, in milliseconds, a request may wait in that queue.
+   * Default 50. */
+  public static final String P_CONCURRENCY_QUEUE_TIMEOUT = "concurrencyQueueTimeout";
+
+  /** A parameter name for the requests per second each client may make; more are rejected with
+   * 429. See {@link RateLimiter}. Clients are told apart by {@link #getRateLimitKey}. */
+  public static final String P_RATE_LIMIT = "rateLimit";
+
+  /** An integer parameter name for how many requests a client may make at once before the rate
+   * applies. Default: the rate, or 1. */
+  public static final String P_RATE_LIMIT_BURST = "rateLimitBurst";
+
+  /** A parameter name for a request header identifying the client for rate limiting, e.g. an API
+   * key, instead of its IP address. */
+  public static final String P_RATE_LIMIT_HEADER = "rateLimitHeader";
+
+  /** An integer parameter name for how many proxies in front of this one are trusted to append the
+   * client IP to X-Forwarded-For; rate limiting then goes by the IP that many entries from the end,
+   * rather than by the connection's. Default 0. */
+  public static final String P_RATE_LIMIT_TRUSTED_HOPS = "rateLimitTrustedHops";
+
+  /** An integer parameter name for how many clients' rates to track; beyond that the least limited
+   * are forgotten. Default 65536. */
+  public static final String P_RATE_LIMIT_MAX_CLIENTS = "rateLimitMaxClients";
+
+  /** An integer parameter name for the time budget of each request, in milliseconds: the
+   * timeouts for leasing a connection, connecting and reading are cut to what's left of it, and if
+   * it runs out the request to the target is aborted, and the client gets a 504 if nothing was sent
+   * yet. See {@link Deadline}. */
+  public static final String P_REQUEST_TIMEOUT = "requestTimeout";
+
+  /** A boolean parameter name to honor a shorter budget in the request's
+   * {@value #X_REQUEST_DEADLINE} (epoch milliseconds) or {@value #GRPC_TIMEOUT} header, and pass
+   * what's left on to the target in the same headers. */
+  public static final String P_PROPAGATE_DEADLINE = "propagateDeadline";
+
+  /** An integer parameter name for the Retry-After seconds sent with a request rejected to protect
+   * the target or the proxy. Default 1. */
+  public static final String P_RETRY_AFTER = "retryAfter";
+
+  /** A request header with the time, in milliseconds since the epoch, by which the caller needs
+   * the response. */
+  public static final String X_REQUEST_DEADLINE = "X-Request-Deadline";
+  /** A request header with how long the caller will wait for the response, in gRPC's format, e.g.
+   * "500m" for 500 milliseconds. */
+  public static final String GRPC_TIMEOUT = "grpc-timeout";
+
   /** The parameter name for the target (destination) URI to proxy to. */
   protected static final String P_TARGET_URI = "targetUri";
   protected static final String P_TARGET_URI_PROPERTY = "targetUriProperty";
@@ -87,12 +427,47 @@ public class ProxyServlet extends HttpServlet {
   protected static final String ATTR_TARGET_HOST =
           ProxyServlet.class.getSimpleName() + ".targetHost";
   protected static final String ATTR_TARGET_PATH =
-          ProxyServlet.class.getSimpleName() + ".targetPath";;
+          ProxyServlet.class.getSimpleName() + ".targetPath";
+  /** The key under which metrics are recorded; by default the target host's URI. */
+  protected static final String ATTR_TARGET_ROUTE =
+          ProxyServlet.class.getSimpleName() + ".targetRoute";
+  /** The {@link RequestTiming} of the request, if metrics, the access log or Server-Timing are
+   * enabled. Its phases are complete once {@link #service} returns. */
+  public static final String ATTR_REQUEST_TIMING =
+          ProxyServlet.class.getSimpleName() + ".requestTiming";
+  /** Whether the request, suspended until it was admitted, still holds its admission: an
+   * AtomicBoolean. It's past the rate limit and local ETags too. */
+  protected static final String ATTR_ADMISSION =
+          ProxyServlet.class.getSimpleName() + ".admission";
+  /** The {@link BodyTransfer} of the request, once it's started. */
+  protected static final String ATTR_BODY_TRANSFER =
+          ProxyServlet.class.getSimpleName() + ".bodyTransfer";
 
   /* MISC */
 
   protected boolean doLog = false;
   protected boolean doForwardIP = true;
+  protected boolean doRewriteBody = false;
+  protected boolean doRewriteCookies = false;
+  protected boolean doMetrics = false;
+  protected boolean doServerTiming = false;
+  protected int metricsMaxRoutes = 100;
+  protected int retryAfter = 1;
+  protected long requestTimeout = 0;
+  protected boolean doPropagateDeadline = false;
+  protected boolean doTunnelUpgrade = false;
+  protected long tunnelIdleTimeout = 300000;
+  protected int tunnelMaxOpen = 1000;
+  protected boolean doNonBlockingIO = false;
+  protected int nonBlockingBuffers = 8;
+  protected boolean doStatelessClient = false;
+  protected boolean doLocalETags = false;
+  protected int etagMaxBody = 1048576;
+  protected String rateLimitHeader;
+  protected String admissionPriorityHeader;
+  protected String[] admissionPriorityPaths = new String[0];
+  protected int[] admissionPriorities = new int[0];
+  protected int rateLimitTrustedHops = 0;
   /** User agents shouldn't send the url fragment but what if it does? */
   protected boolean doSendUrlFragment = true;
 
@@ -103,8 +478,44 @@ public class ProxyServlet extends HttpServlet {
   protected String targetUriProperty;
   protected URI targetUriObj;//new URI(targetUri)
   protected HttpHost targetHost;//URIUtils.extractHost(targetUriObj);
+  protected String targetRoute;//targetHost.toURI()
 
   private HttpClient proxyClient;
+  /** The request config from the servlet's parameters, for per-request adjustment. */
+  private RequestConfig requestConfig;
+  private Deadline.Watchdog deadlineWatchdog;
+  private HttpClientConnectionManager connectionManager;
+  private ClientRegistry clientRegistry;
+  /** Null unless {@link #P_SHARED_CLIENT} is set. */
+  protected ClientRegistry.SharedClient sharedClient;
+  private ExecutorService tunnelExecutor;
+  private BufferPool tunnelBuffers;
+  /** Null unless {@link #P_TUNNEL_UPGRADE}. */
+  protected UpgradeTunnel.Stats tunnelStats;
+  private BufferPool bodyBuffers;
+  /** Null unless {@link #P_NON_BLOCKING_IO}. */
+  protected BodyTransfer.Stats bodyTransferStats;
+  /** Null unless {@link #doMetrics}. */
+  protected ProxyMetrics metrics;
+  /** Null unless {@link #P_ACCESS_LOG} is set. */
+  protected AccessLog accessLog;
+  /** The TLS configuration of https connections to the target. */
+  protected UpstreamTls upstreamTls;
+  /** Null unless {@link #P_MIRROR_URI} is set. */
+  protected TrafficMirror trafficMirror;
+  /** Null unless {@link #P_CAPTURE_FILE} is set. */
+  protected TrafficCapture trafficCapture;
+  /** Null unless {@link #P_ETAGS} is set. */
+  protected ETagTable etagTable;
+  /** Null unless {@link #P_RATE_LIMIT} is set. */
+  protected RateLimiter rateLimiter;
+  /** Null unless {@link #P_ADMISSION_LIMIT} is set. */
+  protected AdmissionQueue admissionQueue;
+  /** Null unless {@link #P_BULKHEAD} is set. */
+  protected Bulkhead bulkhead;
+  /** Null unless {@link #P_CONCURRENCY_LIMIT} is set. */
+  protected ConcurrencyLimiter concurrencyLimiter;
+  private boolean doTiming;//metrics, accessLog or serverTiming
 
   protected Properties configurationProperties = getConfigurationProperties();
 
@@ -118,7 +529,7 @@ public class ProxyServlet extends HttpServlet {
     return (String) servletRequest.getAttribute(ATTR_TARGET_URI);
   }
 
-  private HttpHost getTargetHost(HttpServletRequest servletRequest) {
+  protected HttpHost getTargetHost(HttpServletRequest servletRequest) {
     return (HttpHost) servletRequest.getAttribute(ATTR_TARGET_HOST);
   }
 
@@ -126,6 +537,18 @@ public class ProxyServlet extends HttpServlet {
     return (String) servletRequest.getAttribute(ATTR_TARGET_PATH);
   }
 
+  protected String getTargetRoute(HttpServletRequest servletRequest) {
+    String route = (String) servletRequest.getAttribute(ATTR_TARGET_ROUTE);
+    if (route != null)
+      return route;
+    HttpHost host = getTargetHost(servletRequest);
+    return host == targetHost ? targetRoute : host.toURI();
+  }
+
+  protected RequestTiming getRequestTiming(HttpServletRequest servletRequest) {
+    return (RequestTiming) servletRequest.getAttribute(ATTR_REQUEST_TIMING);
+  }
+
   /**
    * Reads a configuration parameter. By default it reads servlet init parameters but
    * it can be overridden.
@@ -151,9 +574,206 @@ public class ProxyServlet extends HttpServlet {
     	this.doForwardIP = Boolean.parseBoolean(doForwardIPString);
     }
 
+    String doRewriteBodyStr = getConfigParam(P_REWRITE_BODY);
+    if (doRewriteBodyStr != null) {
+      this.doRewriteBody = Boolean.parseBoolean(doRewriteBodyStr);
+    }
+
+    String doRewriteCookiesStr = getConfigParam(P_REWRITE_COOKIES);
+    if (doRewriteCookiesStr != null) {
+      this.doRewriteCookies = Boolean.parseBoolean(doRewriteCookiesStr);
+    }
+
+    String doMetricsStr = getConfigParam(P_METRICS);
+    if (doMetricsStr != null) {
+      this.doMetrics = Boolean.parseBoolean(doMetricsStr);
+    }
+
+    String doServerTimingStr = getConfigParam(P_SERVER_TIMING);
+    if (doServerTimingStr != null) {
+      this.doServerTiming = Boolean.parseBoolean(doServerTimingStr);
+    }
+
+    String metricsMaxRoutesStr = getConfigParam(P_METRICS_MAX_ROUTES);
+    if (metricsMaxRoutesStr != null) {
+      this.metricsMaxRoutes = Integer.parseInt(metricsMaxRoutesStr);
+    }
+
+    String retryAfterStr = getConfigParam(P_RETRY_AFTER);
+    if (retryAfterStr != null) {
+      this.retryAfter = Integer.parseInt(retryAfterStr);
+    }
+
+    String requestTimeoutStr = getConfigParam(P_REQUEST_TIMEOUT);
+    if (requestTimeoutStr != null) {
+      this.requestTimeout = Long.parseLong(requestTimeoutStr);
+    }
+
+    String doPropagateDeadlineStr = getConfigParam(P_PROPAGATE_DEADLINE);
+    if (doPropagateDeadlineStr != null) {
+      this.doPropagateDeadline = Boolean.parseBoolean(doPropagateDeadlineStr);
+    }
+
+    String doTunnelUpgradeStr = getConfigParam(P_TUNNEL_UPGRADE);
+    if (doTunnelUpgradeStr != null) {
+      this.doTunnelUpgrade = Boolean.parseBoolean(doTunnelUpgradeStr);
+    }
+
+    String tunnelIdleTimeoutStr = getConfigParam(P_TUNNEL_IDLE_TIMEOUT);
+    if (tunnelIdleTimeoutStr != null) {
+      this.tunnelIdleTimeout = Long.parseLong(tunnelIdleTimeoutStr);
+    }
+
+    String tunnelMaxOpenStr = getConfigParam(P_TUNNEL_MAX_OPEN);
+    if (tunnelMaxOpenStr != null) {
+      this.tunnelMaxOpen = Integer.parseInt(tunnelMaxOpenStr);
+    }
+
+    String doNonBlockingIOStr = getConfigParam(P_NON_BLOCKING_IO);
+    if (doNonBlockingIOStr != null) {
+      this.doNonBlockingIO = Boolean.parseBoolean(doNonBlockingIOStr);
+    }
+
+    String nonBlockingBuffersStr = getConfigParam(P_NON_BLOCKING_BUFFERS);
+    if (nonBlockingBuffersStr != null) {
+      this.nonBlockingBuffers = Integer.parseInt(nonBlockingBuffersStr);
+    }
+
+    String doStatelessClientStr = getConfigParam(P_STATELESS_CLIENT);
+    if (doStatelessClientStr != null) {
+      this.doStatelessClient = Boolean.parseBoolean(doStatelessClientStr);
+    }
+
+    String rateLimitStr = getConfigParam(P_RATE_LIMIT);
+    if (rateLimitStr != null) {
+      String burstStr = getConfigParam(P_RATE_LIMIT_BURST);
+      String maxClientsStr = getConfigParam(P_RATE_LIMIT_MAX_CLIENTS);
+      String trustedHopsStr = getConfigParam(P_RATE_LIMIT_TRUSTED_HOPS);
+      double rate = Double.parseDouble(rateLimitStr);
+      rateLimiter = new RateLimiter(rate,
+          burstStr != null ? Integer.parseInt(burstStr) : Math.max(1, (int) rate),
+          maxClientsStr != null ? Integer.parseInt(maxClientsStr) : 65536);
+      rateLimitHeader = getConfigParam(P_RATE_LIMIT_HEADER);
+      if (trustedHopsStr != null)
+        rateLimitTrustedHops = Integer.parseInt(trustedHopsStr);
+    }
+
+    String admissionLimitStr = getConfigParam(P_ADMISSION_LIMIT);
+    if (admissionLimitStr != null) {
+      String maxQueuedStr = getConfigParam(P_ADMISSION_MAX_QUEUED);
+      String targetStr = getConfigParam(P_ADMISSION_TARGET);
+      String intervalStr = getConfigParam(P_ADMISSION_INTERVAL);
+      admissionQueue = new AdmissionQueue(Integer.parseInt(admissionLimitStr),
+          maxQueuedStr != null ? Integer.parseInt(maxQueuedStr) : 1000,
+          targetStr != null ? Long.parseLong(targetStr) : 5,
+          intervalStr != null ? Long.parseLong(intervalStr) : 100);
+      admissionPriorityHeader = getConfigParam(P_ADMISSION_PRIORITY_HEADER);
+      String pathsStr = getConfigParam(P_ADMISSION_PRIORITY_PATHS);
+      if (pathsStr != null && pathsStr.trim().length() > 0) {
+        String[] pairs = pathsStr.split(",");
+        admissionPriorityPaths = new String[pairs.length];
+        admissionPriorities = new int[pairs.length];
+        for (int i = 0; i < pairs.length; i++) {
+          int eq = pairs[i].lastIndexOf('=');
+          if (eq < 0)
+            throw new ServletException(P_ADMISSION_PRIORITY_PATHS + " needs pathPrefix=priority: " + pairs[i]);
+          admissionPriorityPaths[i] = pairs[i].substring(0, eq).trim();
+          admissionPriorities[i] = Integer.parseInt(pairs[i].substring(eq + 1).trim());
+        }
+      }
+    }
+
+    String bulkheadStr = getConfigParam(P_BULKHEAD);
+    if (bulkheadStr != null) {
+      String maxWaitStr = getConfigParam(P_BULKHEAD_MAX_WAIT);
+      bulkhead = new Bulkhead(Integer.parseInt(bulkheadStr),
+          maxWaitStr != null ? Long.parseLong(maxWaitStr) : 0,
+          Boolean.parseBoolean(getConfigParam(P_BULKHEAD_PER_ROUTE)),
+          metricsMaxRoutes);
+    }
+
+    String concurrencyLimitStr = getConfigParam(P_CONCURRENCY_LIMIT);
+    if (concurrencyLimitStr != null) {
+      String maxStr = getConfigParam(P_CONCURRENCY_LIMIT_MAX);
+      String toleranceStr = getConfigParam(P_CONCURRENCY_RTT_TOLERANCE);
+      String queueSizeStr = getConfigParam(P_CONCURRENCY_QUEUE_SIZE);
+      String queueTimeoutStr = getConfigParam(P_CONCURRENCY_QUEUE_TIMEOUT);
+      int initialLimit = Integer.parseInt(concurrencyLimitStr);
+      concurrencyLimiter = new ConcurrencyLimiter(initialLimit,
+          maxStr != null ? Integer.parseInt(maxStr) : Math.max(200, initialLimit),
+          toleranceStr != null ? Double.parseDouble(toleranceStr) : 2.0,
+          queueSizeStr != null ? Integer.parseInt(queueSizeStr) : 0,
+          queueTimeoutStr != null ? Long.parseLong(queueTimeoutStr) : 50,
+          metricsMaxRoutes);
+    }
+
+    String accessLogFile = getConfigParam(P_ACCESS_LOG);
+    if (accessLogFile != null) {
+      String sampleRateStr = getConfigParam(P_ACCESS_LOG_SAMPLE_RATE);
+      String bufferSizeStr = getConfigParam(P_ACCESS_LOG_BUFFER_SIZE);
+      String maxFileSizeStr = getConfigParam(P_ACCESS_LOG_MAX_FILE_SIZE);
+      String maxFilesStr = getConfigParam(P_ACCESS_LOG_MAX_FILES);
+      accessLog = new AccessLog(new File(accessLogFile),
+          bufferSizeStr != null ? Integer.parseInt(bufferSizeStr) : 8192,
+          sampleRateStr != null ? Double.parseDouble(sampleRateStr) : 1.0,
+          maxFileSizeStr != null ? Long.parseLong(maxFileSizeStr) : 100L * 1024 * 1024,
+          maxFilesStr != null ? Integer.parseInt(maxFilesStr) : 10);
+      accessLog.start();
+    }
+
+    String mirrorUri = getConfigParam(P_MIRROR_URI);
+    if (mirrorUri != null) {
+      String sampleRateStr = getConfigParam(P_MIRROR_SAMPLE_RATE);
+      String maxBodyStr = getConfigParam(P_MIRROR_MAX_BODY);
+      String threadsStr = getConfigParam(P_MIRROR_THREADS);
+      String queueSizeStr = getConfigParam(P_MIRROR_QUEUE_SIZE);
+      String timeoutStr = getConfigParam(P_MIRROR_TIMEOUT);
+      trafficMirror = new TrafficMirror(mirrorUri,
+          sampleRateStr != null ? Double.parseDouble(sampleRateStr) : 1.0,
+          maxBodyStr != null ? Integer.parseInt(maxBodyStr) : 65536,
+          threadsStr != null ? Integer.parseInt(threadsStr) : 4,
+          queueSizeStr != null ? Integer.parseInt(queueSizeStr) : 100,
+          timeoutStr != null ? Integer.parseInt(timeoutStr) : 10000);
+    }
+
+    String captureFile = getConfigParam(P_CAPTURE_FILE);
+    if (captureFile != null) {
+      String sampleRateStr = getConfigParam(P_CAPTURE_SAMPLE_RATE);
+      String maxBodyStr = getConfigParam(P_CAPTURE_MAX_BODY);
+      String bufferSizeStr = getConfigParam(P_CAPTURE_BUFFER_SIZE);
+      String segmentSizeStr = getConfigParam(P_CAPTURE_SEGMENT_SIZE);
+      String maxSegmentsStr = getConfigParam(P_CAPTURE_MAX_SEGMENTS);
+      String redactStr = getConfigParam(P_CAPTURE_REDACT_HEADERS);
+      trafficCapture = new TrafficCapture(new File(captureFile),
+          sampleRateStr != null ? Double.parseDouble(sampleRateStr) : 1.0,
+          maxBodyStr != null ? Integer.parseInt(maxBodyStr) : 0,
+          bufferSizeStr != null ? Integer.parseInt(bufferSizeStr) : 1024,
+          segmentSizeStr != null ? Integer.parseInt(segmentSizeStr) : 64 * 1024 * 1024,
+          maxSegmentsStr != null ? Integer.parseInt(maxSegmentsStr) : 16,
+          (redactStr != null ? redactStr : "Authorization,Proxy-Authorization,Cookie,Set-Cookie").split(","));
+      trafficCapture.start();
+    }
+
+    String etagsStr = getConfigParam(P_ETAGS);
+    if (etagsStr != null && !etagsStr.equalsIgnoreCase("off")) {
+      if (!etagsStr.equalsIgnoreCase("revalidate") && !etagsStr.equalsIgnoreCase("local"))
+        throw new ServletException(P_ETAGS + " must be revalidate, local or off: " + etagsStr);
+      this.doLocalETags = etagsStr.equalsIgnoreCase("local");
+      String maxBodyStr = getConfigParam(P_ETAG_MAX_BODY);
+      if (maxBodyStr != null)
+        this.etagMaxBody = Integer.parseInt(maxBodyStr);
+      String maxEntriesStr = getConfigParam(P_ETAG_MAX_ENTRIES);
+      String maxAgeStr = getConfigParam(P_ETAG_MAX_AGE);
+      etagTable = new ETagTable(maxEntriesStr != null ? Integer.parseInt(maxEntriesStr) : 10000,
+          (maxAgeStr != null ? Long.parseLong(maxAgeStr) : 60) * 1000);
+    }
+
     initTarget();//sets target*
 
-    HttpParams hcParams = new BasicHttpParams();
+    upstreamTls = createUpstreamTls();
+    doTiming = doMetrics || accessLog != null || doServerTiming;
+
+    final HttpParams hcParams = new BasicHttpParams();
     readConfigParam(hcParams, ClientPNames.ALLOW_CIRCULAR_REDIRECTS, Boolean.class);
     readConfigParam(hcParams, ClientPNames.CONN_MANAGER_TIMEOUT, Integer.class);
     readConfigParam(hcParams, ClientPNames.HANDLE_REDIRECTS, Boolean.class);
@@ -161,7 +781,209 @@ public class ProxyServlet extends HttpServlet {
     readConfigParam(hcParams, CoreConnectionPNames.CONNECTION_TIMEOUT, Integer.class);
     readConfigParam(hcParams, CoreConnectionPNames.SO_TIMEOUT, Integer.class);
     readConfigParam(hcParams, CoreConnectionPNames.STALE_CONNECTION_CHECK, Boolean.class);
-    proxyClient = createHttpClient(hcParams);
+    requestConfig = toRequestConfig(hcParams);
+    final String sharedClientName = getConfigParam(P_SHARED_CLIENT);
+    if (sharedClientName != null) {
+      clientRegistry = ClientRegistry.get(getServletContext());
+      try {
+        sharedClient = clientRegistry.acquire(sharedClientName, getSharedClientSettings(),
+            new ClientRegistry.Factory() {
+              public ClientRegistry.SharedClient create() {
+                return createSharedClient(sharedClientName, hcParams);
+              }
+            });
+      } catch (IllegalArgumentException e) {
+        throw new ServletException(e.getMessage() + ": servlets sharing a client must have the same "
+            + P_STATELESS_CLIENT + " and TLS parameters", e);
+      }
+      proxyClient = sharedClient.getClient();
+      connectionManager = sharedClient.getConnectionManager();
+    } else {
+      proxyClient = createHttpClient(hcParams);
+    }
+    if (requestTimeout > 0 || doPropagateDeadline) {
+      deadlineWatchdog = new Deadline.Watchdog("ProxyServlet deadlines " + getServletName());
+      deadlineWatchdog.start();
+    }
+    if (doTunnelUpgrade) {
+      final String threadName = "ProxyServlet tunnel " + getServletName();
+      //a reader and a writer per open tunnel; serviceUpgrade turns away tunnels beyond that
+      ThreadPoolExecutor executor = new ThreadPoolExecutor(2 * tunnelMaxOpen, 2 * tunnelMaxOpen, 60, TimeUnit.SECONDS,
+          new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+              Thread thread = new Thread(runnable, threadName);
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+      executor.allowCoreThreadTimeOut(true);
+      tunnelExecutor = executor;
+      tunnelBuffers = new BufferPool(8192, 256);
+      tunnelStats = new UpgradeTunnel.Stats();
+    }
+    if (doNonBlockingIO) {
+      bodyBuffers = new BufferPool(8192, 1024);
+      bodyTransferStats = new BodyTransfer.Stats();
+    }
+
+    if (doMetrics) {
+      metrics = new ProxyMetrics(metricsMaxRoutes);
+      if (bulkhead != null && bulkhead.isPerRoute())
+        metrics.addRouteSource(bulkhead);
+      if (concurrencyLimiter != null)
+        metrics.addRouteSource(concurrencyLimiter);
+      try {
+        metrics.register(getServletName(), new MetricsMBean.Source() {
+          public void collectMetrics(Map<String, Object> servletMetrics) {
+            ProxyServlet.this.collectMetrics(servletMetrics);
+          }
+        });
+      } catch (JMException e) {
+        log("Couldn't register metrics with JMX: " + e, e);
+      }
+    }
+  }
+
+  /** Called from {@link #init()} when this is the first servlet to use the {@link #P_SHARED_CLIENT}
+   * named {@code name}: the client is created by {@link #createHttpClient(HttpParams,
+   * HttpClientConnectionManager)} with a connection manager sized by the {@code P_SHARED_CLIENT_*}
+   * parameters, and {@link #getSharedClientSettings()}. */
+  @SuppressWarnings("deprecation")//HttpParams, like createHttpClient
+  protected ClientRegistry.SharedClient createSharedClient(String name, HttpParams hcParams) {
+    HttpClientConnectionManager manager = createConnectionManager();
+    if (manager instanceof PoolingHttpClientConnectionManager) {
+      PoolingHttpClientConnectionManager pool = (PoolingHttpClientConnectionManager) manager;
+      String maxConnectionsStr = getConfigParam(P_SHARED_CLIENT_MAX_CONNECTIONS);
+      String maxPerRouteStr = getConfigParam(P_SHARED_CLIENT_MAX_PER_ROUTE);
+      if (maxConnectionsStr != null)
+        pool.setMaxTotal(Integer.parseInt(maxConnectionsStr));
+      if (maxPerRouteStr != null)
+        pool.setDefaultMaxPerRoute(Integer.parseInt(maxPerRouteStr));
+    }
+    return new ClientRegistry.SharedClient(name, createHttpClient(hcParams, manager), manager,
+        getSharedClientSettings());
+  }
+
+  /** The parameters a {@link #P_SHARED_CLIENT} is built with that servlets sharing it must agree on,
+   * since only the first one's are used: {@link #P_STATELESS_CLIENT} and the {@code P_TLS_*}
+   * parameters (but not the passwords, which are only told apart by the stores opening). */
+  protected String getSharedClientSettings() {
+    StringBuilder settings = new StringBuilder();
+    settings.append(P_STATELESS_CLIENT).append('=').append(doStatelessClient);
+    String[] tlsParams = {P_TLS_KEY_STORE, P_TLS_KEY_STORE_TYPE, P_TLS_TRUST_STORE, P_TLS_TRUST_STORE_TYPE,
+        P_TLS_PROTOCOLS, P_TLS_CIPHER_SUITES, P_TLS_SESSION_CACHE_SIZE, P_TLS_SESSION_TIMEOUT,
+        P_TLS_HOSTNAME_VERIFICATION};
+    for (String param : tlsParams)
+      settings.append(',').append(param).append('=').append(getConfigParam(param));
+    return settings.toString();
+  }
+
+  /** Called from {@link #init()} to configure TLS with https targets from the {@code P_TLS_*}
+   * parameters. With none of them set, it's like HttpClient's system socket factory. */
+  protected UpstreamTls createUpstreamTls() throws ServletException {
+    String keyStore = getConfigParam(P_TLS_KEY_STORE);
+    String trustStore = getConfigParam(P_TLS_TRUST_STORE);
+    String protocols = getConfigParam(P_TLS_PROTOCOLS);
+    String cipherSuites = getConfigParam(P_TLS_CIPHER_SUITES);
+    String sessionCacheSize = getConfigParam(P_TLS_SESSION_CACHE_SIZE);
+    String sessionTimeout = getConfigParam(P_TLS_SESSION_TIMEOUT);
+    String hostnameVerification = getConfigParam(P_TLS_HOSTNAME_VERIFICATION);
+    try {
+      if (keyStore == null && trustStore == null && protocols == null && cipherSuites == null
+          && sessionCacheSize == null && sessionTimeout == null && hostnameVerification == null)
+        return UpstreamTls.createDefault();
+      SSLContext sslContext = UpstreamTls.createSslContext(
+          keyStore != null ? new File(keyStore) : null, getConfigParam(P_TLS_KEY_STORE_PASSWORD),
+          getConfigParam(P_TLS_KEY_STORE_TYPE),
+          trustStore != null ? new File(trustStore) : null, getConfigParam(P_TLS_TRUST_STORE_PASSWORD),
+          getConfigParam(P_TLS_TRUST_STORE_TYPE),
+          sessionCacheSize != null ? Integer.parseInt(sessionCacheSize) : -1,
+          sessionTimeout != null ? Integer.parseInt(sessionTimeout) : -1);
+      return new UpstreamTls(sslContext, UpstreamTls.split(protocols), UpstreamTls.split(cipherSuites),
+          UpstreamTls.getHostnameVerifier(hostnameVerification));
+    } catch (GeneralSecurityException e) {
+      throw new ServletException("Couldn't set up TLS: " + e, e);
+    } catch (IOException e) {
+      throw new ServletException("Couldn't set up TLS: " + e, e);
+    }
+  }
+
+  /** Reports the metrics of this servlet's JMX MBean: totals across routes, and the connection
+   * pool's gauges if it's pooling. Subclasses may add more. */
+  protected void collectMetrics(Map<String, Object> servletMetrics) {
+    if (targetUri != null)
+      servletMetrics.put("targetUri", targetUri);
+    metrics.collectTotals(servletMetrics);
+    if (connectionManager instanceof PoolingHttpClientConnectionManager) {
+      PoolStats stats = ((PoolingHttpClientConnectionManager) connectionManager).getTotalStats();
+      servletMetrics.put("poolLeased", stats.getLeased());
+      servletMetrics.put("poolAvailable", stats.getAvailable());
+      servletMetrics.put("poolPending", stats.getPending());
+      servletMetrics.put("poolMax", stats.getMax());
+    }
+    if (sharedClient != null) {
+      servletMetrics.put("sharedClient", sharedClient.getName());
+      servletMetrics.put("sharedClientUsers", clientRegistry.getUsers(sharedClient));
+      PoolStats allShared = clientRegistry.getTotalStats();//of every shared client in the webapp
+      servletMetrics.put("sharedPoolsLeased", allShared.getLeased());
+      servletMetrics.put("sharedPoolsMax", allShared.getMax());
+    }
+    if (accessLog != null)
+      servletMetrics.put("accessLogDropped", accessLog.getDroppedCount());
+    if (upstreamTls != null) {
+      servletMetrics.put("tlsHandshakes", upstreamTls.getHandshakeCount());
+      servletMetrics.put("tlsResumed", upstreamTls.getResumedCount());
+      servletMetrics.put("tlsFailures", upstreamTls.getFailureCount());
+      ProxyMetrics.RouteMetrics.putHistogram(servletMetrics, "tlsHandshakeTime", upstreamTls.getHandshakeTime().snapshot());
+    }
+    if (trafficMirror != null) {
+      servletMetrics.put("mirrored", trafficMirror.getMirroredCount());
+      servletMetrics.put("mirrorDropped", trafficMirror.getDroppedCount());
+      servletMetrics.put("mirrorFailed", trafficMirror.getFailedCount());
+      servletMetrics.put("mirrorQueued", trafficMirror.getQueuedCount());
+      ProxyMetrics.RouteMetrics.putHistogram(servletMetrics, "mirrorLatency", trafficMirror.getLatency().snapshot());
+    }
+    if (trafficCapture != null) {
+      servletMetrics.put("captured", trafficCapture.getWrittenCount());
+      servletMetrics.put("captureDropped", trafficCapture.getDroppedCount());
+      servletMetrics.put("captureQueued", trafficCapture.getQueuedCount());
+    }
+    if (etagTable != null) {
+      servletMetrics.put("etagsGenerated", etagTable.getGeneratedCount());
+      servletMetrics.put("etagNotModified", etagTable.getNotModifiedCount());
+      servletMetrics.put("etagLocalNotModified", etagTable.getLocalNotModifiedCount());
+      servletMetrics.put("etagTooLarge", etagTable.getTooLargeCount());
+      servletMetrics.put("etagEntries", etagTable.getSize());
+      servletMetrics.put("etagEvictions", etagTable.getEvictionCount());
+    }
+    if (rateLimiter != null) {
+      servletMetrics.put("rateLimited", rateLimiter.getRejectedCount());
+      servletMetrics.put("rateLimitEvictions", rateLimiter.getEvictionCount());
+    }
+    if (admissionQueue != null) {
+      servletMetrics.put("admissionInFlight", admissionQueue.getInFlight());
+      servletMetrics.put("admissionQueued", admissionQueue.getQueued());
+      servletMetrics.put("admissionShed", admissionQueue.getShedCount());
+      servletMetrics.put("admissionOverloaded", admissionQueue.isOverloaded() ? 1 : 0);
+    }
+    if (bulkhead != null) {
+      servletMetrics.put("bulkheadInFlight", bulkhead.getInFlight());
+      servletMetrics.put("bulkheadRejected", bulkhead.getRejectedCount());
+    }
+    if (concurrencyLimiter != null)
+      servletMetrics.put("concurrencyRejected", concurrencyLimiter.getRejectedCount());
+    if (tunnelStats != null) {
+      servletMetrics.put("tunnelsOpen", tunnelStats.getOpenCount());
+      servletMetrics.put("tunnels", tunnelStats.getOpenedCount());
+      servletMetrics.put("tunnelBytesFromClient", tunnelStats.getBytesFromClient());
+      servletMetrics.put("tunnelBytesToClient", tunnelStats.getBytesToClient());
+      servletMetrics.put("tunnelIdleTimeouts", tunnelStats.getIdleTimeoutCount());
+    }
+    if (bodyTransferStats != null) {
+      servletMetrics.put("nonBlockingTransfers", bodyTransferStats.getTransferCount());
+      servletMetrics.put("nonBlockingRequestPauses", bodyTransferStats.getRequestPauseCount());
+      servletMetrics.put("nonBlockingResponsePauses", bodyTransferStats.getResponsePauseCount());
+    }
   }
 
   protected void initTarget() throws ServletException {
@@ -178,13 +1000,25 @@ public class ProxyServlet extends HttpServlet {
     if(targetUri == null)
       throw new ServletException(P_TARGET_URI + " is required.");
 
+    HttpHost unixHost = null;
+    if (UnixSocketFactory.isUnixTargetUri(targetUri)) {
+      //requests (and the redirects to rewrite) are addressed to a URI like http://localhost/path
+      try {
+        unixHost = UnixSocketFactory.getTargetHost(targetUri);
+      } catch (IllegalArgumentException e) {
+        throw new ServletException(e.getMessage(), e);
+      }
+      targetUri = UnixSocketFactory.getRequestUri(targetUri);
+    }
+
     //test it's valid
     try {
       targetUriObj = new URI(targetUri);
     } catch (Exception e) {
       throw new ServletException("Trying to process targetUri init parameter: "+e,e);
     }
-    targetHost = URIUtils.extractHost(targetUriObj);
+    targetHost = unixHost != null ? unixHost : URIUtils.extractHost(targetUriObj);
+    targetRoute = targetHost == null ? null : targetHost.toURI();
   }
 
   protected Properties getConfigurationProperties() {
@@ -210,28 +1044,73 @@ public class ProxyServlet extends HttpServlet {
   }
 
   /** Called from {@link #init(javax.servlet.ServletConfig)}. HttpClient offers many opportunities
-   * for customization. By default,
-   * <a href="http://hc.apache.org/httpcomponents-client-ga/httpclient/apidocs/org/apache/http/impl/client/SystemDefaultHttpClient.html">
-   *   SystemDefaultHttpClient</a> is used if available, otherwise it falls
-   * back to:
-   * <pre>new DefaultHttpClient(new ThreadSafeClientConnManager(),hcParams)</pre>
-   * SystemDefaultHttpClient uses PoolingClientConnectionManager. In any case, it should be thread-safe. */
-  @SuppressWarnings({"unchecked", "deprecation"})
+   * for customization. By default, a client honoring the standard system properties (proxy, TLS,
+   * {@code http.keepAlive} and {@code http.maxConnections}) is built with the connection manager
+   * from {@link #createConnectionManager()} and {@code hcParams} as its default request config.
+   * It also hooks in {@link RequestTiming} if it's needed, and keeps no state with
+   * {@link #P_STATELESS_CLIENT}. In any case, it should be thread-safe. */
+  @SuppressWarnings("deprecation")
   protected HttpClient createHttpClient(HttpParams hcParams) {
-    try {
-      //as of HttpComponents v4.2, this class is better since it uses System
-      // Properties:
-      Class clientClazz = Class.forName("org.apache.http.impl.client.SystemDefaultHttpClient");
-      Constructor constructor = clientClazz.getConstructor(HttpParams.class);
-      return (HttpClient) constructor.newInstance(hcParams);
-    } catch (ClassNotFoundException e) {
-      //no problem; use v4.1 below
-    } catch (Exception e) {
-      throw new RuntimeException(e);
+    connectionManager = createConnectionManager();
+    return createHttpClient(hcParams, connectionManager);
+  }
+
+  /** Builds the client of {@link #createHttpClient(HttpParams)} with the given connection manager;
+   * also used for a {@link #P_SHARED_CLIENT}, whose manager is sized by the
+   * {@code P_SHARED_CLIENT_*} parameters. */
+  @SuppressWarnings("deprecation")
+  protected HttpClient createHttpClient(HttpParams hcParams, HttpClientConnectionManager connectionManager) {
+    HttpClientBuilder builder = HttpClientBuilder.create();
+    if (doStatelessClient) {
+      builder.disableCookieManagement()//Cookie and Set-Cookie are copied as headers
+          .disableAuthCaching()
+          .disableConnectionState();//any pooled connection may serve any user
+    }
+    if (isTimingHooked())
+      builder.setRequestExecutor(new RequestTiming.RequestExecutor());
+    return builder
+        .useSystemProperties()
+        .setConnectionManager(connectionManager)
+        .setSchemePortResolver(UnixSocketFactory.SCHEME_PORT_RESOLVER)
+        .setRoutePlanner(UnixSocketFactory.routePlanner(
+            new SystemDefaultRoutePlanner(UnixSocketFactory.SCHEME_PORT_RESOLVER, ProxySelector.getDefault())))
+        .setDefaultRequestConfig(toRequestConfig(hcParams))
+        .disableContentCompression()//pass compressed bodies through as-is
+        .build();
+  }
+
+  @SuppressWarnings("deprecation")
+  private static RequestConfig toRequestConfig(HttpParams hcParams) {
+    return HttpClientParamConfig.getRequestConfig(hcParams);
+  }
+
+  /** A pooling connection manager, marking connect times for {@link RequestTiming} if it's needed,
+   * sized like HttpClient's own system-property based one, with {@link #upstreamTls} for https. */
+  protected HttpClientConnectionManager createConnectionManager() {
+    Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+        .register("http", PlainConnectionSocketFactory.getSocketFactory())
+        .register("https", getSslSocketFactory())
+        .register(UnixSocketFactory.SCHEME, UnixSocketFactory.INSTANCE)
+        .build();
+    PoolingHttpClientConnectionManager manager = isTimingHooked()
+        ? new RequestTiming.ConnectionManager(registry, UnixSocketFactory.DNS_RESOLVER)
+        : new PoolingHttpClientConnectionManager(registry, UnixSocketFactory.DNS_RESOLVER);
+    if ("true".equalsIgnoreCase(System.getProperty("http.keepAlive", "true"))) {
+      int max = Integer.parseInt(System.getProperty("http.maxConnections", "5"));
+      manager.setDefaultMaxPerRoute(max);
+      manager.setMaxTotal(2 * max);
     }
+    return manager;
+  }
+
+  /** Whether the client needs the {@link RequestTiming} hooks: if this servlet times requests, or
+   * the client is shared, since other servlets sharing it might. */
+  private boolean isTimingHooked() {
+    return doTiming || getConfigParam(P_SHARED_CLIENT) != null;
+  }
 
-    //Fallback on using older client:
-    return new DefaultHttpClient(new ThreadSafeClientConnManager(), hcParams);
+  private SSLConnectionSocketFactory getSslSocketFactory() {
+    return upstreamTls != null ? upstreamTls.getSocketFactory() : SSLConnectionSocketFactory.getSystemSocketFactory();
   }
 
   /** The http client used.
@@ -263,6 +1142,37 @@ public class ProxyServlet extends HttpServlet {
 
   @Override
   public void destroy() {
+    if (metrics != null)
+      metrics.unregister();
+    if (accessLog != null)
+      accessLog.close();
+    if (trafficMirror != null)
+      trafficMirror.close();
+    if (trafficCapture != null)
+      trafficCapture.close();
+    if (deadlineWatchdog != null)
+      deadlineWatchdog.close();
+    if (admissionQueue != null)
+      admissionQueue.close();//its waiters get a 503
+    if (tunnelExecutor != null) {
+      tunnelStats.closeAll();//ending their threads
+      tunnelExecutor.shutdown();
+      try {
+        if (!tunnelExecutor.awaitTermination(10, TimeUnit.SECONDS))
+          log("While destroying servlet, tunnel threads didn't finish");
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    if (sharedClient != null) {
+      try {
+        clientRegistry.release(sharedClient);//closed by the last servlet using it
+      } catch (IOException e) {
+        log("While destroying servlet, shutting down shared HttpClient: "+e, e);
+      }
+      sharedClient = null;
+      proxyClient = null;
+    }
     //As of HttpComponents v4.3, clients implement closeable
     if (proxyClient instanceof Closeable) {//TODO AutoCloseable in Java 1.6
       try {
@@ -281,6 +1191,9 @@ public class ProxyServlet extends HttpServlet {
   @Override
   protected void service(HttpServletRequest servletRequest, HttpServletResponse servletResponse)
       throws ServletException, IOException {
+    //a request admitted after being suspended is dispatched here again, and timed from the start
+    AtomicBoolean admission = (AtomicBoolean) servletRequest.getAttribute(ATTR_ADMISSION);
+    RequestTiming timing = admission != null ? getRequestTiming(servletRequest) : startTiming(servletRequest);
     //initialize request attributes from caches if unset by a subclass by this point
     if (servletRequest.getAttribute(ATTR_TARGET_URI) == null) {
       servletRequest.setAttribute(ATTR_TARGET_URI, targetUri);
@@ -292,36 +1205,316 @@ public class ProxyServlet extends HttpServlet {
       servletRequest.setAttribute(ATTR_TARGET_PATH, servletRequest.getPathInfo());
     }
 
+    if (doTunnelUpgrade && isUpgradeRequest(servletRequest)) {
+      serviceUpgrade(servletRequest, servletResponse);
+      return;
+    }
+
+    if (admissionQueue != null && admission == null && isAsyncSupported(servletRequest)
+        && !admitOrSuspend(servletRequest, servletResponse, timing))
+      return;
+
+    if (doNonBlockingIO && hasRequestBody(servletRequest) && isAsyncSupported(servletRequest)) {
+      readRequestBodyThenProxy(servletRequest, servletResponse, timing);
+      return;
+    }
+    try {
+      proxy(servletRequest, servletResponse, timing);
+    } finally {
+      BodyTransfer transfer = getBodyTransfer(servletRequest);
+      if (transfer != null)//the response body is being sent
+        transfer.exchangeDone();
+    }
+  }
+
+  /** Reads the request body with a {@link BodyTransfer}, without blocking, and proxies the request
+   * on a container thread once it's all read or the transfer's buffers are full. */
+  private void readRequestBodyThenProxy(final HttpServletRequest servletRequest,
+                                        final HttpServletResponse servletResponse, final RequestTiming timing) {
+    final BodyTransfer transfer = startBodyTransfer(servletRequest);
+    final AtomicBoolean admission = (AtomicBoolean) servletRequest.getAttribute(ATTR_ADMISSION);
+    if (admission != null) {//proxy() releases it, unless the transfer fails first
+      servletRequest.getAsyncContext().addListener(new AsyncListener() {
+        public void onComplete(AsyncEvent event) {
+          releaseAdmission(admission);
+        }
+
+        public void onTimeout(AsyncEvent event) {
+        }
+
+        public void onError(AsyncEvent event) {
+        }
+
+        public void onStartAsync(AsyncEvent event) {
+        }
+      });
+    }
+    transfer.readRequestBody(new Runnable() {
+      public void run() {
+        try {
+          proxy(servletRequest, servletResponse, timing);
+        } catch (Exception e) {
+          //the container would have sent a 500 had this been thrown from service()
+          log("Proxying " + servletRequest.getRequestURI() + " failed: " + e, e);
+          if (!servletResponse.isCommitted()) {
+            servletResponse.reset();
+            servletResponse.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            servletResponse.setContentLength(0);
+          }
+        } finally {
+          transfer.exchangeDone();
+        }
+      }
+    });
+  }
+
+  /** Puts the request in async mode, for a {@link BodyTransfer} that completes it. */
+  private BodyTransfer startBodyTransfer(HttpServletRequest servletRequest) {
+    AsyncContext async = servletRequest.startAsync();
+    long timeout = getRequestTimeout(servletRequest);
+    async.setTimeout(timeout >= 0 ? Math.max(timeout, 1) : 0);//0 is none
+    BodyTransfer transfer = new BodyTransfer(async, bodyBuffers, nonBlockingBuffers, bodyTransferStats);
+    servletRequest.setAttribute(ATTR_BODY_TRANSFER, transfer);
+    return transfer;
+  }
+
+  /** Admits the request, or else suspends it in the admission queue, to be dispatched to
+   * {@link #service} again once it's admitted; returns whether it's admitted now. The rate limit and
+   * local ETags are checked first, so as not to queue requests answered without the target. */
+  private boolean admitOrSuspend(HttpServletRequest servletRequest, HttpServletResponse servletResponse,
+                                 RequestTiming timing) {
+    String proxyRequestUri = rewriteUrlFromRequest(servletRequest);
+    if (respondLocally(servletRequest, servletResponse, proxyRequestUri, timing)) {
+      endRequest(servletRequest, proxyRequestUri, null, timing, null, null);
+      return false;
+    }
+    AtomicBoolean admission = new AtomicBoolean(true);
+    if (admissionQueue.tryAcquire()) {
+      servletRequest.setAttribute(ATTR_ADMISSION, admission);
+      return true;
+    }
+    AsyncContext async = servletRequest.startAsync();
+    async.setTimeout(0);//the queue times it out
+    SuspendedRequest suspended = new SuspendedRequest(async, proxyRequestUri, timing, admission);
+    async.addListener(suspended);
+    switch (admissionQueue.acquire(getAdmissionPriority(servletRequest), suspended)) {
+      case AdmissionQueue.ADMITTED://since tryAcquire
+        suspended.admitted();
+        break;
+      case AdmissionQueue.SHED:
+        suspended.shed();
+        break;
+      default://QUEUED; the queue calls it back
+    }
+    return false;
+  }
+
+  private void releaseAdmission(AtomicBoolean admission) {
+    if (admission.compareAndSet(true, false))
+      admissionQueue.release();
+  }
+
+  /** A request suspended in the admission queue, which resumes it on a container thread once it's
+   * admitted, and sheds it with a 503. */
+  private class SuspendedRequest implements AdmissionQueue.Callback, AsyncListener {
+    private final AsyncContext async;
+    private final String proxyRequestUri;
+    private final RequestTiming timing;
+    private final AtomicBoolean admission;
+
+    SuspendedRequest(AsyncContext async, String proxyRequestUri, RequestTiming timing, AtomicBoolean admission) {
+      this.async = async;
+      this.proxyRequestUri = proxyRequestUri;
+      this.timing = timing;
+      this.admission = admission;
+    }
+
+    public void admitted() {
+      async.getRequest().setAttribute(ATTR_ADMISSION, admission);
+      try {
+        async.dispatch();
+      } catch (IllegalStateException e) {//it's already over, e.g. the client has gone
+        releaseAdmission(admission);
+      }
+    }
+
+    public void shed() {
+      HttpServletRequest servletRequest = (HttpServletRequest) async.getRequest();
+      try {
+        sendRejection(servletRequest, (HttpServletResponse) async.getResponse(),
+            HttpServletResponse.SC_SERVICE_UNAVAILABLE, retryAfter, timing);
+        endRequest(servletRequest, proxyRequestUri, null, timing, null, null);
+        async.complete();
+      } catch (IllegalStateException e) {//it's already over
+      }
+    }
+
+    public void onComplete(AsyncEvent event) {
+    }
+
+    public void onTimeout(AsyncEvent event) {
+      onError(event);
+    }
+
+    public void onError(AsyncEvent event) {
+      if (admissionQueue.cancel(this))//still waiting, but the client has gone
+        async.complete();
+    }
+
+    public void onStartAsync(AsyncEvent event) {
+    }
+  }
+
+  protected BodyTransfer getBodyTransfer(HttpServletRequest servletRequest) {
+    return (BodyTransfer) servletRequest.getAttribute(ATTR_BODY_TRANSFER);
+  }
+
+  /** Starts timing the request if the metrics, the access log or Server-Timing need it; else null. */
+  protected RequestTiming startTiming(HttpServletRequest servletRequest) {
+    if (!doTiming)
+      return null;
+    RequestTiming timing = new RequestTiming();
+    servletRequest.setAttribute(ATTR_REQUEST_TIMING, timing);
+    return timing;
+  }
+
+  /** Proxies the request to the target, and its response to the client: past the rate limit,
+   * admission, bulkhead and concurrency limit, within its deadline, and timed with {@code timing}
+   * (from {@link #startTiming}) for the metrics and access log. The request attributes
+   * {@link #service} initializes must be set. */
+  protected void proxy(final HttpServletRequest servletRequest, HttpServletResponse servletResponse,
+                       final RequestTiming timing) throws ServletException, IOException {
     // Make the Request
     //note: we won't transfer the protocol version because I'm not sure it would truly be compatible
     String method = servletRequest.getMethod();
-    String proxyRequestUri = rewriteUrlFromRequest(servletRequest);
-    HttpRequest proxyRequest;
-    //spec: RFC 2616, sec 4.3: either of these two headers signal that there is a message body.
-    if (servletRequest.getHeader(HttpHeaders.CONTENT_LENGTH) != null ||
-        servletRequest.getHeader(HttpHeaders.TRANSFER_ENCODING) != null) {
-      HttpEntityEnclosingRequest eProxyRequest = new BasicHttpEntityEnclosingRequest(method, proxyRequestUri);
+    final String proxyRequestUri = rewriteUrlFromRequest(servletRequest);
+    boolean mirror = trafficMirror != null && trafficMirror.sample();
+    TrafficMirror.Tee mirrorBody = null;
+    final TrafficCapture.Exchange capture = trafficCapture != null && trafficCapture.sample()
+        ? captureRequest(servletRequest) : null;
+    final ProxyRequest proxyRequest;
+    if (hasRequestBody(servletRequest)) {
+      ProxyRequest.EntityEnclosing eProxyRequest = new ProxyRequest.EntityEnclosing(method, proxyRequestUri);
       // Add the input entity (streamed)
       //  note: we don't bother ensuring we close the servletInputStream since the container handles it
-      eProxyRequest.setEntity(new InputStreamEntity(servletRequest.getInputStream(), servletRequest.getContentLength()));
+      BodyTransfer transfer = getBodyTransfer(servletRequest);
+      InputStream servletInputStream = transfer != null ? transfer.getRequestBody() : servletRequest.getInputStream();
+      if (timing != null)
+        servletInputStream = timing.countRequestBytes(servletInputStream);
+      if (mirror) {
+        mirrorBody = trafficMirror.tee(servletInputStream, servletRequest.getContentLength());
+        mirror = mirrorBody != null;
+        if (mirror)
+          servletInputStream = mirrorBody;
+      }
+      if (capture != null)
+        servletInputStream = trafficCapture.teeRequestBody(capture, servletInputStream, servletRequest.getContentLength());
+      eProxyRequest.setEntity(new InputStreamEntity(servletInputStream, servletRequest.getContentLength()));
       proxyRequest = eProxyRequest;
     } else
-      proxyRequest = new BasicHttpRequest(method, proxyRequestUri);
+      proxyRequest = new ProxyRequest(method, proxyRequestUri);
 
     copyRequestHeaders(servletRequest, proxyRequest);
     
     setXForwardedForHeader(servletRequest, proxyRequest);
 
+    Deadline deadline = null;
+    if (deadlineWatchdog != null) {
+      long timeout = getRequestTimeout(servletRequest);
+      if (timeout >= 0)
+        deadline = new Deadline(timing != null ? timing.getStartNanos() : System.nanoTime(), timeout);
+    }
+
     HttpResponse proxyResponse = null;
+    AtomicBoolean admission = (AtomicBoolean) servletRequest.getAttribute(ATTR_ADMISSION);
+    Bulkhead.Compartment compartment = null;
+    ConcurrencyLimiter.Limit limit = null;
+    long executeStart = 0;//for the limit; 0 once sampled
     try {
+      if (admission == null) {//else service() admitted it, past these
+        if (respondLocally(servletRequest, servletResponse, proxyRequestUri, timing))
+          return;
+        if (admissionQueue != null) {//it can't be suspended, so it waits on this thread
+          if (!admissionQueue.acquire(getAdmissionPriority(servletRequest))) {
+            sendRejection(servletRequest, servletResponse, HttpServletResponse.SC_SERVICE_UNAVAILABLE, retryAfter, timing);
+            return;
+          }
+          admission = new AtomicBoolean(true);
+        }
+      }
+      if (bulkhead != null) {
+        Bulkhead.Compartment routeCompartment = bulkhead.getCompartment(getTargetRoute(servletRequest));
+        if (!routeCompartment.acquire()) {
+          sendRejection(servletRequest, servletResponse, HttpServletResponse.SC_SERVICE_UNAVAILABLE, retryAfter, timing);
+          return;
+        }
+        compartment = routeCompartment;
+      }
+      if (concurrencyLimiter != null) {
+        ConcurrencyLimiter.Limit routeLimit = concurrencyLimiter.getLimit(getTargetRoute(servletRequest));
+        if (!routeLimit.acquire()) {
+          sendRejection(servletRequest, servletResponse, HttpServletResponse.SC_SERVICE_UNAVAILABLE, retryAfter, timing);
+          return;
+        }
+        limit = routeLimit;
+        executeStart = System.nanoTime();
+      }
+
       // Execute the request
-      if (doLog) {
+      if (doLog && accessLog == null) {
         log("proxy " + method + " uri: " + servletRequest.getRequestURI() + " -- " + proxyRequest.getRequestLine().getUri());
       }
-      proxyResponse = proxyClient.execute(getTargetHost(servletRequest), proxyRequest);
+      HttpContext context = null;
+      if (timing != null) {
+        context = new BasicHttpContext();
+        context.setAttribute(RequestTiming.CONTEXT_ATTRIBUTE, timing);
+      }
+      if (deadline != null) {
+        long remaining = deadline.getRemainingMillis();
+        if (remaining <= 0) {//e.g. waiting for the limits above
+          sendGatewayTimeout(servletResponse, timing);
+          return;
+        }
+        if (context == null)
+          context = new BasicHttpContext();
+        context.setAttribute(HttpClientContext.REQUEST_CONFIG, getRequestConfig(remaining));
+        if (doPropagateDeadline)
+          setDeadlineHeaders(servletRequest, proxyRequest, remaining);
+        deadlineWatchdog.watch(deadline, proxyRequest);
+      }
+      if (doStatelessClient && context == null)
+        context = new BasicHttpContext();//of this request only, with no parent
+      if (sharedClient != null) {//its default config may be another servlet's
+        if (context == null)
+          context = new BasicHttpContext();
+        if (context.getAttribute(HttpClientContext.REQUEST_CONFIG) == null)
+          context.setAttribute(HttpClientContext.REQUEST_CONFIG, requestConfig);
+      }
+      if (capture != null)
+        trafficCapture.sending(capture);
+      if (context != null) {
+        if (timing != null)
+          timing.markExecuteStart();
+        proxyResponse = proxyClient.execute(getTargetHost(servletRequest), proxyRequest, context);
+      } else {
+        proxyResponse = proxyClient.execute(getTargetHost(servletRequest), proxyRequest);
+      }
+      if (mirror)//the request is sent, body and all
+        mirrorRequest(servletRequest, proxyRequestUri, proxyRequest, mirrorBody);
+      if (capture != null)
+        trafficCapture.response(capture, proxyResponse);
 
       // Process the response
       int statusCode = proxyResponse.getStatusLine().getStatusCode();
+      if (timing != null)
+        timing.markResponseHeaders(statusCode);//in case a custom HttpClient didn't
+      if (limit != null) {
+        limit.onSample(System.nanoTime() - executeStart, statusCode == HttpServletResponse.SC_SERVICE_UNAVAILABLE
+            || statusCode == HttpServletResponse.SC_GATEWAY_TIMEOUT);
+        executeStart = 0;
+      }
+      if (doServerTiming)
+        addServerTimingHeader(proxyResponse, servletResponse, timing);
 
       if (doResponseRedirectOrNotModifiedLogic(servletRequest, servletResponse, proxyResponse, statusCode)) {
         //the response is already "committed" now without any body to send
@@ -334,16 +1527,23 @@ public class ProxyServlet extends HttpServlet {
       //noinspection deprecation
       servletResponse.setStatus(statusCode, proxyResponse.getStatusLine().getReasonPhrase());
 
-      copyResponseHeaders(proxyResponse, servletResponse);
+      copyResponseHeaders(proxyResponse, servletRequest, servletResponse);
 
       // Send the content to the client
-      copyResponseEntity(proxyResponse, servletResponse);
+      copyResponseEntity(proxyResponse, servletRequest, servletResponse);
 
     } catch (Exception e) {
+      if (timing != null)
+        timing.setFailure(e);
+      if (limit != null && executeStart != 0)//no response
+        limit.onSample(System.nanoTime() - executeStart, true);
       //abort request, according to best practice with HttpClient
-      if (proxyRequest instanceof AbortableHttpRequest) {
-        AbortableHttpRequest abortableHttpRequest = (AbortableHttpRequest) proxyRequest;
-        abortableHttpRequest.abort();
+      proxyRequest.abort();
+      if (deadline != null && deadline.isExpired() && !servletResponse.isCommitted()) {
+        //the target didn't respond in time; that's not the proxy's error
+        servletResponse.reset();
+        sendGatewayTimeout(servletResponse, timing);
+        return;
       }
       if (e instanceof RuntimeException)
         throw (RuntimeException)e;
@@ -355,14 +1555,448 @@ public class ProxyServlet extends HttpServlet {
       throw new RuntimeException(e);
 
     } finally {
-      // make sure the entire entity was consumed, so the connection is released
-      if (proxyResponse != null)
-        consumeQuietly(proxyResponse.getEntity());
+      //these protect the proxy's threads and the target's time to respond, not the body transfer
+      if (limit != null)
+        limit.release();
+      if (compartment != null)
+        compartment.release();
+      if (admission != null)
+        releaseAdmission(admission);
+      final BodyTransfer transfer = getBodyTransfer(servletRequest);
+      if (transfer != null && transfer.isResponding()) {
+        //the response body is still on its way to the client; end the request once it's sent, on
+        // whichever thread that is (the transfer hands the timing over; see RequestTiming)
+        final Deadline transferDeadline = deadline;
+        final HttpResponse transferResponse = proxyResponse;
+        transfer.setOnComplete(new Runnable() {
+          public void run() {
+            Throwable failure = transfer.getFailure();
+            if (failure != null) {
+              if (timing != null)
+                timing.setFailure(failure instanceof Exception ? (Exception) failure : new IOException(failure.toString()));
+              proxyRequest.abort();
+            }
+            endRequest(servletRequest, proxyRequestUri, transferDeadline, timing, transferResponse, capture);
+          }
+        });
+      } else {
+        endRequest(servletRequest, proxyRequestUri, deadline, timing, proxyResponse, capture);
+      }
       //Note: Don't need to close servlet outputStream:
       // http://stackoverflow.com/questions/1159168/should-one-call-close-on-httpservletresponse-getoutputstream-getwriter
     }
   }
 
+  /** Answers the request without the target if it may, returning whether it did: with 429 if the
+   * client is past the rate limit, or 304 if the target's ETag is known locally to match. */
+  private boolean respondLocally(HttpServletRequest servletRequest, HttpServletResponse servletResponse,
+                                 String proxyRequestUri, RequestTiming timing) {
+    if (rateLimiter != null) {
+      long waitNanos = rateLimiter.acquire(getRateLimitKey(servletRequest));
+      if (waitNanos > 0) {
+        sendRejection(servletRequest, servletResponse, SC_TOO_MANY_REQUESTS,
+            (int) ((waitNanos + 999999999L) / 1000000000L), timing);
+        return true;
+      }
+    }
+    if (doLocalETags && servletRequest.getMethod().equals("GET") && servletRequest.getHeader(HttpHeaders.AUTHORIZATION) == null
+        && servletRequest.getHeader("Cookie") == null) {//only the target may answer those
+      String etag = etagTable.getCurrent(proxyRequestUri);
+      if (etag != null && ETagTable.matches(servletRequest.getHeader(HttpHeaders.IF_NONE_MATCH), etag)) {
+        etagTable.countLocalNotModified();
+        if (timing != null)
+          timing.markResponseHeaders(HttpServletResponse.SC_NOT_MODIFIED);
+        servletResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        servletResponse.setHeader(HttpHeaders.ETAG, etag);
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Ends a request once its response is sent: it's timed, logged and captured, and the connection
+   * to the target is released. */
+  private void endRequest(HttpServletRequest servletRequest, String proxyRequestUri, Deadline deadline,
+                          RequestTiming timing, HttpResponse proxyResponse, TrafficCapture.Exchange capture) {
+    if (deadline != null)
+      deadline.done();
+    if (timing != null) {
+      timing.markEnd();
+      if (metrics != null)
+        metrics.record(getTargetRoute(servletRequest), timing);
+      if (accessLog != null)
+        logAccess(servletRequest, proxyRequestUri, timing);
+    }
+    if (capture != null && capture.isSent())//rejections and local 304s aren't worth replaying
+      trafficCapture.capture(capture);
+    // make sure the entire entity was consumed, so the connection is released
+    if (proxyResponse != null)
+      consumeQuietly(proxyResponse.getEntity());
+  }
+
+  /** Starts capturing a request for {@link #P_CAPTURE_FILE}: its method, its path and query
+   * relative to this servlet, and its headers as the client sent them. */
+  protected TrafficCapture.Exchange captureRequest(HttpServletRequest servletRequest) {
+    String pathInfo = servletRequest.getPathInfo();
+    String queryString = servletRequest.getQueryString();
+    String uri = (pathInfo != null ? pathInfo : "") + (queryString != null && queryString.length() > 0 ? "?" + queryString : "");
+    TrafficCapture.Exchange capture = trafficCapture.begin(servletRequest.getMethod(), uri);
+    Enumeration<String> headerNames = servletRequest.getHeaderNames();
+    while (headerNames.hasMoreElements()) {
+      String headerName = headerNames.nextElement();
+      Enumeration<String> headers = servletRequest.getHeaders(headerName);
+      while (headers.hasMoreElements())
+        trafficCapture.addRequestHeader(capture, headerName, headers.nextElement());
+    }
+    return capture;
+  }
+
+  /** Queues a copy of a request that was sent to the target for {@link #P_MIRROR_URI}, at the same
+   * path relative to it. */
+  protected void mirrorRequest(HttpServletRequest servletRequest, String proxyRequestUri, HttpRequest proxyRequest,
+                               TrafficMirror.Tee body) {
+    String targetUri = getTargetUri(servletRequest);
+    if (!proxyRequestUri.startsWith(targetUri))
+      return;//rewritten by a subclass to somewhere else
+    trafficMirror.mirror(proxyRequest.getRequestLine().getMethod(), proxyRequestUri.substring(targetUri.length()),
+        proxyRequest.getAllHeaders(), body);
+  }
+
+  /** spec: RFC 2616, sec 4.3: either of these two headers signal that there is a message body. */
+  private static boolean hasRequestBody(HttpServletRequest servletRequest) {
+    return servletRequest.getHeader(HttpHeaders.CONTENT_LENGTH) != null ||
+        servletRequest.getHeader(HttpHeaders.TRANSFER_ENCODING) != null;
+  }
+
+  /** Whether the client asks to upgrade the connection: an Upgrade header, "upgrade" among the
+   * Connection header's tokens, and no body. */
+  protected boolean isUpgradeRequest(HttpServletRequest servletRequest) {
+    if (servletRequest.getHeader(HttpHeaders.UPGRADE) == null
+        || servletRequest.getHeader(HttpHeaders.TRANSFER_ENCODING) != null)
+      return false;
+    String contentLength = servletRequest.getHeader(HttpHeaders.CONTENT_LENGTH);
+    if (contentLength != null && !contentLength.trim().equals("0"))
+      return false;
+    Enumeration<String> connectionHeaders = servletRequest.getHeaders(HttpHeaders.CONNECTION);
+    while (connectionHeaders.hasMoreElements()) {
+      for (String token : connectionHeaders.nextElement().split(",")) {
+        if (token.trim().equalsIgnoreCase("upgrade"))
+          return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Proxies a request to upgrade the connection (see {@link #isUpgradeRequest}) on a new
+   * connection to the target, since a pooled one can't be handed over. If the target agrees
+   * (101), the client's connection is tunneled to it with an {@link UpgradeTunnel}; otherwise the
+   * target's response is relayed like any other. The rate limit, admission and bulkhead apply to
+   * the handshake, and {@link #P_TUNNEL_MAX_OPEN} to the tunnel; the handshake is what's timed.
+   */
+  @SuppressWarnings("deprecation")//setStatus with the reason phrase
+  protected void serviceUpgrade(HttpServletRequest servletRequest, HttpServletResponse servletResponse)
+      throws ServletException, IOException {
+    RequestTiming timing = getRequestTiming(servletRequest);
+    String method = servletRequest.getMethod();
+    String proxyRequestUri = rewriteUrlFromRequest(servletRequest);
+    boolean admitted = false;
+    Bulkhead.Compartment compartment = null;
+    boolean reserved = false;//a place among the open tunnels, the tunnel's once connected
+    Socket socket = null;
+    try {
+      if (rateLimiter != null) {
+        long waitNanos = rateLimiter.acquire(getRateLimitKey(servletRequest));
+        if (waitNanos > 0) {
+          sendRejection(servletRequest, servletResponse, SC_TOO_MANY_REQUESTS,
+              (int) ((waitNanos + 999999999L) / 1000000000L), timing);
+          return;
+        }
+      }
+      if (admissionQueue != null) {
+        if (!admissionQueue.acquire(getAdmissionPriority(servletRequest))) {
+          sendRejection(servletRequest, servletResponse, HttpServletResponse.SC_SERVICE_UNAVAILABLE, retryAfter, timing);
+          return;
+        }
+        admitted = true;
+      }
+      if (bulkhead != null) {
+        Bulkhead.Compartment routeCompartment = bulkhead.getCompartment(getTargetRoute(servletRequest));
+        if (!routeCompartment.acquire()) {
+          sendRejection(servletRequest, servletResponse, HttpServletResponse.SC_SERVICE_UNAVAILABLE, retryAfter, timing);
+          return;
+        }
+        compartment = routeCompartment;
+      }
+      if (!tunnelStats.reserve(tunnelMaxOpen)) {
+        sendRejection(servletRequest, servletResponse, HttpServletResponse.SC_SERVICE_UNAVAILABLE, retryAfter, timing);
+        return;
+      }
+      reserved = true;
+
+      //HttpClient would send the path only, so we do too
+      String requestTarget = "/";
+      int authorityStart = proxyRequestUri.indexOf("://");
+      int pathStart = proxyRequestUri.indexOf('/', authorityStart < 0 ? 0 : authorityStart + 3);
+      if (pathStart >= 0)
+        requestTarget = proxyRequestUri.substring(pathStart);
+      HttpRequest proxyRequest = new ProxyRequest(method, requestTarget);
+      copyRequestHeaders(servletRequest, proxyRequest);
+      setXForwardedForHeader(servletRequest, proxyRequest);
+      //the hop-by-hop headers copyRequestHeaders skips, asking the target to upgrade too
+      proxyRequest.setHeader(HttpHeaders.CONNECTION, "Upgrade");
+      Enumeration<String> upgradeHeaders = servletRequest.getHeaders(HttpHeaders.UPGRADE);
+      while (upgradeHeaders.hasMoreElements())
+        proxyRequest.addHeader(HttpHeaders.UPGRADE, upgradeHeaders.nextElement());
+      if (doLog && accessLog == null) {
+        log("proxy upgrade " + method + " uri: " + servletRequest.getRequestURI() + " -- " + proxyRequestUri);
+      }
+
+      socket = connectUpstream(getTargetHost(servletRequest));
+      SessionOutputBufferImpl outBuffer = new SessionOutputBufferImpl(new HttpTransportMetricsImpl(), 2048);
+      outBuffer.bind(socket.getOutputStream());
+      new DefaultHttpRequestWriter(outBuffer).write(proxyRequest);
+      outBuffer.flush();
+      SessionInputBufferImpl inBuffer = new SessionInputBufferImpl(new HttpTransportMetricsImpl(), 8192);
+      inBuffer.bind(socket.getInputStream());
+      HttpResponse proxyResponse = new DefaultHttpResponseParser(inBuffer).parse();
+      int statusCode = proxyResponse.getStatusLine().getStatusCode();
+      if (timing != null)
+        timing.markResponseHeaders(statusCode);
+
+      if (statusCode != HttpServletResponse.SC_SWITCHING_PROTOCOLS) {
+        if (statusCode >= HttpServletResponse.SC_OK && statusCode != HttpServletResponse.SC_NO_CONTENT
+            && statusCode != HttpServletResponse.SC_NOT_MODIFIED)
+          proxyResponse.setEntity(receiveEntity(proxyResponse, inBuffer));
+        if (doResponseRedirectOrNotModifiedLogic(servletRequest, servletResponse, proxyResponse, statusCode))
+          return;
+        servletResponse.setStatus(statusCode, proxyResponse.getStatusLine().getReasonPhrase());
+        copyResponseHeaders(proxyResponse, servletRequest, servletResponse);
+        copyResponseEntity(proxyResponse, servletRequest, servletResponse);
+        return;
+      }
+
+      servletResponse.setStatus(HttpServletResponse.SC_SWITCHING_PROTOCOLS);
+      copyResponseHeaders(proxyResponse, servletRequest, servletResponse);
+      for (Header header : proxyResponse.getHeaders(HttpHeaders.UPGRADE))
+        servletResponse.addHeader(HttpHeaders.UPGRADE, header.getValue());
+      servletResponse.setHeader(HttpHeaders.CONNECTION, "Upgrade");
+      //the target may already have sent more than its response
+      InputStream upstreamIn = socket.getInputStream();
+      if (inBuffer.length() > 0) {
+        byte[] early = new byte[inBuffer.length()];
+        inBuffer.read(early, 0, early.length);
+        upstreamIn = new SequenceInputStream(new ByteArrayInputStream(early), upstreamIn);
+      }
+      UpgradeTunnel tunnel = servletRequest.upgrade(UpgradeTunnel.class);
+      tunnel.connect(socket, upstreamIn, tunnelBuffers, tunnelExecutor, tunnelIdleTimeout, tunnelStats);
+      socket = null;//the tunnel's now, as is its place
+      reserved = false;
+    } catch (HttpException e) {
+      if (timing != null)
+        timing.setFailure(e);
+      throw new ServletException("Bad upgrade response from " + getTargetHost(servletRequest), e);
+    } catch (IOException e) {
+      if (timing != null)
+        timing.setFailure(e);
+      throw e;
+    } catch (RuntimeException e) {
+      if (timing != null)
+        timing.setFailure(e);
+      throw e;
+    } finally {
+      if (socket != null)
+        closeQuietly(socket);
+      if (reserved)
+        tunnelStats.unreserve();
+      if (compartment != null)
+        compartment.release();
+      if (admitted)
+        admissionQueue.release();
+      endRequest(servletRequest, proxyRequestUri, null, timing, null, null);
+    }
+  }
+
+  /** Opens a connection of its own to {@code host}, with the client's connect and socket
+   * timeouts. */
+  private Socket connectUpstream(HttpHost host) throws IOException {
+    boolean https = "https".equalsIgnoreCase(host.getSchemeName());
+    ConnectionSocketFactory socketFactory = https ? getSslSocketFactory()
+        : UnixSocketFactory.SCHEME.equals(host.getSchemeName()) ? UnixSocketFactory.INSTANCE
+        : PlainConnectionSocketFactory.getSocketFactory();
+    int port = UnixSocketFactory.SCHEME_PORT_RESOLVER.resolve(host);
+    HttpContext context = new BasicHttpContext();
+    Socket socket = socketFactory.connectSocket(Math.max(0, requestConfig.getConnectTimeout()),
+        socketFactory.createSocket(context), host,
+        new InetSocketAddress(UnixSocketFactory.DNS_RESOLVER.resolve(host.getHostName())[0], port), null, context);
+    socket.setSoTimeout(Math.max(0, requestConfig.getSocketTimeout()));
+    return socket;
+  }
+
+  /** The body of a response read off a connection of our own, delimited as its headers say. */
+  private static HttpEntity receiveEntity(HttpResponse response, SessionInputBufferImpl inBuffer)
+      throws HttpException {
+    long length = LaxContentLengthStrategy.INSTANCE.determineLength(response);
+    BasicHttpEntity entity = new BasicHttpEntity();
+    if (length == ContentLengthStrategy.CHUNKED) {
+      entity.setChunked(true);
+      entity.setContent(new ChunkedInputStream(inBuffer));
+    } else if (length == ContentLengthStrategy.IDENTITY) {
+      entity.setContent(new IdentityInputStream(inBuffer));
+    } else {
+      entity.setContentLength(length);
+      entity.setContent(new ContentLengthInputStream(inBuffer, length));
+    }
+    entity.setContentType(response.getFirstHeader(HttpHeaders.CONTENT_TYPE));
+    entity.setContentEncoding(response.getFirstHeader(HttpHeaders.CONTENT_ENCODING));
+    return entity;
+  }
+
+  protected static final int SC_TOO_MANY_REQUESTS = 429;//not in Servlet 2.4
+
+  /** Responds with {@code statusCode} and a Retry-After header instead of proxying the request,
+   * because the client is sending too much, or the target or the proxy is overloaded. */
+  protected void sendRejection(HttpServletRequest servletRequest, HttpServletResponse servletResponse,
+                               int statusCode, int retryAfterSeconds, RequestTiming timing) {
+    if (doLog && accessLog == null) {
+      log("proxy rejected " + servletRequest.getMethod() + " uri: " + servletRequest.getRequestURI()
+          + " with " + statusCode);
+    }
+    if (timing != null)
+      timing.markResponseHeaders(statusCode);
+    servletResponse.setStatus(statusCode);
+    servletResponse.setHeader(HttpHeaders.RETRY_AFTER, Integer.toString(retryAfterSeconds));
+    servletResponse.setContentLength(0);
+  }
+
+  /** Responds with 504, because the request's deadline passed before the target responded. */
+  protected void sendGatewayTimeout(HttpServletResponse servletResponse, RequestTiming timing) {
+    if (timing != null)
+      timing.markResponseHeaders(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+    servletResponse.setStatus(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+    servletResponse.setContentLength(0);
+  }
+
+  /** The time budget of the request in milliseconds, or -1 for none: {@link #P_REQUEST_TIMEOUT},
+   * lowered by the caller's {@value #X_REQUEST_DEADLINE} or {@value #GRPC_TIMEOUT} header if
+   * {@link #P_PROPAGATE_DEADLINE}. */
+  protected long getRequestTimeout(HttpServletRequest servletRequest) {
+    long timeout = requestTimeout > 0 ? requestTimeout : -1;
+    if (doPropagateDeadline) {
+      String deadlineStr = servletRequest.getHeader(X_REQUEST_DEADLINE);
+      if (deadlineStr != null) {
+        try {
+          timeout = lowerTimeout(timeout, Long.parseLong(deadlineStr.trim()) - System.currentTimeMillis());
+        } catch (NumberFormatException e) {
+          //ignore it
+        }
+      }
+      String grpcTimeoutStr = servletRequest.getHeader(GRPC_TIMEOUT);
+      if (grpcTimeoutStr != null) {
+        long grpcTimeout = Deadline.parseGrpcTimeout(grpcTimeoutStr.trim());
+        if (grpcTimeout >= 0)
+          timeout = lowerTimeout(timeout, grpcTimeout);
+      }
+    }
+    return timeout;
+  }
+
+  private static long lowerTimeout(long timeout, long newTimeout) {
+    newTimeout = Math.max(newTimeout, 0);
+    return timeout < 0 ? newTimeout : Math.min(timeout, newTimeout);
+  }
+
+  /** The servlet's request config, with the lease, connect and socket timeouts cut to
+   * {@code remainingMillis}. */
+  protected RequestConfig getRequestConfig(long remainingMillis) {
+    int remaining = (int) Math.min(Integer.MAX_VALUE, remainingMillis);
+    return RequestConfig.copy(requestConfig)
+        .setConnectionRequestTimeout(capTimeout(requestConfig.getConnectionRequestTimeout(), remaining))
+        .setConnectTimeout(capTimeout(requestConfig.getConnectTimeout(), remaining))
+        .setSocketTimeout(capTimeout(requestConfig.getSocketTimeout(), remaining))
+        .build();
+  }
+
+  private static int capTimeout(int timeout, int max) {
+    return timeout > 0 && timeout < max ? timeout : max;//0 or less is infinite
+  }
+
+  /** Tells the target how long it has, via {@value #X_REQUEST_DEADLINE}, and {@value #GRPC_TIMEOUT}
+   * if the caller used that. */
+  protected void setDeadlineHeaders(HttpServletRequest servletRequest, HttpRequest proxyRequest,
+                                    long remainingMillis) {
+    proxyRequest.setHeader(X_REQUEST_DEADLINE, Long.toString(System.currentTimeMillis() + remainingMillis));
+    if (servletRequest.getHeader(GRPC_TIMEOUT) != null)
+      proxyRequest.setHeader(GRPC_TIMEOUT, Deadline.formatGrpcTimeout(remainingMillis));
+  }
+
+  /** Writes the request to the {@link #accessLog}. Errors and 5xx responses bypass sampling. */
+  protected void logAccess(HttpServletRequest servletRequest, String proxyRequestUri, RequestTiming timing) {
+    Exception failure = timing.getFailure();
+    AccessLog.Record record = accessLog.claim(failure != null || timing.getStatusCode() >= 500);
+    if (record == null)
+      return;
+    try {
+      record.timeMillis = System.currentTimeMillis();
+      record.method = servletRequest.getMethod();
+      record.uri = servletRequest.getRequestURI();
+      record.target = proxyRequestUri;
+      record.upstream = getTargetRoute(servletRequest);
+      record.client = servletRequest.getRemoteAddr();
+      record.status = timing.getStatusCode();
+      record.requestBytes = timing.getRequestBytes();
+      record.responseBytes = timing.getResponseBytes();
+      record.totalMicros = timing.getTotalMicros();
+      record.leaseMicros = timing.getLeaseMicros();
+      record.connectMicros = timing.getConnectMicros();
+      record.sendMicros = timing.getSendMicros();
+      record.waitMicros = timing.getWaitMicros();
+      record.bodyMicros = timing.getBodyMicros();
+      if (failure != null)
+        record.error = failure.getClass().getName();
+    } catch (RuntimeException e) {
+      accessLog.abandon(record);//or the writer would wait for it forever
+      throw e;
+    }
+    accessLog.publish(record);
+  }
+
+  protected static final String SERVER_TIMING = "Server-Timing";
+
+  /** Sets the Server-Timing header to the target's, if any, followed by the proxy's phases so far
+   * as "proxy-lease", "proxy-connect", "proxy-send", "proxy-ttfb" and "proxy-overhead". The body
+   * transfer hasn't happened yet; it's in the {@link RequestTiming} afterwards. */
+  protected void addServerTimingHeader(HttpResponse proxyResponse, HttpServletResponse servletResponse,
+                                       RequestTiming timing) {
+    StringBuilder buf = new StringBuilder(200);
+    for (Header header : proxyResponse.getHeaders(SERVER_TIMING)) {
+      if (buf.length() > 0)
+        buf.append(", ");
+      buf.append(header.getValue());
+    }
+    appendServerTiming(buf, "proxy-lease", timing.getLeaseMicros());
+    appendServerTiming(buf, "proxy-connect", timing.getConnectMicros());
+    appendServerTiming(buf, "proxy-send", timing.getSendMicros());
+    appendServerTiming(buf, "proxy-ttfb", timing.getWaitMicros());
+    appendServerTiming(buf, "proxy-overhead", timing.getOverheadMicros());
+    servletResponse.setHeader(SERVER_TIMING, buf.toString());
+  }
+
+  private static void appendServerTiming(StringBuilder buf, String name, long micros) {
+    if (micros < 0)
+      return;
+    if (buf.length() > 0)
+      buf.append(", ");
+    //milliseconds with 3 decimals, without formatting overhead
+    buf.append(name).append(";dur=").append(micros / 1000).append('.');
+    long fraction = micros % 1000;
+    if (fraction < 100)
+      buf.append('0');
+    if (fraction < 10)
+      buf.append('0');
+    buf.append(fraction);
+  }
+
   protected boolean doResponseRedirectOrNotModifiedLogic(
           HttpServletRequest servletRequest, HttpServletResponse servletResponse,
           HttpResponse proxyResponse, int statusCode)
@@ -450,17 +2084,70 @@ public class ProxyServlet extends HttpServlet {
         // the correct virtual server
         if (headerName.equalsIgnoreCase(HttpHeaders.HOST)) {
           HttpHost host = getTargetHost(servletRequest);
-          headerValue = host.getHostName();
-          if (host.getPort() != -1)
-            headerValue += ":"+host.getPort();
+          if (UnixSocketFactory.SCHEME.equals(host.getSchemeName())) {
+            headerValue = UnixSocketFactory.HOST_NAME;//not the socket file
+          } else {
+            headerValue = host.getHostName();
+            if (host.getPort() != -1)
+              headerValue += ":"+host.getPort();
+          }
         }
         proxyRequest.addHeader(headerName, headerValue);
       }
     }
   }
 
-  private void setXForwardedForHeader(HttpServletRequest servletRequest,
-                                      HttpRequest proxyRequest) {
+  /** The request's {@link AdmissionQueue} priority: from the {@link #P_ADMISSION_PRIORITY_HEADER}
+   * header if configured and present, else the first of {@link #P_ADMISSION_PRIORITY_PATHS} that
+   * the path info starts with, else {@link AdmissionQueue#NORMAL}. */
+  protected int getAdmissionPriority(HttpServletRequest servletRequest) {
+    if (admissionPriorityHeader != null) {
+      String value = servletRequest.getHeader(admissionPriorityHeader);
+      if (value != null) {
+        try {
+          return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+          //ignore it
+        }
+      }
+    }
+    String pathInfo = servletRequest.getPathInfo();
+    if (pathInfo != null) {
+      for (int i = 0; i < admissionPriorityPaths.length; i++) {
+        if (pathInfo.startsWith(admissionPriorityPaths[i]))
+          return admissionPriorities[i];
+      }
+    }
+    return AdmissionQueue.NORMAL;
+  }
+
+  /** Identifies the client for {@link #P_RATE_LIMIT}: the {@link #P_RATE_LIMIT_HEADER} header if
+   * configured and present, else the client's IP address, from X-Forwarded-For if there are
+   * {@link #P_RATE_LIMIT_TRUSTED_HOPS}. */
+  protected String getRateLimitKey(HttpServletRequest servletRequest) {
+    if (rateLimitHeader != null) {
+      String value = servletRequest.getHeader(rateLimitHeader);
+      if (value != null)
+        return value;
+    }
+    String remoteAddr = servletRequest.getRemoteAddr();
+    if (rateLimitTrustedHops <= 0)
+      return remoteAddr;
+    String forwardedFor = servletRequest.getHeader("X-Forwarded-For");
+    if (forwardedFor == null)
+      return remoteAddr;
+    //the last trusted proxy is the connection's; each appended the address it got the request from
+    int end = forwardedFor.length();
+    for (int hop = 1; ; hop++) {
+      int comma = forwardedFor.lastIndexOf(',', end - 1);
+      if (hop == rateLimitTrustedHops || comma < 0)
+        return forwardedFor.substring(comma + 1, end).trim();
+      end = comma;
+    }
+  }
+
+  protected void setXForwardedForHeader(HttpServletRequest servletRequest,
+                                        HttpRequest proxyRequest) {
     String headerName = "X-Forwarded-For";
     if (doForwardIP) {
       String newHeader = servletRequest.getRemoteAddr();
@@ -472,7 +2159,50 @@ public class ProxyServlet extends HttpServlet {
     }
   }
 
-  /** Copy proxied response headers back to the servlet client. */
+  /** Copy proxied response headers back to the servlet client. Content-Location is rewritten like
+   * a redirect's Location, and Set-Cookie too if enabled; this is done to {@code proxyResponse}'s
+   * headers in place, before handing it to {@link #copyResponseHeaders(HttpResponse,
+   * HttpServletResponse)}, so that subclasses overriding that still get called. */
+  @SuppressWarnings("deprecation")
+  protected void copyResponseHeaders(HttpResponse proxyResponse, HttpServletRequest servletRequest,
+                                     HttpServletResponse servletResponse) {
+    boolean rewriteBody = isResponseBodyRewritable(proxyResponse);
+    Header[] headers = proxyResponse.getAllHeaders();
+    Header[] rewritten = null;//only once a header is dropped or changed
+    int count = 0;
+    for (int i = 0; i < headers.length; i++) {
+      Header header = headers[i];
+      String headerName = header.getName();
+      String value = header.getValue();
+      String newValue = value;
+      if (doServerTiming && headerName.equalsIgnoreCase(SERVER_TIMING)) {
+        newValue = null;//already merged
+      } else if (headerName.equalsIgnoreCase(HttpHeaders.CONTENT_LOCATION)) {
+        newValue = rewriteUrlFromResponse(servletRequest, value);
+      } else if (doRewriteCookies && headerName.equalsIgnoreCase(SET_COOKIE)) {
+        newValue = rewriteCookieFromResponse(servletRequest, value);
+      } else if (rewriteBody && headerName.equalsIgnoreCase(HttpHeaders.CONTENT_LENGTH)) {
+        newValue = null;//the length is going to change
+      }
+      if (rewritten == null) {
+        if (newValue != null && newValue.equals(value))
+          continue;
+        rewritten = new Header[headers.length];
+        System.arraycopy(headers, 0, rewritten, 0, i);
+        count = i;
+      }
+      if (newValue != null)
+        rewritten[count++] = newValue.equals(value) ? header : new BasicHeader(headerName, newValue);
+    }
+    if (rewritten != null)
+      proxyResponse.setHeaders(count == rewritten.length ? rewritten : Arrays.copyOf(rewritten, count));
+    copyResponseHeaders(proxyResponse, servletResponse);
+  }
+
+  /** Copy proxied response headers back to the servlet client.
+   * @deprecated override {@link #copyResponseHeaders(HttpResponse, HttpServletRequest,
+   * HttpServletResponse)}, which calls this with the headers already rewritten. */
+  @Deprecated
   protected void copyResponseHeaders(HttpResponse proxyResponse, HttpServletResponse servletResponse) {
     for (Header header : proxyResponse.getAllHeaders()) {
       if (hopByHopHeaders.containsHeader(header.getName()))
@@ -481,7 +2211,59 @@ public class ProxyServlet extends HttpServlet {
     }
   }
 
-  /** Copy response body data (the entity) from the proxy to the servlet client. */
+  /** Copy response body data (the entity) from the proxy to the servlet client. A body that isn't
+   * rewritten, given an ETag or sent asynchronously is passed to {@link
+   * #copyResponseEntity(HttpResponse, HttpServletResponse)}. */
+  @SuppressWarnings("deprecation")
+  protected void copyResponseEntity(HttpResponse proxyResponse, HttpServletRequest servletRequest,
+                                    HttpServletResponse servletResponse) throws IOException {
+    if (isETagCandidate(servletRequest, proxyResponse)
+        && sendWithETag(proxyResponse, servletRequest, servletResponse))
+      return;
+    HttpEntity entity = proxyResponse.getEntity();
+    if (entity != null) {
+      BodyTransfer transfer = null;
+      if (isNonBlockingResponse(servletRequest, entity)) {
+        transfer = getBodyTransfer(servletRequest);
+        if (transfer == null)
+          transfer = startBodyTransfer(servletRequest);
+      }
+      final RequestTiming timing = getRequestTiming(servletRequest);
+      if (transfer == null && !isResponseBodyRewritable(proxyResponse)) {
+        if (timing != null) {
+          proxyResponse.setEntity(new HttpEntityWrapper(entity) {
+            @Override
+            public void writeTo(OutputStream outstream) throws IOException {
+              super.writeTo(timing.countResponseBytes(outstream));
+            }
+          });
+        }
+        copyResponseEntity(proxyResponse, servletResponse);
+        return;
+      }
+      OutputStream servletOutputStream = transfer != null ? transfer.getResponseSink()
+          : servletResponse.getOutputStream();
+      if (timing != null)
+        servletOutputStream = timing.countResponseBytes(servletOutputStream);
+      if (isResponseBodyRewritable(proxyResponse)) {
+        UrlRewritingOutputStream rewritingStream = new UrlRewritingOutputStream(servletOutputStream,
+            getTargetUri(servletRequest), getServletBaseUrl(servletRequest));
+        if (transfer != null) {
+          transfer.sendResponseBody(entity.getContent(), rewritingStream);//finished when closed
+          return;
+        }
+        entity.writeTo(rewritingStream);
+        rewritingStream.finish();
+      } else {
+        transfer.sendResponseBody(entity.getContent(), servletOutputStream);
+      }
+    }
+  }
+
+  /** Copy response body data (the entity) from the proxy to the servlet client.
+   * @deprecated override {@link #copyResponseEntity(HttpResponse, HttpServletRequest,
+   * HttpServletResponse)}, which calls this for plain bodies. */
+  @Deprecated
   protected void copyResponseEntity(HttpResponse proxyResponse, HttpServletResponse servletResponse) throws IOException {
     HttpEntity entity = proxyResponse.getEntity();
     if (entity != null) {
@@ -490,6 +2272,163 @@ public class ProxyServlet extends HttpServlet {
     }
   }
 
+  /** Whether to make up an ETag for the response, with {@link #P_ETAGS}: a 200 to a GET, with a
+   * body but no ETag or Last-Modified of its own, that isn't no-store, private, rewritten, or
+   * varying by request headers (the table is keyed by URI only). */
+  protected boolean isETagCandidate(HttpServletRequest servletRequest, HttpResponse proxyResponse) {
+    if (etagTable == null || !servletRequest.getMethod().equals("GET")
+        || proxyResponse.getStatusLine().getStatusCode() != HttpServletResponse.SC_OK
+        || proxyResponse.getEntity() == null || proxyResponse.containsHeader(HttpHeaders.ETAG)
+        || proxyResponse.containsHeader(HttpHeaders.LAST_MODIFIED) || proxyResponse.containsHeader(HttpHeaders.VARY)
+        || isResponseBodyRewritable(proxyResponse))
+      return false;
+    for (Header cacheControl : proxyResponse.getHeaders(HttpHeaders.CACHE_CONTROL)) {
+      String value = cacheControl.getValue().toLowerCase(Locale.ENGLISH);
+      if (value.contains("no-store") || value.contains("private"))
+        return false;
+    }
+    return true;
+  }
+
+  /** Reads the response body, up to {@link #etagMaxBody} bytes, hashing it into an ETag that's
+   * sent with it, or without it as a 304 if the request's If-None-Match has it. Returns false,
+   * having sent nothing, if the body is bigger; the entity then replays what was read. */
+  private boolean sendWithETag(HttpResponse proxyResponse, HttpServletRequest servletRequest,
+                               HttpServletResponse servletResponse) throws IOException {
+    HttpEntity entity = proxyResponse.getEntity();
+    long length = entity.getContentLength();
+    if (length > etagMaxBody) {
+      etagTable.countTooLarge();
+      return false;
+    }
+    InputStream in = entity.getContent();
+    byte[] body = new byte[length >= 0 ? (int) length : Math.min(8192, etagMaxBody + 1)];
+    ETagTable.Hasher hasher = new ETagTable.Hasher();
+    int count = 0;
+    while (length < 0 || count < length) {
+      if (count == body.length) {
+        if (count > etagMaxBody)
+          break;
+        body = Arrays.copyOf(body, (int) Math.min(2L * count, etagMaxBody + 1L));
+      }
+      int read = in.read(body, count, body.length - count);
+      if (read < 0)
+        break;
+      hasher.update(body, count, read);
+      count += read;
+    }
+    if (count > etagMaxBody) {
+      etagTable.countTooLarge();
+      InputStreamEntity replay = new InputStreamEntity(
+          new SequenceInputStream(new ByteArrayInputStream(body, 0, count), in), length);
+      replay.setContentType(entity.getContentType());
+      replay.setContentEncoding(entity.getContentEncoding());
+      proxyResponse.setEntity(replay);
+      return false;
+    }
+    in.close();//releases the connection
+
+    String etag = hasher.toETag();
+    etagTable.put(rewriteUrlFromRequest(servletRequest), etag);
+    servletResponse.setHeader(HttpHeaders.ETAG, etag);
+    if (ETagTable.matches(servletRequest.getHeader(HttpHeaders.IF_NONE_MATCH), etag)) {
+      etagTable.countNotModified();
+      RequestTiming timing = getRequestTiming(servletRequest);
+      if (timing != null)
+        timing.markResponseHeaders(HttpServletResponse.SC_NOT_MODIFIED);
+      servletResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return true;
+    }
+    servletResponse.setContentLength(count);
+    OutputStream servletOutputStream = servletResponse.getOutputStream();
+    RequestTiming timing = getRequestTiming(servletRequest);
+    if (timing != null)
+      servletOutputStream = timing.countResponseBytes(servletOutputStream);
+    servletOutputStream.write(body, 0, count);
+    return true;
+  }
+
+  /** Whether the request may go async, e.g. to be suspended; not in a Servlet 2.x container. */
+  protected boolean isAsyncSupported(HttpServletRequest servletRequest) {
+    try {
+      return servletRequest.isAsyncSupported();
+    } catch (AbstractMethodError e) {//the container's request predates Servlet 3.0
+      return false;
+    }
+  }
+
+  /** Whether to send the response body with a {@link BodyTransfer}: with {@link #P_NON_BLOCKING_IO},
+   * unless it's known to fit in one buffer, which the container takes without blocking. */
+  protected boolean isNonBlockingResponse(HttpServletRequest servletRequest, HttpEntity entity) {
+    if (!doNonBlockingIO)
+      return false;
+    long length = entity.getContentLength();
+    if (length >= 0 && length <= bodyBuffers.getBufferSize())
+      return false;
+    return getBodyTransfer(servletRequest) != null || isAsyncSupported(servletRequest);
+  }
+
+  /** True if {@link #doRewriteBody} and the response is uncompressed HTML or CSS in an ASCII
+   * compatible charset. */
+  protected boolean isResponseBodyRewritable(HttpResponse proxyResponse) {
+    if (!doRewriteBody || proxyResponse.getEntity() == null)
+      return false;
+    Header contentEncoding = proxyResponse.getFirstHeader(HttpHeaders.CONTENT_ENCODING);
+    if (contentEncoding != null && !contentEncoding.getValue().trim().equalsIgnoreCase("identity"))
+      return false;
+    Header contentType = proxyResponse.getFirstHeader(HttpHeaders.CONTENT_TYPE);
+    if (contentType == null)
+      return false;
+    for (HeaderElement element : contentType.getElements()) {
+      String mimeType = element.getName().toLowerCase(Locale.ENGLISH);
+      if (!mimeType.equals("text/html") && !mimeType.equals("application/xhtml+xml")
+          && !mimeType.equals("text/css"))
+        return false;
+      NameValuePair charset = element.getParameterByName("charset");
+      return charset == null || charset.getValue() == null
+          || UrlRewritingOutputStream.isAsciiCompatible(charset.getValue());
+    }
+    return false;
+  }
+
+  protected static final String SET_COOKIE = "Set-Cookie";
+
+  /** Rewrites a Set-Cookie header value from the target so the client sends the cookie back to
+   * this servlet: a Domain of the target host is removed, and a Path under the target URI's path is
+   * moved to this servlet's path. */
+  protected String rewriteCookieFromResponse(HttpServletRequest servletRequest, String setCookie) {
+    String targetUri = getTargetUri(servletRequest);
+    int hostStart = targetUri.indexOf("://");
+    int pathStart = hostStart < 0 ? -1 : targetUri.indexOf('/', hostStart + 3);
+    String targetPath = pathStart < 0 ? "" : targetUri.substring(pathStart);
+    String targetHostName = getTargetHost(servletRequest).getHostName();
+    String proxyPath = servletRequest.getContextPath() + servletRequest.getServletPath();
+
+    StringBuilder buf = new StringBuilder(setCookie.length() + proxyPath.length());
+    for (String attribute : setCookie.split(";")) {
+      String trimmed = attribute.trim();
+      int eq = trimmed.indexOf('=');
+      String name = eq < 0 ? trimmed : trimmed.substring(0, eq).trim();
+      String value = eq < 0 ? "" : trimmed.substring(eq + 1).trim();
+      if (buf.length() > 0) {
+        if (name.equalsIgnoreCase("Domain")) {
+          String domain = value.startsWith(".") ? value.substring(1) : value;
+          if (targetHostName.equalsIgnoreCase(domain) || targetHostName.toLowerCase(Locale.ENGLISH)
+              .endsWith("." + domain.toLowerCase(Locale.ENGLISH)))
+            continue;//default to this host
+        } else if (name.equalsIgnoreCase("Path") && value.startsWith(targetPath)) {
+          String rest = value.substring(targetPath.length());
+          if (targetPath.length() == 0 || rest.length() == 0 || rest.startsWith("/")) {
+            trimmed = "Path=" + proxyPath + rest;
+          }
+        }
+        buf.append("; ");
+      }
+      buf.append(trimmed);
+    }
+    return buf.toString();
+  }
+
   /** Reads the request URI from {@code servletRequest} and rewrites it, considering targetUri.
    * It's used to make the new request.
    */
@@ -534,21 +2473,37 @@ public class ProxyServlet extends HttpServlet {
   }
 
   /** For a redirect response from the target server, this translates {@code theUrl} to redirect to
-   * and translates it to one the original client can use. */
+   * and translates it to one the original client can use. As in response bodies, only a URL that
+   * continues the target URI at a path boundary ('/', '?', '#' or its end) is translated, so that
+   * e.g. a target of http://backend/app leaves http://backend/application alone. */
   protected String rewriteUrlFromResponse(HttpServletRequest servletRequest, String theUrl) {
     //TODO document example paths
     final String targetUri = getTargetUri(servletRequest);
-    if (theUrl.startsWith(targetUri)) {
-      String curUrl = servletRequest.getRequestURL().toString();//no query
-      String pathInfo = servletRequest.getPathInfo();
-      if (pathInfo != null) {
-        assert curUrl.endsWith(pathInfo);
-        curUrl = curUrl.substring(0,curUrl.length()-pathInfo.length());//take pathInfo off
-      }
-      theUrl = curUrl+theUrl.substring(targetUri.length());
+    if (theUrl.startsWith(targetUri) && isPathBoundary(targetUri, theUrl)) {
+      theUrl = getServletBaseUrl(servletRequest)+theUrl.substring(targetUri.length());
     }
     return theUrl;
   }
+
+  /** Whether {@code url}, which starts with {@code targetUri}, goes on from it at a path boundary. */
+  private static boolean isPathBoundary(String targetUri, String url) {
+    if (url.length() == targetUri.length() || targetUri.endsWith("/"))
+      return true;
+    char next = url.charAt(targetUri.length());
+    return next == '/' || next == '?' || next == '#';
+  }
+
+  /** The URL the client used to reach this servlet, without the path info or query. This is what
+   * the target URI is translated to in responses. */
+  protected String getServletBaseUrl(HttpServletRequest servletRequest) {
+    String curUrl = servletRequest.getRequestURL().toString();//no query
+    String pathInfo = servletRequest.getPathInfo();
+    if (pathInfo != null) {
+      assert curUrl.endsWith(pathInfo);
+      curUrl = curUrl.substring(0,curUrl.length()-pathInfo.length());//take pathInfo off
+    }
+    return curUrl;
+  }
   
   /** The target URI as configured. Not null. */
   public String getTargetUri() { return targetUri; }
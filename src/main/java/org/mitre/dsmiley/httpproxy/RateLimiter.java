@@ -0,0 +1,130 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A token bucket per client (by any key, e.g. IP address): a client may make {@code burst}
+ * requests at once, and then {@code ratePerSecond}.
+ * <p>
+ *   Each bucket is a single number, its "theoretical arrival time" (the generic cell rate
+ *   algorithm): the time at which it would be full again. A request moves it one interval later,
+ *   unless that would put it more than a burst ahead of now, in which case the request is rejected.
+ *   So a check is one compare-and-set, and there are no locks.
+ * </p>
+ * <p>
+ *   Buckets live in a fixed-size open-addressed table, each key probing a few neighbouring slots, so
+ *   memory is bounded and different clients rarely touch the same slot. A full bucket carries no
+ *   state, so idle clients' slots are simply reused; if none of a key's slots is idle, the one
+ *   closest to full is evicted, and counted.
+ * </p>
+ */
+public class RateLimiter {
+
+  private static final int PROBES = 8;
+
+  private final long intervalNanos;
+  private final long burstNanos;
+  private final AtomicReferenceArray<Bucket> table;
+  private final int mask;
+  private final AtomicLong rejected = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * @param maxClients how many clients to track, at least; rounded up to a power of two
+   */
+  public RateLimiter(double ratePerSecond, int burst, int maxClients) {
+    if (ratePerSecond <= 0 || burst < 1)
+      throw new IllegalArgumentException("Need a positive rate and burst");
+    this.intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond));
+    this.burstNanos = intervalNanos * burst;
+    int capacity = Integer.highestOneBit(Math.max(PROBES, maxClients) - 1) << 1;
+    this.table = new AtomicReferenceArray<Bucket>(capacity);
+    this.mask = capacity - 1;
+  }
+
+  private static class Bucket {
+    final String key;
+    final AtomicLong fullAt;//nanoTime
+
+    Bucket(String key, long fullAt) {
+      this.key = key;
+      this.fullAt = new AtomicLong(fullAt);
+    }
+  }
+
+  /** Takes a token from {@code key}'s bucket. Returns 0 if there was one, else how many
+   * nanoseconds until there will be. */
+  public long acquire(String key) {
+    long now = System.nanoTime();
+    int hash = key.hashCode();
+    hash ^= (hash >>> 16);
+    for (;;) {
+      int victimIndex = -1;
+      Bucket victim = null;
+      boolean victimIdle = false;
+      for (int i = 0; i < PROBES; i++) {
+        int index = (hash + i) & mask;
+        Bucket bucket = table.get(index);
+        if (bucket != null && bucket.key.equals(key))
+          return take(bucket, now);
+        if (victimIdle)
+          continue;//just looking for the key now
+        if (bucket == null || bucket.fullAt.get() - now <= 0) {//a full bucket has nothing to lose
+          victimIndex = index;
+          victim = bucket;
+          victimIdle = true;
+        } else if (victim == null || bucket.fullAt.get() - victim.fullAt.get() < 0) {
+          victimIndex = index;
+          victim = bucket;
+        }
+      }
+      //not found; claim a slot, the first request taking a token
+      if (table.compareAndSet(victimIndex, victim, new Bucket(key, now + intervalNanos))) {
+        if (!victimIdle)
+          evictions.incrementAndGet();
+        return 0;
+      }
+    }
+  }
+
+  private long take(Bucket bucket, long now) {
+    for (;;) {
+      long fullAt = bucket.fullAt.get();
+      long newFullAt = (fullAt - now > 0 ? fullAt : now) + intervalNanos;
+      long wait = newFullAt - now - burstNanos;
+      if (wait > 0) {
+        rejected.incrementAndGet();
+        return wait;
+      }
+      if (bucket.fullAt.compareAndSet(fullAt, newFullAt))
+        return 0;
+    }
+  }
+
+  public long getRejectedCount() {
+    return rejected.get();
+  }
+
+  /** Clients whose bucket was dropped for want of room while it wasn't full. */
+  public long getEvictionCount() {
+    return evictions.get();
+  }
+}
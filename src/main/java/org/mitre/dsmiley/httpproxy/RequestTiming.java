@@ -0,0 +1,270 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.config.Registry;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The timeline of one proxied request, from {@link ProxyServlet#service} being called to the
+ * response body having been sent, broken into phases: waiting to lease a pooled connection,
+ * connecting, sending the request, waiting for the response headers, and transferring the response
+ * body. It also counts the request and response body bytes.
+ * <p>
+ *   The proxy marks the beginning and end; HttpClient marks the rest via {@link RequestExecutor}
+ *   and {@link ConnectionManager}, which find this in the {@link HttpContext} under
+ *   {@link #CONTEXT_ATTRIBUTE}. If a custom HttpClient doesn't use them, the phases between
+ *   executing and receiving the response are unknown (-1).
+ * </p>
+ * <p>
+ *   Not thread-safe; one thread at a time touches it. That's the thread serving the request, unless
+ *   a {@link BodyTransfer} sends the response body: then the container threads it writes on count
+ *   the response bytes, and its completion callback, on whichever thread completes it, ends and
+ *   records the timing. Each of these threads takes the transfer's monitor after touching this
+ *   (see {@link BodyTransfer#exchangeDone()}), and the callback runs after taking it, so it sees
+ *   what they wrote.
+ * </p>
+ */
+public class RequestTiming {
+
+  public static final String CONTEXT_ATTRIBUTE = RequestTiming.class.getName();
+
+  private final long start = System.nanoTime();
+  private long executeStart;
+  private long connectStart;
+  private long connectEnd;
+  private long connectionReady;
+  private long requestSent;
+  private long responseHeaders;
+  private long end;
+
+  private long requestBytes;
+  private long responseBytes;
+  private int statusCode;
+  private Exception failure;
+
+  /* MARKS */
+
+  public void markExecuteStart() { executeStart = System.nanoTime(); }
+
+  public void markConnectStart() { connectStart = System.nanoTime(); }
+
+  public void markConnectEnd() { connectEnd = System.nanoTime(); }
+
+  public void markConnectionReady() { connectionReady = System.nanoTime(); }
+
+  public void markRequestSent() { requestSent = System.nanoTime(); }
+
+  public void markResponseHeaders(int statusCode) {
+    if (responseHeaders == 0)//first one wins; e.g. not a 100-continue
+      responseHeaders = System.nanoTime();
+    this.statusCode = statusCode;
+  }
+
+  public void markEnd() {
+    if (end == 0)
+      end = System.nanoTime();
+  }
+
+  public void setFailure(Exception failure) { this.failure = failure; }
+
+  /* RESULTS */
+
+  public long getStartNanos() { return start; }
+
+  public long getEndNanos() { return end; }
+
+  /** The upstream response status code, or 0 if there was no response. */
+  public int getStatusCode() { return statusCode; }
+
+  /** Set if proxying the request failed with an exception. */
+  public Exception getFailure() { return failure; }
+
+  /** True if the upstream response headers were received but the body transfer then failed. */
+  public boolean isAborted() { return failure != null && responseHeaders != 0; }
+
+  /** Bytes of the request body read from the client. */
+  public long getRequestBytes() { return requestBytes; }
+
+  /** Bytes of the response body written to the client. */
+  public long getResponseBytes() { return responseBytes; }
+
+  public long getTotalMicros() { return micros(start, end); }
+
+  /** Waiting for a connection from the pool. */
+  public long getLeaseMicros() { return micros(executeStart, connectStart != 0 ? connectStart : connectionReady); }
+
+  /** Opening a new connection, including any TLS handshake; 0 if a pooled one was reused. */
+  public long getConnectMicros() {
+    if (connectionReady == 0)
+      return -1;
+    return connectStart == 0 ? 0 : micros(connectStart, connectEnd);
+  }
+
+  /** Sending the request line, headers and body to the target. */
+  public long getSendMicros() { return micros(connectionReady, requestSent); }
+
+  /** After sending the request, waiting for the response headers ("time to first byte"). */
+  public long getWaitMicros() { return micros(requestSent, responseHeaders); }
+
+  /** Transferring the response body to the client. */
+  public long getBodyMicros() { return micros(responseHeaders, end); }
+
+  /** Time spent in the proxy itself: the total less the phases above. Before the end, it's up to
+   * now. */
+  public long getOverheadMicros() {
+    long total = end != 0 ? getTotalMicros() : (System.nanoTime() - start) / 1000;
+    long overhead = total;
+    for (long phase : new long[]{getLeaseMicros(), getConnectMicros(), getSendMicros(), getWaitMicros(), getBodyMicros()}) {
+      if (phase > 0)
+        overhead -= phase;
+    }
+    return Math.max(overhead, 0);
+  }
+
+  private static long micros(long fromNanos, long toNanos) {
+    if (fromNanos == 0 || toNanos == 0)
+      return -1;
+    return (toNanos - fromNanos) / 1000;
+  }
+
+  /* STREAM WRAPPERS */
+
+  /** Wraps the client's request body stream to count bytes. */
+  public InputStream countRequestBytes(InputStream in) {
+    return new FilterInputStream(in) {
+      @Override
+      public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0)
+          requestBytes++;
+        return b;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n > 0)
+          requestBytes += n;
+        return n;
+      }
+    };
+  }
+
+  /** Wraps the client's response body stream to count bytes. */
+  public OutputStream countResponseBytes(OutputStream out) {
+    return new FilterOutputStream(out) {
+      @Override
+      public void write(int b) throws IOException {
+        out.write(b);
+        responseBytes++;
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        responseBytes += len;
+      }
+    };
+  }
+
+  static RequestTiming from(HttpContext context) {
+    return context == null ? null : (RequestTiming) context.getAttribute(CONTEXT_ATTRIBUTE);
+  }
+
+  /* HTTPCLIENT HOOKS */
+
+  /** Marks when the connection is ready, the request is sent, and the response headers arrive. */
+  public static class RequestExecutor extends HttpRequestExecutor {
+    @Override
+    public HttpResponse execute(HttpRequest request, HttpClientConnection conn, HttpContext context)
+        throws IOException, HttpException {
+      RequestTiming timing = from(context);
+      if (timing != null)
+        timing.markConnectionReady();
+      return super.execute(request, conn, context);
+    }
+
+    @Override
+    protected HttpResponse doSendRequest(HttpRequest request, HttpClientConnection conn, HttpContext context)
+        throws IOException, HttpException {
+      HttpResponse response = super.doSendRequest(request, conn, context);
+      RequestTiming timing = from(context);
+      if (timing != null) {
+        timing.markRequestSent();
+        if (response != null)//e.g. an expect-continue refusal
+          timing.markResponseHeaders(response.getStatusLine().getStatusCode());
+      }
+      return response;
+    }
+
+    @Override
+    protected HttpResponse doReceiveResponse(HttpRequest request, HttpClientConnection conn, HttpContext context)
+        throws HttpException, IOException {
+      HttpResponse response = super.doReceiveResponse(request, conn, context);
+      RequestTiming timing = from(context);
+      if (timing != null)
+        timing.markResponseHeaders(response.getStatusLine().getStatusCode());
+      return response;
+    }
+  }
+
+  /** A pooling connection manager that marks the start and end of opening a new connection. */
+  public static class ConnectionManager extends PoolingHttpClientConnectionManager {
+    public ConnectionManager(Registry<ConnectionSocketFactory> socketFactoryRegistry) {
+      super(socketFactoryRegistry);
+    }
+
+    public ConnectionManager(Registry<ConnectionSocketFactory> socketFactoryRegistry, DnsResolver dnsResolver) {
+      super(socketFactoryRegistry, dnsResolver);
+    }
+
+    @Override
+    public void connect(HttpClientConnection managedConn, HttpRoute route, int connectTimeout, HttpContext context)
+        throws IOException {
+      RequestTiming timing = from(context);
+      if (timing != null)
+        timing.markConnectStart();
+      super.connect(managedConn, route, connectTimeout, context);
+      if (timing != null)
+        timing.markConnectEnd();
+    }
+
+    @Override
+    public void upgrade(HttpClientConnection managedConn, HttpRoute route, HttpContext context) throws IOException {
+      super.upgrade(managedConn, route, context);
+      RequestTiming timing = from(context);
+      if (timing != null)//a TLS handshake through a proxy tunnel
+        timing.markConnectEnd();
+    }
+  }
+}
@@ -0,0 +1,77 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Some state per target route (see {@link ProxyServlet#getTargetRoute}), created on first use.  The
+ * number of routes is bounded, since with {@link URITemplateProxyServlet} they come from requests;
+ * beyond that, routes share the state of {@link #OTHER_ROUTE}.
+ */
+public abstract class RouteMap<V> {
+
+  public static final String OTHER_ROUTE = "other";
+
+  private final int maxRoutes;
+  private final ConcurrentMap<String, V> map = new ConcurrentHashMap<String, V>();
+  private final AtomicInteger count = new AtomicInteger();
+
+  protected RouteMap(int maxRoutes) {
+    this.maxRoutes = maxRoutes;
+  }
+
+  protected abstract V create(String route);
+
+  /** Called once {@code value}, from {@link #create}, is in the map. */
+  protected void added(String route, V value) {
+  }
+
+  /** The state of {@code routeKey}, or of {@link #OTHER_ROUTE} if there are too many routes. */
+  public V get(String routeKey) {
+    if (routeKey == null)
+      routeKey = OTHER_ROUTE;
+    V value = map.get(routeKey);
+    if (value == null) {
+      if (count.get() >= maxRoutes && !routeKey.equals(OTHER_ROUTE))
+        return get(OTHER_ROUTE);
+      value = create(routeKey);
+      V existing = map.putIfAbsent(routeKey, value);
+      if (existing != null)
+        return existing;
+      count.incrementAndGet();
+      added(routeKey, value);
+    }
+    return value;
+  }
+
+  /** The state of {@code route} if it's been used, else null. */
+  public V peek(String route) {
+    return map.get(route);
+  }
+
+  public Collection<V> values() {
+    return map.values();
+  }
+
+  public int size() {
+    return map.size();
+  }
+}
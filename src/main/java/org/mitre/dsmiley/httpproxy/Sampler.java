@@ -0,0 +1,49 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Picks a fraction of events, spread evenly, e.g. 7 of every 10 for a rate of 0.7. A 32.32
+ * fixed-point accumulator is advanced by the rate per event, and an event is picked when it
+ * carries into the integer part; wrapping around is harmless. Thread-safe and lock-free.
+ */
+class Sampler {
+
+  private static final long ONE = 1L << 32;
+
+  private final long step;
+  private final AtomicLong accumulator = new AtomicLong();
+
+  /** @param rate the fraction to pick, from 0 (none) to 1 */
+  Sampler(double rate) {
+    if (!(rate >= 0 && rate <= 1))
+      throw new IllegalArgumentException("sampleRate must be >= 0 and <= 1: " + rate);
+    step = (long) Math.ceil(rate * ONE);//rounded up so that e.g. 0.7 picks 70 of 100, not 69
+  }
+
+  /** Whether to pick the next event. */
+  boolean sample() {
+    if (step >= ONE)
+      return true;
+    if (step == 0)
+      return false;
+    long before = accumulator.getAndAdd(step);
+    return ((before + step) >>> 32) != (before >>> 32);
+  }
+}
@@ -0,0 +1,198 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.http.HttpHost;
+import org.apache.http.client.utils.URIUtils;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, thread-safe cache of target URI strings to their parsed {@link Target}: the URI, the
+ * host, and a route key.  Invalid targets are cached too ("negative caching") so that a stream of
+ * malformed requests is rejected without re-parsing; they're held apart, in a smaller bound of their
+ * own, so that client-supplied junk can't evict valid targets.  When full, an arbitrary entry is
+ * evicted; this is meant for a modest number of distinct targets, not as a general LRU.
+ *
+ * @see URITemplateProxyServlet
+ */
+public class TargetCache {
+
+  /** A resolved target URI. If {@link #getError()} isn't null then the URI was invalid. */
+  public static class Target {
+    private final URI uri;
+    private final HttpHost host;
+    private final String routeKey;
+    private final Exception error;
+
+    Target(URI uri, HttpHost host) {
+      this.uri = uri;
+      this.host = host;
+      this.routeKey = host.toURI();
+      this.error = null;
+    }
+
+    Target(Exception error) {
+      this.uri = null;
+      this.host = null;
+      this.routeKey = null;
+      this.error = error;
+    }
+
+    public URI getUri() { return uri; }
+
+    public HttpHost getHost() { return host; }
+
+    /** The scheme, host and port, e.g. "http://localhost:8080". Identifies the connection route. */
+    public String getRouteKey() { return routeKey; }
+
+    /** Why the target is invalid, or null if it's valid. */
+    public Exception getError() { return error; }
+  }
+
+  private final int maxSize;
+  private final int maxNegativeSize;
+  private final ConcurrentMap<String, Target> map;
+  private final AtomicInteger size = new AtomicInteger();
+  private final ConcurrentMap<String, Target> negativeMap;
+  private final AtomicInteger negativeSize = new AtomicInteger();
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong negativeHits = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  /**
+   * @param maxSize the maximum number of valid entries. If 0, nothing is cached. Up to a tenth as
+   *                many (at least 1) invalid entries are cached besides.
+   */
+  public TargetCache(int maxSize) {
+    this(maxSize, maxSize == 0 ? 0 : Math.max(1, maxSize / 10));
+  }
+
+  /**
+   * @param maxSize the maximum number of valid entries.
+   * @param maxNegativeSize the maximum number of invalid entries, held separately.
+   */
+  public TargetCache(int maxSize, int maxNegativeSize) {
+    if (maxSize < 0)
+      throw new IllegalArgumentException("maxSize must be >= 0: " + maxSize);
+    if (maxNegativeSize < 0)
+      throw new IllegalArgumentException("maxNegativeSize must be >= 0: " + maxNegativeSize);
+    this.maxSize = maxSize;
+    this.maxNegativeSize = maxNegativeSize;
+    this.map = new ConcurrentHashMap<String, Target>(Math.max(16, Math.min(maxSize, 1024) * 4 / 3));
+    this.negativeMap = new ConcurrentHashMap<String, Target>(16);
+  }
+
+  /** Returns the parsed target for {@code targetUri}, parsing and caching it if needed. Not null. */
+  public Target resolve(String targetUri) {
+    Target target = map.get(targetUri);
+    if (target == null && maxNegativeSize > 0) {
+      target = negativeMap.get(targetUri);
+      if (target != null)
+        negativeHits.incrementAndGet();
+    }
+    if (target != null) {
+      hits.incrementAndGet();
+      return target;
+    }
+    misses.incrementAndGet();
+    target = parse(targetUri);
+    if (target.error == null)
+      put(map, size, maxSize, targetUri, target);
+    else
+      put(negativeMap, negativeSize, maxNegativeSize, targetUri, target);
+    return target;
+  }
+
+  private void put(ConcurrentMap<String, Target> map, AtomicInteger size, int maxSize,
+                   String targetUri, Target target) {
+    if (maxSize > 0 && map.putIfAbsent(targetUri, target) == null) {
+      if (size.incrementAndGet() > maxSize)
+        evictOne(map, size);
+    }
+  }
+
+  protected Target parse(String targetUri) {
+    URI uri;
+    try {
+      uri = new URI(targetUri);
+    } catch (URISyntaxException e) {
+      return new Target(e);
+    }
+    HttpHost host = URIUtils.extractHost(uri);
+    if (host == null)
+      return new Target(new URISyntaxException(targetUri, "No host"));
+    return new Target(uri, host);
+  }
+
+  private void evictOne(ConcurrentMap<String, Target> map, AtomicInteger size) {
+    Iterator<String> iterator = map.keySet().iterator();
+    if (iterator.hasNext() && map.remove(iterator.next()) != null) {
+      size.decrementAndGet();
+      evictions.incrementAndGet();
+    }
+  }
+
+  public void clear() {
+    map.clear();
+    size.set(0);
+    negativeMap.clear();
+    negativeSize.set(0);
+  }
+
+  public int getMaxSize() { return maxSize; }
+
+  public int getMaxNegativeSize() { return maxNegativeSize; }
+
+  /** The number of valid targets cached. */
+  public int getSize() { return size.get(); }
+
+  /** The number of invalid targets cached. */
+  public int getNegativeSize() { return negativeSize.get(); }
+
+  public long getHitCount() { return hits.get(); }
+
+  public long getMissCount() { return misses.get(); }
+
+  /** Hits on targets cached as invalid; a subset of {@link #getHitCount()}. */
+  public long getNegativeHitCount() { return negativeHits.get(); }
+
+  public long getEvictionCount() { return evictions.get(); }
+
+  /** Hits / (hits + misses), or 0 if there have been no lookups. */
+  public double getHitRate() {
+    long h = hits.get();
+    long total = h + misses.get();
+    return total == 0 ? 0.0 : (double) h / total;
+  }
+
+  @Override
+  public String toString() {
+    return "TargetCache{size=" + getSize() + "/" + maxSize + ", negativeSize=" + getNegativeSize()
+        + "/" + maxNegativeSize + ", hits=" + getHitCount()
+        + ", misses=" + getMissCount() + ", negativeHits=" + getNegativeHitCount()
+        + ", evictions=" + getEvictionCount() + "}";
+  }
+}
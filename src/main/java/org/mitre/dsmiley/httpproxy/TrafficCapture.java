@@ -0,0 +1,632 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.HttpEntityWrapper;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Captures a sample of proxied exchanges to a compact binary log, for replaying them later as a
+ * benchmark with the traffic's real mix of methods, URIs, headers and body sizes: see
+ * {@link ProxyServlet#P_CAPTURE_FILE}.
+ * <p>
+ *   Request threads fill in an {@link Exchange} and queue it, or drop and count it if the queue is
+ *   full; they never wait on the disk. A background thread encodes each one and appends it to a
+ *   memory-mapped segment file, {@code file.000001}, {@code file.000002} and so on, starting a new
+ *   one when it's full and deleting the oldest beyond a maximum. Bodies are kept up to a cap;
+ *   bigger ones are recorded by length only. Values of sensitive headers (e.g. Cookie) are replaced
+ *   by as many {@code x}s, keeping their size.
+ * </p>
+ * <p>
+ *   A segment is {@link #MAGIC} followed by records, each an int length and that many bytes, until
+ *   a length of 0. Numbers within a record are unsigned varints, strings UTF-8 after their length;
+ *   see {@link Reader} for the fields.
+ * </p>
+ */
+public class TrafficCapture {
+
+  /** The first four bytes of each segment: "PXC" and the format version. */
+  public static final int MAGIC = 0x50584301;
+
+  /** A proxied request and the target's response. Lengths and times not known are -1. */
+  public static class Exchange {
+    /** When the request started, in microseconds since the epoch. */
+    public long timeMicros;
+    public String method;
+    /** The path and query relative to the servlet, as the client sent them. */
+    public String uri;
+    /** Names and values, alternately. */
+    public final List<String> requestHeaders = new ArrayList<String>();
+    public long requestLength = -1;
+    /** Null if the body was over the cap, or not all read. */
+    public byte[] requestBody;
+    /** 0 if the request never got a response from the target. */
+    public int status;
+    /** Names and values, alternately. */
+    public final List<String> responseHeaders = new ArrayList<String>();
+    public long responseLength = -1;
+    /** Null if the body was over the cap, or not all read. */
+    public byte[] responseBody;
+    /** From sending the request to the target's response headers. */
+    public long upstreamMicros = -1;
+    /** From the start of the request to the end of the response. */
+    public long totalMicros = -1;
+
+    long startNanos;
+    long sentNanos;
+    private long requestContentLength = -1;
+    private Body requestStream;
+    private Body responseStream;
+
+    /** Whether the request was sent to the target, rather than rejected or answered by the proxy. */
+    public boolean isSent() {
+      return sentNanos != 0;
+    }
+  }
+
+  private final File file;
+  private final Sampler sampler;
+  private final int maxBodyBytes;
+  private final int segmentBytes;
+  private final int maxSegments;
+  private final Set<String> redactHeaders = new HashSet<String>();
+  private final long epochMicros = System.currentTimeMillis() * 1000;
+  private final long epochNanos = System.nanoTime();
+
+  private final BlockingQueue<Exchange> queue;
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong written = new AtomicLong();
+  private volatile IOException lastError;
+
+  private final Thread writerThread;
+  private volatile boolean closed;
+
+  /**
+   * @param file          the segments are named after it, with a six digit sequence number
+   * @param sampleRate    fraction of requests to capture, from 0 to 1
+   * @param maxBodyBytes  bodies up to this size are kept; 0 keeps none
+   * @param queueSize     exchanges waiting to be written before more are dropped
+   * @param segmentBytes  the size of each segment file
+   * @param maxSegments   segments to keep; the oldest are deleted
+   * @param redactHeaders names of headers whose values aren't kept
+   */
+  public TrafficCapture(File file, double sampleRate, int maxBodyBytes, int queueSize, int segmentBytes,
+                        int maxSegments, String... redactHeaders) {
+    this.sampler = new Sampler(sampleRate);
+    if (segmentBytes < 1024)
+      throw new IllegalArgumentException("segmentBytes must be at least 1024: " + segmentBytes);
+    this.file = file;
+    this.maxBodyBytes = maxBodyBytes;
+    this.segmentBytes = segmentBytes;
+    this.maxSegments = Math.max(1, maxSegments);
+    for (String name : redactHeaders)
+      this.redactHeaders.add(name.trim().toLowerCase(Locale.ENGLISH));
+    this.queue = new ArrayBlockingQueue<Exchange>(queueSize);
+    writerThread = new Thread(new Runnable() {
+      public void run() {
+        writeLoop();
+      }
+    }, "TrafficCapture " + file.getName());
+    writerThread.setDaemon(true);
+  }
+
+  /** Starts the background writer. */
+  public void start() {
+    writerThread.start();
+  }
+
+  /** Whether the next request should be captured, going by the sample rate. */
+  public boolean sample() {
+    return sampler.sample();
+  }
+
+  /** Starts capturing a request. */
+  public Exchange begin(String method, String uri) {
+    Exchange exchange = new Exchange();
+    exchange.startNanos = System.nanoTime();
+    exchange.timeMicros = epochMicros + (exchange.startNanos - epochNanos) / 1000;
+    exchange.method = method;
+    exchange.uri = uri;
+    return exchange;
+  }
+
+  public void addRequestHeader(Exchange exchange, String name, String value) {
+    addHeader(exchange.requestHeaders, name, value);
+  }
+
+  private void addHeader(List<String> headers, String name, String value) {
+    headers.add(name);
+    headers.add(redactHeaders.contains(name.toLowerCase(Locale.ENGLISH)) ? redact(value) : value);
+  }
+
+  private static String redact(String value) {
+    char[] chars = new char[value.length()];
+    Arrays.fill(chars, 'x');
+    return new String(chars);
+  }
+
+  /** Tees the request body, of {@code contentLength} bytes or -1 if unknown, as it's sent. */
+  public InputStream teeRequestBody(Exchange exchange, InputStream in, long contentLength) {
+    exchange.requestContentLength = contentLength;
+    exchange.requestStream = new Body(in, contentLength, maxBodyBytes);
+    return exchange.requestStream;
+  }
+
+  /** Marks the request being sent to the target. */
+  public void sending(Exchange exchange) {
+    exchange.sentNanos = System.nanoTime();
+  }
+
+  /** Records the target's response, and replaces its entity with one that tees the body as it's
+   * read. */
+  public void response(Exchange exchange, HttpResponse response) {
+    long now = System.nanoTime();
+    if (exchange.sentNanos != 0)
+      exchange.upstreamMicros = (now - exchange.sentNanos) / 1000;
+    exchange.status = response.getStatusLine().getStatusCode();
+    for (Header header : response.getAllHeaders())
+      addHeader(exchange.responseHeaders, header.getName(), header.getValue());
+    HttpEntity entity = response.getEntity();
+    if (entity != null) {
+      exchange.responseLength = entity.getContentLength();
+      response.setEntity(new TeeEntity(entity, exchange, maxBodyBytes));
+    }
+  }
+
+  /**
+   * Queues a finished exchange to be written, unless the queue is full. Returns at once. The
+   * bodies are taken as far as they were read.
+   */
+  public void capture(Exchange exchange) {
+    exchange.totalMicros = (System.nanoTime() - exchange.startNanos) / 1000;
+    Body request = exchange.requestStream;
+    if (request != null) {
+      exchange.requestLength = exchange.requestContentLength >= 0 ? exchange.requestContentLength : request.count;
+      exchange.requestBody = request.getBytes();
+    }
+    Body response = exchange.responseStream;
+    if (response != null) {
+      if (exchange.responseLength < 0)
+        exchange.responseLength = response.count;
+      exchange.responseBody = response.getBytes();
+    }
+    if (closed || !queue.offer(exchange))
+      dropped.incrementAndGet();
+  }
+
+  /** Exchanges written to the log. */
+  public long getWrittenCount() { return written.get(); }
+
+  /** Exchanges not written because the queue was full, or one was too big for a segment. */
+  public long getDroppedCount() { return dropped.get(); }
+
+  public int getQueuedCount() { return queue.size(); }
+
+  /** The last error writing the log, if any. */
+  public IOException getLastError() { return lastError; }
+
+  /** Writes what's been queued, then stops the writer. */
+  public void close() {
+    closed = true;
+    try {
+      writerThread.join(10000);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** A body stream that counts what's read through it, and keeps a copy up to a cap. */
+  private static class Body extends FilterInputStream {
+    private final long contentLength;
+    private final int maxBytes;
+    private byte[] buffer;
+    private long count;
+    private boolean eof;
+    private boolean overflowed;
+
+    Body(InputStream in, long contentLength, int maxBytes) {
+      super(in);
+      this.contentLength = contentLength;
+      this.maxBytes = maxBytes;
+      this.overflowed = maxBytes <= 0 || contentLength > maxBytes;
+      if (!overflowed)
+        buffer = new byte[contentLength >= 0 ? (int) contentLength : Math.min(maxBytes, 8192)];
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b < 0)
+        eof = true;
+      else if (keep(1))
+        buffer[(int) count - 1] = (byte) b;
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int read = super.read(b, off, len);
+      if (read < 0)
+        eof = true;
+      else if (keep(read))
+        System.arraycopy(b, off, buffer, (int) count - read, read);
+      return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = super.skip(n);
+      count += skipped;
+      overflowed = true;//the copy would have a gap
+      buffer = null;
+      return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    /** Counts {@code more} bytes read, returning whether to copy them, after {@code count}. */
+    private boolean keep(int more) {
+      count += more;
+      if (overflowed)
+        return false;
+      if (count > maxBytes) {
+        overflowed = true;
+        buffer = null;//free it now; the exchange may go on for a while
+        return false;
+      }
+      if (count > buffer.length)
+        buffer = Arrays.copyOf(buffer, (int) Math.min(maxBytes, Math.max(count, buffer.length * 2L)));
+      return true;
+    }
+
+    /** The whole body, if it was all read and isn't over the cap; else null. */
+    byte[] getBytes() {
+      if (overflowed || !(eof || count == contentLength))
+        return null;
+      return count == buffer.length ? buffer : Arrays.copyOf(buffer, (int) count);
+    }
+  }
+
+  /** A response entity whose body is teed into its {@link Exchange} however it's read. */
+  private static class TeeEntity extends HttpEntityWrapper {
+    private final Exchange exchange;
+    private final int maxBodyBytes;
+
+    TeeEntity(HttpEntity wrapped, Exchange exchange, int maxBodyBytes) {
+      super(wrapped);
+      this.exchange = exchange;
+      this.maxBodyBytes = maxBodyBytes;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+      if (exchange.responseStream == null)
+        exchange.responseStream = new Body(wrappedEntity.getContent(), wrappedEntity.getContentLength(), maxBodyBytes);
+      return exchange.responseStream;
+    }
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+      InputStream in = getContent();
+      try {
+        byte[] buffer = new byte[4096];
+        int read;
+        while ((read = in.read(buffer)) != -1)
+          out.write(buffer, 0, read);
+      } finally {
+        in.close();
+      }
+    }
+
+    @Override
+    public boolean isStreaming() {
+      return true;
+    }
+  }
+
+  /* WRITER THREAD */
+
+  private ByteBuffer record = ByteBuffer.allocate(4096);
+  private MappedByteBuffer segment;
+  private RandomAccessFile segmentFile;
+  private int segmentIndex;
+
+  private void writeLoop() {
+    try {
+      segmentIndex = lastSegmentIndex(file);//append after an earlier capture
+      while (true) {
+        boolean wasClosed = closed;//check before polling so nothing queued before close is lost
+        Exchange exchange;
+        try {
+          exchange = queue.poll(100, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+          break;
+        }
+        if (exchange != null)
+          write(exchange);
+        else if (wasClosed)
+          break;
+      }
+    } finally {
+      closeSegment();
+    }
+  }
+
+  private void write(Exchange exchange) {
+    record.clear();
+    putVarLong(exchange.timeMicros);
+    putString(exchange.method);
+    putString(exchange.uri);
+    putStrings(exchange.requestHeaders);
+    putVarLong(exchange.requestLength + 1);
+    putBytes(exchange.requestBody);
+    putVarLong(exchange.status);
+    putStrings(exchange.responseHeaders);
+    putVarLong(exchange.responseLength + 1);
+    putBytes(exchange.responseBody);
+    putVarLong(exchange.upstreamMicros + 1);
+    putVarLong(exchange.totalMicros + 1);
+    record.flip();
+    int length = record.remaining();
+    if (length + 12 > segmentBytes) {//the magic, its length and the end
+      dropped.incrementAndGet();
+      return;
+    }
+    try {
+      if (segment == null || segment.remaining() < length + 8)
+        nextSegment();
+      int start = segment.position();
+      segment.position(start + 4);
+      segment.put(record);
+      segment.putInt(start, length);//last, so a reader never sees half a record
+      written.incrementAndGet();
+    } catch (IOException e) {
+      lastError = e;
+      dropped.incrementAndGet();
+      closeSegment();//try again with the next one
+    }
+  }
+
+  private void nextSegment() throws IOException {
+    closeSegment();
+    segmentIndex++;
+    File next = segmentFile(file, segmentIndex);
+    segmentFile = new RandomAccessFile(next, "rw");
+    segmentFile.setLength(0);
+    segmentFile.setLength(segmentBytes);//sparse; the unwritten end reads as zeros
+    segment = segmentFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+    segment.putInt(MAGIC);
+    if (segmentIndex > maxSegments)
+      segmentFile(file, segmentIndex - maxSegments).delete();
+  }
+
+  /** Forces the segment to disk and trims its unwritten end. The mapping itself is freed by the
+   * garbage collector; Java has no way to unmap it. */
+  private void closeSegment() {
+    if (segment == null)
+      return;
+    try {
+      segment.force();
+      segmentFile.setLength(segment.position() + 4);//keeping the end marker
+    } catch (IOException e) {
+      //e.g. Windows won't shrink a mapped file; it stays full size
+    } finally {
+      try {
+        segmentFile.close();
+      } catch (IOException e) {
+        lastError = e;
+      }
+      segment = null;
+      segmentFile = null;
+    }
+  }
+
+  private void ensureRoom(int more) {
+    if (record.remaining() < more) {
+      ByteBuffer bigger = ByteBuffer.allocate(Math.max(record.capacity() * 2, record.position() + more));
+      record.flip();
+      bigger.put(record);
+      record = bigger;
+    }
+  }
+
+  private void putVarLong(long value) {
+    ensureRoom(10);
+    while ((value & ~0x7FL) != 0) {
+      record.put((byte) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    record.put((byte) value);
+  }
+
+  private void putBytes(byte[] bytes) {
+    if (bytes == null) {
+      putVarLong(0);
+      return;
+    }
+    putVarLong(bytes.length + 1L);
+    ensureRoom(bytes.length);
+    record.put(bytes);
+  }
+
+  private void putString(String value) {
+    try {
+      putBytes(value != null ? value.getBytes("UTF-8") : null);
+    } catch (UnsupportedEncodingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  private void putStrings(List<String> values) {
+    putVarLong(values.size() / 2);
+    for (String value : values)
+      putString(value);
+  }
+
+  /* SEGMENT FILES */
+
+  static File segmentFile(File file, int index) {
+    return new File(file.getPath() + "." + String.format("%06d", index));
+  }
+
+  private static int lastSegmentIndex(File file) {
+    int last = 0;
+    for (File segment : segments(file)) {
+      String name = segment.getName();
+      last = Math.max(last, Integer.parseInt(name.substring(name.lastIndexOf('.') + 1)));
+    }
+    return last;
+  }
+
+  /** The segment files of a capture to {@code file}, oldest first. */
+  public static List<File> segments(File file) {
+    File dir = file.getAbsoluteFile().getParentFile();
+    String prefix = file.getName() + ".";
+    List<File> segments = new ArrayList<File>();
+    String[] names = dir.list();
+    if (names != null) {
+      for (String name : names) {
+        if (name.startsWith(prefix) && name.length() == prefix.length() + 6
+            && name.substring(prefix.length()).matches("[0-9]+"))
+          segments.add(new File(dir, name));
+      }
+    }
+    Collections.sort(segments);
+    return segments;
+  }
+
+  /**
+   * Reads the exchanges of a capture, in the order they were written (the order requests
+   * finished, which is about the order they started). A record's fields are: the time (varint),
+   * method, URI, request headers (a count, then names and values), request length + 1, request
+   * body, status, response headers, response length + 1, response body, upstream micros + 1 and
+   * total micros + 1. A string or body is its length + 1, or 0 for none, then its bytes.
+   */
+  public static class Reader {
+    private final List<File> segments;
+    private int next;
+    private ByteBuffer segment;
+
+    public Reader(File file) {
+      this.segments = segments(file);
+    }
+
+    /** The next exchange, or null after the last. */
+    public Exchange next() throws IOException {
+      while (true) {
+        if (segment == null) {
+          if (next == segments.size())
+            return null;
+          segment = map(segments.get(next++));
+        }
+        if (segment.remaining() >= 4) {
+          int length = segment.getInt();
+          if (length > 0)
+            return read((ByteBuffer) segment.slice().limit(length), length);
+        }
+        segment = null;
+      }
+    }
+
+    private ByteBuffer map(File file) throws IOException {
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+        MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        if (buffer.remaining() < 4 || buffer.getInt() != MAGIC)
+          throw new IOException("Not a capture segment: " + file);
+        return buffer;
+      } finally {
+        raf.close();
+      }
+    }
+
+    private Exchange read(ByteBuffer in, int length) throws IOException {
+      segment.position(segment.position() + length);
+      Exchange exchange = new Exchange();
+      exchange.timeMicros = getVarLong(in);
+      exchange.method = getString(in);
+      exchange.uri = getString(in);
+      getStrings(in, exchange.requestHeaders);
+      exchange.requestLength = getVarLong(in) - 1;
+      exchange.requestBody = getBytes(in);
+      exchange.status = (int) getVarLong(in);
+      getStrings(in, exchange.responseHeaders);
+      exchange.responseLength = getVarLong(in) - 1;
+      exchange.responseBody = getBytes(in);
+      exchange.upstreamMicros = getVarLong(in) - 1;
+      exchange.totalMicros = getVarLong(in) - 1;
+      return exchange;
+    }
+
+    private static long getVarLong(ByteBuffer in) {
+      long value = 0;
+      for (int shift = 0; ; shift += 7) {
+        byte b = in.get();
+        value |= (long) (b & 0x7F) << shift;
+        if (b >= 0)
+          return value;
+      }
+    }
+
+    private static byte[] getBytes(ByteBuffer in) {
+      int length = (int) getVarLong(in) - 1;
+      if (length < 0)
+        return null;
+      byte[] bytes = new byte[length];
+      in.get(bytes);
+      return bytes;
+    }
+
+    private static String getString(ByteBuffer in) throws UnsupportedEncodingException {
+      byte[] bytes = getBytes(in);
+      return bytes != null ? new String(bytes, "UTF-8") : null;
+    }
+
+    private static void getStrings(ByteBuffer in, List<String> values) throws UnsupportedEncodingException {
+      long count = getVarLong(in);
+      for (long i = 0; i < count * 2; i++)
+        values.add(getString(in));
+    }
+  }
+}
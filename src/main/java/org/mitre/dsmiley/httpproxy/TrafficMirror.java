@@ -0,0 +1,267 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies a sample of proxied requests to a shadow target, e.g. a new version of the target being
+ * tried out with real traffic, without affecting the client: see {@link ProxyServlet#P_MIRROR_URI}.
+ * <p>
+ *   A request body is teed into a buffer as it streams to the real target, up to a size cap; once
+ *   the request is sent, its copy is queued for a small pool of threads of its own, which send it
+ *   with an HttpClient and connection pool of their own and discard the response. If the queue is
+ *   full (the shadow can't keep up), the copy is dropped rather than ever making the client wait,
+ *   and so is one whose body is over the cap.
+ * </p>
+ */
+public class TrafficMirror {
+
+  private final HttpHost mirrorHost;
+  private final String mirrorPath;//no trailing slash
+  private final Sampler sampler;
+  private final int maxBodyBytes;
+  private final ThreadPoolExecutor executor;
+  private final PoolingHttpClientConnectionManager connectionManager;
+  private final CloseableHttpClient client;
+
+  private final AtomicLong mirrored = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong failed = new AtomicLong();
+  private final LatencyHistogram latency = new LatencyHistogram();
+
+  /**
+   * @param mirrorUri     the shadow target, like a servlet's targetUri
+   * @param sampleRate    fraction of requests to mirror, from 0 to 1
+   * @param maxBodyBytes  requests with a bigger body aren't mirrored
+   * @param threads       mirrored requests in flight at once, and pooled connections
+   * @param queueSize     mirrored requests waiting for a thread before more are dropped
+   * @param timeoutMillis connect and socket timeout for the shadow target
+   */
+  public TrafficMirror(String mirrorUri, double sampleRate, int maxBodyBytes, int threads, int queueSize,
+                       int timeoutMillis) {
+    this.sampler = new Sampler(sampleRate);
+    URI uri = URI.create(mirrorUri);
+    this.mirrorHost = new HttpHost(uri.getHost(), uri.getPort(), uri.getScheme());
+    String path = uri.getRawPath() != null ? uri.getRawPath() : "";
+    this.mirrorPath = path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+    this.maxBodyBytes = maxBodyBytes;
+
+    final String threadName = "TrafficMirror " + mirrorHost.toURI();
+    executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+          public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, threadName);
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    executor.allowCoreThreadTimeOut(true);
+    connectionManager = new PoolingHttpClientConnectionManager();
+    connectionManager.setDefaultMaxPerRoute(threads);
+    connectionManager.setMaxTotal(threads);
+    client = HttpClientBuilder.create()
+        .setConnectionManager(connectionManager)
+        .setDefaultRequestConfig(RequestConfig.custom()
+            .setConnectTimeout(timeoutMillis)
+            .setSocketTimeout(timeoutMillis)
+            .setConnectionRequestTimeout(timeoutMillis)
+            .build())
+        .disableRedirectHandling()
+        .disableAutomaticRetries()
+        .disableCookieManagement()
+        .disableContentCompression()
+        .build();
+  }
+
+  /** Whether the next request should be mirrored, going by the sample rate. */
+  public boolean sample() {
+    return sampler.sample();
+  }
+
+  /** Tees {@code in}, a request body of {@code contentLength} bytes (or -1 if unknown), for
+   * {@link #mirror}. Returns null, and counts a drop, if the body is known to be over the cap. */
+  public Tee tee(InputStream in, long contentLength) {
+    if (contentLength > maxBodyBytes) {
+      dropped.incrementAndGet();
+      return null;
+    }
+    return new Tee(in, contentLength, maxBodyBytes);
+  }
+
+  /**
+   * Queues a copy of a request that's been sent to the real target, unless the queue is full.
+   * Returns at once.
+   * @param uri     the path and query relative to the target URI
+   * @param headers the headers as sent to the target; Host and Content-Length are replaced
+   * @param body    the request's teed body, or null if it has none
+   */
+  public void mirror(final String method, String uri, Header[] headers, Tee body) {
+    if (body != null && !body.isComplete()) {//over the cap, or not all sent
+      dropped.incrementAndGet();
+      return;
+    }
+    final ProxyRequest request;
+    if (body != null) {
+      ProxyRequest.EntityEnclosing eRequest = new ProxyRequest.EntityEnclosing(method, mirrorPath + uri);
+      eRequest.setEntity(new ByteArrayEntity(body.buffer, 0, body.count));
+      request = eRequest;
+    } else {
+      request = new ProxyRequest(method, mirrorPath + uri);
+    }
+    for (Header header : headers) {
+      if (!header.getName().equalsIgnoreCase(HttpHeaders.HOST)
+          && !header.getName().equalsIgnoreCase(HttpHeaders.CONTENT_LENGTH))
+        request.addHeader(header);
+    }
+    try {
+      executor.execute(new Runnable() {
+        public void run() {
+          send(request);
+        }
+      });
+    } catch (RejectedExecutionException e) {//full, or closed
+      dropped.incrementAndGet();
+    }
+  }
+
+  private void send(ProxyRequest request) {
+    long start = System.nanoTime();
+    try {
+      HttpResponse response = client.execute(mirrorHost, request);
+      EntityUtils.consume(response.getEntity());
+      latency.record((System.nanoTime() - start) / 1000);
+      mirrored.incrementAndGet();
+    } catch (IOException e) {
+      request.abort();
+      failed.incrementAndGet();
+    }
+  }
+
+  /** Requests sent to the shadow target that got a response. */
+  public long getMirroredCount() { return mirrored.get(); }
+
+  /** Requests that were sampled but not mirrored: the queue was full or the body too big. */
+  public long getDroppedCount() { return dropped.get(); }
+
+  /** Requests sent to the shadow target that got no response. */
+  public long getFailedCount() { return failed.get(); }
+
+  public int getQueuedCount() { return executor.getQueue().size(); }
+
+  /** The shadow target's latency in microseconds, until its response body was read. */
+  public LatencyHistogram getLatency() { return latency; }
+
+  /** Stops mirroring; queued requests are dropped. */
+  public void close() {
+    executor.shutdownNow();
+    try {
+      client.close();
+    } catch (IOException e) {
+      //ignore
+    }
+  }
+
+  /** A request body stream that keeps a copy of what's read through it, up to a cap. */
+  public static class Tee extends FilterInputStream {
+    private final long contentLength;
+    private final int maxBytes;
+    private byte[] buffer;
+    private int count;
+    private boolean eof;
+    private boolean overflowed;
+
+    Tee(InputStream in, long contentLength, int maxBytes) {
+      super(in);
+      this.contentLength = contentLength;
+      this.maxBytes = maxBytes;
+      this.buffer = new byte[contentLength >= 0 ? (int) contentLength : Math.min(maxBytes, 8192)];
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b < 0)
+        eof = true;
+      else if (ensureCapacity(1))
+        buffer[count++] = (byte) b;
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int read = super.read(b, off, len);
+      if (read < 0) {
+        eof = true;
+      } else if (ensureCapacity(read)) {
+        System.arraycopy(b, off, buffer, count, read);
+        count += read;
+      }
+      return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      overflowed = true;//the copy would have a gap
+      return super.skip(n);
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    private boolean ensureCapacity(int more) {
+      if (overflowed)
+        return false;
+      if (count + more > maxBytes) {
+        overflowed = true;
+        buffer = null;//free it now; the request may go on for a while
+        return false;
+      }
+      if (count + more > buffer.length)
+        buffer = Arrays.copyOf(buffer, Math.min(maxBytes, Math.max(count + more, buffer.length * 2)));
+      return true;
+    }
+
+    /** Whether the whole body was read through, and copied. */
+    public boolean isComplete() {
+      return !overflowed && (eof || count == contentLength);
+    }
+  }
+}
@@ -1,50 +1,54 @@
 package org.mitre.dsmiley.httpproxy;
 
-import org.apache.http.NameValuePair;
-import org.apache.http.client.utils.URIUtils;
-import org.apache.http.client.utils.URLEncodedUtils;
-
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.net.URI;
-import java.net.URISyntaxException;
+import java.io.UnsupportedEncodingException;
 import java.util.*;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import static java.lang.String.format;
 
 /**
  * A proxy servlet in which the target URI is templated from incoming request parameters. The
- * format adheres to the <a href="http://tools.ietf.org/html/rfc6570">URI Template RFC</a>, "Level
- * 1". Example:
+ * format adheres to the <a href="http://tools.ietf.org/html/rfc6570">URI Template RFC</a>, up to
+ * "Level 4", plus a {@code =default} extension; see {@link UriTemplate}. Example:
  * <pre>
- *   targetUri = http://{host}:{port}/{path}
+ *   targetUri = http://{host}:{port=8080}/{+path}{?version}
  * </pre>
- * --which has the template variables.  The incoming request must contain query args of these
- * names.  They are removed when the request is sent to the target.
+ * --which has the template variables.  The incoming request must contain query args or headers of
+ * these names (a header wins over a query arg).  They are removed when the request is sent to the
+ * target.  A repeated query arg is a list value, e.g. for {@code {/segments*}}.
+ * <p>
+ *   The template is compiled once in {@link #initTarget()}. Note that, unlike the RFC, a simple
+ *   {@code {var}} expansion inserts its value as-is, as the earlier regex-based substitution did;
+ *   the operators, e.g. {@code {+var}} and {@code {/var}}, percent-encode per the RFC. A query or
+ *   fragment the template expands to, e.g. with {@code {?version}}, goes after the path info, the
+ *   query ahead of the request's other query args.
+ * </p>
  */
 public class URITemplateProxyServlet extends ProxyServlet {
-/* Rich:
- * It might be a nice addition to have some syntax that allowed a proxy arg to be "optional", that is,
- * don't fail if not present, just return the empty string or a given default. But I don't see
- * anything in the spec that supports this kind of construct.
- * Notionally, it might look like {?host:google.com} would return the value of
- * the URL parameter "?hostProxyArg=somehost.com" if defined, but if not defined, return "google.com".
- * Similarly, {?host} could return the value of hostProxyArg or empty string if not present.
- * But that's not how the spec works. So for now we will require a proxy arg to be present
- * if defined for this proxy URL.
- */
+
+  /** @deprecated no longer used; templates are parsed by {@link UriTemplate}. */
+  @Deprecated
   protected static final Pattern TEMPLATE_PATTERN = Pattern.compile("(\\{([a-zA-Z0-9-_%.]+)\\})");
   private static final String ATTR_QUERY_STRING =
           URITemplateProxyServlet.class.getSimpleName() + ".queryString";
   private static final String ATTR_REQUEST_HEADERS =
           URITemplateProxyServlet.class.getSimpleName() + ".requestHeaders";
+  private static final String ATTR_FRAGMENT =
+          URITemplateProxyServlet.class.getSimpleName() + ".fragment";
+
+  /** An integer parameter name for the maximum number of expanded target URIs to keep parsed. */
+  public static final String P_TARGET_CACHE_SIZE = "targetCacheSize";
 
   protected String targetUriTemplate;//has {name} parts
   protected String targetUriTemplateProperty;
+  protected UriTemplate targetUriTemplateObj;//UriTemplate.compile(targetUriTemplate)
+  private VariableNames targetVariableNames;
+  /** Expanded target URI to its URI, host, and route. */
+  protected TargetCache targetCache;
 
   @Override
   protected void initTarget() throws ServletException {
@@ -60,6 +64,16 @@ public class URITemplateProxyServlet extends ProxyServlet {
     if (targetUriTemplate == null)
       throw new ServletException(P_TARGET_URI + " is required.");
 
+    try {
+      targetUriTemplateObj = UriTemplate.compile(targetUriTemplate);
+    } catch (IllegalArgumentException e) {
+      throw new ServletException("Trying to process targetUri init parameter: "+e,e);
+    }
+    targetVariableNames = new VariableNames(targetUriTemplateObj.getVariableNames());
+
+    String cacheSizeStr = getConfigParam(P_TARGET_CACHE_SIZE);
+    targetCache = new TargetCache(cacheSizeStr != null ? Integer.parseInt(cacheSizeStr) : 1000);
+
     //leave this.target* null to prevent accidental mis-use
   }
 
@@ -67,116 +81,238 @@ public class URITemplateProxyServlet extends ProxyServlet {
   protected void service(HttpServletRequest servletRequest, HttpServletResponse servletResponse)
           throws ServletException, IOException {
 
-    List<NameValuePair> variablesFromQueryString = getVariablesFromQueryString(servletRequest);
-    LinkedHashMap<String, String> variablesFromRequestHeaders = getVariablesFromRequestHeaders(servletRequest);
-    List<String> replacedQueryStringKeys = new ArrayList<String>();
-    List<String> replacedHeaderKeys = new ArrayList<String>();
-
-    //Now rewrite the URL
-    StringBuffer urlBuf = replaceVariables(targetUriTemplate, variablesFromQueryString, variablesFromRequestHeaders, replacedQueryStringKeys, replacedHeaderKeys);
-
+    //The path info is only templated if it looks like it has an expression
     String pathInfo = (servletRequest.getPathInfo() != null ? servletRequest.getPathInfo() : "");
-    StringBuffer replacedPathInfo = replaceVariables(pathInfo, variablesFromQueryString, variablesFromRequestHeaders, replacedQueryStringKeys, replacedHeaderKeys);
-
-    String newTargetUri = urlBuf.toString();
+    UriTemplate pathInfoTemplate = null;
+    if (pathInfo.indexOf('{') >= 0) {
+      try {
+        pathInfoTemplate = UriTemplate.compile(pathInfo);
+      } catch (IllegalArgumentException e) {
+        //not a template after all; leave it be
+      }
+    }
+    VariableNames names = targetVariableNames;
+    if (pathInfoTemplate != null && !targetUriTemplateObj.getVariableNames().containsAll(pathInfoTemplate.getVariableNames())) {
+      Set<String> allNames = new LinkedHashSet<String>(targetUriTemplateObj.getVariableNames());
+      allNames.addAll(pathInfoTemplate.getVariableNames());
+      names = new VariableNames(allNames);
+    }
 
-    servletRequest.setAttribute(ATTR_TARGET_URI, newTargetUri);
-    servletRequest.setAttribute(ATTR_TARGET_PATH, replacedPathInfo.toString());
+    TemplateVariables variables = new TemplateVariables(servletRequest, names);
 
-    URI targetUriObj;
-    try {
-      targetUriObj = new URI(newTargetUri);
-    } catch (Exception e) {
-      throw new ServletException("Rewritten targetUri is invalid: " + newTargetUri,e);
+    //Now rewrite the URL
+    String newTargetUri = targetUriTemplateObj.expand(variables);
+    if (pathInfoTemplate != null)
+      pathInfo = pathInfoTemplate.expand(variables);
+    //split off a query and fragment, e.g. from {?version}, to go after the path info
+    String targetFragment = null;
+    int fragIdx = newTargetUri.indexOf('#');
+    if (fragIdx >= 0) {
+      targetFragment = newTargetUri.substring(fragIdx + 1);
+      newTargetUri = newTargetUri.substring(0, fragIdx);
+    }
+    String targetQuery = null;
+    int queryIdx = newTargetUri.indexOf('?');
+    if (queryIdx >= 0) {
+      targetQuery = newTargetUri.substring(queryIdx + 1);
+      newTargetUri = newTargetUri.substring(0, queryIdx);
     }
-    servletRequest.setAttribute(ATTR_TARGET_HOST, URIUtils.extractHost(targetUriObj));
-
-    for (String key : replacedHeaderKeys) {variablesFromRequestHeaders.remove(key);}
 
-    //Determine the new query string based on removing the used names
-    StringBuilder newQueryBuf = new StringBuilder(128);
-    for (NameValuePair nameVal : variablesFromQueryString) {
-      //Ignore replaced query parameters
-      if(replacedQueryStringKeys.contains(nameVal.getName())) {
-        continue;
+    TargetCache.Target target = targetCache.resolve(newTargetUri);
+    if (target.getError() != null) {
+      //most likely a missing or bad template variable from the client
+      if (doLog) {
+        log("Rewritten targetUri is invalid: " + newTargetUri + " -- " + target.getError());
       }
-      if (newQueryBuf.length() > 0)
-        newQueryBuf.append('&');
-      newQueryBuf.append(nameVal.getName()).append('=');
-      if (nameVal.getValue() != null)
-        newQueryBuf.append(nameVal.getValue());
+      servletResponse.sendError(HttpServletResponse.SC_BAD_REQUEST, "Rewritten targetUri is invalid");
+      return;
     }
-    servletRequest.setAttribute(ATTR_QUERY_STRING, newQueryBuf.toString());
-    servletRequest.setAttribute(ATTR_REQUEST_HEADERS, variablesFromRequestHeaders.keySet());
+
+    servletRequest.setAttribute(ATTR_TARGET_URI, newTargetUri);
+    servletRequest.setAttribute(ATTR_TARGET_PATH, pathInfo);
+    servletRequest.setAttribute(ATTR_TARGET_HOST, target.getHost());
+    servletRequest.setAttribute(ATTR_TARGET_ROUTE, target.getRouteKey());
+
+    //The new query string is the template's, then the old one less the template variables
+    String queryString = variables.getForwardedQueryString();
+    if (targetQuery != null && targetQuery.length() > 0)
+      queryString = queryString == null || queryString.length() == 0 ? targetQuery : targetQuery + '&' + queryString;
+    servletRequest.setAttribute(ATTR_QUERY_STRING, queryString);
+    servletRequest.setAttribute(ATTR_FRAGMENT, targetFragment);
+    servletRequest.setAttribute(ATTR_REQUEST_HEADERS, variables.consumedHeaders);
 
     super.service(servletRequest, servletResponse);
   }
 
-  private StringBuffer replaceVariables(String sourceString, List<NameValuePair> variablesFromQueryString, LinkedHashMap<String, String> variablesFromRequestHeaders, List<String> replacedQueryStringKeys, List<String> replacedHeaderKeys) {
-    StringBuffer urlBuf = new StringBuffer();//note: StringBuilder isn't supported by Matcher
-    Matcher matcher = TEMPLATE_PATTERN.matcher(sourceString);
-    while (matcher.find()) {
-      String arg = matcher.group(2);
-      String replacement = getValueFor(variablesFromQueryString, arg);//note we remove
-      replacedQueryStringKeys.add(arg);
-      if (variablesFromRequestHeaders.containsKey(arg)) {
-        replacement = variablesFromRequestHeaders.get(arg);
-        replacedHeaderKeys.add(arg);
+  /** The cache of parsed target URIs, whose hit rate may be of interest. */
+  public TargetCache getTargetCache() {
+    return targetCache;
+  }
+
+  /** Adds the template and the target cache's statistics. */
+  @Override
+  protected void collectMetrics(Map<String, Object> servletMetrics) {
+    super.collectMetrics(servletMetrics);
+    servletMetrics.put("targetUriTemplate", targetUriTemplate);
+    servletMetrics.put("targetCacheSize", targetCache.getSize());
+    servletMetrics.put("targetCacheHits", targetCache.getHitCount());
+    servletMetrics.put("targetCacheMisses", targetCache.getMissCount());
+    servletMetrics.put("targetCacheHitRate", targetCache.getHitRate());
+    servletMetrics.put("targetCacheNegativeSize", targetCache.getNegativeSize());
+    servletMetrics.put("targetCacheNegativeHits", targetCache.getNegativeHitCount());
+    servletMetrics.put("targetCacheEvictions", targetCache.getEvictionCount());
+  }
+
+  /** Appends the template's fragment, if any, unless the request has one of its own. */
+  @Override
+  protected String rewriteUrlFromRequest(HttpServletRequest servletRequest) {
+    String uri = super.rewriteUrlFromRequest(servletRequest);
+    String fragment = (String) servletRequest.getAttribute(ATTR_FRAGMENT);
+    if (fragment == null || !doSendUrlFragment || uri.indexOf('#') >= 0)
+      return uri;
+    return uri + '#' + encodeUriQuery(fragment);
+  }
+
+  @Override
+  protected String rewriteQueryStringFromRequest(HttpServletRequest servletRequest, String queryString) {
+    return (String) servletRequest.getAttribute(ATTR_QUERY_STRING);
+  }
+
+  /** Skips any headers that were consumed as template variables. */
+  @Override
+  protected Enumeration getHeadersToCopy(HttpServletRequest servletRequest) {
+    final Enumeration<?> headerNames = super.getHeadersToCopy(servletRequest);
+    @SuppressWarnings("unchecked")
+    final List<String> consumed = (List<String>) servletRequest.getAttribute(ATTR_REQUEST_HEADERS);
+    if (consumed == null || consumed.isEmpty())
+      return headerNames;
+    return new Enumeration<String>() {
+      private String next = advance();
+
+      private String advance() {
+        while (headerNames.hasMoreElements()) {
+          String name = (String) headerNames.nextElement();
+          if (!containsIgnoreCase(consumed, name))
+            return name;
+        }
+        return null;
       }
-      if (replacement == null) {
-        //for now stub the exception, lets simply keep the variable as it is.
-        replacement = matcher.group(1);
-        //throw new ServletException("Missing HTTP parameter " + arg + " to fill the template");
+
+      public boolean hasMoreElements() {
+        return next != null;
       }
-      matcher.appendReplacement(urlBuf, replacement);
+
+      public String nextElement() {
+        if (next == null)
+          throw new NoSuchElementException();
+        String result = next;
+        next = advance();
+        return result;
+      }
+    };
+  }
+
+  private static boolean containsIgnoreCase(List<String> list, String str) {
+    for (int i = 0; i < list.size(); i++) {
+      if (list.get(i).equalsIgnoreCase(str))
+        return true;
     }
-    matcher.appendTail(urlBuf);
-    return urlBuf;
+    return false;
   }
 
-  private String getValueFor(List<NameValuePair> nameValuePairs, String name) {
-    for (NameValuePair nameValuePair: nameValuePairs) {
-      if(nameValuePair.getName().equals(name)) {
-        return nameValuePair.getValue();
+  /**
+   * The template's variable names, in an open-addressing hash table that can be probed with a
+   * range of a larger string (i.e. a query parameter name) without creating a substring.
+   */
+  static final class VariableNames {
+    final String[] names;
+    private final int[] table;//slot + 1, or 0 if empty
+    private final int mask;
+
+    VariableNames(Collection<String> names) {
+      this.names = names.toArray(new String[names.size()]);
+      int capacity = 4;
+      while (capacity < this.names.length * 2)
+        capacity <<= 1;
+      table = new int[capacity];
+      mask = capacity - 1;
+      for (int slot = 0; slot < this.names.length; slot++) {
+        int i = this.names[slot].hashCode() & mask;
+        while (table[i] != 0)
+          i = (i + 1) & mask;
+        table[i] = slot + 1;
       }
     }
-    return null;
-  }
 
-  private StringBuffer replaceVariables(String sourceString, LinkedHashMap<String, String> variablesFromQueryString, LinkedHashMap<String, String> variablesFromRequestHeaders) throws ServletException {
-    //Now rewrite the URL
-    StringBuffer urlBuf = new StringBuffer();//note: StringBuilder isn't supported by Matcher
-    Matcher matcher = TEMPLATE_PATTERN.matcher(sourceString);
-    while (matcher.find()) {
-      String arg = matcher.group(2);
-      String replacement = variablesFromQueryString.remove(arg);//note we remove
-      if (variablesFromRequestHeaders.containsKey(arg))
-        replacement = variablesFromRequestHeaders.remove(arg);
-
-      if (replacement == null) {
-        //for now stub the exception, lets simply keep the variable as it is.
-        replacement = matcher.group(1);
-        //throw new ServletException("Missing HTTP parameter " + arg + " to fill the template");
+    int size() {
+      return names.length;
+    }
+
+    /** The slot of the name equal to {@code str[start, end)}, or -1. */
+    int indexOf(String str, int start, int end) {
+      int h = 0;//same as String.hashCode()
+      for (int i = start; i < end; i++)
+        h = 31 * h + str.charAt(i);
+      final int len = end - start;
+      for (int i = h & mask; table[i] != 0; i = (i + 1) & mask) {
+        String name = names[table[i] - 1];
+        if (name.length() == len && name.regionMatches(0, str, start, len))
+          return table[i] - 1;
       }
-      matcher.appendReplacement(urlBuf, replacement);
+      return -1;
     }
-    matcher.appendTail(urlBuf);
-    return urlBuf;
   }
 
-  private LinkedHashMap<String, String> getVariablesFromRequestHeaders(HttpServletRequest servletRequest) {
+  private static final Object UNRESOLVED = new Object();
+
+  /**
+   * Resolves template variables for one request: from a request header of that name if present
+   * (looked up only for names the template references), otherwise from the query string.  The
+   * query string is parsed in place, once, by index ranges; only values of template variables are
+   * decoded, and the forwarded query string is a slice of the original with those parameters cut
+   * out (the original itself if there are none).  A query arg given more than once is a list.
+   */
+  private static class TemplateVariables implements UriTemplate.Variables {
+    private final HttpServletRequest servletRequest;
+    private final VariableNames names;
+    private final Object[] values;
+    private Object[] queryValues;//null until the query string is parsed
+    private String forwardedQueryString;
+    /** Names of headers used as variables; null if none. */
+    List<String> consumedHeaders;
 
-    LinkedHashMap specialHeaders = new LinkedHashMap();
-    Enumeration headerNames = servletRequest.getHeaderNames();
-    while(headerNames.hasMoreElements()) {
-      String headerName = (String)headerNames.nextElement();
-      specialHeaders.put(headerName, servletRequest.getHeader(headerName));
+    TemplateVariables(HttpServletRequest servletRequest, VariableNames names) {
+      this.servletRequest = servletRequest;
+      this.names = names;
+      this.values = new Object[names.size()];
+      Arrays.fill(values, UNRESOLVED);
+    }
+
+    public Object get(String name) {
+      int slot = names.indexOf(name, 0, name.length());
+      if (slot < 0)
+        return null;
+      Object value = values[slot];
+      if (value == UNRESOLVED) {
+        value = servletRequest.getHeader(name);
+        if (value != null) {
+          if (consumedHeaders == null)
+            consumedHeaders = new ArrayList<String>(names.size());
+          consumedHeaders.add(name);
+        } else {
+          parseQueryString();
+          value = queryValues[slot];
+        }
+        values[slot] = value;
+      }
+      return value;
+    }
+
+    String getForwardedQueryString() {
+      parseQueryString();
+      return forwardedQueryString;
     }
-    return specialHeaders;
-  }
 
-  private List<NameValuePair> getVariablesFromQueryString(HttpServletRequest servletRequest) throws ServletException {
-    //First collect params
     /*
      * Do not use servletRequest.getParameter(arg) because that will
      * typically read and consume the servlet InputStream (where our
@@ -185,30 +321,118 @@ public class URITemplateProxyServlet extends ProxyServlet {
      * we can keep the proxy parameters in the query string and not
      * have to add them to a URL encoded form attachment.
      */
-    String queryString = servletRequest.getQueryString() != null ? "?" + servletRequest.getQueryString() : "";//no "?" but might have "#"
-    int hash = queryString.indexOf('#');
-    if (hash >= 0) {
-      queryString = queryString.substring(0, hash);
-    }
-    List<NameValuePair> pairs;
-    try {
-      //note: HttpClient 4.2 lets you parse the string without building the URI
-      pairs = URLEncodedUtils.parse(new URI(queryString), null);
-    } catch (URISyntaxException e) {
-      throw new ServletException("Unexpected URI parsing error on " + queryString, e);
+    @SuppressWarnings("unchecked")
+    private void parseQueryString() {
+      if (queryValues != null)
+        return;
+      queryValues = new Object[names.size()];
+      String query = servletRequest.getQueryString();//no "?" but might have "#"
+      if (query == null) {
+        forwardedQueryString = "";
+        return;
+      }
+      int len = query.indexOf('#');
+      if (len < 0)
+        len = query.length();
+      StringBuilder forwarded = null;//only created once a parameter is cut out
+      int start = 0;
+      while (start < len) {
+        int end = query.indexOf('&', start);
+        if (end < 0 || end > len)
+          end = len;
+        int eq = query.indexOf('=', start);
+        if (eq < 0 || eq > end)
+          eq = end;
+        int slot = isPlainRange(query, start, eq)
+            ? names.indexOf(query, start, eq)
+            : slotOfEncodedName(decode(query, start, eq));
+        if (slot < 0) {
+          if (forwarded != null) {
+            if (forwarded.length() > 0)
+              forwarded.append('&');
+            forwarded.append(query, start, end);
+          }
+        } else {
+          if (forwarded == null) {
+            forwarded = new StringBuilder(len);
+            forwarded.append(query, 0, Math.max(start - 1, 0));//the params before this one
+          }
+          String value = eq < end ? decode(query, eq + 1, end) : "";
+          Object existing = queryValues[slot];
+          if (existing == null) {
+            queryValues[slot] = value;
+          } else if (existing instanceof List) {
+            ((List<String>) existing).add(value);
+          } else {
+            List<String> list = new ArrayList<String>(4);
+            list.add((String) existing);
+            list.add(value);
+            queryValues[slot] = list;
+          }
+        }
+        start = end + 1;
+      }
+      if (forwarded != null)
+        forwardedQueryString = forwarded.toString();
+      else
+        forwardedQueryString = len == query.length() ? query : query.substring(0, len);
     }
 
-    return pairs;
+    private int slotOfEncodedName(String name) {
+      return names.indexOf(name, 0, name.length());
+    }
   }
 
-  @Override
-  protected String rewriteQueryStringFromRequest(HttpServletRequest servletRequest, String queryString) {
-    return (String) servletRequest.getAttribute(ATTR_QUERY_STRING);
+  /** True if {@code str[start, end)} has nothing to decode. */
+  private static boolean isPlainRange(String str, int start, int end) {
+    for (int i = start; i < end; i++) {
+      char c = str.charAt(i);
+      if (c == '%' || c == '+')
+        return false;
+    }
+    return true;
   }
 
-  @Override
-  protected Enumeration getHeadersToCopy(HttpServletRequest servletRequest) {
-    return Collections.enumeration((Set)servletRequest.getAttribute(ATTR_REQUEST_HEADERS));
+  /**
+   * Decodes {@code str[start, end)} as application/x-www-form-urlencoded UTF-8. Like HttpClient's
+   * URLEncodedUtils, invalid escapes are passed through rather than rejected.
+   */
+  static String decode(String str, int start, int end) {
+    if (isPlainRange(str, start, end))
+      return str.substring(start, end);
+    byte[] bytes = new byte[end - start];
+    int n = 0;
+    for (int i = start; i < end; i++) {
+      char c = str.charAt(i);
+      if (c == '+') {
+        bytes[n++] = ' ';
+      } else if (c == '%' && i + 2 < end && Character.digit(str.charAt(i + 1), 16) >= 0
+          && Character.digit(str.charAt(i + 2), 16) >= 0) {
+        bytes[n++] = (byte) ((Character.digit(str.charAt(i + 1), 16) << 4) + Character.digit(str.charAt(i + 2), 16));
+        i += 2;
+      } else if (c < 128) {
+        bytes[n++] = (byte) c;
+      } else {
+        //already decoded by the container; re-encode as UTF-8
+        int charEnd = Character.isHighSurrogate(c) && i + 1 < end ? i + 2 : i + 1;
+        byte[] encoded;
+        try {
+          encoded = str.substring(i, charEnd).getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+          throw new RuntimeException(e);
+        }
+        if (n + encoded.length > bytes.length)
+          bytes = Arrays.copyOf(bytes, n + encoded.length + (end - i));
+        System.arraycopy(encoded, 0, bytes, n, encoded.length);
+        n += encoded.length;
+        i = charEnd - 1;
+      }
+    }
+    try {
+      return new String(bytes, 0, n, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
   }
 
 }
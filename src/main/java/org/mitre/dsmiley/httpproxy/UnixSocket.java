@@ -0,0 +1,341 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.ProtocolFamily;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketImpl;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * A Unix domain socket connection, as a {@link Socket} so that HttpClient's connections (and
+ * {@link UpgradeTunnel}) can use it like a TCP one. Unix domain socket channels came with Java 16,
+ * and they're reached by reflection so the proxy still builds and runs on Java 7 to 15; see
+ * {@link #isSupported()}. The channel is non-blocking underneath, so that reads and writes can time
+ * out as {@link #setSoTimeout} says; TCP options are ignored.
+ */
+public class UnixSocket extends Socket {
+
+  private static final ProtocolFamily UNIX;
+  private static final Method ADDRESS_OF;//UnixDomainSocketAddress.of(String)
+  private static final Method OPEN_CHANNEL;//SocketChannel.open(ProtocolFamily)
+  private static final Method OPEN_SERVER_CHANNEL;//ServerSocketChannel.open(ProtocolFamily)
+  static {
+    ProtocolFamily unix = null;
+    Method addressOf = null, openChannel = null, openServerChannel = null;
+    try {
+      unix = StandardProtocolFamily.valueOf("UNIX");
+      addressOf = Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class);
+      openChannel = SocketChannel.class.getMethod("open", ProtocolFamily.class);
+      openServerChannel = ServerSocketChannel.class.getMethod("open", ProtocolFamily.class);
+    } catch (Exception e) {
+      unix = null;//before Java 16
+    }
+    UNIX = unix;
+    ADDRESS_OF = addressOf;
+    OPEN_CHANNEL = openChannel;
+    OPEN_SERVER_CHANNEL = openServerChannel;
+  }
+
+  /** Whether this Java has Unix domain socket channels (16 and up). */
+  public static boolean isSupported() {
+    return UNIX != null;
+  }
+
+  /** The address of the socket file at {@code path}. */
+  public static SocketAddress address(String path) throws IOException {
+    return (SocketAddress) invoke(ADDRESS_OF, path);
+  }
+
+  /** A server channel listening on a new socket file at {@code path}; mostly for tests. */
+  public static ServerSocketChannel bind(String path) throws IOException {
+    ServerSocketChannel channel = (ServerSocketChannel) invoke(OPEN_SERVER_CHANNEL, UNIX);
+    channel.bind(address(path));
+    return channel;
+  }
+
+  private static Object invoke(Method method, Object arg) throws IOException {
+    if (!isSupported())
+      throw new IOException("Unix domain sockets need Java 16 or later");
+    try {
+      return method.invoke(null, arg);
+    } catch (InvocationTargetException e) {
+      if (e.getCause() instanceof IOException)
+        throw (IOException) e.getCause();
+      throw new IOException(e.getCause().toString());
+    } catch (IllegalAccessException e) {
+      throw new IOException(e.toString());
+    }
+  }
+
+  private SocketChannel channel;
+  private String path;
+  private int soTimeout;
+  private Selector readSelector;//lazily, the first time a read would block
+  private Selector writeSelector;
+  private final InputStream in = new In();
+  private final OutputStream out = new Out();
+
+  /** An unconnected socket; see {@link #connect(String)}. */
+  public UnixSocket() throws SocketException {
+    super((SocketImpl) null);
+  }
+
+  /** A socket for a connected channel, e.g. one a server accepted. */
+  public UnixSocket(SocketChannel channel) throws IOException {
+    this();
+    setChannel(channel);
+  }
+
+  /** Connects to the socket file at {@code path}. A local connection is made at once, or refused,
+   * so there's no connect timeout. */
+  public void connect(String path) throws IOException {
+    SocketChannel channel = (SocketChannel) invoke(OPEN_CHANNEL, UNIX);
+    try {
+      channel.connect(address(path));
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+    this.path = path;
+    setChannel(channel);
+  }
+
+  private void setChannel(SocketChannel channel) throws IOException {
+    channel.configureBlocking(false);
+    this.channel = channel;
+  }
+
+  /** The socket file's path, if this socket connected to it. */
+  public String getPath() { return path; }
+
+  /** Waits until {@code selector}'s channel is ready, or the timeout passes. */
+  private void await(Selector selector, String what) throws IOException {
+    long deadline = soTimeout > 0 ? System.nanoTime() + soTimeout * 1000000L : 0;
+    for (;;) {
+      long waitMillis = 0;//forever
+      if (deadline != 0) {
+        waitMillis = (deadline - System.nanoTime()) / 1000000L;
+        if (waitMillis <= 0)
+          throw new SocketTimeoutException(what + " timed out");
+      }
+      if (selector.select(waitMillis) > 0) {
+        selector.selectedKeys().clear();
+        return;
+      }
+      if (!channel.isOpen())
+        throw new SocketException("Socket closed");
+    }
+  }
+
+  private class In extends InputStream {
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (len == 0)
+        return 0;
+      ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+      for (;;) {
+        int read = channel.read(buffer);
+        if (read != 0)
+          return read;
+        synchronized (this) {
+          if (readSelector == null) {
+            readSelector = Selector.open();
+            channel.register(readSelector, SelectionKey.OP_READ);
+          }
+        }
+        await(readSelector, "Read");
+      }
+    }
+
+    @Override
+    public int available() throws IOException {
+      return 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+      UnixSocket.this.close();
+    }
+  }
+
+  private class Out extends OutputStream {
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+      while (buffer.hasRemaining()) {
+        if (channel.write(buffer) > 0)
+          continue;
+        synchronized (this) {
+          if (writeSelector == null) {
+            writeSelector = Selector.open();
+            channel.register(writeSelector, SelectionKey.OP_WRITE);
+          }
+        }
+        await(writeSelector, "Write");
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      UnixSocket.this.close();
+    }
+  }
+
+  private void ensureConnected() throws SocketException {
+    if (channel == null)
+      throw new SocketException("Socket is not connected");
+  }
+
+  @Override
+  public InputStream getInputStream() throws IOException {
+    ensureConnected();
+    return in;
+  }
+
+  @Override
+  public OutputStream getOutputStream() throws IOException {
+    ensureConnected();
+    return out;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (channel != null)
+      channel.close();
+    if (readSelector != null)
+      readSelector.close();
+    if (writeSelector != null)
+      writeSelector.close();
+  }
+
+  @Override
+  public boolean isConnected() { return channel != null; }
+
+  @Override
+  public boolean isBound() { return channel != null; }
+
+  @Override
+  public boolean isClosed() { return channel != null && !channel.isOpen(); }
+
+  @Override
+  public void shutdownInput() throws IOException {
+    ensureConnected();
+    channel.shutdownInput();
+  }
+
+  @Override
+  public void shutdownOutput() throws IOException {
+    ensureConnected();
+    channel.shutdownOutput();
+  }
+
+  @Override
+  public boolean isInputShutdown() { return false; }
+
+  @Override
+  public boolean isOutputShutdown() { return false; }
+
+  @Override
+  public void setSoTimeout(int timeout) { soTimeout = timeout; }
+
+  @Override
+  public int getSoTimeout() { return soTimeout; }
+
+  /* No TCP here: the options are ignored, and there are no ports or internet addresses. */
+
+  @Override
+  public void setTcpNoDelay(boolean on) { }
+
+  @Override
+  public boolean getTcpNoDelay() { return true; }
+
+  @Override
+  public void setKeepAlive(boolean on) { }
+
+  @Override
+  public boolean getKeepAlive() { return false; }
+
+  @Override
+  public void setSoLinger(boolean on, int linger) { }
+
+  @Override
+  public int getSoLinger() { return -1; }
+
+  @Override
+  public void setReuseAddress(boolean on) { }
+
+  @Override
+  public boolean getReuseAddress() { return false; }
+
+  @Override
+  public void setSendBufferSize(int size) { }
+
+  @Override
+  public void setReceiveBufferSize(int size) { }
+
+  @Override
+  public void setTrafficClass(int tc) { }
+
+  @Override
+  public InetAddress getInetAddress() { return null; }
+
+  @Override
+  public InetAddress getLocalAddress() { return null; }
+
+  @Override
+  public int getPort() { return 0; }
+
+  @Override
+  public int getLocalPort() { return -1; }
+
+  @Override
+  public SocketAddress getRemoteSocketAddress() { return null; }
+
+  @Override
+  public SocketAddress getLocalSocketAddress() { return null; }
+
+  @Override
+  public String toString() {
+    return "UnixSocket[" + (path != null ? path : channel) + "]";
+  }
+}
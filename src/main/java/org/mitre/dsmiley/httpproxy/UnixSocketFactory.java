@@ -0,0 +1,136 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.conn.SchemePortResolver;
+import org.apache.http.conn.UnsupportedSchemeException;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.conn.routing.HttpRoutePlanner;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.impl.conn.DefaultSchemePortResolver;
+import org.apache.http.impl.conn.SystemDefaultDnsResolver;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+
+/**
+ * Connects HttpClient to targets listening on a Unix domain socket, e.g. a sidecar on the same
+ * host, skipping the loopback TCP stack. Such a target is an {@link HttpHost} with the scheme
+ * {@value #SCHEME} and the socket file's path as its host name, so each socket file is a route of
+ * its own in the connection pool. HttpClient resolves and defaults the port of every target, so
+ * {@link #DNS_RESOLVER} and {@link #SCHEME_PORT_RESOLVER} must be used with it too; they hand out a
+ * placeholder loopback address and port for these targets.
+ * <p>
+ *   In a servlet's {@code targetUri} it's written {@code unix:/path/to/app.sock}, optionally
+ *   followed by {@code :} and a base path: {@code unix:/var/run/app.sock:/api}. See
+ *   {@link #getTargetHost} and {@link #getRequestUri}.
+ * </p>
+ */
+public class UnixSocketFactory implements ConnectionSocketFactory {
+
+  public static final String SCHEME = "unix";
+
+  /** The host name requests to Unix domain socket targets are addressed to, in the Host header and
+   * in the target URI that redirects are rewritten from. */
+  public static final String HOST_NAME = "localhost";
+
+  public static final UnixSocketFactory INSTANCE = new UnixSocketFactory();
+
+  /** Resolves socket file paths (host names starting with /) to a placeholder loopback address,
+   * and other host names as usual. */
+  public static final DnsResolver DNS_RESOLVER = new DnsResolver() {
+    public InetAddress[] resolve(String host) throws UnknownHostException {
+      if (host.startsWith("/"))
+        return new InetAddress[] {InetAddress.getByAddress(host, new byte[] {127, 0, 0, 1})};
+      return SystemDefaultDnsResolver.INSTANCE.resolve(host);
+    }
+  };
+
+  /** Gives {@value #SCHEME} targets a placeholder port, and others their scheme's default. */
+  public static final SchemePortResolver SCHEME_PORT_RESOLVER = new SchemePortResolver() {
+    public int resolve(HttpHost host) throws UnsupportedSchemeException {
+      if (host.getPort() <= 0 && SCHEME.equalsIgnoreCase(host.getSchemeName()))
+        return 80;
+      return DefaultSchemePortResolver.INSTANCE.resolve(host);
+    }
+  };
+
+  /** Routes {@value #SCHEME} targets directly, never through a proxy (which would reject their
+   * URIs), and others as {@code delegate} does. */
+  public static HttpRoutePlanner routePlanner(final HttpRoutePlanner delegate) {
+    return new HttpRoutePlanner() {
+      public HttpRoute determineRoute(HttpHost target, HttpRequest request, HttpContext context)
+          throws HttpException {
+        if (SCHEME.equalsIgnoreCase(target.getSchemeName()))
+          return new HttpRoute(new HttpHost(target.getHostName(), 80, SCHEME));
+        return delegate.determineRoute(target, request, context);
+      }
+    };
+  }
+
+  /** Whether {@code targetUri} names a Unix domain socket. */
+  public static boolean isUnixTargetUri(String targetUri) {
+    return targetUri.startsWith(SCHEME + ":");
+  }
+
+  /** The target host of a {@code unix:} target URI: {@code unix:/var/run/app.sock:/api} is the
+   * host named {@code /var/run/app.sock}. */
+  public static HttpHost getTargetHost(String targetUri) {
+    String rest = stripScheme(targetUri);
+    int pathStart = rest.indexOf(":/");
+    return new HttpHost(pathStart >= 0 ? rest.substring(0, pathStart) : rest, -1, SCHEME);
+  }
+
+  /** The URI that requests to a {@code unix:} target URI are addressed to: for
+   * {@code unix:/var/run/app.sock:/api}, {@code http://localhost/api}. */
+  public static String getRequestUri(String targetUri) {
+    String rest = stripScheme(targetUri);
+    int pathStart = rest.indexOf(":/");
+    String basePath = pathStart >= 0 ? rest.substring(pathStart + 1) : "";
+    if (basePath.endsWith("/"))
+      basePath = basePath.substring(0, basePath.length() - 1);
+    return "http://" + HOST_NAME + basePath;
+  }
+
+  private static String stripScheme(String targetUri) {
+    String rest = targetUri.substring(SCHEME.length() + 1);
+    if (rest.startsWith("//"))//unix:///var/run/app.sock
+      rest = rest.substring(2);
+    if (!rest.startsWith("/"))
+      throw new IllegalArgumentException("Expected unix:/absolute/path.sock[:/base/path]: " + targetUri);
+    return rest;
+  }
+
+  public Socket createSocket(HttpContext context) throws IOException {
+    return new UnixSocket();
+  }
+
+  public Socket connectSocket(int connectTimeout, Socket socket, HttpHost host, InetSocketAddress remoteAddress,
+                              InetSocketAddress localAddress, HttpContext context) throws IOException {
+    UnixSocket unixSocket = socket instanceof UnixSocket ? (UnixSocket) socket : new UnixSocket();
+    unixSocket.connect(host.getHostName());
+    return unixSocket;
+  }
+}
@@ -0,0 +1,453 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpUpgradeHandler;
+import javax.servlet.http.WebConnection;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tunnels an upgraded connection (e.g. a WebSocket) between the client and the target, once both
+ * have agreed to the upgrade: see {@link ProxyServlet#P_TUNNEL_UPGRADE}. The container creates it
+ * from {@link javax.servlet.http.HttpServletRequest#upgrade}, then the servlet hands it the
+ * connection to the target with {@link #connect}, and the container starts it with {@link #init}.
+ * <p>
+ *   The client's bytes are read as they arrive from a {@link ReadListener}, into a queue of up to
+ *   {@value #MAX_QUEUED} buffers that a thread of the servlet's writes to the target; and the
+ *   target's bytes are only read when a {@link WriteListener} says the client can take them. Either
+ *   way a slow reader holds back the writer rather than filling memory. The client's input is only
+ *   touched by the container's threads, since it can't safely be from others; so if the target
+ *   falls that far behind, the container thread reading the client waits for it, up to the idle
+ *   timeout. The target's side is a plain
+ *   socket, read by a thread of the servlet's for as long as the tunnel is open, and written by
+ *   another while there's something to write; buffers come from a {@link BufferPool}. The tunnel
+ *   closes when either side closes or fails, or when nothing has moved either way for the idle
+ *   timeout.
+ * </p>
+ */
+public class UpgradeTunnel implements HttpUpgradeHandler {
+
+  /** The open tunnels of a servlet, and counters across them. */
+  public static class Stats {
+    final Set<UpgradeTunnel> tunnels = Collections.newSetFromMap(new ConcurrentHashMap<UpgradeTunnel, Boolean>());
+    final AtomicInteger open = new AtomicInteger();
+    final AtomicLong opened = new AtomicLong();
+    final AtomicLong bytesFromClient = new AtomicLong();
+    final AtomicLong bytesToClient = new AtomicLong();
+    final AtomicLong idleTimeouts = new AtomicLong();
+
+    /** Takes a place for a tunnel about to be set up, unless {@code maxOpen} are open; the tunnel
+     * holds it from {@link UpgradeTunnel#connect} until it closes. */
+    public boolean reserve(int maxOpen) {
+      for (;;) {
+        int count = open.get();
+        if (count >= maxOpen)
+          return false;
+        if (open.compareAndSet(count, count + 1))
+          return true;
+      }
+    }
+
+    /** Gives back a place taken by {@link #reserve} for a tunnel that wasn't connected. */
+    public void unreserve() {
+      open.decrementAndGet();
+    }
+
+    /** Closes the open tunnels, e.g. when the servlet is destroyed; their threads then finish. */
+    public void closeAll() {
+      for (UpgradeTunnel tunnel : tunnels)
+        tunnel.close(null);
+    }
+
+    /** Open tunnels, including those being set up. */
+    public int getOpenCount() { return open.get(); }
+
+    public long getOpenedCount() { return opened.get(); }
+
+    public long getBytesFromClient() { return bytesFromClient.get(); }
+
+    public long getBytesToClient() { return bytesToClient.get(); }
+
+    public long getIdleTimeoutCount() { return idleTimeouts.get(); }
+  }
+
+  /** How many buffers read from the client may wait to be written to the target. */
+  static final int MAX_QUEUED = 4;
+
+  private Socket socket;
+  private InputStream upstreamIn;
+  private OutputStream upstreamOut;
+  private BufferPool buffers;
+  private Executor executor;
+  private long idleTimeoutNanos;
+  private Stats stats;
+
+  private WebConnection connection;
+  private ServletInputStream clientIn;
+  private ServletOutputStream clientOut;
+
+  private final AtomicBoolean closed = new AtomicBoolean();
+  private volatile long lastActivity;
+  private volatile Throwable failure;
+  private final Object writeLock = new Object();
+  private boolean clientWritable;//guarded by writeLock
+  private final AtomicLong bytesFromClient = new AtomicLong();
+  private final AtomicLong bytesToClient = new AtomicLong();
+  private final Object upstreamLock = new Object();
+  //read from the client, for writeToUpstream; guarded by upstreamLock
+  private final ArrayDeque<ByteBuffer> toUpstream = new ArrayDeque<ByteBuffer>(MAX_QUEUED);
+  private boolean writingUpstream;//guarded by upstreamLock
+  private boolean clientEnded;//guarded by upstreamLock
+  private final Runnable upstreamWriter = new Runnable() {
+    public void run() {
+      writeToUpstream();
+    }
+  };
+
+  /** Hands the tunnel its connection to the target, on which the upgrade was agreed, and the place
+   * {@link Stats#reserve reserved} for it in {@code stats}.
+   * {@code upstreamIn} reads from it, starting with anything the target sent after its response.
+   * A thread from {@code executor} reads it for as long as the tunnel is open, and another writes
+   * to it while there's something to write, so the executor needs two threads per tunnel.
+   * @param idleTimeoutMillis 0 for none
+   */
+  public void connect(Socket socket, InputStream upstreamIn, BufferPool buffers, Executor executor,
+                      long idleTimeoutMillis, Stats stats) throws IOException {
+    this.socket = socket;
+    this.upstreamIn = upstreamIn;
+    this.upstreamOut = socket.getOutputStream();
+    this.buffers = buffers;
+    this.executor = executor;
+    this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+    this.stats = stats;
+    socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, idleTimeoutMillis));
+    lastActivity = System.nanoTime();
+    stats.opened.incrementAndGet();
+    stats.tunnels.add(this);
+  }
+
+  public void init(WebConnection webConnection) {
+    connection = webConnection;
+    if (socket == null) {//never connected
+      closed.set(true);
+      closeConnection();
+      return;
+    }
+    try {
+      clientIn = webConnection.getInputStream();
+      clientOut = webConnection.getOutputStream();
+      clientOut.setWriteListener(new ClientWriter());
+      clientIn.setReadListener(new ClientReader());
+      executor.execute(new Runnable() {
+        public void run() {
+          pumpFromUpstream();
+        }
+      });
+    } catch (Exception e) {//including RejectedExecutionException when the servlet is destroyed
+      close(e);
+    }
+  }
+
+  public void destroy() {
+    close(null);
+  }
+
+  /** Copies the target's bytes to the client, reading only while the client can take them. */
+  private void pumpFromUpstream() {
+    byte[] buffer = buffers.acquire();
+    Throwable pumpFailure = null;
+    try {
+      while (awaitClientWritable()) {
+        int read;
+        try {
+          read = upstreamIn.read(buffer);
+        } catch (SocketTimeoutException e) {
+          if (isIdle()) {
+            stats.idleTimeouts.incrementAndGet();
+            break;
+          }
+          continue;
+        }
+        if (read < 0) {
+          awaitClientWritable();//let the last write finish
+          break;
+        }
+        lastActivity = System.nanoTime();
+        clientOut.write(buffer, 0, read);
+        bytesToClient.addAndGet(read);
+        stats.bytesToClient.addAndGet(read);
+        synchronized (writeLock) {
+          //if not ready, the container calls onWritePossible once it is
+          if (clientOut.isReady()) {
+            clientOut.flush();
+            clientWritable = clientOut.isReady();
+          } else {
+            clientWritable = false;
+          }
+        }
+      }
+    } catch (Exception e) {
+      pumpFailure = e;
+    } finally {
+      //the container doesn't hold on to a buffer it's done writing
+      buffers.release(buffer);
+      close(pumpFailure);
+    }
+  }
+
+  /** Waits for the client to be writable. False if the tunnel closed or went idle meanwhile. */
+  private boolean awaitClientWritable() throws InterruptedException {
+    synchronized (writeLock) {
+      while (!clientWritable) {
+        if (closed.get())
+          return false;
+        if (idleTimeoutNanos <= 0) {
+          writeLock.wait();
+          continue;
+        }
+        long waitNanos = idleTimeoutNanos - (System.nanoTime() - lastActivity);
+        if (waitNanos <= 0) {
+          stats.idleTimeouts.incrementAndGet();
+          return false;
+        }
+        TimeUnit.NANOSECONDS.timedWait(writeLock, waitNanos);
+      }
+      return !closed.get();
+    }
+  }
+
+  private boolean isIdle() {
+    return idleTimeoutNanos > 0 && System.nanoTime() - lastActivity >= idleTimeoutNanos;
+  }
+
+  private class ClientWriter implements WriteListener {
+    public void onWritePossible() {
+      synchronized (writeLock) {
+        clientWritable = true;
+        writeLock.notifyAll();
+      }
+    }
+
+    public void onError(Throwable t) {
+      close(t);
+    }
+  }
+
+  private class ClientReader implements ReadListener {
+    public void onDataAvailable() {
+      readFromClient();
+    }
+
+    public void onAllDataRead() {
+      endFromClient();
+    }
+
+    public void onError(Throwable t) {
+      close(t);
+    }
+  }
+
+  /** Reads the client's bytes as they arrive and queues them for {@link #writeToUpstream}, until
+   * the client has no more ready (the container calls again when it has). Called only by the
+   * container: another thread asking the client's input if it's ready could overwrite the
+   * container's answer with a stale one, and then the container would never call again. */
+  private void readFromClient() {
+    try {
+      while (!closed.get() && clientIn.isReady()) {
+        if (!awaitRoomToUpstream())
+          return;
+        byte[] buffer = buffers.acquire();
+        int read;
+        try {
+          read = clientIn.read(buffer);
+        } catch (IOException e) {
+          buffers.release(buffer);
+          throw e;
+        }
+        if (read < 0) {
+          buffers.release(buffer);
+          endFromClient();
+          return;
+        }
+        lastActivity = System.nanoTime();
+        bytesFromClient.addAndGet(read);
+        stats.bytesFromClient.addAndGet(read);
+        boolean startWriter;
+        synchronized (upstreamLock) {
+          toUpstream.addLast(ByteBuffer.wrap(buffer, 0, read));
+          startWriter = !writingUpstream;
+          writingUpstream = true;
+        }
+        if (startWriter)
+          executor.execute(upstreamWriter);
+      }
+    } catch (Exception e) {//including RejectedExecutionException when the servlet is destroyed
+      close(e);
+    }
+  }
+
+  /** Waits for room in the queue to the target. False if the tunnel closed or went idle meanwhile,
+   * in which case it's closed. */
+  private boolean awaitRoomToUpstream() throws InterruptedException {
+    synchronized (upstreamLock) {
+      while (toUpstream.size() >= MAX_QUEUED && !closed.get()) {
+        if (idleTimeoutNanos <= 0) {
+          upstreamLock.wait();
+          continue;
+        }
+        long waitNanos = idleTimeoutNanos - (System.nanoTime() - lastActivity);
+        if (waitNanos <= 0) {
+          stats.idleTimeouts.incrementAndGet();
+          break;
+        }
+        TimeUnit.NANOSECONDS.timedWait(upstreamLock, waitNanos);
+      }
+      if (toUpstream.size() < MAX_QUEUED && !closed.get())
+        return true;
+    }
+    close(null);
+    return false;
+  }
+
+  /** The client won't send more; once what it sent is written, the target is told. */
+  private void endFromClient() {
+    boolean startWriter;
+    synchronized (upstreamLock) {
+      if (clientEnded)
+        return;
+      clientEnded = true;
+      startWriter = !writingUpstream;
+      writingUpstream = true;
+    }
+    if (startWriter) {
+      try {
+        executor.execute(upstreamWriter);
+      } catch (Exception e) {
+        close(e);
+      }
+    }
+  }
+
+  /** Writes what {@link #readFromClient} queues to the target, on a thread of the tunnel's, until
+   * there's nothing left; then passes on the client's half-close, if it ended. */
+  private void writeToUpstream() {
+    try {
+      while (!closed.get()) {
+        ByteBuffer chunk;
+        boolean shutdown = false;
+        synchronized (upstreamLock) {
+          chunk = toUpstream.pollFirst();
+          if (chunk != null) {
+            upstreamLock.notifyAll();//there's room for readFromClient
+          } else {
+            writingUpstream = false;
+            if (!clientEnded)
+              return;
+            shutdown = true;
+          }
+        }
+        if (shutdown) {
+          //pass the client's half-close on; the target closing its side then closes the tunnel
+          try {
+            socket.shutdownOutput();
+          } catch (Exception e) {//e.g. unsupported by SSL sockets
+            close(null);
+          }
+          return;
+        }
+        try {
+          upstreamOut.write(chunk.array(), chunk.position(), chunk.remaining());
+        } finally {
+          buffers.release(chunk.array());
+        }
+        lastActivity = System.nanoTime();
+      }
+    } catch (IOException e) {
+      close(e);
+    }
+  }
+
+  private void close(Throwable cause) {
+    if (!closed.compareAndSet(false, true))
+      return;
+    failure = cause;
+    synchronized (writeLock) {
+      writeLock.notifyAll();
+    }
+    synchronized (upstreamLock) {
+      for (ByteBuffer chunk : toUpstream)
+        buffers.release(chunk.array());
+      toUpstream.clear();
+      upstreamLock.notifyAll();
+    }
+    closeConnection();
+    if (socket == null)
+      return;
+    try {
+      socket.close();//ends the threads reading and writing it
+    } catch (IOException e) {
+      //ignore
+    }
+    stats.tunnels.remove(this);
+    stats.open.decrementAndGet();
+  }
+
+  private void closeConnection() {
+    if (connection == null)
+      return;
+    try {
+      connection.close();
+    } catch (Exception e) {
+      //ignore
+    }
+  }
+
+  public boolean isClosed() {
+    return closed.get();
+  }
+
+  /** Why the tunnel closed, if it failed. */
+  public Throwable getFailure() {
+    return failure;
+  }
+
+  public long getBytesFromClient() {
+    return bytesFromClient.get();
+  }
+
+  public long getBytesToClient() {
+    return bytesToClient.get();
+  }
+}
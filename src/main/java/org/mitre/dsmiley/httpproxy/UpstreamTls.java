@@ -0,0 +1,193 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.conn.ssl.X509HostnameVerifier;
+import org.apache.http.protocol.HttpContext;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The TLS side of connections to https targets: one {@link SSLContext}, so that the connections a
+ * servlet opens to a target share its client session cache and resume sessions (an abbreviated
+ * handshake) rather than each doing a full handshake, plus the protocols, cipher suites and
+ * hostname verification to use. Its {@link #getSocketFactory socket factory} counts handshakes,
+ * and times them. See {@link ProxyServlet#P_TLS_TRUST_STORE} and the other {@code P_TLS_*}
+ * parameters.
+ */
+public class UpstreamTls {
+
+  private final SSLContext sslContext;
+  private final SocketFactory socketFactory;
+
+  private final AtomicLong handshakes = new AtomicLong();
+  private final AtomicLong resumed = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+  private final LatencyHistogram handshakeTime = new LatencyHistogram();
+
+  /**
+   * @param protocols    the enabled protocols (e.g. TLSv1.2), or null for the context's default
+   * @param cipherSuites the enabled cipher suites, or null for the context's default
+   */
+  public UpstreamTls(SSLContext sslContext, String[] protocols, String[] cipherSuites,
+                     X509HostnameVerifier hostnameVerifier) {
+    this.sslContext = sslContext;
+    this.socketFactory = new SocketFactory(sslContext, protocols, cipherSuites, hostnameVerifier);
+  }
+
+  /** Like HttpClient's system socket factory: the default context, and the {@code https.protocols}
+   * and {@code https.cipherSuites} system properties. */
+  public static UpstreamTls createDefault() throws GeneralSecurityException {
+    return new UpstreamTls(SSLContext.getDefault(), split(System.getProperty("https.protocols")),
+        split(System.getProperty("https.cipherSuites")),
+        SSLConnectionSocketFactory.BROWSER_COMPATIBLE_HOSTNAME_VERIFIER);
+  }
+
+  /**
+   * A TLS context of its own, with its own session cache.
+   * @param keyStore          the client's key and certificate, for targets that ask for one; or
+   *                          null for none
+   * @param trustStore        the certificates of trusted targets (or their CAs); or null for the
+   *                          JVM's default
+   * @param sessionCacheSize  the most sessions cached, or -1 for the JVM's default; 0 is no limit
+   * @param sessionTimeout    seconds a cached session may be resumed for, or -1 for the JVM's
+   *                          default; 0 is no limit
+   */
+  public static SSLContext createSslContext(File keyStore, String keyStorePassword, String keyStoreType,
+                                            File trustStore, String trustStorePassword, String trustStoreType,
+                                            int sessionCacheSize, int sessionTimeout)
+      throws GeneralSecurityException, IOException {
+    KeyManagerFactory keyManagerFactory = null;
+    if (keyStore != null) {
+      char[] password = keyStorePassword != null ? keyStorePassword.toCharArray() : null;
+      keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+      keyManagerFactory.init(loadKeyStore(keyStore, password, keyStoreType), password);
+    }
+    TrustManagerFactory trustManagerFactory = null;
+    if (trustStore != null) {
+      char[] password = trustStorePassword != null ? trustStorePassword.toCharArray() : null;
+      trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+      trustManagerFactory.init(loadKeyStore(trustStore, password, trustStoreType));
+    }
+    SSLContext sslContext = SSLContext.getInstance("TLS");
+    sslContext.init(keyManagerFactory != null ? keyManagerFactory.getKeyManagers() : null,
+        trustManagerFactory != null ? trustManagerFactory.getTrustManagers() : null, null);
+    if (sessionCacheSize >= 0)
+      sslContext.getClientSessionContext().setSessionCacheSize(sessionCacheSize);
+    if (sessionTimeout >= 0)
+      sslContext.getClientSessionContext().setSessionTimeout(sessionTimeout);
+    return sslContext;
+  }
+
+  private static KeyStore loadKeyStore(File file, char[] password, String type)
+      throws GeneralSecurityException, IOException {
+    if (type == null) {
+      String name = file.getName().toLowerCase();
+      type = name.endsWith(".p12") || name.endsWith(".pfx") ? "PKCS12" : KeyStore.getDefaultType();
+    }
+    KeyStore keyStore = KeyStore.getInstance(type);
+    InputStream in = new FileInputStream(file);
+    try {
+      keyStore.load(in, password);
+    } finally {
+      in.close();
+    }
+    return keyStore;
+  }
+
+  /** The hostname verifier named {@code policy}: "strict", "browser" (like browsers, the default)
+   * or "none" (no verification; only trust certificates for this target's name then). */
+  public static X509HostnameVerifier getHostnameVerifier(String policy) {
+    if (policy == null || policy.equalsIgnoreCase("browser"))
+      return SSLConnectionSocketFactory.BROWSER_COMPATIBLE_HOSTNAME_VERIFIER;
+    if (policy.equalsIgnoreCase("strict"))
+      return SSLConnectionSocketFactory.STRICT_HOSTNAME_VERIFIER;
+    if (policy.equalsIgnoreCase("none"))
+      return SSLConnectionSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER;
+    throw new IllegalArgumentException("Unknown hostname verification: " + policy);
+  }
+
+  /** Splits a comma separated list, or returns null for null or blank. */
+  public static String[] split(String list) {
+    if (list == null || list.trim().length() == 0)
+      return null;
+    String[] items = list.split(",");
+    for (int i = 0; i < items.length; i++)
+      items[i] = items[i].trim();
+    return items;
+  }
+
+  public SSLContext getSslContext() { return sslContext; }
+
+  /** The socket factory for https connections; it counts and times their handshakes. */
+  public SSLConnectionSocketFactory getSocketFactory() { return socketFactory; }
+
+  /** Full handshakes. */
+  public long getHandshakeCount() { return handshakes.get(); }
+
+  /** Abbreviated handshakes, which resumed a cached session. */
+  public long getResumedCount() { return resumed.get(); }
+
+  /** Handshakes that failed, e.g. an untrusted certificate or the wrong host name. */
+  public long getFailureCount() { return failures.get(); }
+
+  /** How long handshakes (full and abbreviated) took, in microseconds. */
+  public LatencyHistogram getHandshakeTime() { return handshakeTime; }
+
+  private class SocketFactory extends SSLConnectionSocketFactory {
+
+    SocketFactory(SSLContext sslContext, String[] protocols, String[] cipherSuites,
+                  X509HostnameVerifier hostnameVerifier) {
+      super(sslContext.getSocketFactory(), protocols, cipherSuites, hostnameVerifier);
+    }
+
+    @Override
+    public Socket createLayeredSocket(Socket socket, String target, int port, HttpContext context)
+        throws IOException {
+      long startMillis = System.currentTimeMillis();
+      long start = System.nanoTime();
+      Socket sslSocket;
+      try {
+        sslSocket = super.createLayeredSocket(socket, target, port, context);//handshakes and verifies
+      } catch (IOException e) {
+        failures.incrementAndGet();
+        throw e;
+      }
+      handshakeTime.record((System.nanoTime() - start) / 1000);
+      SSLSession session = ((SSLSocket) sslSocket).getSession();
+      //a resumed session was created by an earlier handshake
+      if (session.getCreationTime() < startMillis)
+        resumed.incrementAndGet();
+      else
+        handshakes.incrementAndGet();
+      return sslSocket;
+    }
+  }
+}
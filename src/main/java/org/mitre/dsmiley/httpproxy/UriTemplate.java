@@ -0,0 +1,386 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A <a href="http://tools.ietf.org/html/rfc6570">URI Template</a>, compiled once into a list of
+ * literal and expression segments so that expanding it is a single pass with no regex matching.
+ * All four levels of the RFC are supported: simple {@code {var}}, reserved {@code {+var}} and
+ * fragment {@code {#var}} expansion, the label, path, path-parameter, query and query-continuation
+ * operators ({@code . / ; ? &}), multiple variables per expression, the prefix modifier
+ * {@code {var:3}} and the explode modifier {@code {var*}}.
+ * <p>
+ *   As an extension, a varspec may end with {@code =default}, e.g. {@code {_port=8080}}, which is
+ *   used when the variable is undefined.
+ * </p>
+ * <p>
+ *   Unlike the RFC, a simple (operator-less) expression none of whose variables are defined is
+ *   left in the output as-is, e.g. {@code {host}}, rather than expanding to the empty string. This
+ *   is what {@link URITemplateProxyServlet} has always done with missing parameters. Likewise,
+ *   values of simple expressions are inserted raw rather than percent-encoded, so that e.g.
+ *   {@code {_hostport}} may hold {@code host:8080} and {@code {_path}} may hold {@code a/b}; use
+ *   {@code {+var}} or another operator for RFC encoding.
+ * </p>
+ * Instances are immutable and thread-safe.
+ *
+ * @see URITemplateProxyServlet
+ */
+public class UriTemplate {
+
+  /** Supplies variable values during expansion. */
+  public interface Variables {
+    /**
+     * Returns the value of the variable named {@code name}: a String, a {@code List<String>}, or
+     * null if undefined.
+     */
+    Object get(String name);
+  }
+
+  private final String template;
+  private final Object[] segments;//String literal or Expression
+  private final Set<String> variableNames;
+
+  private UriTemplate(String template, Object[] segments, Set<String> variableNames) {
+    this.template = template;
+    this.segments = segments;
+    this.variableNames = variableNames;
+  }
+
+  /**
+   * Parses {@code template}.
+   * @throws IllegalArgumentException if the template is malformed (e.g. an unclosed brace).
+   */
+  public static UriTemplate compile(String template) {
+    List<Object> segments = new ArrayList<Object>();
+    Set<String> names = new LinkedHashSet<String>();
+    int pos = 0;
+    while (pos < template.length()) {
+      int open = template.indexOf('{', pos);
+      if (open < 0) {
+        segments.add(template.substring(pos));
+        break;
+      }
+      if (open > pos)
+        segments.add(template.substring(pos, open));
+      int close = template.indexOf('}', open);
+      if (close < 0)
+        throw new IllegalArgumentException("Unclosed expression at position " + open + " of template: " + template);
+      Expression expression = Expression.parse(template, open, close);
+      for (VarSpec varSpec : expression.varSpecs)
+        names.add(varSpec.name);
+      segments.add(expression);
+      pos = close + 1;
+    }
+    return new UriTemplate(template, segments.toArray(), Collections.unmodifiableSet(names));
+  }
+
+  /** The template as given to {@link #compile(String)}. */
+  public String getTemplate() {
+    return template;
+  }
+
+  /** The names of all variables referenced by this template, in order of first appearance. */
+  public Set<String> getVariableNames() {
+    return variableNames;
+  }
+
+  /** True if this template has no expressions, and so always expands to itself. */
+  public boolean isLiteral() {
+    return variableNames.isEmpty();
+  }
+
+  public String expand(Variables variables) {
+    StringBuilder buf = new StringBuilder(template.length() + 64);
+    expand(variables, buf);
+    return buf.toString();
+  }
+
+  /** Expands this template with {@code variables}, appending to {@code buf}. */
+  public void expand(Variables variables, StringBuilder buf) {
+    for (Object segment : segments) {
+      if (segment instanceof String)
+        buf.append((String) segment);
+      else
+        ((Expression) segment).expand(variables, buf);
+    }
+  }
+
+  @Override
+  public String toString() {
+    return template;
+  }
+
+  /* PARSED FORM */
+
+  /** Per RFC 6570 appendix A. */
+  private enum Operator {
+    SIMPLE(   '\0', "",  ",", false, "",  false),
+    RESERVED( '+',  "",  ",", false, "",  true),
+    FRAGMENT( '#',  "#", ",", false, "",  true),
+    LABEL(    '.',  ".", ".", false, "",  false),
+    PATH(     '/',  "/", "/", false, "",  false),
+    PATH_PARAM(';', ";", ";", true,  "",  false),
+    QUERY(    '?',  "?", "&", true,  "=", false),
+    QUERY_CONT('&', "&", "&", true,  "=", false);
+
+    final char symbol;
+    final String first;
+    final String separator;
+    final boolean named;
+    final String ifEmpty;
+    final boolean allowReserved;
+
+    Operator(char symbol, String first, String separator, boolean named, String ifEmpty, boolean allowReserved) {
+      this.symbol = symbol;
+      this.first = first;
+      this.separator = separator;
+      this.named = named;
+      this.ifEmpty = ifEmpty;
+      this.allowReserved = allowReserved;
+    }
+
+    static Operator forSymbol(char c) {
+      for (Operator op : values()) {
+        if (op.symbol == c && c != '\0')
+          return op;
+      }
+      return null;
+    }
+  }
+
+  private static class VarSpec {
+    final String name;
+    final int prefix;//-1 if none
+    final boolean explode;
+    final String defaultValue;//null if none
+
+    VarSpec(String name, int prefix, boolean explode, String defaultValue) {
+      this.name = name;
+      this.prefix = prefix;
+      this.explode = explode;
+      this.defaultValue = defaultValue;
+    }
+  }
+
+  private static class Expression {
+    final String source;//including braces
+    final Operator op;
+    final VarSpec[] varSpecs;
+
+    Expression(String source, Operator op, VarSpec[] varSpecs) {
+      this.source = source;
+      this.op = op;
+      this.varSpecs = varSpecs;
+    }
+
+    /** Parses the expression between the braces at {@code open} and {@code close}. */
+    static Expression parse(String template, int open, int close) {
+      String source = template.substring(open, close + 1);
+      int pos = open + 1;
+      Operator op = pos < close ? Operator.forSymbol(template.charAt(pos)) : null;
+      if (op != null)
+        pos++;
+      else
+        op = Operator.SIMPLE;
+      List<VarSpec> varSpecs = new ArrayList<VarSpec>(2);
+      while (pos < close) {
+        int end = template.indexOf(',', pos);
+        if (end < 0 || end > close)
+          end = close;
+        varSpecs.add(parseVarSpec(template.substring(pos, end), source));
+        pos = end + 1;
+      }
+      if (varSpecs.isEmpty())
+        throw new IllegalArgumentException("Empty expression in template: " + template);
+      return new Expression(source, op, varSpecs.toArray(new VarSpec[varSpecs.size()]));
+    }
+
+    static VarSpec parseVarSpec(String spec, String source) {
+      String defaultValue = null;
+      int eq = spec.indexOf('=');
+      if (eq >= 0) {
+        defaultValue = spec.substring(eq + 1);
+        spec = spec.substring(0, eq);
+      }
+      int prefix = -1;
+      boolean explode = false;
+      int colon = spec.indexOf(':');
+      if (colon >= 0) {
+        try {
+          prefix = Integer.parseInt(spec.substring(colon + 1));
+        } catch (NumberFormatException e) {
+          prefix = -1;
+        }
+        if (prefix <= 0 || prefix >= 10000)
+          throw new IllegalArgumentException("Bad prefix modifier in expression: " + source);
+        spec = spec.substring(0, colon);
+      } else if (spec.endsWith("*")) {
+        explode = true;
+        spec = spec.substring(0, spec.length() - 1);
+      }
+      if (spec.length() == 0)
+        throw new IllegalArgumentException("Missing variable name in expression: " + source);
+      for (int i = 0; i < spec.length(); i++) {
+        char c = spec.charAt(i);
+        if (!(c < 128 && VARNAME_CHARS[c]))
+          throw new IllegalArgumentException("Bad variable name '" + spec + "' in expression: " + source);
+      }
+      return new VarSpec(spec, prefix, explode, defaultValue);
+    }
+
+    void expand(Variables variables, StringBuilder buf) {
+      final int start = buf.length();
+      boolean first = true;
+      for (VarSpec varSpec : varSpecs) {
+        Object value = variables.get(varSpec.name);
+        if (value instanceof List && ((List<?>) value).isEmpty())
+          value = null;
+        if (value == null)
+          value = varSpec.defaultValue;
+        if (value == null)
+          continue;
+        buf.append(first ? op.first : op.separator);
+        first = false;
+        if (value instanceof List) {
+          expandList(varSpec, (List<?>) value, buf);
+        } else {
+          String str = value.toString();
+          if (op.named)
+            appendNamed(varSpec.name, str.length() == 0, buf);
+          if (varSpec.prefix >= 0 && varSpec.prefix < str.codePointCount(0, str.length()))
+            str = str.substring(0, str.offsetByCodePoints(0, varSpec.prefix));
+          append(str, buf);
+        }
+      }
+      if (first && op == Operator.SIMPLE) {
+        buf.setLength(start);
+        buf.append(source);
+      }
+    }
+
+    private void expandList(VarSpec varSpec, List<?> list, StringBuilder buf) {
+      if (!varSpec.explode) {
+        if (op.named) {
+          buf.append(varSpec.name).append('=');
+        }
+        for (int i = 0; i < list.size(); i++) {
+          if (i > 0)
+            buf.append(',');
+          append(String.valueOf(list.get(i)), buf);
+        }
+      } else {
+        for (int i = 0; i < list.size(); i++) {
+          if (i > 0)
+            buf.append(op.separator);
+          String item = String.valueOf(list.get(i));
+          if (op.named)
+            appendNamed(varSpec.name, item.length() == 0, buf);
+          append(item, buf);
+        }
+      }
+    }
+
+    /** Appends a value; as {@link URITemplateProxyServlet} always has, simple expressions insert it raw. */
+    private void append(String value, StringBuilder buf) {
+      if (op == Operator.SIMPLE)
+        buf.append(value);
+      else
+        encode(value, op.allowReserved, buf);
+    }
+
+    private void appendNamed(String name, boolean emptyValue, StringBuilder buf) {
+      buf.append(name);
+      buf.append(emptyValue ? op.ifEmpty : "=");
+    }
+  }
+
+  /* ENCODING */
+
+  private static final boolean[] VARNAME_CHARS = new boolean[128];
+  private static final boolean[] UNRESERVED = new boolean[128];
+  private static final boolean[] RESERVED = new boolean[128];
+  static {
+    for (char c = 'a'; c <= 'z'; c++) UNRESERVED[c] = true;
+    for (char c = 'A'; c <= 'Z'; c++) UNRESERVED[c] = true;
+    for (char c = '0'; c <= '9'; c++) UNRESERVED[c] = true;
+    for (char c : "-._~".toCharArray()) UNRESERVED[c] = true;
+    for (char c : ":/?#[]@!$&'()*+,;=".toCharArray()) RESERVED[c] = true;
+
+    for (char c = 0; c < 128; c++) VARNAME_CHARS[c] = UNRESERVED[c] && c != '~';
+    VARNAME_CHARS['%'] = true;
+  }
+
+  private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+  /**
+   * Appends {@code value} to {@code buf}, percent-encoding UTF-8 bytes of any character not in the
+   * unreserved set (or the reserved set too, if {@code allowReserved}). With {@code allowReserved},
+   * existing pct-encoded triplets are kept as-is.
+   */
+  static void encode(String value, boolean allowReserved, StringBuilder buf) {
+    final int len = value.length();
+    //the common case is that nothing needs encoding; find the first char that does
+    int i = 0;
+    for (; i < len; i++) {
+      char c = value.charAt(i);
+      if (c >= 128 || !(UNRESERVED[c] || (allowReserved && RESERVED[c])))
+        break;
+    }
+    buf.append(value, 0, i);
+    for (; i < len; i++) {
+      char c = value.charAt(i);
+      if (c < 128) {
+        if (UNRESERVED[c] || (allowReserved && RESERVED[c])) {
+          buf.append(c);
+          continue;
+        }
+        if (allowReserved && c == '%' && i + 2 < len && isHex(value.charAt(i + 1)) && isHex(value.charAt(i + 2))) {
+          buf.append(value, i, i + 3);
+          i += 2;
+          continue;
+        }
+        appendPctEncoded(c, buf);
+      } else {
+        int end = Character.isHighSurrogate(c) && i + 1 < len ? i + 2 : i + 1;
+        byte[] bytes;
+        try {
+          bytes = value.substring(i, end).getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+          throw new RuntimeException(e);//can't happen; UTF-8 is always supported
+        }
+        for (byte b : bytes)
+          appendPctEncoded(b & 0xFF, buf);
+        i = end - 1;
+      }
+    }
+  }
+
+  private static void appendPctEncoded(int b, StringBuilder buf) {
+    buf.append('%').append(HEX[b >> 4]).append(HEX[b & 0xF]);
+  }
+
+  private static boolean isHex(char c) {
+    return (c >= '0' && c <= '9') || (c >= 'A' && c <= 'F') || (c >= 'a' && c <= 'f');
+  }
+}
@@ -0,0 +1,282 @@
+package org.mitre.dsmiley.httpproxy;
+
+/**
+ * Copyright MITRE
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Rewrites links to the target in an HTML or CSS body as it streams through, so that they point
+ * at the proxy instead. Only URLs starting an {@code href}, {@code src} or {@code action} attribute
+ * value, or a CSS {@code url(...)}, are rewritten, and only if they start with the target URI (or
+ * its scheme-relative "//host/path" form) followed by the end of a path segment: a target of
+ * "http://backend/app" doesn't rewrite "http://backend/application".
+ * <p>
+ *   This is a byte-level state machine, so it works for any ASCII-compatible charset (see
+ *   {@link #isAsciiCompatible(String)}) without decoding. Memory is bounded: an output buffer plus
+ *   at most the length of the target URI held back while a possible match spans writes, and until
+ *   the byte after it is seen.
+ *   {@link #finish()} must be called at the end to write out what's buffered.
+ * </p>
+ */
+public class UrlRewritingOutputStream extends FilterOutputStream {
+
+  private static final byte[][] KEYWORDS = {ascii("href"), ascii("src"), ascii("action"), ascii("url(")};
+
+  private static final int TEXT = 0;
+  private static final int AFTER_NAME = 1;//after an attribute name, expecting '='
+  private static final int VALUE_START = 2;//after '=' or '(', skipping whitespace and a quote
+  private static final int MATCHING = 3;//comparing with the prefixes
+  private static final int MATCHED = 4;//a whole prefix matched; rewritten if a boundary follows
+
+  private final byte[][] prefixes;
+  private final byte[] replacement;
+
+  private final byte[] buf = new byte[8192];
+  private int count;
+
+  private int state = TEXT;
+  private final int[] keywordPos = new int[KEYWORDS.length];
+  private boolean quoteSeen;
+  private final boolean[] alive;
+  private final byte[] pending;//bytes matching a prefix so far
+  private int pendingLen;
+
+  /**
+   * @param out         where the rewritten body goes
+   * @param targetUri   URLs starting with this are rewritten, e.g. "http://backend:8080/app"
+   * @param replacement what {@code targetUri} is replaced with, e.g. "http://proxy/ctx/backend"
+   */
+  public UrlRewritingOutputStream(OutputStream out, String targetUri, String replacement) {
+    super(out);
+    byte[] absolute = ascii(targetUri);
+    int schemeEnd = targetUri.indexOf("//");
+    if (schemeEnd > 0) {
+      this.prefixes = new byte[][]{absolute, ascii(targetUri.substring(schemeEnd))};
+    } else {
+      this.prefixes = new byte[][]{absolute};
+    }
+    this.replacement = ascii(replacement);
+    this.alive = new boolean[prefixes.length];
+    this.pending = new byte[absolute.length];
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    process((byte) b);
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    final int end = off + len;
+    for (int i = off; i < end; i++) {
+      if (state == TEXT && count < buf.length) {
+        //fast path
+        byte c = b[i];
+        buf[count++] = c;
+        detectKeyword(c);
+      } else {
+        process(b[i]);
+      }
+    }
+  }
+
+  private void process(byte b) throws IOException {
+    switch (state) {
+      case TEXT:
+        emit(b);
+        detectKeyword(b);
+        break;
+      case AFTER_NAME:
+        emit(b);
+        if (b == '=') {
+          state = VALUE_START;
+          quoteSeen = false;
+        } else if (!isWhitespace(b)) {
+          state = TEXT;
+          detectKeyword(b);
+        }
+        break;
+      case VALUE_START:
+        if (!quoteSeen && (isWhitespace(b) || b == '"' || b == '\'')) {
+          emit(b);
+          quoteSeen = !isWhitespace(b);
+        } else {
+          state = MATCHING;
+          pendingLen = 0;
+          Arrays.fill(alive, true);
+          match(b);
+        }
+        break;
+      case MATCHING:
+        match(b);
+        break;
+      case MATCHED:
+        if (isBoundary(b)) {
+          for (byte r : replacement)
+            emit(r);
+        } else {
+          for (int i = 0; i < pendingLen; i++)
+            emit(pending[i]);
+        }
+        pendingLen = 0;
+        state = TEXT;
+        process(b);
+        break;
+      default:
+        throw new IllegalStateException();
+    }
+  }
+
+  private void match(byte b) throws IOException {
+    boolean anyAlive = false;
+    for (int p = 0; p < prefixes.length; p++) {
+      if (alive[p] && prefixes[p][pendingLen] != b)
+        alive[p] = false;
+      anyAlive |= alive[p];
+    }
+    if (!anyAlive) {
+      //not a link to the target; let go of what we held back
+      for (int i = 0; i < pendingLen; i++)
+        emit(pending[i]);
+      pendingLen = 0;
+      state = TEXT;
+      process(b);
+      return;
+    }
+    pending[pendingLen++] = b;
+    for (int p = 0; p < prefixes.length; p++) {
+      if (alive[p] && pendingLen == prefixes[p].length) {
+        if (b == '/') {//already at a boundary
+          for (byte r : replacement)
+            emit(r);
+          pendingLen = 0;
+          state = TEXT;
+        } else {
+          state = MATCHED;
+        }
+        return;
+      }
+    }
+  }
+
+  private void detectKeyword(byte b) {
+    if (b >= 'A' && b <= 'Z')
+      b += 'a' - 'A';
+    for (int k = 0; k < KEYWORDS.length; k++) {
+      byte[] keyword = KEYWORDS[k];
+      if (keyword[keywordPos[k]] == b) {
+        if (++keywordPos[k] == keyword.length) {
+          Arrays.fill(keywordPos, 0);
+          if (b == '(') {
+            state = VALUE_START;
+            quoteSeen = false;
+          } else {
+            state = AFTER_NAME;
+          }
+          return;
+        }
+      } else {
+        keywordPos[k] = keyword[0] == b ? 1 : 0;
+      }
+    }
+  }
+
+  private void emit(byte b) throws IOException {
+    if (count == buf.length)
+      flushBuffer();
+    buf[count++] = b;
+  }
+
+  private void flushBuffer() throws IOException {
+    if (count > 0) {
+      out.write(buf, 0, count);
+      count = 0;
+    }
+  }
+
+  /** Writes out buffered bytes. Bytes held back for a possible match are kept. */
+  @Override
+  public void flush() throws IOException {
+    flushBuffer();
+    out.flush();
+  }
+
+  /** Writes out everything, including bytes held back, without closing the underlying stream. */
+  public void finish() throws IOException {
+    if (state == MATCHED) {//the end is a boundary
+      for (byte r : replacement)
+        emit(r);
+    } else {
+      for (int i = 0; i < pendingLen; i++)
+        emit(pending[i]);
+    }
+    pendingLen = 0;
+    state = TEXT;
+    flushBuffer();
+  }
+
+  @Override
+  public void close() throws IOException {
+    finish();
+    super.close();
+  }
+
+  /** Whether {@code b} may follow the target URI in a link to it. */
+  private static boolean isBoundary(byte b) {
+    return b == '/' || b == '?' || b == '#' || b == '"' || b == '\'' || b == ')' || b == '>' || isWhitespace(b);
+  }
+
+  private static boolean isWhitespace(byte b) {
+    return b == ' ' || b == '\t' || b == '\n' || b == '\r' || b == '\f';
+  }
+
+  private static byte[] ascii(String str) {
+    try {
+      return str.getBytes("US-ASCII");
+    } catch (UnsupportedEncodingException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static final byte[] ASCII_SAMPLE = ascii("href=\"'()/:.?&#%-_~ AZaz09");
+  private static final ConcurrentMap<String, Boolean> asciiCompatible = new ConcurrentHashMap<String, Boolean>();
+
+  /**
+   * True if {@code charset} encodes ASCII characters as the same single bytes, and so a body in it
+   * can be rewritten by this class. False for UTF-16, for example, or an unknown charset.
+   */
+  public static boolean isAsciiCompatible(String charset) {
+    Boolean result = asciiCompatible.get(charset);
+    if (result == null) {
+      try {
+        result = Arrays.equals(ASCII_SAMPLE, new String(ASCII_SAMPLE, "US-ASCII").getBytes(Charset.forName(charset).name()));
+      } catch (Exception e) {//unsupported or illegal charset name
+        result = Boolean.FALSE;
+      }
+      if (asciiCompatible.size() < 100)
+        asciiCompatible.put(charset, result);
+    }
+    return result;
+  }
+}
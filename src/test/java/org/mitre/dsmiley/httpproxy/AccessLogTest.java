@@ -0,0 +1,172 @@
+package org.mitre.dsmiley.httpproxy;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AccessLogTest {
+
+  private File file;
+
+  @Before
+  public void setUp() throws IOException {
+    file = File.createTempFile("access", ".log");
+  }
+
+  @After
+  public void tearDown() {
+    for (int i = 0; i <= 3; i++)
+      new File(i == 0 ? file.getPath() : file.getPath() + "." + i).delete();
+  }
+
+  @Test
+  public void testWritesJsonLines() throws IOException {
+    AccessLog log = new AccessLog(file, 16, 1.0, Long.MAX_VALUE, 1);
+    log.start();
+    AccessLog.Record record = log.claim(false);
+    record.timeMillis = 0;
+    record.method = "GET";
+    record.uri = "/a\"b";
+    record.status = 200;
+    record.responseBytes = 12;
+    record.totalMicros = 345;
+    record.leaseMicros = -1;//unknown; omitted
+    log.publish(record);
+    log.close();
+
+    List<String> lines = readLines(file);
+    assertEquals(1, lines.size());
+    assertEquals("{\"time\":\"1970-01-01T00:00:00.000Z\",\"method\":\"GET\",\"uri\":\"/a\\\"b\",\"status\":200," +
+        "\"requestBytes\":0,\"responseBytes\":12,\"totalMicros\":345,\"connectMicros\":0,\"sendMicros\":0," +
+        "\"waitMicros\":0,\"bodyMicros\":0}", lines.get(0));
+    assertNull(log.claim(true));//closed
+  }
+
+  @Test
+  public void testDropsWhenFull() throws IOException {
+    AccessLog log = new AccessLog(file, 4, 1.0, Long.MAX_VALUE, 1);//not started yet
+    for (int i = 0; i < 4; i++) {
+      AccessLog.Record record = log.claim(false);
+      assertNotNull(record);
+      record.status = i;
+      log.publish(record);
+    }
+    assertNull(log.claim(true));
+    assertEquals(1, log.getDroppedCount());
+    log.start();
+    log.close();
+    assertEquals(4, log.getWrittenCount());
+    assertEquals(4, readLines(file).size());
+  }
+
+  @Test
+  public void testSampling() throws IOException {
+    AccessLog log = new AccessLog(file, 64, 0.25, Long.MAX_VALUE, 1);
+    log.start();
+    int claimed = 0;
+    for (int i = 0; i < 40; i++) {
+      AccessLog.Record record = log.claim(i == 1);
+      if (record != null) {
+        claimed++;
+        log.publish(record);
+      }
+    }
+    log.close();
+    assertEquals(10, claimed);//every 4th of the other 39, plus the important one
+    assertEquals(0, log.getDroppedCount());
+    assertEquals(10, readLines(file).size());
+  }
+
+  @Test
+  public void testErrorsOnly() throws IOException {
+    AccessLog log = new AccessLog(file, 64, 0, Long.MAX_VALUE, 1);
+    log.start();
+    for (int i = 0; i < 10; i++) {
+      AccessLog.Record record = log.claim(i == 3);
+      if (record != null)
+        log.publish(record);
+    }
+    log.close();
+    assertEquals(1, log.getWrittenCount());
+  }
+
+  @Test
+  public void testAbandoned() throws Exception {
+    AccessLog log = new AccessLog(file, 4, 1.0, Long.MAX_VALUE, 1);
+    log.start();
+    log.abandon(log.claim(false));//e.g. filling it in threw
+    for (int i = 0; i < 10; i++) {
+      AccessLog.Record record = log.claim(false);
+      if (record != null) {
+        record.status = i;
+        log.publish(record);
+      }
+      Thread.sleep(5);//let the writer keep up
+    }
+    log.close();
+    assertEquals(10, log.getWrittenCount());//the writer went past the abandoned record
+    assertEquals(10, readLines(file).size());
+  }
+
+  @Test
+  public void testSamplingNonReciprocalRate() throws IOException {
+    AccessLog log = new AccessLog(file, 1024, 0.7, Long.MAX_VALUE, 1);
+    int claimed = 0;
+    for (int i = 0; i < 1000; i++) {
+      AccessLog.Record record = log.claim(false);
+      if (record != null) {
+        claimed++;
+        log.publish(record);
+      }
+    }
+    assertEquals(700, claimed);//not every 1st, as rounding 1/0.7 to a period would do
+    log.start();
+    log.close();
+    assertEquals(700, log.getWrittenCount());
+  }
+
+  @Test
+  public void testRolls() throws IOException {
+    AccessLog log = new AccessLog(file, 64, 1.0, 200, 2);
+    log.start();
+    for (int i = 0; i < 10; i++) {
+      AccessLog.Record record = log.claim(false);
+      record.uri = "/0123456789012345678901234567890123456789";
+      log.publish(record);
+    }
+    log.close();
+    assertNull(log.getLastError());
+    assertTrue(new File(file.getPath() + ".1").exists());
+    assertTrue(new File(file.getPath() + ".2").exists());
+    assertFalse(new File(file.getPath() + ".3").exists());
+    assertEquals(10, log.getWrittenCount());
+  }
+
+  private static List<String> readLines(File file) throws IOException {
+    List<String> lines = new ArrayList<String>();
+    if (!file.exists())
+      return lines;
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+    try {
+      for (String line = reader.readLine(); line != null; line = reader.readLine())
+        lines.add(line);
+    } finally {
+      reader.close();
+    }
+    return lines;
+  }
+}
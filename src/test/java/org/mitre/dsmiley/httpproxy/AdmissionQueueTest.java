@@ -0,0 +1,331 @@
+package org.mitre.dsmiley.httpproxy;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.localserver.LocalTestServer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.util.EntityUtils;
+import org.apache.tomcat.util.threads.ThreadPoolExecutor;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collections;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AdmissionQueueTest {
+
+  /** Waits for admission in a thread, recording the order in which waiters get in. */
+  private static class Waiter extends Thread {
+    final AdmissionQueue queue;
+    final int priority;
+    final String name;
+    final List<String> admitted;
+    volatile Boolean result;
+
+    Waiter(AdmissionQueue queue, int priority, String name, List<String> admitted) {
+      this.queue = queue;
+      this.priority = priority;
+      this.name = name;
+      this.admitted = admitted;
+    }
+
+    @Override
+    public void run() {
+      result = queue.acquire(priority);
+      if (result) {
+        admitted.add(name);
+        queue.release();
+      }
+    }
+  }
+
+  private static Waiter enqueue(AdmissionQueue queue, int priority, String name, List<String> admitted)
+      throws InterruptedException {
+    int queued = queue.getQueued();
+    Waiter waiter = new Waiter(queue, priority, name, admitted);
+    waiter.start();
+    while (queue.getQueued() == queued && waiter.result == null)
+      Thread.sleep(1);
+    return waiter;
+  }
+
+  private static List<String> newList() {
+    return Collections.synchronizedList(new ArrayList<String>());
+  }
+
+  @Test
+  public void testFifoByPriority() throws InterruptedException {
+    AdmissionQueue queue = new AdmissionQueue(1, 10, 5000, 5000);
+    assertTrue(queue.acquire(AdmissionQueue.NORMAL));
+    List<String> admitted = newList();
+    Waiter low = enqueue(queue, AdmissionQueue.LOW, "low", admitted);
+    Waiter a = enqueue(queue, AdmissionQueue.NORMAL, "a", admitted);
+    Waiter b = enqueue(queue, AdmissionQueue.NORMAL, "b", admitted);
+    Waiter high = enqueue(queue, AdmissionQueue.HIGH, "high", admitted);
+    assertEquals(4, queue.getQueued());
+    assertFalse(queue.isOverloaded());
+    queue.release();
+    for (Waiter waiter : new Waiter[]{low, a, b, high})
+      waiter.join();
+    assertEquals("[high, a, b, low]", admitted.toString());
+    assertEquals(0, queue.getInFlight());
+    assertEquals(0, queue.getShedCount());
+  }
+
+  @Test
+  public void testLifoWhenOverloaded() throws InterruptedException {
+    AdmissionQueue queue = new AdmissionQueue(1, 10, 5000, 100);
+    assertTrue(queue.acquire(AdmissionQueue.NORMAL));
+    List<String> admitted = newList();
+    Waiter a = enqueue(queue, AdmissionQueue.NORMAL, "a", admitted);
+    Thread.sleep(50);
+    enqueue(queue, AdmissionQueue.NORMAL, "b", admitted);
+    //a was given the interval to wait; when it times out, b keeps the queue non-empty
+    a.join();
+    assertFalse(a.result);
+    assertTrue(queue.isOverloaded());
+
+    //new arrivals while overloaded wait the target (longer, here), and the newest goes first
+    Waiter c = enqueue(queue, AdmissionQueue.NORMAL, "c", admitted);
+    Waiter d = enqueue(queue, AdmissionQueue.NORMAL, "d", admitted);
+    queue.release();
+    c.join();
+    d.join();
+    assertEquals("[d, c]", admitted.subList(0, 2).toString());//then b, if it hasn't timed out
+  }
+
+  @Test
+  public void testTimesOut() {
+    AdmissionQueue queue = new AdmissionQueue(1, 10, 5000, 10);
+    assertTrue(queue.acquire(AdmissionQueue.NORMAL));
+    long start = System.nanoTime();
+    assertFalse(queue.acquire(AdmissionQueue.HIGH));
+    assertTrue(System.nanoTime() - start >= 10 * 1000 * 1000);
+    assertEquals(0, queue.getQueued());
+    assertEquals(1, queue.getShedCount());
+  }
+
+  @Test
+  public void testEvictsLessImportantWhenFull() throws InterruptedException {
+    AdmissionQueue queue = new AdmissionQueue(1, 2, 5000, 5000);
+    assertTrue(queue.acquire(AdmissionQueue.NORMAL));
+    List<String> admitted = newList();
+    Waiter low = enqueue(queue, AdmissionQueue.LOW, "low", admitted);
+    Waiter normal = enqueue(queue, AdmissionQueue.NORMAL, "normal", admitted);
+    assertFalse(queue.acquire(AdmissionQueue.LOW));//full, and nothing less important
+    Waiter high = new Waiter(queue, AdmissionQueue.HIGH, "high", admitted);
+    high.start();
+    low.join();
+    assertFalse(low.result);
+    assertEquals(2, queue.getShedCount());
+    queue.release();
+    normal.join();
+    high.join();
+    assertEquals("[high, normal]", admitted.toString());
+  }
+
+  /** Waits for admission without a thread, recording what it's told. */
+  private static class Callback implements AdmissionQueue.Callback {
+    final String name;
+    final List<String> events;
+    final CountDownLatch called = new CountDownLatch(1);
+
+    Callback(String name, List<String> events) {
+      this.name = name;
+      this.events = events;
+    }
+
+    public void admitted() {
+      events.add(name);
+      called.countDown();
+    }
+
+    public void shed() {
+      events.add(name + " shed");
+      called.countDown();
+    }
+  }
+
+  @Test
+  public void testCallbacks() throws InterruptedException {
+    AdmissionQueue queue = new AdmissionQueue(1, 2, 5000, 5000);
+    assertTrue(queue.tryAcquire());
+    assertFalse(queue.tryAcquire());
+    List<String> events = newList();
+    Callback low = new Callback("low", events);
+    Callback normal = new Callback("normal", events);
+    Callback gone = new Callback("gone", events);
+    assertEquals(AdmissionQueue.QUEUED, queue.acquire(AdmissionQueue.LOW, low));
+    assertEquals(AdmissionQueue.QUEUED, queue.acquire(AdmissionQueue.NORMAL, gone));
+    assertTrue(queue.cancel(gone));
+    assertFalse(queue.cancel(gone));
+    assertEquals(AdmissionQueue.QUEUED, queue.acquire(AdmissionQueue.NORMAL, normal));
+    assertEquals(AdmissionQueue.SHED, queue.acquire(AdmissionQueue.LOW, new Callback("full", events)));
+    assertEquals(AdmissionQueue.QUEUED, queue.acquire(AdmissionQueue.HIGH, new Callback("high", events)));
+    assertEquals("[low shed]", events.toString());//evicted, and told so at once
+    queue.release();
+    queue.release();
+    assertEquals("[low shed, high, normal]", events.toString());
+    assertEquals(1, queue.getInFlight());
+    assertEquals(2, queue.getShedCount());
+    queue.release();
+    assertEquals(0, queue.getInFlight());
+    assertEquals(AdmissionQueue.ADMITTED, queue.acquire(AdmissionQueue.NORMAL, normal));
+  }
+
+  @Test
+  public void testCallbackTimesOut() throws InterruptedException {
+    AdmissionQueue queue = new AdmissionQueue(1, 10, 5000, 10);
+    assertTrue(queue.tryAcquire());
+    List<String> events = newList();
+    Callback waiter = new Callback("waiter", events);
+    assertEquals(AdmissionQueue.QUEUED, queue.acquire(AdmissionQueue.HIGH, waiter));
+    assertTrue(waiter.called.await(5, TimeUnit.SECONDS));
+    assertEquals("[waiter shed]", events.toString());
+    assertEquals(0, queue.getQueued());
+    assertEquals(1, queue.getShedCount());
+    queue.release();
+    assertEquals(0, queue.getInFlight());
+  }
+
+  @Test
+  public void testCloseShedsWaiters() throws InterruptedException {
+    AdmissionQueue queue = new AdmissionQueue(1, 10, 5000, 5000);
+    assertTrue(queue.tryAcquire());
+    List<String> events = newList();
+    assertEquals(AdmissionQueue.QUEUED, queue.acquire(AdmissionQueue.NORMAL, new Callback("waiter", events)));
+    Waiter parked = enqueue(queue, AdmissionQueue.NORMAL, "parked", events);
+    queue.close();
+    parked.join(5000);
+    assertFalse(parked.result);
+    assertEquals("[waiter shed]", events.toString());
+    assertEquals(AdmissionQueue.SHED, queue.acquire(AdmissionQueue.NORMAL, new Callback("late", events)));
+    assertFalse(queue.acquire(AdmissionQueue.HIGH));
+    assertEquals("[waiter shed]", events.toString());
+    assertEquals(0, queue.getQueued());
+    assertEquals(4, queue.getShedCount());
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int read;
+    while ((read = in.read(buffer)) >= 0)
+      out.write(buffer, 0, read);
+    return out.toByteArray();
+  }
+
+  /** Requests waiting for admission to a {@link ProxyServlet} in an embedded Tomcat (httpunit has no
+   * Servlet 3.1 async) are suspended, not holding the container's threads. */
+  @Test
+  public void testServletSuspendsWaiters() throws Exception {
+    LocalTestServer localTestServer = new LocalTestServer(null, null);
+    localTestServer.start();
+    localTestServer.register("/echo", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context)
+          throws HttpException, IOException {
+        byte[] body = EntityUtils.toByteArray(((HttpEntityEnclosingRequest) request).getEntity());
+        response.setEntity(new ByteArrayEntity(body));
+      }
+    });
+    File baseDir = File.createTempFile("tomcat", "");
+    baseDir.delete();
+    baseDir.mkdir();
+    Tomcat tomcat = new Tomcat();
+    tomcat.setBaseDir(baseDir.getPath());
+    tomcat.setPort(0);
+    tomcat.getConnector();
+    Context context = tomcat.addContext("", baseDir.getPath());
+    ProxyServlet servlet = new ProxyServlet();
+    Wrapper wrapper = Tomcat.addServlet(context, "proxy", servlet);
+    wrapper.addInitParameter(ProxyServlet.P_TARGET_URI,
+        "http://localhost:" + localTestServer.getServiceAddress().getPort());
+    wrapper.addInitParameter(ProxyServlet.P_NON_BLOCKING_IO, "true");
+    wrapper.addInitParameter(ProxyServlet.P_ADMISSION_LIMIT, "1");
+    wrapper.addInitParameter(ProxyServlet.P_ADMISSION_MAX_QUEUED, "3");
+    wrapper.addInitParameter(ProxyServlet.P_ADMISSION_TARGET, "10000");
+    wrapper.addInitParameter(ProxyServlet.P_ADMISSION_INTERVAL, "10000");
+    wrapper.setAsyncSupported(true);
+    wrapper.setLoadOnStartup(1);
+    context.addServletMappingDecoded("/proxy/*", "proxy");
+    tomcat.start();
+    final String echoUrl = "http://localhost:" + tomcat.getConnector().getLocalPort() + "/proxy/echo";
+    try {
+      AdmissionQueue queue = servlet.admissionQueue;
+      assertTrue(queue.tryAcquire());//taking the only place
+      final byte[] body = "hello".getBytes("UTF-8");
+      final byte[][] echoed = new byte[3][];
+      final int[] statuses = new int[echoed.length];
+      Thread[] clients = new Thread[echoed.length];
+      for (int i = 0; i < clients.length; i++) {
+        final int client = i;
+        clients[i] = new Thread() {
+          @Override
+          public void run() {
+            try {
+              HttpURLConnection connection = (HttpURLConnection) new URL(echoUrl).openConnection();
+              connection.setReadTimeout(10000);
+              connection.setRequestMethod("POST");
+              connection.setDoOutput(true);
+              OutputStream out = connection.getOutputStream();
+              out.write(body);
+              out.close();
+              statuses[client] = connection.getResponseCode();
+              echoed[client] = readAll(connection.getInputStream());
+            } catch (IOException e) {
+              throw new RuntimeException(e);
+            }
+          }
+        };
+        clients[i].start();
+      }
+      while (queue.getQueued() < clients.length)
+        Thread.sleep(1);
+      //the threads are given back once the requests are suspended; they'd be held if they waited
+      ThreadPoolExecutor executor = (ThreadPoolExecutor) tomcat.getConnector().getProtocolHandler().getExecutor();
+      long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+      while (executor.getActiveCount() > 0 && System.nanoTime() < deadline)
+        Thread.sleep(1);
+      assertEquals(0, executor.getActiveCount());
+
+      //the queue is full, so this one is shed at once
+      HttpURLConnection connection = (HttpURLConnection) new URL(echoUrl).openConnection();
+      connection.setReadTimeout(10000);
+      assertEquals(503, connection.getResponseCode());
+      assertEquals("1", connection.getHeaderField("Retry-After"));
+      assertEquals(1, queue.getShedCount());
+
+      queue.release();
+      for (int i = 0; i < clients.length; i++) {
+        clients[i].join(10000);
+        assertEquals(200, statuses[i]);
+        assertEquals("hello", new String(echoed[i], "UTF-8"));
+      }
+      assertEquals(0, queue.getInFlight());
+    } finally {
+      tomcat.stop();//destroying the servlet, which closes its queue
+      tomcat.destroy();
+      localTestServer.stop();
+    }
+  }
+}
@@ -0,0 +1,321 @@
+package org.mitre.dsmiley.httpproxy;
+
+import com.meterware.httpunit.GetMethodWebRequest;
+import com.meterware.httpunit.WebResponse;
+import com.meterware.servletunit.InvocationContext;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the {@link ProxyServletTest} tests again with every optional feature turned on, plus tests
+ * of those features.
+ */
+public class AllFeaturesProxyServletTest extends ProxyServletTest {
+
+  protected File accessLogFile;
+
+  @Override
+  protected void setUpServlet(Properties servletProps) {
+    servletProps.setProperty(ProxyServlet.P_REWRITE_BODY, "true");
+    servletProps.setProperty(ProxyServlet.P_REWRITE_COOKIES, "true");
+    servletProps.setProperty(ProxyServlet.P_METRICS, "true");
+    servletProps.setProperty(ProxyServlet.P_SERVER_TIMING, "true");
+    servletProps.setProperty(ProxyServlet.P_CONCURRENCY_LIMIT, "10");
+    servletProps.setProperty(ProxyServlet.P_RATE_LIMIT, "1000");
+    servletProps.setProperty(ProxyServlet.P_ADMISSION_LIMIT, "50");
+    servletProps.setProperty(ProxyServlet.P_ADMISSION_PRIORITY_HEADER, "X-Priority");
+    servletProps.setProperty(ProxyServlet.P_ADMISSION_PRIORITY_PATHS, "/export=2");
+    servletProps.setProperty(ProxyServlet.P_BULKHEAD, "50");
+    servletProps.setProperty(ProxyServlet.P_BULKHEAD_PER_ROUTE, "true");
+    servletProps.setProperty(ProxyServlet.P_REQUEST_TIMEOUT, "10000");
+    servletProps.setProperty(ProxyServlet.P_PROPAGATE_DEADLINE, "true");
+    try {
+      accessLogFile = File.createTempFile("proxy-access", ".log");
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    servletProps.setProperty(ProxyServlet.P_ACCESS_LOG, accessLogFile.getPath());
+    super.setUpServlet(servletProps);
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    super.tearDown();
+    accessLogFile.delete();
+  }
+
+  @Test
+  public void testRewriteBody() throws Exception {
+    localTestServer.register("/targetPath*", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+        String body = "<a href=\"" + targetBaseUri + "/page.html\">x</a> <img SRC='" + targetBaseUri + "/i.png'>"
+            + " <style>div { background: url(" + targetBaseUri + "/bg.png) }</style>"
+            + " <p>" + targetBaseUri + " in text is left alone</p> <a href=\"http://elsewhere/\">";
+        response.setStatusCode(HttpStatus.SC_OK);
+        StringEntity entity = new StringEntity(body, "UTF-8");
+        entity.setContentType("text/html; charset=UTF-8");
+        response.setEntity(entity);
+      }
+    });
+    WebResponse rsp = sc.getResponse(makeGetMethodRequest(sourceBaseUri + "/page.html"));
+    assertEquals("<a href=\"" + sourceBaseUri + "/page.html\">x</a> <img SRC='" + sourceBaseUri + "/i.png'>"
+        + " <style>div { background: url(" + sourceBaseUri + "/bg.png) }</style>"
+        + " <p>" + targetBaseUri + " in text is left alone</p> <a href=\"http://elsewhere/\">", rsp.getText());
+  }
+
+  @Test
+  public void testRewriteResponseHeaders() throws Exception {
+    final String targetPath = new URI(targetBaseUri).getPath();
+    localTestServer.register("/targetPath*", new RequestInfoHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+        super.handle(request, response, context);
+        response.setHeader(HttpHeaders.CONTENT_LOCATION, targetBaseUri + "/doc.html");
+        response.setHeader("Set-Cookie", "JSESSIONID=abc; Domain=localhost; Path=" + targetPath + "/x; HttpOnly");
+      }
+    });
+    WebResponse rsp = execAndAssert(makeGetMethodRequest(sourceBaseUri), "");
+    assertEquals(sourceBaseUri + "/doc.html", rsp.getHeaderField(HttpHeaders.CONTENT_LOCATION));
+    assertEquals("JSESSIONID=abc; Path=" + new URI(sourceBaseUri).getPath() + "/x; HttpOnly",
+        rsp.getHeaderField("Set-Cookie"));
+  }
+
+  @Test
+  public void testRewriteResponseHeadersAtPathBoundary() throws Exception {
+    localTestServer.register("/targetPath*", new RequestInfoHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+        super.handle(request, response, context);
+        response.setHeader(HttpHeaders.CONTENT_LOCATION, targetBaseUri + "lication/doc.html");
+      }
+    });
+    WebResponse rsp = execAndAssert(makeGetMethodRequest(sourceBaseUri), "");
+    assertEquals(targetBaseUri + "lication/doc.html", rsp.getHeaderField(HttpHeaders.CONTENT_LOCATION));
+  }
+
+  @Test
+  public void testMetrics() throws Exception {
+    execAssert(makeGetMethodRequest(sourceBaseUri + "/pathInfo"));
+    execAndAssert(makePostMethodRequest(sourceBaseUri));
+
+    MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    List<ObjectName> servletNames = new ArrayList<ObjectName>();
+    List<ObjectName> routeNames = new ArrayList<ObjectName>();
+    for (ObjectName name : mBeanServer.queryNames(new ObjectName(ProxyMetrics.DOMAIN + ":type=ProxyServlet,*"), null)) {
+      (name.getKeyProperty("route") != null ? routeNames : servletNames).add(name);
+    }
+    assertEquals(1, servletNames.size());
+    assertEquals(1, routeNames.size());
+    ObjectName servletName = servletNames.get(0);
+    ObjectName routeName = routeNames.get(0);
+    assertEquals(2L, mBeanServer.getAttribute(servletName, "requests"));
+    assertEquals(0, mBeanServer.getAttribute(servletName, "poolLeased"));
+    assertEquals("http://localhost:" + localTestServer.getServiceAddress().getPort(),
+        mBeanServer.getAttribute(routeName, "route"));
+    assertEquals(2L, mBeanServer.getAttribute(routeName, "2xx_count"));
+    assertEquals(0L, mBeanServer.getAttribute(routeName, "5xx_count"));
+    assertEquals(2L, mBeanServer.getAttribute(routeName, "wait_count"));
+    assertTrue((Long) mBeanServer.getAttribute(routeName, "requestBytes") > 0);
+    assertTrue((Long) mBeanServer.getAttribute(routeName, "responseBytes") > 0);
+    assertTrue((Long) mBeanServer.getAttribute(routeName, "2xx_max") > 0);
+    assertTrue((Integer) mBeanServer.getAttribute(routeName, "concurrencyLimit") > 0);
+    assertEquals(0, mBeanServer.getAttribute(routeName, "inFlight"));
+    assertEquals(0L, mBeanServer.getAttribute(servletName, "concurrencyRejected"));
+    assertEquals(0, mBeanServer.getAttribute(routeName, "bulkheadInFlight"));
+    assertEquals(0L, mBeanServer.getAttribute(servletName, "bulkheadRejected"));
+
+    servletRunner.shutDown();//destroys the servlet
+    assertTrue(mBeanServer.queryNames(new ObjectName(ProxyMetrics.DOMAIN + ":*"), null).isEmpty());
+  }
+
+  @Test
+  public void testConcurrencyLimit() throws Exception {
+    GetMethodWebRequest request = makeGetMethodRequest(sourceBaseUri);
+    execAndAssert(request, "");
+    ProxyServlet servlet = (ProxyServlet) sc.newInvocation(request).getServlet();
+    String route = "http://localhost:" + localTestServer.getServiceAddress().getPort();
+    ConcurrencyLimiter.Limit limit = servlet.concurrencyLimiter.getLimit(route);
+    int held = 0;
+    while (limit.acquire())//as if that many requests were in flight
+      held++;
+    assertTrue(held > 0);
+
+    sc.setExceptionsThrownOnErrorStatus(false);
+    WebResponse rsp = sc.getResponse(request);
+    assertEquals(HttpStatus.SC_SERVICE_UNAVAILABLE, rsp.getResponseCode());
+    assertEquals("1", rsp.getHeaderField("Retry-After"));
+    assertEquals(2, limit.getRejectedCount());//ours and the request's
+
+    for (int i = 0; i < held; i++)
+      limit.release();
+    execAndAssert(request, "");
+    assertEquals(0, limit.getInFlight());
+  }
+
+  @Test
+  public void testDeadline() throws Exception {
+    GetMethodWebRequest request = makeGetMethodRequest(sourceBaseUri);
+    request.setHeaderField(ProxyServlet.GRPC_TIMEOUT, "5S");
+    long before = System.currentTimeMillis();
+    String text = execAndAssert(request, "").getText();
+    long after = System.currentTimeMillis();
+    Matcher deadline = Pattern.compile("X-Request-Deadline: (\\d+)").matcher(text);
+    assertTrue(text, deadline.find());
+    long deadlineMillis = Long.parseLong(deadline.group(1));
+    assertTrue(deadlineMillis > before && deadlineMillis <= after + 5000);
+    Matcher grpcTimeout = Pattern.compile("grpc-timeout: (\\d+)m").matcher(text);
+    assertTrue(text, grpcTimeout.find());
+    assertTrue(Long.parseLong(grpcTimeout.group(1)) <= 5000);
+
+    localTestServer.register("/targetPath*", new RequestInfoHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+        try {
+          Thread.sleep(1000);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        super.handle(request, response, context);
+      }
+    });
+    request.setHeaderField(ProxyServlet.GRPC_TIMEOUT, "100m");
+    sc.setExceptionsThrownOnErrorStatus(false);
+    long start = System.nanoTime();
+    WebResponse rsp = sc.getResponse(request);
+    assertEquals(HttpStatus.SC_GATEWAY_TIMEOUT, rsp.getResponseCode());
+    assertTrue(System.nanoTime() - start < 900000000L);
+  }
+
+  @Test
+  public void testBulkhead() throws Exception {
+    GetMethodWebRequest request = makeGetMethodRequest(sourceBaseUri);
+    ProxyServlet servlet = (ProxyServlet) sc.newInvocation(request).getServlet();
+    String route = "http://localhost:" + localTestServer.getServiceAddress().getPort();
+    Bulkhead.Compartment compartment = servlet.bulkhead.getCompartment(route);
+    int held = 0;
+    while (compartment.acquire())//as if its target were hanging
+      held++;
+    assertEquals(50, held);
+
+    sc.setExceptionsThrownOnErrorStatus(false);
+    WebResponse rsp = sc.getResponse(request);
+    assertEquals(HttpStatus.SC_SERVICE_UNAVAILABLE, rsp.getResponseCode());
+    assertEquals("1", rsp.getHeaderField("Retry-After"));
+    assertTrue(servlet.bulkhead.getCompartment("http://otherhost:80").acquire());//not affected
+
+    compartment.release();
+    execAndAssert(request, "");
+    assertEquals(held - 1, compartment.getInFlight());
+  }
+
+  @Test
+  public void testAdmission() throws Exception {
+    GetMethodWebRequest request = makeGetMethodRequest(sourceBaseUri);
+    InvocationContext invocation = sc.newInvocation(request);
+    ProxyServlet servlet = (ProxyServlet) invocation.getServlet();
+    assertEquals(AdmissionQueue.NORMAL, servlet.getAdmissionPriority(invocation.getRequest()));
+    request.setHeaderField("X-Priority", "0");
+    assertEquals(AdmissionQueue.HIGH, servlet.getAdmissionPriority(sc.newInvocation(request).getRequest()));
+    GetMethodWebRequest exportRequest = makeGetMethodRequest(sourceBaseUri + "/export/all");
+    assertEquals(AdmissionQueue.LOW, servlet.getAdmissionPriority(sc.newInvocation(exportRequest).getRequest()));
+
+    int held = 0;
+    while (servlet.admissionQueue.acquire(AdmissionQueue.HIGH) && held < 50)
+      held++;
+    assertEquals(50, held);
+    sc.setExceptionsThrownOnErrorStatus(false);
+    WebResponse rsp = sc.getResponse(request);//waits the interval, then is shed
+    assertEquals(HttpStatus.SC_SERVICE_UNAVAILABLE, rsp.getResponseCode());
+    assertEquals("1", rsp.getHeaderField("Retry-After"));
+
+    servlet.admissionQueue.release();
+    execAndAssert(request, "");
+    assertEquals(held - 1, servlet.admissionQueue.getInFlight());
+  }
+
+  @Test
+  public void testRateLimit() throws Exception {
+    GetMethodWebRequest request = makeGetMethodRequest(sourceBaseUri);
+    execAndAssert(request, "");
+    InvocationContext invocation = sc.newInvocation(request);
+    ProxyServlet servlet = (ProxyServlet) invocation.getServlet();
+    String client = servlet.getRateLimitKey(invocation.getRequest());
+    assertEquals(invocation.getRequest().getRemoteAddr(), client);
+    servlet.rateLimiter = new RateLimiter(1, 1, 16);//slow enough not to refill during the test
+    while (servlet.rateLimiter.acquire(client) == 0) {
+      //use up the burst
+    }
+
+    sc.setExceptionsThrownOnErrorStatus(false);
+    WebResponse rsp = sc.getResponse(request);
+    assertEquals(429, rsp.getResponseCode());
+    assertEquals("1", rsp.getHeaderField("Retry-After"));
+
+    request.setHeaderField("X-Forwarded-For", "10.0.0.1, 10.0.0.2");
+    invocation = sc.newInvocation(request);
+    servlet.rateLimitTrustedHops = 1;
+    assertEquals("10.0.0.2", servlet.getRateLimitKey(invocation.getRequest()));
+    servlet.rateLimitTrustedHops = 2;
+    assertEquals("10.0.0.1", servlet.getRateLimitKey(invocation.getRequest()));
+    servlet.rateLimitTrustedHops = 3;
+    assertEquals("10.0.0.1", servlet.getRateLimitKey(invocation.getRequest()));
+    execAndAssert(request, "");//another client
+  }
+
+  @Test
+  public void testServerTiming() throws Exception {
+    localTestServer.register("/targetPath*", new RequestInfoHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+        super.handle(request, response, context);
+        response.setHeader("Server-Timing", "db;dur=53");
+      }
+    });
+    WebResponse rsp = execAndAssert(makeGetMethodRequest(sourceBaseUri), "");
+    String serverTiming = rsp.getHeaderField("Server-Timing");
+    assertTrue(serverTiming, serverTiming.matches("db;dur=53, proxy-lease;dur=\\d+\\.\\d{3}, proxy-connect;dur=\\d+\\.\\d{3}, "
+        + "proxy-send;dur=\\d+\\.\\d{3}, proxy-ttfb;dur=\\d+\\.\\d{3}, proxy-overhead;dur=\\d+\\.\\d{3}"));
+  }
+
+  @Test
+  public void testAccessLog() throws Exception {
+    execAssert(makeGetMethodRequest(sourceBaseUri + "/pathInfo?q=v"), "/pathInfo?q=v");
+    servletRunner.shutDown();//flushes the log
+
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(accessLogFile), "UTF-8"));
+    String line = reader.readLine();
+    assertNull(reader.readLine());
+    reader.close();
+    assertTrue(line, line.startsWith("{\"time\":\""));
+    assertTrue(line, line.contains(",\"method\":\"GET\","));
+    String upstream = "http://localhost:" + localTestServer.getServiceAddress().getPort();
+    assertTrue(line, line.contains(",\"uri\":\"" + new URI(sourceBaseUri).getPath() + "/pathInfo\","));
+    assertTrue(line, line.contains(",\"target\":\"" + upstream + "/"));
+    assertTrue(line, line.contains(",\"upstream\":\"" + upstream + "\","));
+    assertTrue(line, line.contains(",\"status\":200,"));
+    assertTrue(line, line.contains(",\"waitMicros\":"));
+    assertTrue(line, line.endsWith("}"));
+  }
+}
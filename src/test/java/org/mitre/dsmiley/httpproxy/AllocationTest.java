@@ -0,0 +1,142 @@
+package org.mitre.dsmiley.httpproxy;
+
+import com.meterware.httpunit.GetMethodWebRequest;
+import com.meterware.httpunit.PostMethodWebRequest;
+import com.meterware.httpunit.WebRequest;
+import com.meterware.servletunit.InvocationContext;
+import com.meterware.servletunit.ServletRunner;
+import com.meterware.servletunit.ServletUnitClient;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.localserver.LocalTestServer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.Servlet;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Bounds the bytes allocated by the request thread in {@code service()} for typical requests, so
+ * that allocation regressions fail the build. The backend is an in-process LocalTestServer; only
+ * the servlet's thread is measured, which includes HttpClient executing the request but not the
+ * backend. Each bound is about 25% above what was measured when it was set; if a change lowers
+ * allocation substantially, lower the bound too.
+ */
+public class AllocationTest {
+
+  private static final int WARMUP = 500;
+  private static final int ITERATIONS = 200;
+
+  private LocalTestServer localTestServer;
+  private ServletRunner servletRunner;
+  private ServletUnitClient client;
+  private com.sun.management.ThreadMXBean threadMXBean;
+
+  @Before
+  public void setUp() throws Exception {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+    threadMXBean = (com.sun.management.ThreadMXBean) bean;
+    Assume.assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+    threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+    localTestServer = new LocalTestServer(null, null);
+    localTestServer.register("/targetPath*", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
+        response.setHeader("Content-Type", "application/json");
+        response.setHeader("Cache-Control", "private, max-age=0");
+        response.setEntity(new ByteArrayEntity(new byte[1024]));
+      }
+    });
+    localTestServer.start();
+    String target = "http://localhost:" + localTestServer.getServiceAddress().getPort() + "/targetPath";
+
+    servletRunner = new ServletRunner();
+    Properties proxyProps = new Properties();
+    proxyProps.setProperty(ProxyServlet.P_TARGET_URI, target);
+    servletRunner.registerServlet("/proxyMe/*", ProxyServlet.class.getName(), proxyProps);
+    Properties templateProps = new Properties();
+    templateProps.setProperty(ProxyServlet.P_TARGET_URI, "http://{_host}:{_port}/targetPath/{_tenant}");
+    servletRunner.registerServlet("/proxyParameterized/*", URITemplateProxyServlet.class.getName(), templateProps);
+    client = servletRunner.newClient();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (servletRunner != null)
+      servletRunner.shutDown();
+    if (localTestServer != null)
+      localTestServer.stop();
+  }
+
+  @Test
+  public void testGet() throws Exception {
+    GetMethodWebRequest request = new GetMethodWebRequest("http://localhost/proxyMe/select/docs");
+    request.setParameter("q", "title:java");
+    request.setParameter("rows", "10");
+    addBrowserHeaders(request);
+    assertAllocatesAtMost(38000, request);
+  }
+
+  @Test
+  public void testPost() throws Exception {
+    PostMethodWebRequest request = new PostMethodWebRequest("http://localhost/proxyMe/update");
+    request.setParameter("id", "1");
+    request.setParameter("title", "Java Servlets");
+    addBrowserHeaders(request);
+    assertAllocatesAtMost(33000, request);
+  }
+
+  @Test
+  public void testTemplatedGet() throws Exception {
+    GetMethodWebRequest request = new GetMethodWebRequest("http://localhost/proxyParameterized/select/docs");
+    request.setParameter("_host", "localhost");
+    request.setParameter("_port", Integer.toString(localTestServer.getServiceAddress().getPort()));
+    request.setParameter("_tenant", "tenant1");
+    request.setParameter("q", "title:java");
+    addBrowserHeaders(request);
+    assertAllocatesAtMost(40000, request);
+  }
+
+  private static void addBrowserHeaders(WebRequest request) {
+    request.setHeaderField("Accept", "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8");
+    request.setHeaderField("Accept-Language", "en-US,en;q=0.5");
+    request.setHeaderField("Cookie", "JSESSIONID=0123456789ABCDEF; theme=dark");
+    request.setHeaderField("Referer", "http://localhost/app/search");
+  }
+
+  private void assertAllocatesAtMost(long maxBytesPerRequest, WebRequest request) throws Exception {
+    assertEquals(200, client.getResponse(request).getResponseCode());//it's really proxied
+    for (int i = 0; i < WARMUP; i++)
+      allocatedByService(request);
+    long total = 0;
+    for (int i = 0; i < ITERATIONS; i++)
+      total += allocatedByService(request);
+    long perRequest = total / ITERATIONS;
+    assertTrue(request.getMethod() + " " + request.getURL().getPath() + " allocated " + perRequest
+        + " bytes per request over " + ITERATIONS + " requests; expected at most " + maxBytesPerRequest,
+        perRequest <= maxBytesPerRequest);
+  }
+
+  /** Bytes allocated by this thread in the servlet's service() for one request. */
+  private long allocatedByService(WebRequest request) throws Exception {
+    InvocationContext invocation = client.newInvocation(request);
+    Servlet servlet = invocation.getServlet();
+    long threadId = Thread.currentThread().getId();
+    long before = threadMXBean.getThreadAllocatedBytes(threadId);
+    servlet.service(invocation.getRequest(), invocation.getResponse());
+    return threadMXBean.getThreadAllocatedBytes(threadId) - before;
+  }
+}
@@ -0,0 +1,293 @@
+package org.mitre.dsmiley.httpproxy;
+
+import com.meterware.httpunit.GetMethodWebRequest;
+import com.meterware.httpunit.PostMethodWebRequest;
+import com.meterware.httpunit.WebRequest;
+import com.meterware.httpunit.WebResponse;
+import com.meterware.servletunit.InvocationContext;
+import com.meterware.servletunit.ServletRunner;
+import com.meterware.servletunit.ServletUnitClient;
+import org.apache.http.Header;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.localserver.LocalTestServer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BatchProxyServletTest {
+
+  private LocalTestServer localTestServer;
+  private ServletRunner servletRunner;
+  private ServletUnitClient sc;
+  private String targetBaseUri;
+
+  @Before
+  public void setUp() throws Exception {
+    localTestServer = new LocalTestServer(null, null);
+    localTestServer.start();
+    localTestServer.register("/targetPath*", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context)
+          throws HttpException, IOException {
+        StringBuilder text = new StringBuilder();
+        text.append(request.getRequestLine().getMethod()).append(' ')
+            .append(request.getRequestLine().getUri()).append('\n');
+        for (Header header : request.getAllHeaders())
+          text.append(header.getName()).append(": ").append(header.getValue()).append('\n');
+        if (request instanceof HttpEntityEnclosingRequest)
+          text.append("BODY: ").append(EntityUtils.toString(((HttpEntityEnclosingRequest) request).getEntity()));
+        response.setEntity(new StringEntity(text.toString()));
+      }
+    });
+    localTestServer.register("/targetPath/slow", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws IOException {
+        try {
+          Thread.sleep(500);
+        } catch (InterruptedException e) {
+          throw new IOException(e.toString());
+        }
+        response.setEntity(new StringEntity("slow"));
+      }
+    });
+    localTestServer.register("/targetPath/moved", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) {
+        response.setStatusCode(302);
+        response.setHeader("Location", targetBaseUri + "/elsewhere");
+      }
+    });
+    localTestServer.register("/targetPath/big", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws IOException {
+        response.setEntity(new StringEntity(new String(new char[5000]).replace('\0', 'b')));
+      }
+    });
+    targetBaseUri = "http://localhost:" + localTestServer.getServiceAddress().getPort() + "/targetPath";
+
+    servletRunner = new ServletRunner();
+    Properties servletProps = new Properties();
+    servletProps.setProperty("http.protocol.handle-redirects", "false");
+    servletProps.setProperty(ProxyServlet.P_TARGET_URI, targetBaseUri);
+    servletProps.setProperty(BatchProxyServlet.P_BATCH_CONCURRENCY, "4");
+    servletProps.setProperty(BatchProxyServlet.P_BATCH_MAX_REQUESTS, "5");
+    servletProps.setProperty(BatchProxyServlet.P_BATCH_MAX_RESPONSE_SIZE, "4096");
+    servletRunner.registerServlet("/batch/*", BatchProxyServlet.class.getName(), servletProps);
+    servletRunner.registerServlet("/localizedBatch/*", LocalizingBatchProxyServlet.class.getName(), servletProps);
+    sc = servletRunner.newClient();
+    sc.setExceptionsThrownOnErrorStatus(false);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    servletRunner.shutDown();
+    localTestServer.stop();
+  }
+
+  private static String part(String contentId, String request) {
+    return "--b0undary\r\nContent-Type: application/http\r\n"
+        + (contentId != null ? "Content-ID: <" + contentId + ">\r\n" : "") + "\r\n" + request + "\r\n";
+  }
+
+  private WebResponse sendBatch(String... parts) throws Exception {
+    return sc.getResponse(batchRequest(parts));
+  }
+
+  private WebRequest batchRequest(String... parts) throws Exception {
+    return batchRequestTo("http://localhost/batch", parts);
+  }
+
+  private WebRequest batchRequestTo(String url, String... parts) throws Exception {
+    StringBuilder body = new StringBuilder("preamble\r\n");
+    for (String part : parts)
+      body.append(part);
+    body.append("--b0undary--\r\n");
+    PostMethodWebRequest request = new PostMethodWebRequest(url,
+        new ByteArrayInputStream(body.toString().getBytes("ISO-8859-1")), "multipart/mixed; boundary=b0undary");
+    request.setHeaderField("Cookie", "session=s1");
+    return request;
+  }
+
+  /** The response's parts by Content-ID, in order. */
+  private static Map<String, String> parseParts(WebResponse response) throws IOException {
+    assertEquals(200, response.getResponseCode());
+    assertTrue(response.getContentType(), response.getContentType().startsWith("multipart/mixed"));
+    //httpunit drops the boundary parameter, but the body starts with it
+    String body = response.getText();
+    assertTrue(body, body.startsWith("--"));
+    String boundary = body.substring(2, body.indexOf("\r\n"));
+    List<byte[]> parts = BatchProxyServlet.splitParts(body.getBytes("ISO-8859-1"), boundary);
+    Map<String, String> byId = new LinkedHashMap<String, String>();
+    for (byte[] part : parts) {
+      String text = new String(part, "ISO-8859-1");
+      assertTrue(text, text.startsWith("Content-Type: application/http\r\n"));
+      int idStart = text.indexOf("Content-ID: ") + "Content-ID: ".length();
+      String id = text.substring(idStart, text.indexOf("\r\n", idStart));
+      byId.put(id, text.substring(text.indexOf("\r\n\r\n") + 4));
+    }
+    return byId;
+  }
+
+  @Test
+  public void testBatch() throws Exception {
+    Map<String, String> parts = parseParts(sendBatch(
+        part("get", "GET /a/b?x=1 HTTP/1.1\r\nX-Test: one\r\n"),
+        part(null, "POST /c HTTP/1.1\r\nContent-Type: text/plain\r\nContent-Length: 5\r\n\r\nhello"),
+        part("moved", "GET /moved HTTP/1.1\r\n")));
+    assertEquals(3, parts.size());
+
+    String get = parts.get("response-get");
+    assertTrue(get, get.startsWith("HTTP/1.1 200 OK\r\n"));
+    assertTrue(get, get.contains("\r\n\r\nGET /targetPath/a/b?x=1\n"));
+    assertTrue(get, get.contains("X-Test: one\n"));
+    assertTrue(get, get.contains("Cookie: session=s1\n"));//from the batch
+    assertTrue(get, get.contains("Host: localhost:" + localTestServer.getServiceAddress().getPort() + "\n"));
+
+    String post = parts.get("response-2");//by position
+    assertTrue(post, post.contains("POST /targetPath/c\n"));
+    assertTrue(post, post.contains("Content-Type: text/plain\n"));
+    assertTrue(post, post.endsWith("BODY: hello"));
+
+    String moved = parts.get("response-moved");
+    assertTrue(moved, moved.startsWith("HTTP/1.1 302 "));
+    assertTrue(moved, moved.contains("Location: http://localhost/batch/elsewhere\r\n"));
+  }
+
+  @Test
+  public void testBatchHeadersNotInherited() throws Exception {
+    WebRequest request = batchRequest(part("get", "GET /a HTTP/1.1\r\n"));
+    request.setHeaderField("Expect", "100-continue");
+    request.setHeaderField("TE", "trailers");
+    request.setHeaderField("X-Batch", "yes");
+    String get = parseParts(sc.getResponse(request)).get("response-get");
+    String echoed = get.substring(get.indexOf("\r\n\r\n") + 4);//the request as the target saw it
+    assertTrue(get, echoed.startsWith("GET /targetPath/a\n"));
+    assertTrue(get, echoed.contains("X-Batch: yes\n"));
+    assertFalse(get, echoed.contains("Expect:"));
+    assertFalse(get, echoed.contains("TE:"));
+    assertFalse(get, echoed.contains("Content-Length:"));
+  }
+
+  /** Sets the response's encoding, locale and a cookie, as a subclass might. */
+  public static class LocalizingBatchProxyServlet extends BatchProxyServlet {
+    @Override
+    protected void copyResponseHeaders(HttpResponse proxyResponse, HttpServletRequest servletRequest,
+                                       HttpServletResponse servletResponse) {
+      super.copyResponseHeaders(proxyResponse, servletRequest, servletResponse);
+      servletResponse.setCharacterEncoding("UTF-8");
+      servletResponse.setLocale(Locale.FRANCE);
+      servletResponse.addCookie(new Cookie("lang", "fr"));
+    }
+  }
+
+  @Test
+  public void testSubResponseEncodingAndLocale() throws Exception {
+    WebRequest request = batchRequestTo("http://localhost/localizedBatch", part("get", "GET /a HTTP/1.1\r\n"));
+    String get = parseParts(sc.getResponse(request)).get("response-get");
+    assertTrue(get, get.startsWith("HTTP/1.1 200 OK\r\n"));
+    assertTrue(get, get.contains("Content-Type: text/plain;charset=UTF-8\r\n"));
+    assertTrue(get, get.contains("Content-Language: fr-FR\r\n"));
+    assertTrue(get, get.contains("Set-Cookie: lang=fr\r\n"));
+  }
+
+  @Test
+  public void testParallelInCompletionOrder() throws Exception {
+    parseParts(sendBatch(part(null, "GET /warmup HTTP/1.1\r\n")));
+    long start = System.nanoTime();
+    Map<String, String> parts = parseParts(sendBatch(
+        part("slow1", "GET /slow HTTP/1.1\r\n"),
+        part("slow2", "GET /slow HTTP/1.1\r\n"),
+        part("slow3", "GET /slow HTTP/1.1\r\n"),
+        part("fast", "GET /fast HTTP/1.1\r\n")));
+    long millis = (System.nanoTime() - start) / 1000000;
+    assertTrue("took " + millis + "ms", millis < 1400);//3 x 500ms in a row
+    assertEquals("response-fast", parts.keySet().iterator().next());
+    assertEquals(4, parts.size());
+  }
+
+  @Test
+  public void testResponseTooLarge() throws Exception {
+    Map<String, String> parts = parseParts(sendBatch(
+        part("big", "GET /big HTTP/1.1\r\n"),
+        part("small", "GET /a HTTP/1.1\r\n")));
+    assertTrue(parts.get("response-big"), parts.get("response-big").startsWith("HTTP/1.1 502 Bad Gateway\r\n"));
+    assertTrue(parts.get("response-big"), parts.get("response-big").contains("Content-Length: 0\r\n"));
+    assertTrue(parts.get("response-small"), parts.get("response-small").startsWith("HTTP/1.1 200 OK\r\n"));
+  }
+
+  @Test
+  public void testPathsStayUnderTheTarget() throws Exception {
+    Map<String, String> parts = parseParts(sendBatch(
+        part("up", "GET /../../admin HTTP/1.1\r\n"),
+        part("encoded", "GET /a/%2e%2e/%2E%2E/admin HTTP/1.1\r\n"),
+        part("absolute", "GET http://localhost/admin HTTP/1.1\r\n"),
+        part("scheme-relative", "GET //localhost/admin HTTP/1.1\r\n"),
+        part("inside", "GET /a/./b/../c%20d HTTP/1.1\r\n")));
+    for (String id : new String[]{"up", "encoded", "absolute", "scheme-relative"}) {
+      String part = parts.get("response-" + id);
+      assertTrue(id + ": " + part, part.startsWith("HTTP/1.1 400 Bad Request\r\n"));
+    }
+    String inside = parts.get("response-inside");
+    assertTrue(inside, inside.contains("\r\n\r\nGET /targetPath/a/c%20d\n"));
+  }
+
+  @Test
+  public void testRateLimited() throws Exception {
+    ((ProxyServlet) sc.newInvocation("http://localhost/batch").getServlet()).rateLimiter = new RateLimiter(0.001, 1, 16);
+    int ok = 0;
+    int limited = 0;
+    for (String part : parseParts(sendBatch(
+        part(null, "GET /a HTTP/1.1\r\n"),
+        part(null, "GET /a HTTP/1.1\r\n"),
+        part(null, "GET /a HTTP/1.1\r\n"))).values()) {
+      if (part.startsWith("HTTP/1.1 200 "))
+        ok++;
+      else if (part.startsWith("HTTP/1.1 429 ") && part.contains("Retry-After: "))
+        limited++;
+    }
+    assertEquals(1, ok);//each request of the batch takes a token
+    assertEquals(2, limited);
+  }
+
+  @Test
+  public void testLimits() throws Exception {
+    String[] tooMany = new String[6];
+    for (int i = 0; i < tooMany.length; i++)
+      tooMany[i] = part(null, "GET /a HTTP/1.1\r\n");
+    assertEquals(413, getStatus(batchRequest(tooMany)));
+
+    PostMethodWebRequest notMultipart = new PostMethodWebRequest("http://localhost/batch",
+        new ByteArrayInputStream("{}".getBytes("UTF-8")), "application/json");
+    assertEquals(415, getStatus(notMultipart));
+
+    assertEquals(405, getStatus(new GetMethodWebRequest("http://localhost/batch")));
+
+    assertEquals(400, getStatus(batchRequest(part(null, "not a request line\r\n"))));
+  }
+
+  /** Invokes the servlet directly, since httpunit would parse the HTML error page. */
+  private int getStatus(WebRequest request) throws Exception {
+    InvocationContext invocation = sc.newInvocation(request);
+    invocation.getServlet().service(invocation.getRequest(), invocation.getResponse());
+    return invocation.getServletResponse().getResponseCode();
+  }
+}
@@ -0,0 +1,250 @@
+package org.mitre.dsmiley.httpproxy;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.InputStreamEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.localserver.LocalTestServer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Proxies request and response bodies with non-blocking I/O through a {@link ProxyServlet} in an
+ * embedded Tomcat (httpunit has no Servlet 3.1 async).
+ */
+public class BodyTransferTest {
+
+  private static final int BIG = 8 * 1024 * 1024;
+
+  private LocalTestServer localTestServer;
+  private Tomcat tomcat;
+  private ProxyServlet servlet;
+  private String targetBaseUri;
+  private int port;
+
+  @Before
+  public void setUp() throws Exception {
+    localTestServer = new LocalTestServer(null, null);
+    localTestServer.start();
+    localTestServer.register("/echo", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context)
+          throws HttpException, IOException {
+        byte[] body = EntityUtils.toByteArray(((HttpEntityEnclosingRequest) request).getEntity());
+        response.setEntity(new ByteArrayEntity(body));
+      }
+    });
+    localTestServer.register("/big", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) {
+        response.setEntity(new InputStreamEntity(new ByteArrayInputStream(randomBytes(BIG)), -1));//chunked
+      }
+    });
+    localTestServer.register("/small", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws IOException {
+        response.setEntity(new StringEntity("small"));
+      }
+    });
+    targetBaseUri = "http://localhost:" + localTestServer.getServiceAddress().getPort();
+    localTestServer.register("/page", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws IOException {
+        StringBuilder page = new StringBuilder("<html><body>");
+        for (int i = 0; i < 1000; i++)
+          page.append("<a href=\"").append(targetBaseUri).append("/doc").append(i).append("\">doc</a>\n");
+        page.append("</body></html>");
+        response.setEntity(new StringEntity(page.toString(), "text/html", "UTF-8"));
+      }
+    });
+
+    File baseDir = File.createTempFile("tomcat", "");
+    baseDir.delete();
+    baseDir.mkdir();
+    tomcat = new Tomcat();
+    tomcat.setBaseDir(baseDir.getPath());
+    tomcat.setPort(0);
+    tomcat.getConnector();
+    Context context = tomcat.addContext("", baseDir.getPath());
+    servlet = new ProxyServlet();
+    Wrapper wrapper = Tomcat.addServlet(context, "proxy", servlet);
+    wrapper.addInitParameter(ProxyServlet.P_TARGET_URI, targetBaseUri);
+    wrapper.addInitParameter(ProxyServlet.P_NON_BLOCKING_IO, "true");
+    wrapper.addInitParameter(ProxyServlet.P_NON_BLOCKING_BUFFERS, "2");
+    wrapper.addInitParameter(ProxyServlet.P_REWRITE_BODY, "true");
+    wrapper.addInitParameter(ProxyServlet.P_ACCESS_LOG, new File(baseDir, "access.log").getPath());
+    wrapper.setAsyncSupported(true);
+    wrapper.setLoadOnStartup(1);
+    context.addServletMappingDecoded("/proxy/*", "proxy");
+    tomcat.start();
+    port = tomcat.getConnector().getLocalPort();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    tomcat.stop();
+    tomcat.destroy();
+    localTestServer.stop();
+  }
+
+  private static byte[] randomBytes(int length) {
+    byte[] bytes = new byte[length];
+    new Random(42).nextBytes(bytes);
+    return bytes;
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int read;
+    while ((read = in.read(buffer)) >= 0)
+      out.write(buffer, 0, read);
+    return out.toByteArray();
+  }
+
+  private HttpURLConnection open(String path) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + port + "/proxy" + path)
+        .openConnection();
+    connection.setReadTimeout(10000);
+    return connection;
+  }
+
+  private byte[] upload(byte[] body, boolean chunked) throws IOException {
+    HttpURLConnection connection = open("/echo");
+    connection.setRequestMethod("POST");
+    connection.setDoOutput(true);
+    if (chunked)
+      connection.setChunkedStreamingMode(8192);
+    else
+      connection.setFixedLengthStreamingMode(body.length);
+    OutputStream out = connection.getOutputStream();
+    out.write(body);
+    out.close();
+    assertEquals(200, connection.getResponseCode());
+    return readAll(connection.getInputStream());
+  }
+
+  @Test
+  public void testUpload() throws Exception {
+    byte[] body = randomBytes(1024 * 1024);
+    assertArrayEquals(body, upload(body, false));
+    //more than the 2 buffers read ahead
+    assertTrue(servlet.bodyTransferStats.getRequestPauseCount() > 0);
+    assertEquals(1, servlet.bodyTransferStats.getTransferCount());
+  }
+
+  @Test
+  public void testChunkedUpload() throws Exception {
+    byte[] body = randomBytes(100 * 1024 + 17);
+    assertArrayEquals(body, upload(body, true));
+  }
+
+  @Test
+  public void testSmallUpload() throws Exception {
+    byte[] body = "tiny".getBytes("UTF-8");
+    assertArrayEquals(body, upload(body, false));
+  }
+
+  @Test
+  public void testSlowClient() throws Exception {
+    Socket socket = new Socket();
+    socket.setReceiveBufferSize(4096);
+    socket.connect(new InetSocketAddress("localhost", port));
+    socket.setSoTimeout(10000);
+    try {
+      OutputStream out = socket.getOutputStream();
+      out.write(("GET /proxy/big HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n").getBytes("ISO-8859-1"));
+      out.flush();
+      //not reading: the proxy stops reading the target until the client can take more
+      for (int i = 0; i < 500 && servlet.bodyTransferStats.getResponsePauseCount() == 0; i++)
+        Thread.sleep(10);
+      assertTrue(servlet.bodyTransferStats.getResponsePauseCount() > 0);
+
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+      String head = readHead(in);
+      assertTrue(head, head.startsWith("HTTP/1.1 200"));
+      assertTrue(head, head.contains("Transfer-Encoding: chunked"));
+      assertArrayEquals(randomBytes(BIG), readChunked(in));
+    } finally {
+      socket.close();
+    }
+  }
+
+  @Test
+  public void testRewrittenResponse() throws Exception {
+    HttpURLConnection connection = open("/page");
+    assertEquals(200, connection.getResponseCode());
+    String page = new String(readAll(connection.getInputStream()), "UTF-8");
+    String proxyBase = "http://localhost:" + port + "/proxy";
+    assertTrue(page, page.contains("<a href=\"" + proxyBase + "/doc0\">"));
+    assertTrue(page, page.contains("<a href=\"" + proxyBase + "/doc999\">"));
+    assertTrue(page, !page.contains(targetBaseUri));
+    assertEquals(1, servlet.bodyTransferStats.getTransferCount());
+  }
+
+  @Test
+  public void testSmallResponse() throws Exception {
+    HttpURLConnection connection = open("/small");
+    assertEquals(200, connection.getResponseCode());
+    assertEquals("small", new String(readAll(connection.getInputStream()), "UTF-8"));
+    //it fits in a buffer, so it's written as usual
+    assertEquals(0, servlet.bodyTransferStats.getTransferCount());
+  }
+
+  private static String readHead(InputStream in) throws IOException {
+    ByteArrayOutputStream head = new ByteArrayOutputStream();
+    int matched = 0;
+    while (matched < 4) {
+      int b = in.read();
+      if (b < 0)
+        throw new IOException("Closed in the headers: " + head);
+      head.write(b);
+      matched = (b == (matched % 2 == 0 ? '\r' : '\n')) ? matched + 1 : (b == '\r' ? 1 : 0);
+    }
+    return head.toString("ISO-8859-1");
+  }
+
+  private static byte[] readChunked(DataInputStream in) throws IOException {
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    for (;;) {
+      StringBuilder sizeLine = new StringBuilder();
+      int b;
+      while ((b = in.read()) != '\n') {
+        if (b < 0)
+          throw new IOException("Closed in a chunk size");
+        if (b != '\r')
+          sizeLine.append((char) b);
+      }
+      int size = Integer.parseInt(sizeLine.toString().trim(), 16);
+      if (size == 0)
+        return body.toByteArray();
+      byte[] chunk = new byte[size];
+      in.readFully(chunk);
+      body.write(chunk);
+      in.readFully(new byte[2]);//CRLF
+    }
+  }
+}
@@ -0,0 +1,72 @@
+package org.mitre.dsmiley.httpproxy;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class BulkheadTest {
+
+  @Test
+  public void testPerServlet() {
+    Bulkhead bulkhead = new Bulkhead(2, 0, false, 10);
+    assertSame(bulkhead.getCompartment("http://a"), bulkhead.getCompartment("http://b"));
+    Bulkhead.Compartment compartment = bulkhead.getCompartment("http://a");
+    assertTrue(compartment.acquire());
+    assertTrue(bulkhead.getCompartment("http://b").acquire());
+    assertFalse(compartment.acquire());
+    assertEquals(2, bulkhead.getInFlight());
+    assertEquals(1, bulkhead.getRejectedCount());
+    compartment.release();
+    assertTrue(compartment.acquire());
+  }
+
+  @Test
+  public void testPerRoute() {
+    Bulkhead bulkhead = new Bulkhead(1, 0, true, 10);
+    Bulkhead.Compartment a = bulkhead.getCompartment("http://a");
+    assertNotSame(a, bulkhead.getCompartment("http://b"));
+    assertTrue(a.acquire());
+    assertFalse(a.acquire());
+    assertTrue(bulkhead.getCompartment("http://b").acquire());
+    assertEquals(2, bulkhead.getInFlight());
+
+    Map<String, Object> metrics = new HashMap<String, Object>();
+    bulkhead.collectMetrics("http://a", metrics);
+    assertEquals(1, metrics.get("bulkheadInFlight"));
+    assertEquals(1L, metrics.get("bulkheadRejected"));
+    bulkhead.collectMetrics("http://unseen", metrics);
+    assertEquals(0, metrics.get("bulkheadInFlight"));
+  }
+
+  @Test
+  public void testWaits() throws InterruptedException {
+    Bulkhead bulkhead = new Bulkhead(1, 5000, false, 10);
+    final Bulkhead.Compartment compartment = bulkhead.getCompartment(null);
+    assertTrue(compartment.acquire());
+    final boolean[] acquired = new boolean[1];
+    Thread waiter = new Thread() {
+      @Override
+      public void run() {
+        acquired[0] = compartment.acquire();
+      }
+    };
+    waiter.start();
+    Thread.sleep(20);
+    compartment.release();
+    waiter.join();
+    assertTrue(acquired[0]);
+
+    bulkhead = new Bulkhead(1, 10, false, 10);
+    assertTrue(bulkhead.getCompartment(null).acquire());
+    long start = System.nanoTime();
+    assertFalse(bulkhead.getCompartment(null).acquire());
+    assertTrue(System.nanoTime() - start >= 10000000L);
+  }
+}
@@ -0,0 +1,175 @@
+package org.mitre.dsmiley.httpproxy;
+
+import com.meterware.httpunit.GetMethodWebRequest;
+import com.meterware.httpunit.WebRequest;
+import com.meterware.servletunit.InvocationContext;
+import com.meterware.servletunit.ServletRunner;
+import com.meterware.servletunit.ServletUnitClient;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.localserver.LocalTestServer;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.ServletException;
+import java.io.IOException;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ClientRegistryTest {
+
+  private LocalTestServer localTestServer;
+  private ServletRunner servletRunner;
+  private ServletUnitClient sc;
+
+  @Before
+  public void setUp() throws Exception {
+    localTestServer = new LocalTestServer(null, null);
+    localTestServer.register("/*", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws IOException {
+        if (request.getRequestLine().getUri().endsWith("/slow")) {
+          try {
+            Thread.sleep(500);
+          } catch (InterruptedException e) {
+            throw new IOException(e.toString());
+          }
+        }
+        response.setEntity(new StringEntity("ok"));
+      }
+    });
+    localTestServer.start();
+    String targetUri = "http://localhost:" + localTestServer.getServiceAddress().getPort() + "/target";
+
+    servletRunner = new ServletRunner();
+    Properties a = new Properties();
+    a.setProperty(ProxyServlet.P_TARGET_URI, targetUri);
+    a.setProperty(ProxyServlet.P_SHARED_CLIENT, "backend");
+    a.setProperty(ProxyServlet.P_SHARED_CLIENT_MAX_CONNECTIONS, "3");
+    servletRunner.registerServlet("/a/*", ProxyServlet.class.getName(), a);
+    Properties b = new Properties();
+    b.setProperty(ProxyServlet.P_TARGET_URI, targetUri);
+    b.setProperty(ProxyServlet.P_SHARED_CLIENT, "backend");
+    b.setProperty("http.socket.timeout", "100");
+    servletRunner.registerServlet("/b/*", ProxyServlet.class.getName(), b);
+    Properties c = new Properties();
+    c.setProperty(ProxyServlet.P_TARGET_URI, targetUri);
+    servletRunner.registerServlet("/c/*", ProxyServlet.class.getName(), c);
+    Properties d = new Properties();
+    d.setProperty(ProxyServlet.P_TARGET_URI, targetUri);
+    d.setProperty(ProxyServlet.P_SHARED_CLIENT, "backend");
+    d.setProperty(ProxyServlet.P_STATELESS_CLIENT, "true");
+    servletRunner.registerServlet("/d/*", ProxyServlet.class.getName(), d);
+    sc = servletRunner.newClient();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    servletRunner.shutDown();
+    localTestServer.stop();
+  }
+
+  private ProxyServlet servlet(String path) throws Exception {
+    return (ProxyServlet) sc.newInvocation(new GetMethodWebRequest("http://localhost" + path)).getServlet();
+  }
+
+  /** Proxies a GET, without httpunit's handling of errors. */
+  private int get(String path) throws Exception {
+    WebRequest request = new GetMethodWebRequest("http://localhost" + path);
+    InvocationContext ic = sc.newInvocation(request);
+    ic.getServlet().service(ic.getRequest(), ic.getResponse());
+    return ic.getServletResponse().getResponseCode();
+  }
+
+  @Test
+  public void testSharedClient() throws Exception {
+    assertEquals(200, get("/a/page"));
+    assertEquals(200, get("/b/page"));
+    assertEquals(200, get("/c/page"));
+    ProxyServlet a = servlet("/a/"), b = servlet("/b/"), c = servlet("/c/");
+    assertSame(a.getProxyClient(), b.getProxyClient());
+    assertNotSame(a.getProxyClient(), c.getProxyClient());
+
+    ClientRegistry registry = ClientRegistry.get(a.getServletContext());
+    assertEquals(1, registry.getClients().size());
+    ClientRegistry.SharedClient shared = registry.getClients().get("backend");
+    assertSame(a.sharedClient, shared);
+    assertEquals(2, registry.getUsers(shared));
+    //one pool, bounded as the first servlet said; the second request reused the first's connection
+    PoolStats stats = registry.getTotalStats();
+    assertEquals(3, stats.getMax());
+    assertEquals(0, stats.getLeased());
+    assertEquals(1, stats.getAvailable());
+  }
+
+  @Test
+  public void testSettingsMustMatch() throws Exception {
+    assertEquals(200, get("/a/page"));
+    try {
+      servlet("/d/");
+      fail("d isn't stateless like the client a created");
+    } catch (ServletException e) {
+      //expected
+    }
+    assertEquals(1, ClientRegistry.get(servlet("/a/").getServletContext()).getUsers(servlet("/a/").sharedClient));
+  }
+
+  @Test
+  public void testOwnTimeouts() throws Exception {
+    assertEquals(200, get("/a/slow"));//a created the client, with no socket timeout
+    try {
+      get("/b/slow");
+      fail("b's socket timeout should apply");
+    } catch (IOException e) {
+      //expected
+    }
+  }
+
+  @Test
+  public void testReferenceCounting() throws Exception {
+    assertEquals(200, get("/a/page"));
+    assertEquals(200, get("/b/page"));
+    ProxyServlet a = servlet("/a/"), b = servlet("/b/");
+    ClientRegistry registry = ClientRegistry.get(a.getServletContext());
+    ClientRegistry.SharedClient shared = a.sharedClient;
+
+    a.destroy();
+    assertEquals(1, registry.getUsers(shared));
+    assertEquals(200, get("/b/page"));
+    b.destroy();
+    assertTrue(registry.getClients().isEmpty());
+    try {
+      shared.getConnectionManager().requestConnection(new HttpRoute(new HttpHost("localhost")), null);
+      fail("the pool should be shut down");
+    } catch (IllegalStateException e) {
+      //expected
+    }
+
+    //only the first user of a name creates it
+    final int[] created = new int[1];
+    ClientRegistry.Factory factory = new ClientRegistry.Factory() {
+      public ClientRegistry.SharedClient create() {
+        created[0]++;
+        return new ClientRegistry.SharedClient("other", null, null);
+      }
+    };
+    ClientRegistry.SharedClient other = registry.acquire("other", factory);
+    assertSame(other, registry.acquire("other", factory));
+    assertEquals(1, created[0]);
+    registry.release(other);
+    assertEquals(1, registry.getClients().size());
+    registry.release(other);
+    assertTrue(registry.getClients().isEmpty());
+  }
+}
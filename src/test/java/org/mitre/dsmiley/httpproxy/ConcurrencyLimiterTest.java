@@ -0,0 +1,115 @@
+package org.mitre.dsmiley.httpproxy;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ConcurrencyLimiterTest {
+
+  private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  @Test
+  public void testRejectsOverLimit() {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 10, 2.0, 0, 0, 10);
+    ConcurrencyLimiter.Limit limit = limiter.getLimit("http://a");
+    assertTrue(limit.acquire());
+    assertTrue(limit.acquire());
+    assertFalse(limit.acquire());
+    assertEquals(1, limiter.getRejectedCount());
+    limit.release();
+    assertTrue(limit.acquire());
+    assertTrue(limiter.getLimit("http://b").acquire());//routes are separate
+  }
+
+  @Test
+  public void testIncreasesWhileUsed() {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(4, 10, 2.0, 0, 0, 10);
+    ConcurrencyLimiter.Limit limit = limiter.getLimit("http://a");
+    //one in flight of 4 isn't using the limit
+    limit.acquire();
+    for (int i = 0; i < 20; i++)
+      limit.onSample(10 * MS, false);
+    assertEquals(4, limit.getLimit());
+    //4 in flight is; it grows by about one per limit's worth of samples
+    limit.acquire();
+    limit.acquire();
+    limit.acquire();
+    for (int i = 0; i < 4; i++)
+      limit.onSample(10 * MS, false);
+    assertEquals(4, limit.getLimit());
+    limit.onSample(10 * MS, false);
+    assertEquals(5, limit.getLimit());
+    for (int i = 0; i < 1000; i++)
+      limit.onSample(10 * MS, false);
+    assertEquals(8, limit.getLimit());//twice what's used
+    limit.acquire();
+    limit.acquire();
+    for (int i = 0; i < 1000; i++)
+      limit.onSample(10 * MS, false);
+    assertEquals(10, limit.getLimit());//the max
+  }
+
+  @Test
+  public void testDecreasesOncePerRoundTrip() throws InterruptedException {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(100, 100, 2.0, 0, 0, 10);
+    ConcurrencyLimiter.Limit limit = limiter.getLimit("http://a");
+    limit.onSample(MS, false);
+    limit.onSample(5 * MS, false);//over the tolerance
+    assertEquals(90, limit.getLimit());
+    limit.onSample(5 * MS, true);//sent before that decrease
+    assertEquals(90, limit.getLimit());
+    Thread.sleep(2);
+    limit.onSample(MS, true);//a failure sent after it
+    assertEquals(81, limit.getLimit());
+  }
+
+  @Test
+  public void testQueue() throws InterruptedException {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 2.0, 1, 5000, 10);
+    final ConcurrencyLimiter.Limit limit = limiter.getLimit("http://a");
+    assertTrue(limit.acquire());
+    final boolean[] acquired = new boolean[1];
+    Thread waiter = new Thread() {
+      @Override
+      public void run() {
+        acquired[0] = limit.acquire();
+      }
+    };
+    waiter.start();
+    while (!queued(limiter))
+      Thread.sleep(1);
+    assertFalse(limit.acquire());//the queue is full
+    limit.release();
+    waiter.join();
+    assertTrue(acquired[0]);
+    assertEquals(1, limit.getInFlight());
+
+    limiter = new ConcurrencyLimiter(1, 1, 2.0, 1, 10, 10);
+    assertTrue(limiter.getLimit("http://a").acquire());
+    long start = System.nanoTime();
+    assertFalse(limiter.getLimit("http://a").acquire());//times out
+    assertTrue(System.nanoTime() - start >= 10 * MS);
+  }
+
+  private static boolean queued(ConcurrencyLimiter limiter) {
+    Map<String, Object> metrics = new HashMap<String, Object>();
+    limiter.collectMetrics("http://a", metrics);
+    return (Integer) metrics.get("queued") == 1;
+  }
+
+  @Test
+  public void testRoutesAreBounded() {
+    ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 2.0, 0, 0, 2);
+    ConcurrencyLimiter.Limit a = limiter.getLimit("http://a");
+    limiter.getLimit("http://b");
+    assertSame(limiter.getLimit(ProxyMetrics.OTHER_ROUTE), limiter.getLimit("http://c"));
+    assertSame(a, limiter.getLimit("http://a"));
+  }
+}
@@ -0,0 +1,51 @@
+package org.mitre.dsmiley.httpproxy;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DeadlineTest {
+
+  @Test
+  public void testGrpcTimeout() {
+    assertEquals(150, Deadline.parseGrpcTimeout("150m"));
+    assertEquals(2000, Deadline.parseGrpcTimeout("2S"));
+    assertEquals(120000, Deadline.parseGrpcTimeout("2M"));
+    assertEquals(3600000, Deadline.parseGrpcTimeout("1H"));
+    assertEquals(1, Deadline.parseGrpcTimeout("1500u"));
+    assertEquals(0, Deadline.parseGrpcTimeout("999999n"));
+    assertEquals(-1, Deadline.parseGrpcTimeout("150"));
+    assertEquals(-1, Deadline.parseGrpcTimeout("m"));
+    assertEquals(-1, Deadline.parseGrpcTimeout("1.5S"));
+    assertEquals(-1, Deadline.parseGrpcTimeout("123456789m"));//at most 8 digits
+    assertEquals("150m", Deadline.formatGrpcTimeout(150));
+    assertEquals("0m", Deadline.formatGrpcTimeout(-5));
+    assertEquals("100000S", Deadline.formatGrpcTimeout(100000000L));
+  }
+
+  @Test
+  public void testWatchdog() throws InterruptedException {
+    Deadline.Watchdog watchdog = new Deadline.Watchdog("test");
+    watchdog.start();
+    try {
+      Deadline expiring = new Deadline(System.nanoTime(), 20);
+      ProxyRequest expiringRequest = new ProxyRequest("GET", "/");
+      watchdog.watch(expiring, expiringRequest);
+      Deadline done = new Deadline(System.nanoTime(), 20);
+      ProxyRequest doneRequest = new ProxyRequest("GET", "/");
+      watchdog.watch(done, doneRequest);
+      done.done();
+      assertFalse(expiring.isExpired());
+      Thread.sleep(100);
+      assertTrue(expiring.isExpired());
+      assertTrue(expiring.isAborted());
+      assertTrue(expiringRequest.isAborted());
+      assertFalse(done.isAborted());
+      assertFalse(doneRequest.isAborted());
+    } finally {
+      watchdog.close();
+    }
+  }
+}
@@ -0,0 +1,214 @@
+package org.mitre.dsmiley.httpproxy;
+
+import com.meterware.httpunit.GetMethodWebRequest;
+import com.meterware.httpunit.WebRequest;
+import com.meterware.servletunit.InvocationContext;
+import com.meterware.servletunit.ServletRunner;
+import com.meterware.servletunit.ServletUnitClient;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.localserver.LocalTestServer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ETagTableTest {
+
+  private LocalTestServer localTestServer;
+  private ServletRunner servletRunner;
+  private ServletUnitClient sc;
+  private final AtomicInteger hits = new AtomicInteger();
+  private volatile String body = "version 1";
+
+  @Before
+  public void setUp() throws Exception {
+    localTestServer = new LocalTestServer(null, null);
+    localTestServer.register("/page", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws IOException {
+        hits.incrementAndGet();
+        response.setEntity(new StringEntity(body));//no validator of its own
+      }
+    });
+    localTestServer.register("/big", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws IOException {
+        ByteArrayEntity entity = new ByteArrayEntity(new byte[5000]);
+        entity.setChunked(true);//no length known up front
+        response.setEntity(entity);
+      }
+    });
+    localTestServer.register("/vary", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws IOException {
+        response.setHeader("Vary", "Accept-Language");
+        response.setEntity(new StringEntity("varies"));
+      }
+    });
+    localTestServer.register("/private", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws IOException {
+        response.setHeader("Cache-Control", "private, max-age=60");
+        response.setEntity(new StringEntity("mine"));
+      }
+    });
+    localTestServer.register("/tagged", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws IOException {
+        response.setHeader("ETag", "\"own\"");
+        response.setEntity(new StringEntity("tagged"));
+      }
+    });
+    localTestServer.start();
+    String targetUri = "http://localhost:" + localTestServer.getServiceAddress().getPort();
+
+    servletRunner = new ServletRunner();
+    Properties revalidate = new Properties();
+    revalidate.setProperty(ProxyServlet.P_TARGET_URI, targetUri);
+    revalidate.setProperty(ProxyServlet.P_ETAGS, "revalidate");
+    revalidate.setProperty(ProxyServlet.P_ETAG_MAX_BODY, "4096");
+    servletRunner.registerServlet("/revalidate/*", ProxyServlet.class.getName(), revalidate);
+    Properties local = new Properties();
+    local.setProperty(ProxyServlet.P_TARGET_URI, targetUri);
+    local.setProperty(ProxyServlet.P_ETAGS, "local");
+    servletRunner.registerServlet("/local/*", ProxyServlet.class.getName(), local);
+    sc = servletRunner.newClient();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    servletRunner.shutDown();
+    localTestServer.stop();
+  }
+
+  /** Proxies a GET, without httpunit's handling of 304s. */
+  private InvocationContext get(String path, String ifNoneMatch) throws Exception {
+    return get(path, ifNoneMatch, null, null);
+  }
+
+  private InvocationContext get(String path, String ifNoneMatch, String header, String value) throws Exception {
+    WebRequest request = new GetMethodWebRequest("http://localhost" + path);
+    if (ifNoneMatch != null)
+      request.setHeaderField("If-None-Match", ifNoneMatch);
+    if (header != null)
+      request.setHeaderField(header, value);
+    InvocationContext ic = sc.newInvocation(request);
+    ic.getServlet().service(ic.getRequest(), ic.getResponse());
+    return ic;
+  }
+
+  private ETagTable table(String path) throws Exception {
+    return ((ProxyServlet) sc.newInvocation(new GetMethodWebRequest("http://localhost" + path)).getServlet()).etagTable;
+  }
+
+  @Test
+  public void testRevalidate() throws Exception {
+    InvocationContext first = get("/revalidate/page", null);
+    assertEquals(200, first.getServletResponse().getResponseCode());
+    assertEquals("version 1", first.getServletResponse().getText());
+    String etag = first.getServletResponse().getHeaderField("ETag");
+    assertNotNull(etag);
+    assertEquals(etag, get("/revalidate/page", null).getServletResponse().getHeaderField("ETag"));
+
+    InvocationContext notModified = get("/revalidate/page", "\"other\", " + etag);
+    assertEquals(304, notModified.getServletResponse().getResponseCode());
+    assertEquals(etag, notModified.getServletResponse().getHeaderField("ETag"));
+    assertEquals(3, hits.get());//still asked the target
+
+    body = "version 2";
+    InvocationContext changed = get("/revalidate/page", etag);
+    assertEquals(200, changed.getServletResponse().getResponseCode());
+    assertEquals("version 2", changed.getServletResponse().getText());
+    assertFalse(etag.equals(changed.getServletResponse().getHeaderField("ETag")));
+
+    ETagTable table = table("/revalidate/");
+    assertEquals(4, table.getGeneratedCount());
+    assertEquals(1, table.getNotModifiedCount());
+    assertEquals(0, table.getLocalNotModifiedCount());
+  }
+
+  @Test
+  public void testLocal() throws Exception {
+    String etag = get("/local/page", null).getServletResponse().getHeaderField("ETag");
+    assertEquals(1, hits.get());
+    InvocationContext notModified = get("/local/page", etag);
+    assertEquals(304, notModified.getServletResponse().getResponseCode());
+    assertEquals(etag, notModified.getServletResponse().getHeaderField("ETag"));
+    assertEquals(1, hits.get());//answered by the proxy
+    assertEquals(1, table("/local/").getLocalNotModifiedCount());
+
+    //without a match, the target is asked
+    assertEquals(200, get("/local/page", "\"other\"").getServletResponse().getResponseCode());
+    assertEquals(2, hits.get());
+  }
+
+  @Test
+  public void testLocalWithCredentials() throws Exception {
+    String etag = get("/local/page", null).getServletResponse().getHeaderField("ETag");
+    //the target decides whether these may see it
+    assertEquals(304, get("/local/page", etag, "Authorization", "Basic dXNlcjpwYXNz").getServletResponse().getResponseCode());
+    assertEquals(2, hits.get());
+    assertEquals(304, get("/local/page", etag, "Cookie", "session=other").getServletResponse().getResponseCode());
+    assertEquals(3, hits.get());
+    assertEquals(0, table("/local/").getLocalNotModifiedCount());
+    assertEquals(2, table("/local/").getNotModifiedCount());
+  }
+
+  @Test
+  public void testNotCandidates() throws Exception {
+    InvocationContext big = get("/revalidate/big", null);
+    assertEquals(200, big.getServletResponse().getResponseCode());
+    assertNull(big.getServletResponse().getHeaderField("ETag"));
+    assertEquals(5000, big.getServletResponse().getText().length());//replayed whole
+    assertEquals(1, table("/revalidate/").getTooLargeCount());
+
+    assertEquals("\"own\"", get("/revalidate/tagged", null).getServletResponse().getHeaderField("ETag"));
+    assertNull(get("/revalidate/vary", null).getServletResponse().getHeaderField("ETag"));
+    assertNull(get("/revalidate/private", null).getServletResponse().getHeaderField("ETag"));
+    assertEquals(0, table("/revalidate/").getGeneratedCount());
+  }
+
+  @Test
+  public void testTable() throws Exception {
+    ETagTable table = new ETagTable(3, 60000);
+    for (int i = 0; i < 10; i++)
+      table.put("/" + i, "\"" + i + "\"");
+    assertEquals(3, table.getSize());
+    assertEquals(7, table.getEvictionCount());
+    table.put("/9", "\"9b\"");
+    assertEquals(3, table.getSize());
+    assertEquals("\"9b\"", table.getCurrent("/9"));
+
+    ETagTable expired = new ETagTable(3, 0);
+    expired.put("/a", "\"a\"");
+    Thread.sleep(1);
+    assertNull(expired.getCurrent("/a"));
+  }
+
+  @Test
+  public void testHasherAndMatches() throws Exception {
+    byte[] data = "hello world".getBytes("UTF-8");
+    ETagTable.Hasher whole = new ETagTable.Hasher();
+    whole.update(data, 0, data.length);
+    ETagTable.Hasher parts = new ETagTable.Hasher();
+    parts.update(data, 0, 4);
+    parts.update(data, 4, data.length - 4);
+    assertEquals(whole.toETag(), parts.toETag());
+    assertTrue(whole.toETag().matches("\"px-[0-9a-f]{16}-b\""));
+
+    assertTrue(ETagTable.matches("\"a\"", "\"a\""));
+    assertTrue(ETagTable.matches("\"x\" , W/\"a\"", "\"a\""));
+    assertTrue(ETagTable.matches("*", "\"a\""));
+    assertFalse(ETagTable.matches("\"b\"", "\"a\""));
+    assertFalse(ETagTable.matches(null, "\"a\""));
+  }
+}
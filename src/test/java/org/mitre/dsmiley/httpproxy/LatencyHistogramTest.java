@@ -0,0 +1,84 @@
+package org.mitre.dsmiley.httpproxy;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+  @Test
+  public void testBuckets() {
+    for (long v = 0; v < 100000; v++) {
+      int index = LatencyHistogram.bucketIndex(v);
+      assertTrue(v <= LatencyHistogram.bucketHighValue(index));
+      if (index > 0)
+        assertTrue(v > LatencyHistogram.bucketHighValue(index - 1));
+    }
+    assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucketIndex((1L << 36) - 1));
+  }
+
+  @Test
+  public void testPercentiles() {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0, histogram.snapshot().getValueAtPercentile(99));
+    for (int v = 1; v <= 1000; v++)
+      histogram.record(v);
+    histogram.record(-1);//ignored
+    LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+    assertEquals(1000, snapshot.getCount());
+    assertEquals(1000, snapshot.getMax());
+    assertEquals(500.5, snapshot.getMean(), 0.0);
+    assertWithinPrecision(500, snapshot.getValueAtPercentile(50));
+    assertWithinPrecision(990, snapshot.getValueAtPercentile(99));
+    assertEquals(1000, snapshot.getValueAtPercentile(100));
+    assertEquals(1, snapshot.getValueAtPercentile(0));
+  }
+
+  @Test
+  public void testConcurrentRecording() throws InterruptedException {
+    final LatencyHistogram histogram = new LatencyHistogram();
+    Thread[] threads = new Thread[8];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < 10000; i++)
+            histogram.record(i % 100);
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads)
+      thread.join();
+    LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+    assertEquals(80000, snapshot.getCount());
+    assertEquals(99, snapshot.getMax());
+    assertEquals(49.5, snapshot.getMean(), 0.0);
+  }
+
+  @Test
+  public void testFewerStripes() throws InterruptedException {
+    final LatencyHistogram histogram = new LatencyHistogram(1);
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < 10000; i++)
+            histogram.record(i % 100);
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads)
+      thread.join();
+    LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+    assertEquals(40000, snapshot.getCount());
+    assertEquals(99, snapshot.getMax());
+  }
+
+  private static void assertWithinPrecision(long expected, long actual) {
+    assertTrue("expected ~" + expected + " got " + actual, Math.abs(actual - expected) <= expected / 16 + 1);
+  }
+}
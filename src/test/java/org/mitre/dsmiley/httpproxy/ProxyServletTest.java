@@ -27,6 +27,7 @@ import org.junit.Before;
 import org.junit.Test;
 import org.xml.sax.SAXException;
 
+import javax.servlet.http.HttpServletResponse;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
@@ -56,7 +57,7 @@ public class ProxyServletTest
 
   /** From Meterware httpunit. */
   protected ServletRunner servletRunner;
-  private ServletUnitClient sc;
+  protected ServletUnitClient sc;
 
   protected String targetBaseUri;
   protected String sourceBaseUri;
@@ -212,15 +213,41 @@ public class ProxyServletTest
   
   
 
-  private WebResponse execAssert(GetMethodWebRequest request, String expectedUri) throws Exception {
+  @Test
+  public void testDeprecatedCopyOverloads() throws Exception {
+    Properties servletProps = new Properties();
+    servletProps.setProperty(ProxyServlet.P_TARGET_URI, targetBaseUri);
+    servletRunner.registerServlet("/legacy/*", LegacyCopyProxyServlet.class.getName(), servletProps);
+    WebResponse rsp = sc.getResponse(new GetMethodWebRequest("http://localhost/legacy/page"));
+    assertEquals("headers", rsp.getHeaderField("X-Legacy"));
+    assertTrue(rsp.getText(), rsp.getText().startsWith("legacy:REQUESTLINE:"));
+  }
+
+  /** Overrides the methods subclasses overrode before they were passed the request. */
+  @SuppressWarnings("deprecation")
+  public static class LegacyCopyProxyServlet extends ProxyServlet {
+    @Override
+    protected void copyResponseHeaders(HttpResponse proxyResponse, HttpServletResponse servletResponse) {
+      super.copyResponseHeaders(proxyResponse, servletResponse);
+      servletResponse.addHeader("X-Legacy", "headers");
+    }
+
+    @Override
+    protected void copyResponseEntity(HttpResponse proxyResponse, HttpServletResponse servletResponse) throws IOException {
+      servletResponse.getOutputStream().write("legacy:".getBytes("UTF-8"));
+      super.copyResponseEntity(proxyResponse, servletResponse);
+    }
+  }
+
+  protected WebResponse execAssert(GetMethodWebRequest request, String expectedUri) throws Exception {
     return execAndAssert(request, expectedUri);
   }
 
-  private WebResponse execAssert(GetMethodWebRequest request) throws Exception {
+  protected WebResponse execAssert(GetMethodWebRequest request) throws Exception {
     return execAndAssert(request,null);
   }
 
-  private WebResponse execAndAssert(PostMethodWebRequest request) throws Exception {
+  protected WebResponse execAndAssert(PostMethodWebRequest request) throws Exception {
     request.setParameter("abc","ABC");
 
     WebResponse rsp = execAndAssert(request, null);
@@ -229,7 +256,7 @@ public class ProxyServletTest
     return rsp;
   }
 
-  private WebResponse execAndAssert(WebRequest request, String expectedUri) throws Exception {
+  protected WebResponse execAndAssert(WebRequest request, String expectedUri) throws Exception {
     WebResponse rsp = sc.getResponse( request );
 
     assertEquals(HttpStatus.SC_OK,rsp.getResponseCode());
@@ -315,7 +342,7 @@ public class ProxyServletTest
   /**
    * Writes all information about the request back to the response.
    */
-  private static class RequestInfoHandler implements HttpRequestHandler
+  protected static class RequestInfoHandler implements HttpRequestHandler
   {
 
     public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws HttpException, IOException {
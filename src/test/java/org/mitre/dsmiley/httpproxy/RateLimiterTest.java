@@ -0,0 +1,70 @@
+package org.mitre.dsmiley.httpproxy;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class RateLimiterTest {
+
+  @Test
+  public void testBurstThenRate() throws InterruptedException {
+    RateLimiter limiter = new RateLimiter(100, 5, 16);
+    for (int i = 0; i < 5; i++)
+      assertEquals(0, limiter.acquire("a"));
+    long wait = limiter.acquire("a");
+    assertTrue(wait > 0 && wait <= TimeUnit.MILLISECONDS.toNanos(10));
+    assertEquals(0, limiter.acquire("b"));//its own bucket
+    assertEquals(1, limiter.getRejectedCount());
+    Thread.sleep(25);//two tokens' worth
+    assertEquals(0, limiter.acquire("a"));
+    assertEquals(0, limiter.acquire("a"));
+    assertTrue(limiter.acquire("a") > 0);
+  }
+
+  @Test
+  public void testBoundedTable() {
+    RateLimiter limiter = new RateLimiter(1, 1, 8);
+    //more clients than slots; each evicts a busy one once the table is full
+    for (int i = 0; i < 20; i++)
+      assertEquals(0, limiter.acquire("client" + i));
+    assertEquals(12, limiter.getEvictionCount());
+    assertTrue(limiter.acquire("client19") > 0);//the latest is still there
+  }
+
+  @Test
+  public void testIdleSlotsAreReused() throws InterruptedException {
+    RateLimiter limiter = new RateLimiter(1000, 1, 8);
+    for (int i = 0; i < 8; i++)
+      limiter.acquire("client" + i);
+    Thread.sleep(5);//all full again
+    for (int i = 8; i < 16; i++)
+      assertEquals(0, limiter.acquire("client" + i));
+    assertEquals(0, limiter.getEvictionCount());
+  }
+
+  @Test
+  public void testConcurrent() throws InterruptedException {
+    final RateLimiter limiter = new RateLimiter(0.001, 1000, 1024);
+    final AtomicInteger allowed = new AtomicInteger();
+    Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          for (int i = 0; i < 10000; i++) {
+            if (limiter.acquire("client" + (i % 2)) == 0)
+              allowed.incrementAndGet();
+          }
+        }
+      };
+      threads[t].start();
+    }
+    for (Thread thread : threads)
+      thread.join();
+    assertEquals(2000, allowed.get());//exactly each client's burst
+  }
+}
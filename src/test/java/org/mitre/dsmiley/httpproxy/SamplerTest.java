@@ -0,0 +1,53 @@
+package org.mitre.dsmiley.httpproxy;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SamplerTest {
+
+  private static int count(Sampler sampler, int events) {
+    int sampled = 0;
+    for (int i = 0; i < events; i++) {
+      if (sampler.sample())
+        sampled++;
+    }
+    return sampled;
+  }
+
+  @Test
+  public void testRates() {
+    assertEquals(700, count(new Sampler(0.7), 1000));
+    assertEquals(250, count(new Sampler(0.25), 1000));
+    assertEquals(1000, count(new Sampler(1.0), 1000));
+    assertEquals(1000, count(new Sampler(1 / 3.0), 3000));
+    assertEquals(1, count(new Sampler(0.001), 1000));
+    assertEquals(0, count(new Sampler(0), 1000));
+  }
+
+  @Test
+  public void testEvenlySpread() {
+    Sampler sampler = new Sampler(0.4);
+    int gap = 0;
+    for (int i = 0; i < 1000; i++) {
+      if (sampler.sample())
+        gap = 0;
+      else
+        assertTrue(++gap <= 2);
+    }
+  }
+
+  @Test
+  public void testBadRate() {
+    for (double rate : new double[]{-0.5, 1.5, Double.NaN}) {
+      try {
+        new Sampler(rate);
+        fail("" + rate);
+      } catch (IllegalArgumentException e) {
+        //expected
+      }
+    }
+  }
+}
@@ -0,0 +1,134 @@
+package org.mitre.dsmiley.httpproxy;
+
+import com.meterware.httpunit.GetMethodWebRequest;
+import com.meterware.httpunit.WebRequest;
+import com.meterware.servletunit.InvocationContext;
+import com.meterware.servletunit.ServletRunner;
+import com.meterware.servletunit.ServletUnitClient;
+import org.apache.http.Header;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.localserver.LocalTestServer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link ProxyServlet#P_STATELESS_CLIENT}: thousands of users log in to the target, each given a
+ * cookie of their own, and none of them is ever sent with another user's request.
+ */
+public class StatelessClientTest {
+
+  private static final int USERS = 2000;
+
+  private LocalTestServer localTestServer;
+  private ServletRunner servletRunner;
+  private ServletUnitClient sc;
+
+  @Before
+  public void setUp() throws Exception {
+    localTestServer = new LocalTestServer(null, null);
+    localTestServer.register("/login", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws IOException {
+        String user = request.getFirstHeader("X-User").getValue();
+        response.addHeader("Set-Cookie", "session_" + user + "=" + user + "; Path=/");
+        response.addHeader("Set-Cookie", "seen=" + user + "; Path=/");
+        response.setEntity(new StringEntity("welcome"));//httpunit waits on empty bodies
+      }
+    });
+    localTestServer.register("/whoami", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws IOException {
+        StringBuilder cookies = new StringBuilder("cookies:");
+        for (Header header : request.getHeaders("Cookie"))
+          cookies.append(cookies.length() > "cookies:".length() ? " | " : "").append(header.getValue());
+        response.setEntity(new StringEntity(cookies.toString()));
+      }
+    });
+    localTestServer.start();
+
+    servletRunner = new ServletRunner();
+    Properties servletProps = new Properties();
+    servletProps.setProperty(ProxyServlet.P_TARGET_URI,
+        "http://localhost:" + localTestServer.getServiceAddress().getPort());
+    servletProps.setProperty(ProxyServlet.P_STATELESS_CLIENT, "true");
+    servletRunner.registerServlet("/proxyMe/*", ProxyServlet.class.getName(), servletProps);
+    sc = servletRunner.newClient();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    servletRunner.shutDown();
+    localTestServer.stop();
+  }
+
+  /** Proxies a request for {@code user}, bypassing httpunit's own cookie handling. */
+  private InvocationContext proxy(String path, String user, String cookie) throws Exception {
+    WebRequest request = new GetMethodWebRequest("http://localhost/proxyMe" + path);
+    request.setHeaderField("X-User", user);
+    if (cookie != null)
+      request.setHeaderField("Cookie", cookie);
+    InvocationContext ic = sc.newInvocation(request);
+    ic.getServlet().service(ic.getRequest(), ic.getResponse());
+    return ic;
+  }
+
+  private void login(String user) throws Exception {
+    InvocationContext ic = proxy("/login", user, null);
+    assertEquals(200, ic.getServletResponse().getResponseCode());
+    assertEquals("session_" + user + "=" + user + "; Path=/",
+        ic.getServletResponse().getHeaderFields("Set-Cookie")[0]);//passed on to the user
+  }
+
+  private String whoami(String user, String cookie) throws Exception {
+    return proxy("/whoami", user, cookie).getServletResponse().getText();
+  }
+
+  @Test
+  public void testCookiesDontLeak() throws Exception {
+    for (int i = 0; i < USERS; i++) {
+      String user = "u" + i;
+      login(user);
+      //the target sees the user's own cookies, or none, never another's
+      assertEquals("cookies:", whoami(user, null));
+      assertEquals("cookies:session_" + user + "=" + user, whoami(user, "session_" + user + "=" + user));
+    }
+  }
+
+  @Test
+  public void testFlatCost() throws Exception {
+    Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+    com.sun.management.ThreadMXBean threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    Assume.assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+    threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+    for (int i = 0; i < 200; i++)//warm up
+      login("warmup" + i);
+    long early = allocatedByWhoami(threadMXBean);
+    for (int i = 0; i < USERS; i++)
+      login("u" + i);
+    long late = allocatedByWhoami(threadMXBean);
+    //a stored cookie per user would be matched against each request: cost growing with the users
+    assertTrue("allocated " + early + " bytes per request, then " + late, late < early * 1.25);
+  }
+
+  /** Bytes allocated by this thread per proxied request, on average. */
+  private long allocatedByWhoami(com.sun.management.ThreadMXBean threadMXBean) throws Exception {
+    long threadId = Thread.currentThread().getId();
+    long before = threadMXBean.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < 100; i++)
+      proxy("/whoami", "anyone", null);
+    return (threadMXBean.getThreadAllocatedBytes(threadId) - before) / 100;
+  }
+}
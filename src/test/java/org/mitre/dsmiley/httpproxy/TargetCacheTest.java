@@ -0,0 +1,70 @@
+package org.mitre.dsmiley.httpproxy;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TargetCacheTest {
+
+  @Test
+  public void testHitsAndMisses() {
+    TargetCache cache = new TargetCache(10);
+    TargetCache.Target target = cache.resolve("http://localhost:8080/path");
+    assertNull(target.getError());
+    assertEquals("localhost", target.getHost().getHostName());
+    assertEquals(8080, target.getHost().getPort());
+    assertEquals("http://localhost:8080", target.getRouteKey());
+    assertEquals("/path", target.getUri().getPath());
+
+    assertSame(target, cache.resolve("http://localhost:8080/path"));
+    assertEquals(1, cache.getHitCount());
+    assertEquals(1, cache.getMissCount());
+    assertEquals(0.5, cache.getHitRate(), 0.0);
+  }
+
+  @Test
+  public void testNegativeCaching() {
+    TargetCache cache = new TargetCache(10);
+    String bad = "http://{_host}:{_port}/path";
+    assertNotNull(cache.resolve(bad).getError());
+    assertNotNull(cache.resolve(bad).getError());
+    assertEquals(1, cache.getNegativeHitCount());
+    assertNotNull(cache.resolve("/no/host").getError());
+    assertEquals(0, cache.getSize());
+    assertEquals(1, cache.getNegativeSize());//bounded to a tenth
+  }
+
+  @Test
+  public void testNegativeEntriesDontEvictValid() {
+    TargetCache cache = new TargetCache(5, 2);
+    for (int i = 0; i < 5; i++)
+      cache.resolve("http://host" + i + "/");
+    for (int i = 0; i < 100; i++)
+      assertNotNull(cache.resolve("http://{junk" + i + "}/").getError());
+    assertEquals(5, cache.getSize());
+    assertEquals(2, cache.getNegativeSize());
+    long misses = cache.getMissCount();
+    for (int i = 0; i < 5; i++)
+      cache.resolve("http://host" + i + "/");
+    assertEquals(misses, cache.getMissCount());
+  }
+
+  @Test
+  public void testBounded() {
+    TargetCache cache = new TargetCache(5);
+    for (int i = 0; i < 100; i++)
+      cache.resolve("http://host" + i + "/");
+    assertTrue(cache.getSize() <= 5);
+    assertEquals(95, cache.getEvictionCount());
+
+    TargetCache disabled = new TargetCache(0);
+    disabled.resolve("http://host/");
+    disabled.resolve("http://host/");
+    assertEquals(0, disabled.getSize());
+    assertEquals(2, disabled.getMissCount());
+  }
+}
@@ -0,0 +1,213 @@
+package org.mitre.dsmiley.httpproxy;
+
+import com.meterware.httpunit.GetMethodWebRequest;
+import com.meterware.httpunit.PostMethodWebRequest;
+import com.meterware.httpunit.WebRequest;
+import com.meterware.servletunit.InvocationContext;
+import com.meterware.servletunit.ServletRunner;
+import com.meterware.servletunit.ServletUnitClient;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.localserver.LocalTestServer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TrafficCaptureTest {
+
+  @Rule
+  public TemporaryFolder temp = new TemporaryFolder();
+
+  private LocalTestServer localTestServer;
+  private ServletRunner servletRunner;
+  private ServletUnitClient sc;
+  private File captureFile;
+
+  @Before
+  public void setUp() throws Exception {
+    localTestServer = new LocalTestServer(null, null);
+    localTestServer.register("/*", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws IOException {
+        String body = "";
+        if (request instanceof HttpEntityEnclosingRequest)
+          body = EntityUtils.toString(((HttpEntityEnclosingRequest) request).getEntity());
+        response.setStatusCode(request.getRequestLine().getUri().contains("missing") ? 404 : 200);
+        response.setHeader("Set-Cookie", "session=secret");
+        response.setEntity(new StringEntity(request.getRequestLine().getUri().contains("big")
+            ? new String(new char[1000]).replace('\0', 'b') : "got:" + body));
+      }
+    });
+    localTestServer.start();
+    captureFile = new File(temp.getRoot(), "traffic.cap");
+
+    servletRunner = new ServletRunner();
+    Properties servletProps = new Properties();
+    servletProps.setProperty(ProxyServlet.P_TARGET_URI,
+        "http://localhost:" + localTestServer.getServiceAddress().getPort() + "/target");
+    servletProps.setProperty(ProxyServlet.P_CAPTURE_FILE, captureFile.getPath());
+    servletProps.setProperty(ProxyServlet.P_CAPTURE_MAX_BODY, "100");
+    servletRunner.registerServlet("/proxyMe/*", ProxyServlet.class.getName(), servletProps);
+    sc = servletRunner.newClient();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    servletRunner.shutDown();
+    localTestServer.stop();
+  }
+
+  private InvocationContext proxy(WebRequest request) throws Exception {
+    InvocationContext ic = sc.newInvocation(request);
+    ic.getServlet().service(ic.getRequest(), ic.getResponse());
+    return ic;
+  }
+
+  private List<TrafficCapture.Exchange> readAll() throws Exception {
+    ProxyServlet servlet = (ProxyServlet) sc.newInvocation(new GetMethodWebRequest("http://localhost/proxyMe/")).getServlet();
+    servlet.trafficCapture.close();//writes what's queued
+    List<TrafficCapture.Exchange> exchanges = new ArrayList<TrafficCapture.Exchange>();
+    TrafficCapture.Reader reader = new TrafficCapture.Reader(captureFile);
+    TrafficCapture.Exchange exchange;
+    while ((exchange = reader.next()) != null)
+      exchanges.add(exchange);
+    return exchanges;
+  }
+
+  private static String header(List<String> headers, String name) {
+    for (int i = 0; i < headers.size(); i += 2) {
+      if (headers.get(i).equalsIgnoreCase(name))
+        return headers.get(i + 1);
+    }
+    return null;
+  }
+
+  @Test
+  public void testCapture() throws Exception {
+    long before = System.currentTimeMillis() * 1000;
+    WebRequest get = new GetMethodWebRequest("http://localhost/proxyMe/page");
+    get.setHeaderField("Cookie", "session=secret");
+    get.setHeaderField("X-Custom", "custom");
+    assertEquals("got:", proxy(get).getServletResponse().getText());
+    WebRequest post = new PostMethodWebRequest("http://localhost/proxyMe/form",
+        new ByteArrayInputStream("a=1&b=2".getBytes("UTF-8")), "application/x-www-form-urlencoded");
+    assertEquals("got:a=1&b=2", proxy(post).getServletResponse().getText());
+    assertEquals(1000, proxy(new GetMethodWebRequest("http://localhost/proxyMe/big")).getServletResponse().getText().length());
+    assertEquals(404, proxy(new GetMethodWebRequest("http://localhost/proxyMe/missing")).getServletResponse().getResponseCode());
+
+    List<TrafficCapture.Exchange> exchanges = readAll();
+    assertEquals(4, exchanges.size());
+
+    TrafficCapture.Exchange page = exchanges.get(0);
+    assertEquals("GET", page.method);
+    assertEquals("/page", page.uri);
+    assertTrue(page.timeMicros >= before);
+    assertEquals("custom", header(page.requestHeaders, "X-Custom"));
+    assertEquals("xxxxxxxxxxxxxx", header(page.requestHeaders, "Cookie"));//redacted, keeping its size
+    assertEquals(200, page.status);
+    assertEquals("xxxxxxxxxxxxxx", header(page.responseHeaders, "Set-Cookie"));
+    assertEquals(4, page.responseLength);
+    assertArrayEquals("got:".getBytes("UTF-8"), page.responseBody);
+    assertTrue(page.upstreamMicros >= 0 && page.totalMicros >= page.upstreamMicros);
+
+    TrafficCapture.Exchange form = exchanges.get(1);
+    assertEquals("POST", form.method);
+    assertEquals(7, form.requestLength);
+    assertArrayEquals("a=1&b=2".getBytes("UTF-8"), form.requestBody);
+    assertArrayEquals("got:a=1&b=2".getBytes("UTF-8"), form.responseBody);
+
+    TrafficCapture.Exchange big = exchanges.get(2);
+    assertEquals(1000, big.responseLength);
+    assertNull(big.responseBody);//over the cap
+
+    assertEquals(404, exchanges.get(3).status);
+  }
+
+  @Test
+  public void testRejectionsNotCaptured() throws Exception {
+    WebRequest get = new GetMethodWebRequest("http://localhost/proxyMe/page");
+    InvocationContext invocation = sc.newInvocation(get);
+    ProxyServlet servlet = (ProxyServlet) invocation.getServlet();
+    servlet.rateLimiter = new RateLimiter(1, 1, 16);
+    String client = servlet.getRateLimitKey(invocation.getRequest());
+    assertEquals(200, proxy(get).getServletResponse().getResponseCode());
+    while (servlet.rateLimiter.acquire(client) == 0) {
+      //use up the burst
+    }
+    assertEquals(429, proxy(get).getServletResponse().getResponseCode());
+
+    List<TrafficCapture.Exchange> exchanges = readAll();
+    assertEquals(1, exchanges.size());
+    assertEquals(200, exchanges.get(0).status);
+  }
+
+  @Test
+  public void testSampleRate() throws Exception {
+    TrafficCapture capture = new TrafficCapture(captureFile, 0.7, 0, 100, 1024, 3);
+    int sampled = 0;
+    for (int i = 0; i < 100; i++) {
+      if (capture.sample())
+        sampled++;
+    }
+    assertEquals(70, sampled);
+  }
+
+  @Test
+  public void testSegments() throws Exception {
+    TrafficCapture capture = new TrafficCapture(captureFile, 1.0, 0, 100, 1024, 3);
+    capture.start();
+    for (int i = 0; i < 100; i++) {
+      TrafficCapture.Exchange exchange = capture.begin("GET", "/path/" + i + "?q=" + i);
+      capture.addRequestHeader(exchange, "Accept", "text/html");
+      capture.capture(exchange);
+      if (i % 20 == 19)
+        Thread.sleep(150);//let the writer keep up
+    }
+    capture.close();
+    assertEquals(100, capture.getWrittenCount());
+    assertEquals(0, capture.getDroppedCount());
+
+    List<File> segments = TrafficCapture.segments(captureFile);
+    assertEquals(3, segments.size());//the oldest were deleted
+    List<String> uris = new ArrayList<String>();
+    TrafficCapture.Reader reader = new TrafficCapture.Reader(captureFile);
+    TrafficCapture.Exchange exchange;
+    while ((exchange = reader.next()) != null)
+      uris.add(exchange.uri);
+    assertTrue(uris.size() < 100);
+    assertEquals("/path/99?q=99", uris.get(uris.size() - 1));
+    for (int i = 1; i < uris.size(); i++)//in order, without gaps
+      assertEquals("/path/" + (100 - uris.size() + i) + "?q=" + (100 - uris.size() + i), uris.get(i));
+
+    //a new capture to the same file continues after the last segment
+    capture = new TrafficCapture(captureFile, 1.0, 0, 100, 1024, 3);
+    capture.start();
+    capture.capture(capture.begin("GET", "/after"));
+    capture.close();
+    segments = TrafficCapture.segments(captureFile);
+    assertEquals(3, segments.size());
+    reader = new TrafficCapture.Reader(captureFile);
+    String last = null;
+    while ((exchange = reader.next()) != null)
+      last = exchange.uri;
+    assertEquals("/after", last);
+  }
+}
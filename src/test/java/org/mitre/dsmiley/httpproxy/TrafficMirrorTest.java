@@ -0,0 +1,189 @@
+package org.mitre.dsmiley.httpproxy;
+
+import com.meterware.httpunit.PostMethodWebRequest;
+import com.meterware.httpunit.WebResponse;
+import com.meterware.servletunit.ServletRunner;
+import com.meterware.servletunit.ServletUnitClient;
+import org.apache.http.Header;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.localserver.LocalTestServer;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TrafficMirrorTest {
+
+  private LocalTestServer localTestServer;
+  private String baseUri;
+  /** What the shadow target received: request line, then Host and X-Test, then the body. */
+  private final BlockingQueue<String> shadowRequests = new LinkedBlockingQueue<String>();
+  private volatile CountDownLatch shadowGate = new CountDownLatch(0);
+  private TrafficMirror mirror;
+
+  @Before
+  public void setUp() throws Exception {
+    localTestServer = new LocalTestServer(null, null);
+    localTestServer.start();
+    localTestServer.register("/targetPath*", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws IOException {
+        response.setEntity(new StringEntity("from the target"));
+      }
+    });
+    localTestServer.register("/shadowPath*", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context)
+          throws HttpException, IOException {
+        try {
+          shadowGate.await();
+        } catch (InterruptedException e) {
+          throw new IOException(e.toString());
+        }
+        String body = request instanceof HttpEntityEnclosingRequest
+            ? EntityUtils.toString(((HttpEntityEnclosingRequest) request).getEntity()) : "";
+        Header test = request.getFirstHeader("X-Test");
+        shadowRequests.add(request.getRequestLine().getMethod() + " " + request.getRequestLine().getUri()
+            + " " + request.getFirstHeader("Host").getValue() + " " + (test != null ? test.getValue() : null)
+            + " " + body);
+        response.setEntity(new StringEntity("from the shadow"));
+      }
+    });
+    baseUri = "http://localhost:" + localTestServer.getServiceAddress().getPort();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    shadowGate.countDown();
+    if (mirror != null)
+      mirror.close();
+    localTestServer.stop();
+  }
+
+  private static Header[] headers(String test) {
+    return new Header[] {new BasicHeader("Host", "elsewhere"), new BasicHeader("X-Test", test)};
+  }
+
+  private static InputStream readAll(InputStream in) throws IOException {
+    byte[] buffer = new byte[3];//several reads
+    while (in.read(buffer) >= 0) {
+      //consume
+    }
+    return in;
+  }
+
+  @Test
+  public void testProxyServletMirrors() throws Exception {
+    ServletRunner servletRunner = new ServletRunner();
+    Properties servletProps = new Properties();
+    servletProps.setProperty(ProxyServlet.P_TARGET_URI, baseUri + "/targetPath");
+    servletProps.setProperty(ProxyServlet.P_MIRROR_URI, baseUri + "/shadowPath/");
+    servletProps.setProperty(ProxyServlet.P_METRICS, "true");
+    servletRunner.registerServlet("/proxyMe/*", ProxyServlet.class.getName(), servletProps);
+    try {
+      ServletUnitClient sc = servletRunner.newClient();
+      PostMethodWebRequest request = new PostMethodWebRequest("http://localhost/proxyMe/a/b",
+          new ByteArrayInputStream("hello".getBytes("UTF-8")), "text/plain");
+      request.setHeaderField("X-Test", "one");
+      WebResponse response = sc.getResponse(request);
+      assertEquals("from the target", response.getText());
+      assertEquals("POST /shadowPath/a/b localhost:" + localTestServer.getServiceAddress().getPort()
+          + " one hello", shadowRequests.poll(5, TimeUnit.SECONDS));
+    } finally {
+      servletRunner.shutDown();
+    }
+  }
+
+  @Test
+  public void testDropsWhenFull() throws Exception {
+    mirror = new TrafficMirror(baseUri + "/shadowPath", 1.0, 100, 1, 1, 10000);
+    shadowGate = new CountDownLatch(1);
+    for (int i = 0; i < 5; i++)
+      mirror.mirror("GET", "/r" + i, headers("" + i), null);
+    //one is in flight and one is queued; the rest never wait
+    assertEquals(3, mirror.getDroppedCount());
+    shadowGate.countDown();
+    assertNotNull(shadowRequests.poll(5, TimeUnit.SECONDS));
+    assertNotNull(shadowRequests.poll(5, TimeUnit.SECONDS));
+    for (int i = 0; i < 500 && mirror.getMirroredCount() < 2; i++)
+      Thread.sleep(10);
+    assertEquals(2, mirror.getMirroredCount());
+    assertEquals(2, mirror.getLatency().snapshot().getCount());
+    assertTrue(mirror.getLatency().snapshot().getMax() > 0);
+    assertEquals(0, mirror.getFailedCount());
+  }
+
+  @Test
+  public void testBodyCap() throws Exception {
+    mirror = new TrafficMirror(baseUri + "/shadowPath", 1.0, 10, 1, 10, 10000);
+    byte[] big = "more than ten bytes".getBytes("UTF-8");
+    assertNull(mirror.tee(new ByteArrayInputStream(big), big.length));
+    assertEquals(1, mirror.getDroppedCount());
+
+    TrafficMirror.Tee chunked = mirror.tee(new ByteArrayInputStream(big), -1);
+    readAll(chunked);
+    assertTrue(!chunked.isComplete());
+    mirror.mirror("POST", "/big", headers("big"), chunked);
+    assertEquals(2, mirror.getDroppedCount());
+
+    TrafficMirror.Tee small = mirror.tee(new ByteArrayInputStream("small".getBytes("UTF-8")), -1);
+    readAll(small);
+    assertTrue(small.isComplete());
+    mirror.mirror("PUT", "/small", headers("small"), small);
+    assertEquals("PUT /shadowPath/small localhost:" + localTestServer.getServiceAddress().getPort()
+        + " small small", shadowRequests.poll(5, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testSampleRate() throws Exception {
+    mirror = new TrafficMirror(baseUri, 0.25, 100, 1, 1, 10000);
+    int sampled = 0;
+    for (int i = 0; i < 100; i++) {
+      if (mirror.sample())
+        sampled++;
+    }
+    assertEquals(25, sampled);
+
+    mirror.close();
+    mirror = new TrafficMirror(baseUri, 0.7, 100, 1, 1, 10000);
+    sampled = 0;
+    for (int i = 0; i < 100; i++) {
+      if (mirror.sample())
+        sampled++;
+    }
+    assertEquals(70, sampled);
+  }
+
+  @Test
+  public void testShadowDown() throws Exception {
+    ServerSocket socket = new ServerSocket(0);
+    int port = socket.getLocalPort();
+    socket.close();//nothing listens there now
+    mirror = new TrafficMirror("http://localhost:" + port, 1.0, 100, 1, 1, 10000);
+    mirror.mirror("GET", "/", headers("down"), null);
+    for (int i = 0; i < 500 && mirror.getFailedCount() == 0; i++)
+      Thread.sleep(10);
+    assertEquals(1, mirror.getFailedCount());
+    assertEquals(0, mirror.getMirroredCount());
+  }
+}
@@ -4,9 +4,15 @@ import com.meterware.httpunit.GetMethodWebRequest;
 import com.meterware.httpunit.PostMethodWebRequest;
 import com.meterware.httpunit.WebRequest;
 import com.meterware.httpunit.WebResponse;
+import com.meterware.servletunit.InvocationContext;
+import com.meterware.servletunit.ServletUnitClient;
+import org.apache.http.HttpStatus;
 import org.junit.Ignore;
 import org.junit.Test;
 
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -14,6 +20,8 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Properties;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
 import static org.junit.internal.matchers.StringContains.containsString;
 
@@ -65,11 +73,6 @@ public class URITemplateProxyServletTest extends ProxyServletTest {
     return new URI(this.targetBaseUri).getPath() + expectedUri;
   }
 
-  @Override @Test
-  @Ignore // because internally uses "new URI()" which is strict
-  public void testProxyWithUnescapedChars() throws Exception {
-  }
-
   @Override @Test
   @Ignore //because HttpUnit is faulty
   public void testSendFile() throws Exception {
@@ -91,6 +94,69 @@ public class URITemplateProxyServletTest extends ProxyServletTest {
     assertThat(response.getText(), containsString(expectedTargetUri));
   }
 
+  @Test
+  public void shouldNotForwardHeadersUsedAsVariables() throws Exception {
+    GetMethodWebRequest request = makeGetMethodRequest(sourceBaseUri + "?a=b");
+    request.setHeaderField("X-Other", "kept");
+    String text = servletRunner.getResponse(request).getText();
+    assertThat(text, containsString("X-Other: kept"));
+    assertFalse(text.contains("_tenant"));
+    assertFalse(text.contains("_user"));
+  }
+
+  @Test
+  public void shouldForwardOtherQueryParamsVerbatim() throws Exception {
+    GetMethodWebRequest request = makeGetMethodRequest(sourceBaseUri + "?a=1%2B2&b&c=x+y");
+    String expectedTargetUri = getExpectedTargetUri(request, "?a=1%2B2&b&c=x+y");
+    WebResponse response = servletRunner.getResponse(request);
+    assertThat(response.getText(), containsString(expectedTargetUri + " HTTP/1.1"));
+  }
+
+  @Test
+  public void shouldInsertSimpleVariablesRaw() throws Exception {
+    GetMethodWebRequest request = makeGetMethodRequest(sourceBaseUri + "?a=b");
+    request.setHeaderField("_path", "targetPath/sub");//a '/' in a simple {var} isn't encoded
+    String text = servletRunner.getResponse(request).getText();
+    assertThat(text, containsString("/targetPath/sub/user2/tenant1?a=b HTTP/1.1"));
+  }
+
+  @Test
+  public void shouldPutTemplateQueryAfterPathInfo() throws Exception {
+    Properties props = new Properties();
+    props.setProperty("targetUri",
+        "http://localhost:" + localTestServer.getServiceAddress().getPort() + "/targetPath{?version}");
+    servletRunner.registerServlet("/proxyQuery/*", URITemplateProxyServlet.class.getName(), props);
+    //the other servlet's template params are appended, and forwarded as query args by this one
+    String text = servletRunner.getResponse(makeGetMethodRequest("http://localhost/proxyQuery/foo?x=1&version=2")).getText();
+    assertThat(text, containsString("/targetPath/foo?version=2&x=1&_host="));
+    text = servletRunner.getResponse(makeGetMethodRequest("http://localhost/proxyQuery/foo?version=2")).getText();
+    assertThat(text, containsString("/targetPath/foo?version=2&_host="));
+    text = servletRunner.getResponse(makeGetMethodRequest("http://localhost/proxyQuery/foo?x=1")).getText();
+    assertThat(text, containsString("/targetPath/foo?x=1&_host="));//undefined, so no query of its own
+  }
+
+  @Test
+  public void shouldRejectMissingVariablesAsBadRequest() throws Exception {
+    GetMethodWebRequest request = new GetMethodWebRequest(sourceBaseUri);//no template params
+    ServletUnitClient client = servletRunner.newClient();
+    URITemplateProxyServlet servlet = null;
+    for (int i = 0; i < 2; i++) {
+      //HttpUnit would try to parse the HTML error page, so capture the error directly
+      InvocationContext ic = client.newInvocation(request);
+      final int[] status = new int[1];
+      HttpServletResponse response = new HttpServletResponseWrapper(ic.getResponse()) {
+        @Override
+        public void sendError(int sc, String msg) throws IOException {
+          status[0] = sc;
+        }
+      };
+      servlet = (URITemplateProxyServlet) ic.getServlet();
+      servlet.service(ic.getRequest(), response);
+      assertEquals(HttpStatus.SC_BAD_REQUEST, status[0]);
+    }
+    assertEquals(1, servlet.getTargetCache().getNegativeHitCount());
+  }
+
   @Test
   public void shouldReplaceVariablesFromSourceURL() throws Exception {
 
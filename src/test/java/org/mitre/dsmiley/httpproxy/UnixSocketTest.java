@@ -0,0 +1,202 @@
+package org.mitre.dsmiley.httpproxy;
+
+import com.meterware.httpunit.GetMethodWebRequest;
+import com.meterware.httpunit.PostMethodWebRequest;
+import com.meterware.httpunit.WebResponse;
+import com.meterware.servletunit.ServletRunner;
+import com.meterware.servletunit.ServletUnitClient;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.DefaultBHttpServerConnection;
+import org.apache.http.impl.DefaultConnectionReuseStrategy;
+import org.apache.http.impl.DefaultHttpResponseFactory;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpProcessorBuilder;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.protocol.HttpService;
+import org.apache.http.protocol.ResponseConnControl;
+import org.apache.http.protocol.ResponseContent;
+import org.apache.http.protocol.UriHttpRequestHandlerMapper;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Proxies to an HTTP server on a Unix domain socket. Needs Java 16 or later to run, and is
+ * skipped otherwise.
+ */
+public class UnixSocketTest {
+
+  private File socketFile;
+  private UnixSocketServer server;
+  private ServletRunner servletRunner;
+  private ServletUnitClient sc;
+
+  @Before
+  public void setUp() throws Exception {
+    Assume.assumeTrue(UnixSocket.isSupported());
+    socketFile = File.createTempFile("proxy", ".sock");
+    socketFile.delete();
+    UriHttpRequestHandlerMapper handlers = new UriHttpRequestHandlerMapper();
+    handlers.register("/api/*", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context)
+          throws HttpException, IOException {
+        String body = request instanceof HttpEntityEnclosingRequest
+            ? " " + EntityUtils.toString(((HttpEntityEnclosingRequest) request).getEntity()) : "";
+        response.setEntity(new StringEntity(request.getRequestLine().getMethod() + " "
+            + request.getRequestLine().getUri() + " Host: " + request.getFirstHeader("Host").getValue() + body));
+      }
+    });
+    handlers.register("/api/moved", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) {
+        response.setStatusCode(302);
+        response.setHeader("Location", "http://localhost/api/elsewhere?a=b");
+      }
+    });
+    server = new UnixSocketServer(socketFile.getPath(), handlers);
+    server.start();
+
+    servletRunner = new ServletRunner();
+    Properties servletProps = new Properties();
+    servletProps.setProperty(ProxyServlet.P_TARGET_URI, "unix:" + socketFile.getPath() + ":/api");
+    servletProps.setProperty("http.protocol.handle-redirects", "false");
+    servletRunner.registerServlet("/proxyMe/*", ProxyServlet.class.getName(), servletProps);
+    sc = servletRunner.newClient();
+    sc.getClientProperties().setAutoRedirect(false);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (servletRunner != null)
+      servletRunner.shutDown();
+    if (server != null)
+      server.close();
+    if (socketFile != null)
+      socketFile.delete();
+  }
+
+  @Test
+  public void testProxy() throws Exception {
+    WebResponse response = sc.getResponse(new GetMethodWebRequest("http://localhost/proxyMe/hello"));
+    assertEquals("GET /api/hello Host: localhost", response.getText());
+
+    response = sc.getResponse(new PostMethodWebRequest("http://localhost/proxyMe/upload",
+        new ByteArrayInputStream("some data".getBytes("UTF-8")), "text/plain"));
+    assertEquals("POST /api/upload Host: localhost some data", response.getText());
+
+    //pooled, like TCP connections
+    for (int i = 0; i < 5; i++)
+      sc.getResponse(new GetMethodWebRequest("http://localhost/proxyMe/again"));
+    assertEquals(1, server.accepted.get());
+  }
+
+  @Test
+  public void testRedirect() throws Exception {
+    WebResponse response = sc.getResponse(new GetMethodWebRequest("http://localhost/proxyMe/moved"));
+    assertEquals(302, response.getResponseCode());
+    assertEquals("http://localhost/proxyMe/elsewhere?a=b", response.getHeaderField("Location"));
+  }
+
+  @Test
+  public void testReadTimeout() throws Exception {
+    UnixSocket socket = new UnixSocket();
+    socket.connect(socketFile.getPath());
+    try {
+      socket.setSoTimeout(100);
+      InputStream in = socket.getInputStream();
+      long start = System.nanoTime();
+      try {
+        in.read(new byte[10]);//the server waits for a request
+        fail("should time out");
+      } catch (SocketTimeoutException e) {
+        //expected
+      }
+      long millis = (System.nanoTime() - start) / 1000000;
+      assertEquals("took " + millis + "ms", true, millis >= 90 && millis < 5000);
+    } finally {
+      socket.close();
+    }
+  }
+
+  @Test
+  public void testNoSocketFile() throws Exception {
+    UnixSocket socket = new UnixSocket();
+    try {
+      socket.connect(socketFile.getPath() + ".missing");
+      fail("there's nothing to connect to");
+    } catch (IOException e) {
+      //expected
+    }
+  }
+
+  /** A minimal HTTP server on a Unix domain socket, a thread per connection. */
+  static class UnixSocketServer extends Thread {
+    final AtomicInteger accepted = new AtomicInteger();
+    private final ServerSocketChannel serverChannel;
+    private final HttpService httpService;
+
+    UnixSocketServer(String path, UriHttpRequestHandlerMapper handlers) throws IOException {
+      super("UnixSocketServer");
+      setDaemon(true);
+      serverChannel = UnixSocket.bind(path);
+      httpService = new HttpService(HttpProcessorBuilder.create()
+          .add(new ResponseContent()).add(new ResponseConnControl()).build(),
+          DefaultConnectionReuseStrategy.INSTANCE, DefaultHttpResponseFactory.INSTANCE, handlers);
+    }
+
+    void close() throws IOException {
+      serverChannel.close();
+    }
+
+    @Override
+    public void run() {
+      while (serverChannel.isOpen()) {
+        final SocketChannel channel;
+        try {
+          channel = serverChannel.accept();
+        } catch (IOException e) {
+          return;//closed
+        }
+        accepted.incrementAndGet();
+        new Thread("UnixSocketServer connection") {
+          @Override
+          public void run() {
+            DefaultBHttpServerConnection connection = new DefaultBHttpServerConnection(8192);
+            try {
+              connection.bind(new UnixSocket(channel));
+              while (connection.isOpen())
+                httpService.handleRequest(connection, new BasicHttpContext());
+            } catch (Exception e) {
+              //the client closed it
+            } finally {
+              try {
+                connection.shutdown();
+              } catch (IOException e) {
+                //ignore
+              }
+            }
+          }
+        }.start();
+      }
+    }
+  }
+}
@@ -0,0 +1,378 @@
+package org.mitre.dsmiley.httpproxy;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.commons.codec.binary.Base64;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tunnels WebSockets through a {@link ProxyServlet} in an embedded Tomcat (httpunit has no
+ * Servlet 3.1 upgrade) to a minimal WebSocket echo server.
+ */
+public class UpgradeTunnelTest {
+
+  private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+  private static final int OPCODE_TEXT = 1;
+  private static final int OPCODE_BINARY = 2;
+  private static final int OPCODE_CLOSE = 8;
+  private static final int OPCODE_PING = 9;
+
+  private EchoServer echoServer;
+  private Tomcat tomcat;
+  private ProxyServlet servlet;
+  private ProxyServlet idleServlet;
+  private ProxyServlet oneServlet;
+  private int port;
+
+  @Before
+  public void setUp() throws Exception {
+    echoServer = new EchoServer();
+    echoServer.start();
+    File baseDir = File.createTempFile("tomcat", "");
+    baseDir.delete();
+    baseDir.mkdir();
+    tomcat = new Tomcat();
+    tomcat.setBaseDir(baseDir.getPath());
+    tomcat.setPort(0);
+    tomcat.getConnector();
+    Context context = tomcat.addContext("", baseDir.getPath());
+    servlet = new ProxyServlet();
+    addProxyServlet(context, "proxy", servlet, "300000");
+    idleServlet = new ProxyServlet();
+    addProxyServlet(context, "idle", idleServlet, "200");
+    oneServlet = new ProxyServlet();
+    Wrapper one = addProxyServlet(context, "one", oneServlet, "300000");
+    one.addInitParameter(ProxyServlet.P_TUNNEL_MAX_OPEN, "1");
+    one.addInitParameter(ProxyServlet.P_METRICS, "true");
+    tomcat.start();
+    port = tomcat.getConnector().getLocalPort();
+  }
+
+  private Wrapper addProxyServlet(Context context, String name, ProxyServlet proxyServlet, String idleTimeout) {
+    Wrapper wrapper = Tomcat.addServlet(context, name, proxyServlet);
+    wrapper.addInitParameter(ProxyServlet.P_TARGET_URI, "http://localhost:" + echoServer.getPort());
+    wrapper.addInitParameter(ProxyServlet.P_TUNNEL_UPGRADE, "true");
+    wrapper.addInitParameter(ProxyServlet.P_TUNNEL_IDLE_TIMEOUT, idleTimeout);
+    wrapper.setLoadOnStartup(1);
+    context.addServletMappingDecoded("/" + name + "/*", name);
+    return wrapper;
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    tomcat.stop();
+    tomcat.destroy();
+    echoServer.close();
+  }
+
+  @Test
+  public void testEcho() throws Exception {
+    Socket socket = new Socket("localhost", port);
+    socket.setSoTimeout(10000);
+    try {
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+      OutputStream out = socket.getOutputStream();
+      String head = handshake(in, out, "/proxy/echo");
+      assertTrue(head, head.startsWith("HTTP/1.1 101"));
+      //the example in RFC 6455
+      assertTrue(head, head.contains("Sec-WebSocket-Accept: s3pPLMBiTxaQ9kYGzzhZRbK+xOo="));
+      assertEquals(1, servlet.tunnelStats.getOpenCount());
+
+      writeFrame(out, OPCODE_TEXT, "hello".getBytes("UTF-8"), true);
+      Frame frame = readFrame(in);
+      assertEquals(OPCODE_TEXT, frame.opcode);
+      assertEquals("hello", new String(frame.payload, "UTF-8"));
+
+      //more than the buffers, both ways at once
+      byte[] big = new byte[300 * 1024];
+      new Random(42).nextBytes(big);
+      writeFrame(out, OPCODE_BINARY, big, true);
+      frame = readFrame(in);
+      assertEquals(OPCODE_BINARY, frame.opcode);
+      assertArrayEquals(big, frame.payload);
+
+      writeFrame(out, OPCODE_CLOSE, new byte[0], true);
+      assertEquals(OPCODE_CLOSE, readFrame(in).opcode);
+    } finally {
+      socket.close();
+    }
+    //the echo server closed its side, which closes the tunnel
+    awaitClosed(servlet);
+    assertEquals(1, servlet.tunnelStats.getOpenedCount());
+    assertTrue(servlet.tunnelStats.getBytesFromClient() > 300 * 1024);
+    assertTrue(servlet.tunnelStats.getBytesToClient() > 300 * 1024);
+  }
+
+  @Test
+  public void testIdleTimeout() throws Exception {
+    Socket socket = new Socket("localhost", port);
+    socket.setSoTimeout(10000);
+    try {
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+      OutputStream out = socket.getOutputStream();
+      String head = handshake(in, out, "/idle/echo");
+      assertTrue(head, head.startsWith("HTTP/1.1 101"));
+      long start = System.nanoTime();
+      awaitClosed(idleServlet);
+      assertTrue(System.nanoTime() - start >= 150 * 1000 * 1000L);
+      assertEquals(1, idleServlet.tunnelStats.getIdleTimeoutCount());
+      //Tomcat closes the client's connection at its next activity
+      try {
+        writeFrame(out, OPCODE_PING, new byte[0], true);
+        assertEquals(-1, in.read());
+      } catch (SocketException e) {
+        //reset; closed as well
+      }
+    } finally {
+      socket.close();
+    }
+  }
+
+  @Test
+  public void testMaxOpen() throws Exception {
+    Socket first = new Socket("localhost", port);
+    first.setSoTimeout(10000);
+    try {
+      DataInputStream in = new DataInputStream(first.getInputStream());
+      OutputStream out = first.getOutputStream();
+      assertTrue(handshake(in, out, "/one/echo").startsWith("HTTP/1.1 101"));
+      Socket second = new Socket("localhost", port);
+      second.setSoTimeout(10000);
+      try {
+        String head = handshake(new DataInputStream(second.getInputStream()), second.getOutputStream(), "/one/echo");
+        assertTrue(head, head.startsWith("HTTP/1.1 503"));
+      } finally {
+        second.close();
+      }
+      assertEquals(1, oneServlet.tunnelStats.getOpenCount());
+      writeFrame(out, OPCODE_CLOSE, new byte[0], true);
+      assertEquals(OPCODE_CLOSE, readFrame(in).opcode);
+    } finally {
+      first.close();
+    }
+    awaitClosed(oneServlet);
+    //and there's room again
+    Socket third = new Socket("localhost", port);
+    third.setSoTimeout(10000);
+    try {
+      String head = handshake(new DataInputStream(third.getInputStream()), third.getOutputStream(), "/one/echo");
+      assertTrue(head, head.startsWith("HTTP/1.1 101"));
+    } finally {
+      third.close();
+    }
+    //each handshake is timed, the turned away one too
+    long requests = 0;
+    for (ProxyMetrics.RouteMetrics route : oneServlet.metrics.getRoutes())
+      requests += route.getRequestCount();
+    assertEquals(3, requests);
+  }
+
+  private static void awaitClosed(ProxyServlet proxyServlet) throws InterruptedException {
+    for (int i = 0; i < 500 && proxyServlet.tunnelStats.getOpenCount() > 0; i++)
+      Thread.sleep(10);
+    assertEquals(0, proxyServlet.tunnelStats.getOpenCount());
+  }
+
+  @Test
+  public void testNotUpgraded() throws Exception {
+    Socket socket = new Socket("localhost", port);
+    socket.setSoTimeout(10000);
+    try {
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+      String head = handshake(in, socket.getOutputStream(), "/proxy/nothing");
+      assertTrue(head, head.startsWith("HTTP/1.1 404"));
+      assertTrue(head, head.contains("Content-Length: 12"));
+      byte[] body = new byte[12];
+      in.readFully(body);
+      assertEquals("no echo here", new String(body, "UTF-8"));
+    } finally {
+      socket.close();
+    }
+    assertEquals(0, servlet.tunnelStats.getOpenedCount());
+  }
+
+  private String handshake(DataInputStream in, OutputStream out, String path) throws IOException {
+    String request = "GET " + path + " HTTP/1.1\r\n"
+        + "Host: localhost:" + port + "\r\n"
+        + "Upgrade: websocket\r\n"
+        + "Connection: Upgrade\r\n"
+        + "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n"
+        + "Sec-WebSocket-Version: 13\r\n\r\n";
+    out.write(request.getBytes("ISO-8859-1"));
+    out.flush();
+    return readHead(in);
+  }
+
+  /** Reads up to and including the blank line after the headers, and no further. */
+  private static String readHead(InputStream in) throws IOException {
+    ByteArrayOutputStream head = new ByteArrayOutputStream();
+    int matched = 0;
+    while (matched < 4) {
+      int b = in.read();
+      if (b < 0)
+        throw new IOException("Closed in the headers: " + head);
+      head.write(b);
+      matched = (b == (matched % 2 == 0 ? '\r' : '\n')) ? matched + 1 : (b == '\r' ? 1 : 0);
+    }
+    return head.toString("ISO-8859-1");
+  }
+
+  private static class Frame {
+    int opcode;
+    byte[] payload;
+  }
+
+  private static Frame readFrame(DataInputStream in) throws IOException {
+    int b0 = in.read();
+    if (b0 < 0)
+      return null;
+    int b1 = in.readUnsignedByte();
+    Frame frame = new Frame();
+    frame.opcode = b0 & 0x0F;
+    long length = b1 & 0x7F;
+    if (length == 126)
+      length = in.readUnsignedShort();
+    else if (length == 127)
+      length = in.readLong();
+    byte[] mask = null;
+    if ((b1 & 0x80) != 0) {
+      mask = new byte[4];
+      in.readFully(mask);
+    }
+    frame.payload = new byte[(int) length];
+    in.readFully(frame.payload);
+    if (mask != null) {
+      for (int i = 0; i < frame.payload.length; i++)
+        frame.payload[i] ^= mask[i % 4];
+    }
+    return frame;
+  }
+
+  private static void writeFrame(OutputStream out, int opcode, byte[] payload, boolean masked)
+      throws IOException {
+    ByteArrayOutputStream frame = new ByteArrayOutputStream(payload.length + 14);
+    frame.write(0x80 | opcode);
+    int maskBit = masked ? 0x80 : 0;
+    if (payload.length < 126) {
+      frame.write(maskBit | payload.length);
+    } else if (payload.length < 65536) {
+      frame.write(maskBit | 126);
+      frame.write(payload.length >>> 8);
+      frame.write(payload.length);
+    } else {
+      frame.write(maskBit | 127);
+      for (int shift = 56; shift >= 0; shift -= 8)
+        frame.write((int) ((long) payload.length >>> shift));
+    }
+    if (masked) {
+      byte[] mask = new byte[4];
+      new Random().nextBytes(mask);
+      frame.write(mask);
+      byte[] maskedPayload = payload.clone();
+      for (int i = 0; i < maskedPayload.length; i++)
+        maskedPayload[i] ^= mask[i % 4];
+      frame.write(maskedPayload);
+    } else {
+      frame.write(payload);
+    }
+    out.write(frame.toByteArray());
+    out.flush();
+  }
+
+  /** Answers WebSocket handshakes for "/echo" and echoes each frame back; 404 otherwise. */
+  private static class EchoServer extends Thread {
+    private final ServerSocket serverSocket;
+
+    EchoServer() throws IOException {
+      super("EchoServer");
+      setDaemon(true);
+      serverSocket = new ServerSocket(0);
+    }
+
+    int getPort() {
+      return serverSocket.getLocalPort();
+    }
+
+    void close() throws IOException {
+      serverSocket.close();
+    }
+
+    @Override
+    public void run() {
+      while (!serverSocket.isClosed()) {
+        final Socket socket;
+        try {
+          socket = serverSocket.accept();
+        } catch (IOException e) {
+          return;//closed
+        }
+        new Thread("EchoServer connection") {
+          @Override
+          public void run() {
+            try {
+              serve(socket);
+            } catch (Exception e) {
+              //the test will tell
+            } finally {
+              try {
+                socket.close();
+              } catch (IOException e) {
+                //ignore
+              }
+            }
+          }
+        }.start();
+      }
+    }
+
+    private void serve(Socket socket) throws Exception {
+      DataInputStream in = new DataInputStream(socket.getInputStream());
+      OutputStream out = socket.getOutputStream();
+      String head = readHead(in);
+      String path = head.substring(head.indexOf(' ') + 1, head.indexOf(' ', head.indexOf(' ') + 1));
+      if (!path.equals("/echo")) {
+        out.write(("HTTP/1.1 404 Not Found\r\nContent-Type: text/plain\r\nContent-Length: 12\r\n\r\n"
+            + "no echo here").getBytes("ISO-8859-1"));
+        out.flush();
+        return;
+      }
+      String key = null;
+      for (String line : head.split("\r\n")) {
+        if (line.toLowerCase().startsWith("sec-websocket-key:"))
+          key = line.substring(line.indexOf(':') + 1).trim();
+      }
+      byte[] digest = MessageDigest.getInstance("SHA-1").digest((key + WEBSOCKET_GUID).getBytes("ISO-8859-1"));
+      out.write(("HTTP/1.1 101 Switching Protocols\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+          + "Sec-WebSocket-Accept: " + new String(Base64.encodeBase64(digest), "ISO-8859-1") + "\r\n\r\n")
+          .getBytes("ISO-8859-1"));
+      out.flush();
+      for (;;) {
+        Frame frame = readFrame(in);
+        if (frame == null)
+          return;
+        writeFrame(out, frame.opcode, frame.payload, false);
+        if (frame.opcode == OPCODE_CLOSE)
+          return;
+      }
+    }
+  }
+}
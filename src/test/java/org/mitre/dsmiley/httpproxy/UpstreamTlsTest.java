@@ -0,0 +1,182 @@
+package org.mitre.dsmiley.httpproxy;
+
+import com.meterware.httpunit.GetMethodWebRequest;
+import com.meterware.httpunit.WebRequest;
+import com.meterware.servletunit.ServletRunner;
+import com.meterware.servletunit.ServletUnitClient;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.localserver.LocalTestServer;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestHandler;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSocket;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Proxies to a local https server with a self-signed certificate for "localhost", which
+ * tls-trust.jks trusts; tls-server.jks has its key, and doubles as a client key store.
+ */
+public class UpstreamTlsTest {
+
+  private static final String PASSWORD = "changeit";
+
+  private LocalTestServer localTestServer;
+  private int port;
+
+  private static File resource(String name) {
+    return new File(UpstreamTlsTest.class.getResource("/" + name).getFile());
+  }
+
+  private static SSLContext clientContext(boolean withKey) throws Exception {
+    return UpstreamTls.createSslContext(withKey ? resource("tls-server.jks") : null, PASSWORD, null,
+        resource("tls-trust.jks"), PASSWORD, null, -1, -1);
+  }
+
+  private void startServer(boolean needClientAuth) throws Exception {
+    SSLContext serverContext = UpstreamTls.createSslContext(resource("tls-server.jks"), PASSWORD, null,
+        resource("tls-trust.jks"), PASSWORD, null, -1, -1);
+    localTestServer = new LocalTestServer(serverContext, needClientAuth);
+    localTestServer.register("/*", new HttpRequestHandler() {
+      public void handle(HttpRequest request, HttpResponse response, HttpContext context) throws IOException {
+        response.setHeader("Connection", "close");//a new connection, and handshake, each time
+        response.setEntity(new StringEntity("secure"));
+      }
+    });
+    localTestServer.start();
+    port = localTestServer.getServiceAddress().getPort();
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    startServer(false);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    localTestServer.stop();
+  }
+
+  private static String get(UpstreamTls tls, String uri) throws IOException {
+    PoolingHttpClientConnectionManager manager = new PoolingHttpClientConnectionManager(
+        RegistryBuilder.<ConnectionSocketFactory>create().register("https", tls.getSocketFactory()).build());
+    CloseableHttpClient client = HttpClients.custom().setConnectionManager(manager).build();
+    try {
+      return EntityUtils.toString(client.execute(new HttpGet(uri)).getEntity());
+    } finally {
+      client.close();
+    }
+  }
+
+  @Test
+  public void testProxyResumesSessions() throws Exception {
+    ServletRunner servletRunner = new ServletRunner();
+    Properties servletProps = new Properties();
+    servletProps.setProperty(ProxyServlet.P_TARGET_URI, "https://localhost:" + port);
+    servletProps.setProperty(ProxyServlet.P_TLS_TRUST_STORE, resource("tls-trust.jks").getPath());
+    servletProps.setProperty(ProxyServlet.P_TLS_TRUST_STORE_PASSWORD, PASSWORD);
+    servletProps.setProperty(ProxyServlet.P_TLS_SESSION_CACHE_SIZE, "100");
+    servletProps.setProperty(ProxyServlet.P_TLS_SESSION_TIMEOUT, "600");
+    servletRunner.registerServlet("/proxyMe/*", ProxyServlet.class.getName(), servletProps);
+    try {
+      ServletUnitClient sc = servletRunner.newClient();
+      WebRequest request = new GetMethodWebRequest("http://localhost/proxyMe/page");
+      for (int i = 0; i < 3; i++)
+        assertEquals("secure", sc.getResponse(request).getText());
+      UpstreamTls tls = ((ProxyServlet) sc.newInvocation(request).getServlet()).upstreamTls;
+      //each request had a connection of its own, but only the first did a full handshake
+      assertEquals(1, tls.getHandshakeCount());
+      assertEquals(2, tls.getResumedCount());
+      assertEquals(3, tls.getHandshakeTime().snapshot().getCount());
+      assertEquals(100, tls.getSslContext().getClientSessionContext().getSessionCacheSize());
+      assertEquals(600, tls.getSslContext().getClientSessionContext().getSessionTimeout());
+    } finally {
+      servletRunner.shutDown();
+    }
+  }
+
+  @Test
+  public void testUntrustedTarget() throws Exception {
+    UpstreamTls tls = UpstreamTls.createDefault();//the JVM's CAs
+    try {
+      get(tls, "https://localhost:" + port + "/");
+      fail("a self-signed certificate should not be trusted");
+    } catch (SSLException e) {
+      //expected
+    }
+    assertEquals(1, tls.getFailureCount());
+    assertEquals(0, tls.getHandshakeCount());
+  }
+
+  @Test
+  public void testHostnameVerification() throws Exception {
+    //the certificate is for "localhost"
+    String byAddress = "https://127.0.0.1:" + port + "/";
+    UpstreamTls browser = new UpstreamTls(clientContext(false), null, null, UpstreamTls.getHostnameVerifier(null));
+    try {
+      get(browser, byAddress);
+      fail("the host name doesn't match");
+    } catch (SSLException e) {
+      //expected
+    }
+    assertEquals(1, browser.getFailureCount());
+    assertEquals("secure", get(browser, "https://localhost:" + port + "/"));
+
+    UpstreamTls none = new UpstreamTls(clientContext(false), null, null, UpstreamTls.getHostnameVerifier("none"));
+    assertEquals("secure", get(none, byAddress));
+  }
+
+  @Test
+  public void testProtocolsAndCipherSuites() throws Exception {
+    String cipherSuite = "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256";
+    UpstreamTls tls = new UpstreamTls(clientContext(false), new String[] {"TLSv1.2"}, new String[] {cipherSuite},
+        UpstreamTls.getHostnameVerifier("strict"));
+    HttpContext context = new BasicHttpContext();
+    SSLSocket socket = (SSLSocket) tls.getSocketFactory().connectSocket(5000, tls.getSocketFactory().createSocket(context),
+        new HttpHost("localhost", port, "https"), new InetSocketAddress("localhost", port), null, context);
+    try {
+      assertEquals("TLSv1.2", socket.getSession().getProtocol());
+      assertEquals(cipherSuite, socket.getSession().getCipherSuite());
+    } finally {
+      socket.close();
+    }
+  }
+
+  @Test
+  public void testClientCertificate() throws Exception {
+    localTestServer.stop();
+    startServer(true);
+    String uri = "https://localhost:" + port + "/";
+    UpstreamTls withoutKey = new UpstreamTls(clientContext(false), new String[] {"TLSv1.2"}, null,
+        UpstreamTls.getHostnameVerifier(null));
+    try {
+      get(withoutKey, uri);
+      fail("the server needs a client certificate");
+    } catch (IOException e) {
+      //expected
+    }
+    UpstreamTls withKey = new UpstreamTls(clientContext(true), null, null, UpstreamTls.getHostnameVerifier(null));
+    assertEquals("secure", get(withKey, uri));
+  }
+}
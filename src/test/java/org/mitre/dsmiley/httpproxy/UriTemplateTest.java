@@ -0,0 +1,131 @@
+package org.mitre.dsmiley.httpproxy;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/** Examples are mostly from RFC 6570 section 3. */
+public class UriTemplateTest {
+
+  private static final Map<String, Object> vars = new HashMap<String, Object>();
+  static {
+    vars.put("var", "value");
+    vars.put("hello", "Hello World!");
+    vars.put("path", "/foo/bar");
+    vars.put("empty", "");
+    vars.put("x", "1024");
+    vars.put("y", "768");
+    vars.put("list", Arrays.asList("red", "green", "blue"));
+    vars.put("emptyList", Arrays.asList());
+    vars.put("_hostport", "h:8080");
+    vars.put("_path", "a/b");
+  }
+
+  private static final UriTemplate.Variables variables = new UriTemplate.Variables() {
+    public Object get(String name) {
+      return vars.get(name);
+    }
+  };
+
+  private void assertExpands(String template, String expected) {
+    assertEquals(template, expected, UriTemplate.compile(template).expand(variables));
+  }
+
+  @Test
+  public void testLevel1() {
+    assertExpands("http://example.com/{var}", "http://example.com/value");
+    assertExpands("{hello}", "Hello World!");//raw, unlike the RFC
+    assertExpands("no expressions", "no expressions");
+  }
+
+  @Test
+  public void testSimpleIsRaw() {
+    assertExpands("http://{_hostport}/{_path}/x", "http://h:8080/a/b/x");
+    assertExpands("http://{_hostport}{/_path}", "http://h:8080/a%2Fb");
+  }
+
+  @Test
+  public void testLevel2() {
+    assertExpands("{+var}", "value");
+    assertExpands("{+hello}", "Hello%20World!");
+    assertExpands("{+path}/here", "/foo/bar/here");
+    assertExpands("here?ref={+path}", "here?ref=/foo/bar");
+    assertExpands("X{#var}", "X#value");
+    assertExpands("X{#hello}", "X#Hello%20World!");
+  }
+
+  @Test
+  public void testLevel3() {
+    assertExpands("map?{x,y}", "map?1024,768");
+    assertExpands("{x,hello,y}", "1024,Hello World!,768");
+    assertExpands("{+x,hello,y}", "1024,Hello%20World!,768");
+    assertExpands("{+path,x}/here", "/foo/bar,1024/here");
+    assertExpands("X{.var}", "X.value");
+    assertExpands("X{.x,y}", "X.1024.768");
+    assertExpands("{/var}", "/value");
+    assertExpands("{/var,x}/here", "/value/1024/here");
+    assertExpands("{;x,y}", ";x=1024;y=768");
+    assertExpands("{;x,y,empty}", ";x=1024;y=768;empty");
+    assertExpands("{?x,y}", "?x=1024&y=768");
+    assertExpands("{?x,y,empty}", "?x=1024&y=768&empty=");
+    assertExpands("?fixed=yes{&x}", "?fixed=yes&x=1024");
+    assertExpands("{&x,y,empty}", "&x=1024&y=768&empty=");
+  }
+
+  @Test
+  public void testLevel4() {
+    assertExpands("{var:3}", "val");
+    assertExpands("{var:30}", "value");
+    assertExpands("{list}", "red,green,blue");
+    assertExpands("{list*}", "red,green,blue");
+    assertExpands("{+path:6}/here", "/foo/b/here");
+    assertExpands("{/list*}", "/red/green/blue");
+    assertExpands("{/list*,path:4}", "/red/green/blue/%2Ffoo");
+    assertExpands("{;list}", ";list=red,green,blue");
+    assertExpands("{;list*}", ";list=red;list=green;list=blue");
+    assertExpands("{?list}", "?list=red,green,blue");
+    assertExpands("{?list*}", "?list=red&list=green&list=blue");
+    assertExpands("{&list*}", "&list=red&list=green&list=blue");
+  }
+
+  @Test
+  public void testUndefined() {
+    assertExpands("{?undef}", "");
+    assertExpands("{?x,undef}", "?x=1024");
+    assertExpands("{/undef,var}", "/value");
+    assertExpands("{?emptyList}", "");
+    //legacy: simple expressions with nothing defined are left as-is
+    assertExpands("http://{undef}/", "http://{undef}/");
+  }
+
+  @Test
+  public void testDefaults() {
+    assertExpands("{undef=8080}", "8080");
+    assertExpands("{var=8080}", "value");
+    assertExpands("{?undef=a,x}", "?undef=a&x=1024");
+  }
+
+  @Test
+  public void testVariableNames() {
+    UriTemplate template = UriTemplate.compile("http://{host}:{port=80}/{+path}{?q,host}");
+    assertEquals(Arrays.asList("host", "port", "path", "q"),
+        Arrays.asList(template.getVariableNames().toArray()));
+  }
+
+  @Test
+  public void testMalformed() {
+    for (String template : new String[]{"{unclosed", "{}", "{var:x}", "{var:0}", "{bad name}"}) {
+      try {
+        UriTemplate.compile(template);
+        fail("Should have failed: " + template);
+      } catch (IllegalArgumentException e) {
+        //expected
+      }
+    }
+  }
+}
@@ -0,0 +1,81 @@
+package org.mitre.dsmiley.httpproxy;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UrlRewritingOutputStreamTest {
+
+  private static final String TARGET = "http://backend:8080/app";
+  private static final String PROXY = "http://proxy/ctx/be";
+
+  /** Writes {@code in} in chunks of {@code chunkSize} to exercise matches spanning writes. */
+  private String rewrite(String in, int chunkSize) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    UrlRewritingOutputStream out = new UrlRewritingOutputStream(baos, TARGET, PROXY);
+    byte[] bytes = in.getBytes("UTF-8");
+    for (int i = 0; i < bytes.length; i += chunkSize) {
+      out.write(bytes, i, Math.min(chunkSize, bytes.length - i));
+      out.flush();
+    }
+    out.finish();
+    return baos.toString("UTF-8");
+  }
+
+  private void assertRewrites(String in, String expected) throws IOException {
+    for (int chunkSize : new int[]{1, 2, 3, 7, 8192}) {
+      assertEquals("chunkSize " + chunkSize, expected, rewrite(in, chunkSize));
+    }
+  }
+
+  @Test
+  public void testAttributes() throws IOException {
+    assertRewrites("<a href=\"http://backend:8080/app/x\">", "<a href=\"http://proxy/ctx/be/x\">");
+    assertRewrites("<a HREF = 'http://backend:8080/app'>", "<a HREF = 'http://proxy/ctx/be'>");
+    assertRewrites("<img src=http://backend:8080/app/i.png>", "<img src=http://proxy/ctx/be/i.png>");
+    assertRewrites("<form action=\"//backend:8080/app/post\">", "<form action=\"http://proxy/ctx/be/post\">");
+    assertRewrites("<a href=\"/relative\">", "<a href=\"/relative\">");
+  }
+
+  @Test
+  public void testCss() throws IOException {
+    assertRewrites("a{background:url(http://backend:8080/app/bg.png)}", "a{background:url(http://proxy/ctx/be/bg.png)}");
+    assertRewrites("a{background:url( \"http://backend:8080/app/bg.png\")}", "a{background:url( \"http://proxy/ctx/be/bg.png\")}");
+  }
+
+  @Test
+  public void testNoMatch() throws IOException {
+    assertRewrites("text http://backend:8080/app/x", "text http://backend:8080/app/x");
+    assertRewrites("<a href=\"http://backend:8080/ap", "<a href=\"http://backend:8080/ap");//partial at the end
+    assertRewrites("<a href=\"http://backend:9090/app\">", "<a href=\"http://backend:9090/app\">");
+    assertRewrites("<p>héllo href wörld</p>", "<p>héllo href wörld</p>");
+    assertRewrites("<a href=\"http://backend:8080/x\" src=\"http://backend:8080/app\">",
+        "<a href=\"http://backend:8080/x\" src=\"http://proxy/ctx/be\">");
+  }
+
+  @Test
+  public void testBoundary() throws IOException {
+    assertRewrites("<a href=\"http://backend:8080/application\">", "<a href=\"http://backend:8080/application\">");
+    assertRewrites("<a href=\"//backend:8080/app2/x\">", "<a href=\"//backend:8080/app2/x\">");
+    assertRewrites("<a href=\"http://backend:8080/app?q=1\">", "<a href=\"http://proxy/ctx/be?q=1\">");
+    assertRewrites("<a href=\"http://backend:8080/app#top\">", "<a href=\"http://proxy/ctx/be#top\">");
+    assertRewrites("<a href=http://backend:8080/app>", "<a href=http://proxy/ctx/be>");
+    assertRewrites("a{background:url(http://backend:8080/app)}", "a{background:url(http://proxy/ctx/be)}");
+    assertRewrites("<a href=http://backend:8080/app", "<a href=http://proxy/ctx/be");//at the end
+    assertRewrites("<a href=http://backend:8080/appx", "<a href=http://backend:8080/appx");
+  }
+
+  @Test
+  public void testAsciiCompatible() {
+    assertTrue(UrlRewritingOutputStream.isAsciiCompatible("UTF-8"));
+    assertTrue(UrlRewritingOutputStream.isAsciiCompatible("iso-8859-1"));
+    assertTrue(UrlRewritingOutputStream.isAsciiCompatible("windows-1252"));
+    assertFalse(UrlRewritingOutputStream.isAsciiCompatible("UTF-16"));
+    assertFalse(UrlRewritingOutputStream.isAsciiCompatible("no-such-charset"));
+  }
+}